@@ -1,31 +1,83 @@
 package edu.berkeley.cs186.database;
 
+import edu.berkeley.cs186.database.databox.CompositeDataBox;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.query.QueryPlan;
 import edu.berkeley.cs186.database.table.*;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.concurrency.*;
 import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.index.EntrySorter;
+import edu.berkeley.cs186.database.index.LeafEntry;
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.io.PageHandle;
+import edu.berkeley.cs186.database.io.WriteAheadLog;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 
 public class Database {
+  public static final int DEFAULT_BUFFER_POOL_PAGES = 1024;
+  /** The fewest pages of working memory a join operator can run with. */
+  public static final int MIN_MEMORY_PAGES = 3;
+  public static final long DEFAULT_VACUUM_INTERVAL_MILLIS = 1000;
+  public static final long DEFAULT_CHECKPOINT_THRESHOLD_BYTES = 64L * 1024 * 1024;
+
+  /**
+   * The kinds of changes described by the UNDO records of the log, see describeChange.
+   */
+  private static final byte INSERT_CHANGE = 1;
+  private static final byte UPDATE_CHANGE = 2;
+  private static final byte DELETE_CHANGE = 3;
+
+  private static ScheduledExecutorService vacuumScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "Database-vacuum");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
   private Map<String, Table> tableLookup;
   private Map<String, BPlusTree> indexLookup;
   private long numTransactions;
   private String fileDir;
   private LockManager lockMan;
   private int numMemoryPages;
+  private BufferPool bufferPool;
+  private long groupCommitIntervalMillis;
+  private Map<Long, Snapshot> activeSnapshots;
+  private Map<Long, Transaction> activeTransactions;
+  private long vacuumIntervalMillis;
+  private ScheduledFuture<?> vacuumTask;
+  private WriteAheadLog log;
+  private volatile long checkpointThresholdBytes;
 
   /**
    * Creates a new database.
@@ -40,16 +92,46 @@ public class Database {
 
 
   /**
-   * Creates a new database.
+   * Creates a new database. Its buffer pool has DEFAULT_BUFFER_POOL_PAGES pages, or twice
+   * numMemoryPages if that is more, so that a single transaction's working memory never takes
+   * more than half of it. Transactions reserve numMemoryPages each only while the pool can spare
+   * them; past that, they are given less (see Transaction#getNumMemoryPages).
    *
    * @param fileDir the directory to put the table files in
    * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
    * @throws DatabaseException
    */
   public Database(String fileDir, int numMemoryPages) throws DatabaseException {
+    this(fileDir, numMemoryPages, Math.max(DEFAULT_BUFFER_POOL_PAGES, 2 * numMemoryPages));
+  }
+
+  /**
+   * Creates a new database with its own buffer pool. The buffer pool is the memory budget of the
+   * whole database: pages of its tables and indices are cached in it, and every transaction that
+   * runs memory-consuming operators reserves its numMemoryPages out of the same pool.
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param bufferPoolPages the total number of pages of memory this database may use
+   * @throws DatabaseException if numMemoryPages is more than the pool can reserve at all
+   */
+  public Database(String fileDir, int numMemoryPages, int bufferPoolPages) throws DatabaseException {
+    this(fileDir, numMemoryPages, newBufferPool(bufferPoolPages));
+  }
+
+  private Database(String fileDir, int numMemoryPages, BufferPool bufferPool) throws DatabaseException {
+    if (numMemoryPages > bufferPool.getNumUnreservedPages()) {
+      throw new DatabaseException("numMemoryPages exceeds the memory of the buffer pool");
+    }
     this.numMemoryPages = numMemoryPages;
+    this.bufferPool = bufferPool;
+    this.groupCommitIntervalMillis = -1;
     this.fileDir = fileDir;
     numTransactions = 0;
+    this.activeSnapshots = new ConcurrentHashMap<Long, Snapshot>();
+    this.activeTransactions = new ConcurrentHashMap<Long, Transaction>();
+    this.vacuumIntervalMillis = DEFAULT_VACUUM_INTERVAL_MILLIS;
+    this.checkpointThresholdBytes = DEFAULT_CHECKPOINT_THRESHOLD_BYTES;
     tableLookup = new ConcurrentHashMap<String, Table>();
     indexLookup = new ConcurrentHashMap<String, BPlusTree>();
 
@@ -60,6 +142,24 @@ public class Database {
       dir.mkdirs();
     }
 
+    File logFile = new File(dir, WriteAheadLog.FILENAME);
+    Set<Long> losers = Collections.emptySet();
+    final List<byte[]> committedChanges = new ArrayList<byte[]>();
+    if (logFile.exists()) {
+      // the database logged its writes when it was last open; redo whatever its last close did
+      // not leave on disk before the files are opened
+      try {
+        this.log = new WriteAheadLog(logFile.getPath());
+        losers = this.log.redo(fileDir, new WriteAheadLog.Redo() {
+          public void redo(long transNum, byte[] change) {
+            committedChanges.add(change);
+          }
+        });
+      } catch (PageException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+    }
+
     File[] files = dir.listFiles();
 
     for (File f : files) {
@@ -67,15 +167,375 @@ public class Database {
       if (fName.endsWith(Table.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(Table.FILENAME_EXTENSION);
         String tableName = fName.substring(0, lastIndex);
-        tableLookup.put(tableName, new Table(tableName, this.fileDir));
+        tableLookup.put(tableName, new Table(tableName, this.fileDir, this.bufferPool));
       } else if (fName.endsWith(BPlusTree.FILENAME_EXTENSION)) {
         int lastIndex = fName.lastIndexOf(BPlusTree.FILENAME_EXTENSION);
         String indexName = fName.substring(0, lastIndex);
-        indexLookup.put(indexName, new BPlusTree(indexName, this.fileDir));
+        indexLookup.put(indexName, new BPlusTree(indexName, this.fileDir, this.bufferPool));
       }
     }
+    if (this.log != null) {
+      startLogging();
+      // the transactions that were running when the database crashed are rolled back
+      this.log.rollback(losers, new ChangeUndo(true));
+      redoVersionDeletes(committedChanges);
+      checkpoint();
+    }
+    scheduleVacuum();
+  }
+
+  /**
+   * Creates a new database whose buffer pool is sized by a memory budget in bytes.
+   *
+   * @param fileDir the directory to put the table files in
+   * @param numMemoryPages the number of pages of memory Database Operations should use when executing Queries
+   * @param bufferPoolBytes the total number of bytes of memory this database may use
+   * @return the new Database
+   * @throws DatabaseException
+   */
+  public static Database withMemoryBudget(String fileDir, int numMemoryPages, long bufferPoolBytes) throws DatabaseException {
+    try {
+      return new Database(fileDir, numMemoryPages, BufferPool.withMemoryBudget(bufferPoolBytes));
+    } catch (PageException e) {
+      throw new DatabaseException(e.getMessage());
+    }
+  }
+
+  private static BufferPool newBufferPool(int bufferPoolPages) throws DatabaseException {
+    try {
+      return new BufferPool(bufferPoolPages);
+    } catch (PageException e) {
+      throw new DatabaseException(e.getMessage());
+    }
+  }
+
+  /**
+   * @return the BufferPool that caches the pages of this database
+   */
+  public BufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  /**
+   * Switches every table and index of this database, including ones created later, to group
+   * commit: page allocation metadata is no longer forced on every allocated or freed page, but
+   * every flushIntervalMillis milliseconds, when a transaction ends, and on close.
+   *
+   * @param flushIntervalMillis the time between background syncs, or 0 to only sync when
+   *        transactions end
+   */
+  public synchronized void enableGroupCommit(long flushIntervalMillis) {
+    this.groupCommitIntervalMillis = flushIntervalMillis;
+    for (Table t : this.tableLookup.values()) {
+      t.enableGroupCommit(flushIntervalMillis);
+    }
+    for (BPlusTree tree : this.indexLookup.values()) {
+      tree.enableGroupCommit(flushIntervalMillis);
+    }
+  }
+
+  public synchronized boolean isGroupCommit() {
+    return this.groupCommitIntervalMillis >= 0;
+  }
+
+  /**
+   * Logs every write to the tables and indices of this database, including ones created later, in
+   * a WriteAheadLog in its directory. A transaction that ends then only flushes the log, once,
+   * instead of forcing page allocation metadata, which is left to group commit (see
+   * enableGroupCommit; it is enabled without a timer if it is not already). An aborted
+   * transaction is rolled back from the log. From now on, opening the database first redoes the
+   * writes that were not on disk when it was last closed and rolls back the transactions that
+   * were running then. See checkpoint for how the log is kept from growing without bound.
+   *
+   * @throws DatabaseException if the log cannot be opened
+   */
+  public synchronized void enableWriteAheadLog() throws DatabaseException {
+    if (this.log != null) {
+      return;
+    }
+    try {
+      this.log = new WriteAheadLog(new File(this.fileDir, WriteAheadLog.FILENAME).getPath());
+    } catch (PageException e) {
+      throw new DatabaseException(e.getMessage());
+    }
+    startLogging();
+  }
+
+  public synchronized boolean isWriteAheadLog() {
+    return this.log != null;
+  }
+
+  /**
+   * @return the log of this database, or null if it does not log its writes
+   */
+  public WriteAheadLog getWriteAheadLog() {
+    return this.log;
+  }
+
+  private void startLogging() {
+    if (this.groupCommitIntervalMillis < 0) {
+      enableGroupCommit(0);
+    }
+    for (Table t : this.tableLookup.values()) {
+      t.enableWriteAheadLog(this.log, false);
+    }
+    for (BPlusTree tree : this.indexLookup.values()) {
+      tree.enableWriteAheadLog(this.log, false);
+    }
+  }
+
+  /**
+   * Forces the pages of every table and index to disk and truncates the log, whose records are
+   * not needed anymore then. Does nothing while a transaction is running, since its changes may
+   * still have to be rolled back, nor while a multi-version table keeps versions that vacuum has
+   * not reclaimed yet, since the log is all that records the deletes among them (see
+   * redoVersionDeletes).
+   *
+   * @return whether the log was truncated
+   */
+  public synchronized boolean checkpoint() {
+    if (this.log == null || !this.activeTransactions.isEmpty()) {
+      return false;
+    }
+    for (Table t : this.tableLookup.values()) {
+      if (t.isMultiVersion() && t.getNumVersions() > 0) {
+        return false;
+      }
+    }
+    this.log.flush();
+    for (Table t : this.tableLookup.values()) {
+      t.force();
+    }
+    for (BPlusTree tree : this.indexLookup.values()) {
+      tree.force();
+    }
+    this.log.truncate();
+    return true;
+  }
+
+  /**
+   * Sets how large the log may grow before a transaction that ends while no other one is running
+   * checkpoints the database. See checkpoint.
+   *
+   * @param numBytes the size of the log in bytes, or 0 to only checkpoint on demand
+   */
+  public void setCheckpointThreshold(long numBytes) {
+    this.checkpointThresholdBytes = numBytes;
+  }
+
+  /**
+   * Deletes the records of multi-version tables again whose deletes were committed before a
+   * crash. Such a record stays on its page until vacuum reclaims it, so only the UNDO record of
+   * its delete survives the crash. A record whose slot vacuum freed, and a later insert may have
+   * taken, is left alone.
+   *
+   * @param changes the changes of the committed transactions in the log, oldest first
+   */
+  private void redoVersionDeletes(List<byte[]> changes) throws DatabaseException {
+    Map<String, Set<RecordID>> deleted = new HashMap<String, Set<RecordID>>();
+    for (byte[] bytes : changes) {
+      Change change = Change.decode(bytes);
+      Table tab = this.tableLookup.get(change.tableName);
+      if (tab == null || !tab.isMultiVersion() || change.kind == UPDATE_CHANGE) {
+        continue;
+      }
+      if (!deleted.containsKey(change.tableName)) {
+        deleted.put(change.tableName, new LinkedHashSet<RecordID>());
+      }
+      if (change.kind == DELETE_CHANGE) {
+        deleted.get(change.tableName).addAll(change.rids);
+      } else {
+        deleted.get(change.tableName).removeAll(change.rids);
+      }
+    }
+    if (deleted.isEmpty()) {
+      return;
+    }
+
+    Transaction t = beginTransaction();
+    try {
+      for (Map.Entry<String, Set<RecordID>> entry : deleted.entrySet()) {
+        for (RecordID rid : entry.getValue()) {
+          try {
+            t.deleteRecord(entry.getKey(), rid);
+          } catch (DatabaseException e) {
+            // vacuum freed the slot of the record before the crash
+          }
+        }
+      }
+    } finally {
+      t.end();
+    }
+    vacuum();
+  }
+
+  /**
+   * Checkpoints the database if its log has grown past the checkpoint threshold.
+   */
+  private void checkpointIfLarge() {
+    if (this.log != null && this.checkpointThresholdBytes > 0
+        && this.log.getNextLSN() >= this.checkpointThresholdBytes) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Sets how long a transaction waits for a lock before it is aborted with a
+   * LockTimeoutException. See LockManager#setLockTimeout.
+   *
+   * @param millis the timeout in milliseconds, or 0 to wait until the lock is granted or the
+   *        transaction is picked to break a deadlock
+   */
+  public void setLockTimeout(long millis) {
+    this.lockMan.setLockTimeout(millis);
+  }
+
+  /**
+   * Sets how many rows of a table a transaction may lock one by one before its row locks are
+   * escalated to a lock on the table. See LockManager#setEscalationThreshold.
+   *
+   * @param numRecordLocks the number of record locks
+   */
+  public void setLockEscalationThreshold(int numRecordLocks) {
+    this.lockMan.setEscalationThreshold(numRecordLocks);
+  }
+
+  /**
+   * @return how long transactions have waited for locks on tableName and its pages and rows
+   */
+  public LockWaitStats getLockWaitStats(String tableName) {
+    return this.lockMan.getWaitStats(tableName);
+  }
+
+  /**
+   * Sets how often the versions of multi-version tables that no transaction sees anymore are
+   * reclaimed in the background. See vacuum.
+   *
+   * @param intervalMillis the time between vacuums, or 0 to only vacuum on demand
+   */
+  public synchronized void setVacuumInterval(long intervalMillis) {
+    this.vacuumIntervalMillis = intervalMillis;
+    if (this.vacuumTask != null) {
+      this.vacuumTask.cancel(false);
+      this.vacuumTask = null;
+    }
+    scheduleVacuum();
+  }
+
+  /**
+   * Starts the background vacuum once there is a multi-version table to vacuum.
+   */
+  private synchronized void scheduleVacuum() {
+    if (this.vacuumTask != null || this.vacuumIntervalMillis <= 0 || !hasMultiVersionTables()) {
+      return;
+    }
+    this.vacuumTask = vacuumScheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          vacuum();
+        } catch (DatabaseException e) {
+          // a lock of the vacuum timed out or broke a deadlock; the next run tries again
+        }
+      }
+    }, this.vacuumIntervalMillis, this.vacuumIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean hasMultiVersionTables() {
+    for (Table t : this.tableLookup.values()) {
+      if (t.isMultiVersion()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reclaims the versions of the records of multi-version tables that no running transaction
+   * sees anymore, along with their index entries unless a remaining version of the same record
+   * has the same key, see Transaction#insertVersionKeys. Every table is
+   * locked exclusively while it is vacuumed, which waits for the transactions writing to it but
+   * not for its readers.
+   *
+   * @return the number of record versions reclaimed
+   * @throws DatabaseException if a lock of the vacuum timed out or it was picked to break a
+   *         deadlock
+   */
+  public long vacuum() throws DatabaseException {
+    if (!hasMultiVersionTables()) {
+      return 0;
+    }
+
+    Transaction t = beginTransaction();
+    long numReclaimed = 0;
+    try {
+      for (String tableName : new ArrayList<String>(this.tableLookup.keySet())) {
+        Table table = this.tableLookup.get(tableName);
+        if (table == null || !table.isMultiVersion()) {
+          continue;
+        }
+        t.checkAndGrabExclusiveLock(tableName);
+        numReclaimed += t.vacuum(tableName, table);
+        t.releaseLock(tableName);
+      }
+    } finally {
+      if (t.isActive()) {
+        t.end();
+      }
+    }
+    return numReclaimed;
+  }
+
+  /**
+   * @return a transaction number such that every running transaction sees the versions written
+   *         by the transactions numbered below it
+   */
+  private long getVacuumHorizon() {
+    long horizon = Long.MAX_VALUE;
+    for (Snapshot snapshot : this.activeSnapshots.values()) {
+      horizon = Math.min(horizon, snapshot.getHorizon());
+    }
+    return horizon;
+  }
+
+  /**
+   * Forces the batched page allocation metadata of every table and index to disk.
+   */
+  public synchronized void sync() {
+    for (Table t : this.tableLookup.values()) {
+      t.sync();
+    }
+    for (BPlusTree tree : this.indexLookup.values()) {
+      tree.sync();
+    }
+  }
+
+  private Table withGroupCommit(Table t) {
+    if (this.groupCommitIntervalMillis >= 0) {
+      t.enableGroupCommit(this.groupCommitIntervalMillis);
+    }
+    return t;
+  }
+
+  private BPlusTree withGroupCommit(BPlusTree tree) {
+    if (this.groupCommitIntervalMillis >= 0) {
+      tree.enableGroupCommit(this.groupCommitIntervalMillis);
+    }
+    return tree;
+  }
+
+  private Table withWriteAheadLog(Table t) {
+    if (this.log != null) {
+      t.enableWriteAheadLog(this.log, true);
+    }
+    return t;
   }
 
+  private BPlusTree withWriteAheadLog(BPlusTree tree) {
+    if (this.log != null) {
+      tree.enableWriteAheadLog(this.log, true);
+    }
+    return tree;
+  }
 
   /**
    * Create a new table in this database.
@@ -85,16 +545,50 @@ public class Database {
    * @throws DatabaseException
    */
   public synchronized void createTable(Schema s, String tableName) throws DatabaseException {
+    createTable(s, tableName, Table.PageFormat.FIXED);
+  }
+
+  /**
+   * Create a new table in this database whose data pages use the given format. SLOTTED tables
+   * store strings without padding, at the cost of updates failing if a grown record no longer
+   * fits on its page.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param format the layout of the table's data pages
+   * @throws DatabaseException
+   */
+  public synchronized void createTable(Schema s, String tableName, Table.PageFormat format)
+      throws DatabaseException {
+    createTable(s, tableName, format, false);
+  }
+
+  /**
+   * Create a new table in this database whose data pages use the given format. If multiVersion
+   * is set, the table keeps the versions of its records that transactions write: each
+   * transaction reads the table as of its begin without taking shared locks, so its readers
+   * never wait for its writers and the other way around. The index entries of the old versions
+   * of its records stay in its indices until vacuum reclaims the versions.
+   *
+   * @param s the table schema
+   * @param tableName the name of the table
+   * @param format the layout of the table's data pages
+   * @param multiVersion whether transactions read the table through snapshots
+   * @throws DatabaseException
+   */
+  public synchronized void createTable(Schema s, String tableName, Table.PageFormat format,
+                                       boolean multiVersion) throws DatabaseException {
     if (this.tableLookup.containsKey(tableName)) {
       throw new DatabaseException("Table name already exists");
     }
 
-    this.tableLookup.put(tableName, new Table(s, tableName, this.fileDir));
+    this.tableLookup.put(tableName, withWriteAheadLog(withGroupCommit(new Table(s, tableName,
+        this.fileDir, this.bufferPool, format, multiVersion))));
+    scheduleVacuum();
   }
 
   /**
    * Create a new table in this database with an index on each of the given column names.
-   * NOTE: YOU CAN NOT DELETE/UPDATE FROM THIS TABLE IF YOU CHOOSE TO BUILD INDICES!!
    * @param s the table schema
    * @param tableName the name of the table
    * @param indexColumns the list of unique columnNames on the maintain an index on
@@ -118,17 +612,412 @@ public class Database {
       if (seenColNames.contains(col)) {
         throw new DatabaseException("Column desired for index has been duplicated");
       }
-      seenColNames.add(col);
-      schemaColIndex.add(schemaColNames.indexOf(col));
+      seenColNames.add(col);
+      schemaColIndex.add(schemaColNames.indexOf(col));
+    }
+
+    this.tableLookup.put(tableName, withWriteAheadLog(withGroupCommit(new Table(s, tableName,
+        this.fileDir, this.bufferPool))));
+    for (int i : schemaColIndex) {
+      String colName = schemaColNames.get(i);
+      DataBox colType = schemaColType.get(i);
+      String indexName = tableName + "," + colName;
+      this.indexLookup.put(indexName, withWriteAheadLog(withGroupCommit(new BPlusTree(colType,
+          indexName, this.fileDir, this.bufferPool))));
+    }
+  }
+
+  /**
+   * Builds an index on columnName of the existing table tableName. The (key, RecordID) pairs of
+   * the table are sorted with an EntrySorter, spilling to disk if there are many, and the tree is
+   * built bottom-up with BPlusTree#bulkLoad, filling nodes to DEFAULT_FILL_FACTOR. The table is
+   * locked shared while the index is built, which waits for the transactions writing to it.
+   *
+   * @param tableName the name of the table
+   * @param columnName the column to index
+   * @throws DatabaseException if the table or column does not exist, the index already exists,
+   *         or the lock on the table timed out
+   */
+  public void createIndex(String tableName, String columnName) throws DatabaseException {
+    createIndex(tableName, columnName, BPlusTree.DEFAULT_FILL_FACTOR);
+  }
+
+  /**
+   * Builds an index on columnName of the existing table tableName whose nodes are filled to
+   * fillFactor of their capacity. A lower fill factor leaves room for later inserts.
+   *
+   * @param tableName the name of the table
+   * @param columnName the column to index
+   * @param fillFactor the fraction of each node to fill, in (0, 1]
+   * @throws DatabaseException if the table or column does not exist or the index already exists
+   */
+  public void createIndex(String tableName, String columnName, double fillFactor)
+      throws DatabaseException {
+    createIndex(tableName, columnName, fillFactor, false);
+  }
+
+  /**
+   * Builds an index on columnName of the existing table tableName whose nodes are filled to
+   * fillFactor of their capacity, and whose leaves store each key once with a posting list of its
+   * RecordIDs if postingLists is set. Posting lists suit columns with few distinct values.
+   *
+   * @param tableName the name of the table
+   * @param columnName the column to index
+   * @param fillFactor the fraction of each node to fill, in (0, 1]
+   * @param postingLists whether to store the RecordIDs of each key as a posting list
+   * @throws DatabaseException if the table or column does not exist or the index already exists
+   */
+  public void createIndex(String tableName, String columnName, double fillFactor,
+                          boolean postingLists) throws DatabaseException {
+    buildIndex(tableName, Collections.singletonList(columnName), Collections.<String>emptyList(),
+        fillFactor, postingLists);
+  }
+
+  /**
+   * Builds a composite index of the existing table tableName, ordered by the values of keyColumns
+   * in turn. The values of includeColumns are stored in the leaves as well, without affecting the
+   * order, so that queries that only use the key and include columns are answered from the index
+   * alone. The index can be used for predicates on the first key column.
+   *
+   * @param tableName the name of the table
+   * @param keyColumns the columns that make up the key, most significant first
+   * @param includeColumns further columns to store in the index, possibly none
+   * @throws DatabaseException if the table or a column does not exist, a column is given twice,
+   *         or the index already exists
+   */
+  public void createIndex(String tableName, List<String> keyColumns,
+                          List<String> includeColumns) throws DatabaseException {
+    buildIndex(tableName, keyColumns, includeColumns, BPlusTree.DEFAULT_FILL_FACTOR, false);
+  }
+
+  /**
+   * Builds an index while holding the table shared, so that the rows it reads are not changed
+   * before the index is in place. The lock is taken for a transaction of its own, and even on a
+   * multi-version table, where the rows of every version the running snapshots may see are
+   * indexed. The lock is waited for outside of the monitor of this database, which the writers
+   * of the table may need to end.
+   */
+  private void buildIndex(String tableName, List<String> keyColumns, List<String> includeColumns,
+                          double fillFactor, boolean postingLists) throws DatabaseException {
+    Transaction t = beginTransaction();
+    try {
+      try {
+        this.lockMan.acquireLock(tableName, t.transNum, LockManager.LockType.SHARED);
+      } catch (LockException e) {
+        t.abort();
+        throw e;
+      }
+      synchronized (this) {
+        buildLockedIndex(tableName, keyColumns, includeColumns, fillFactor, postingLists);
+      }
+    } finally {
+      if (t.isActive()) {
+        t.end();
+      }
+    }
+  }
+
+  private void buildLockedIndex(String tableName, List<String> keyColumns,
+                                List<String> includeColumns, double fillFactor,
+                                boolean postingLists) throws DatabaseException {
+    Table table = this.tableLookup.get(tableName);
+    if (table == null) {
+      throw new DatabaseException("Table " + tableName + " does not exist");
+    }
+    if (keyColumns.isEmpty()) {
+      throw new DatabaseException("An index needs at least one key column");
+    }
+    Set<String> seenColNames = new HashSet<String>();
+    List<String> columns = new ArrayList<String>(keyColumns);
+    columns.addAll(includeColumns);
+    for (String col : columns) {
+      if (!table.getSchema().getFieldNames().contains(col)) {
+        throw new DatabaseException("Column desired for index does not exist");
+      }
+      if (!seenColNames.add(col)) {
+        throw new DatabaseException("Column desired for index has been duplicated");
+      }
+    }
+    String indexName = getIndexName(tableName, keyColumns, includeColumns);
+    if (this.indexLookup.containsKey(indexName)) {
+      throw new DatabaseException("Index already exists");
+    }
+
+    DataBox keySchema = getIndexKey(indexName, table.getSchema(), table.getSchema().getFieldTypes());
+    EntrySorter sorter = new EntrySorter(keySchema, new File(this.fileDir),
+        EntrySorter.DEFAULT_RUN_SIZE);
+    Iterator<Page> pages = table.pageIterator();
+    pages.next();
+    while (pages.hasNext()) {
+      Page page = pages.next();
+      byte[] header = table.readPageHeader(page);
+      for (int entryNum = 0; entryNum < table.getNumEntriesPerPage(); entryNum++) {
+        if ((header[entryNum / 8] & (1 << (7 - entryNum % 8))) == 0) {
+          continue;
+        }
+        RecordID rid = new RecordID(page.getPageNum(), entryNum);
+        if (!table.isMultiVersion()) {
+          List<DataBox> values = table.readRecord(page, entryNum).getValues();
+          sorter.add(new LeafEntry(getIndexKey(indexName, table.getSchema(), values), rid));
+          continue;
+        }
+        // like Transaction#insertVersionKeys, every version gets an entry, but each key only once
+        Set<DataBox> keys = new HashSet<DataBox>();
+        for (Record version : table.readVersions(page, entryNum)) {
+          DataBox key = getIndexKey(indexName, table.getSchema(), version.getValues());
+          if (keys.add(key)) {
+            sorter.add(new LeafEntry(key, rid));
+          }
+        }
+      }
+    }
+
+    BPlusTree tree = new BPlusTree(keySchema, indexName, this.fileDir, this.bufferPool,
+        postingLists);
+    tree.bulkLoad(sorter.sortedIterator(), fillFactor);
+    this.indexLookup.put(indexName, withWriteAheadLog(withGroupCommit(tree)));
+  }
+
+  /**
+   * Names an index after its table and columns: "table,key1,key2+include1,include2", or just
+   * "table,column" for an index on a single column.
+   */
+  private static String getIndexName(String tableName, List<String> keyColumns,
+                                     List<String> includeColumns) {
+    StringBuilder name = new StringBuilder(tableName);
+    for (String col : keyColumns) {
+      name.append(",").append(col);
+    }
+    for (int i = 0; i < includeColumns.size(); i++) {
+      name.append(i == 0 ? "+" : ",").append(includeColumns.get(i));
+    }
+    return name.toString();
+  }
+
+  private static String getIndexTable(String indexName) {
+    return indexName.substring(0, indexName.indexOf(','));
+  }
+
+  private static List<String> getIndexKeyColumns(String indexName) {
+    String columns = indexName.substring(indexName.indexOf(',') + 1);
+    if (columns.contains("+")) {
+      columns = columns.substring(0, columns.indexOf('+'));
+    }
+    return Arrays.asList(columns.split(","));
+  }
+
+  private static List<String> getIndexIncludeColumns(String indexName) {
+    if (!indexName.contains("+")) {
+      return Collections.emptyList();
+    }
+    return Arrays.asList(indexName.substring(indexName.indexOf('+') + 1).split(","));
+  }
+
+  /**
+   * @return the key columns and then the include columns of index indexName
+   */
+  private static List<String> getColumnsOfIndex(String indexName) {
+    List<String> columns = new ArrayList<String>(getIndexKeyColumns(indexName));
+    columns.addAll(getIndexIncludeColumns(indexName));
+    return columns;
+  }
+
+  private static boolean isCompositeIndex(String indexName) {
+    return getColumnsOfIndex(indexName).size() > 1;
+  }
+
+  /**
+   * @param indexName the name of an index
+   * @param schema the schema of the indexed table
+   * @param values the values of a record of the table, or DataBoxes of its field types
+   * @return the key of the record in the index: the value of its column for a single-column
+   *         index, and a CompositeDataBox of the values of its columns otherwise
+   */
+  private static DataBox getIndexKey(String indexName, Schema schema, List<DataBox> values) {
+    List<String> fieldNames = schema.getFieldNames();
+    List<DataBox> keyValues = new ArrayList<DataBox>();
+    for (String col : getColumnsOfIndex(indexName)) {
+      keyValues.add(values.get(fieldNames.indexOf(col)));
+    }
+    if (!isCompositeIndex(indexName)) {
+      return keyValues.get(0);
+    }
+    return new CompositeDataBox(keyValues, getIndexKeyColumns(indexName).size());
+  }
+
+  /**
+   * @return the names of the indices of the table tableName
+   */
+  private List<String> getTableIndexNames(String tableName) {
+    List<String> indexNames = new ArrayList<String>();
+    for (String indexName : this.indexLookup.keySet()) {
+      if (getIndexTable(indexName).equals(tableName)) {
+        indexNames.add(indexName);
+      }
+    }
+    return indexNames;
+  }
+
+  /**
+   * Describes a change of a transaction to the table tableName for the UNDO record of the log
+   * that rolls it back (see ChangeUndo): the records it inserted, or the record it updated or
+   * deleted along with its old values.
+   *
+   * @param kind INSERT_CHANGE, UPDATE_CHANGE or DELETE_CHANGE
+   * @param tableName the changed table
+   * @param rids the RecordIDs of the changed records
+   * @param s the schema of the table
+   * @param old the old values of the record, or null for an insert
+   */
+  private static byte[] describeChange(byte kind, String tableName, List<RecordID> rids, Schema s,
+                                       Record old) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(kind);
+      out.writeUTF(tableName);
+      out.writeInt(rids.size());
+      for (RecordID rid : rids) {
+        out.write(rid.getBytes());
+      }
+      if (old != null) {
+        out.write(s.encode(old));
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * A change decoded from its description by describeChange.
+   */
+  private static class Change {
+    byte kind;
+    String tableName;
+    List<RecordID> rids = new ArrayList<RecordID>();
+    byte[] old;
+
+    private static Change decode(byte[] bytes) {
+      Change change = new Change();
+      try {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        change.kind = in.readByte();
+        change.tableName = in.readUTF();
+        int numRecords = in.readInt();
+        for (int i = 0; i < numRecords; i++) {
+          byte[] rid = new byte[RecordID.getSize()];
+          in.readFully(rid);
+          change.rids.add(new RecordID(rid));
+        }
+        change.old = new byte[in.available()];
+        in.readFully(change.old);
+      } catch (IOException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+      return change;
+    }
+  }
+
+  /**
+   * Rolls back the changes described by describeChange. The records of a single-version table are
+   * changed back along with their index entries. The records of a multi-version table are only
+   * changed back by recovery, since Transaction#abort restores their versions while the database
+   * is open; the entries of the versions they are changed back to are still in the indices, see
+   * Transaction#insertVersionKeys. A deleted multi-version record is still on its page, which
+   * vacuum only changes once the delete committed.
+   */
+  private class ChangeUndo implements WriteAheadLog.Undo {
+    private boolean recovering;
+
+    /**
+     * @param recovering whether the changes are rolled back after a crash
+     */
+    private ChangeUndo(boolean recovering) {
+      this.recovering = recovering;
+    }
+
+    public void undo(long transNum, byte[] bytes) {
+      Change change = Change.decode(bytes);
+      Table tab = Database.this.tableLookup.get(change.tableName);
+      if (tab == null
+          || (tab.isMultiVersion() && (!this.recovering || change.kind == DELETE_CHANGE))) {
+        return;
+      }
+      List<DataBox> oldValues = change.old.length == 0 ? null
+          : tab.getSchema().decode(change.old).getValues();
+      long previous = WriteAheadLog.bind(transNum);
+      try {
+        synchronized (tab) {
+          Database.this.log.beginOperation();
+          try {
+            for (RecordID rid : change.rids) {
+              undoChange(tab, change.tableName, change.kind, rid, oldValues);
+            }
+          } finally {
+            Database.this.log.endOperation(transNum, null);
+          }
+        }
+      } finally {
+        WriteAheadLog.restore(previous);
+      }
+    }
+
+    private void undoChange(Table tab, String tableName, byte kind, RecordID rid,
+                            List<DataBox> oldValues) {
+      Schema s = tab.getSchema();
+      boolean multiVersion = tab.isMultiVersion();
+      List<String> indexNames = getTableIndexNames(tableName);
+      try {
+        if (kind == DELETE_CHANGE) {
+          RecordID restored = tab.restoreRecord(oldValues, rid);
+          for (String indexName : indexNames) {
+            Database.this.indexLookup.get(indexName).insertKey(getIndexKey(indexName, s, oldValues),
+                restored);
+          }
+          return;
+        }
+
+        List<DataBox> values = tab.getRecord(rid).getValues();
+        if (kind == INSERT_CHANGE) {
+          for (String indexName : indexNames) {
+            Database.this.indexLookup.get(indexName).deleteKey(getIndexKey(indexName, s, values), rid);
+          }
+          tab.deleteRecord(rid);
+          return;
+        }
+        tab.updateRecord(oldValues, rid);
+        for (String indexName : indexNames) {
+          DataBox key = getIndexKey(indexName, s, values);
+          DataBox oldKey = getIndexKey(indexName, s, oldValues);
+          if (!key.equals(oldKey)) {
+            BPlusTree tree = Database.this.indexLookup.get(indexName);
+            tree.deleteKey(key, rid);
+            if (multiVersion) {
+              insertKeyIfAbsent(tree, oldKey, rid);
+            } else {
+              tree.insertKey(oldKey, rid);
+            }
+          }
+        }
+      } catch (DatabaseException e) {
+        // the record is gone, or the old version of a record of a SLOTTED table no longer fits on
+        // its page; as in Transaction#abort, the rollback goes on with the other changes
+      }
     }
+  }
 
-    this.tableLookup.put(tableName, new Table(s, tableName, this.fileDir));
-    for (int i : schemaColIndex) {
-      String colName = schemaColNames.get(i);
-      DataBox colType = schemaColType.get(i);
-      String indexName = tableName + "," + colName;
-      this.indexLookup.put(indexName, new BPlusTree(colType, indexName, this.fileDir));
+  /**
+   * Adds the entry of key and rid to tree unless it already holds it.
+   */
+  private static void insertKeyIfAbsent(BPlusTree tree, DataBox key, RecordID rid) {
+    Iterator<LeafEntry> entries = tree.lookupEntries(key);
+    while (entries.hasNext()) {
+      if (entries.next().getRecordID().equals(rid)) {
+        return;
+      }
     }
+    tree.insertKey(key, rid);
   }
 
   /**
@@ -147,6 +1036,7 @@ public class Database {
 
     File f = new File(fileDir + tableName + Table.FILENAME_EXTENSION);
     f.delete();
+    new File(fileDir + tableName + Table.FREE_SPACE_EXTENSION).delete();
 
     return true;
   }
@@ -163,14 +1053,34 @@ public class Database {
   }
 
   /**
-   * Close this database.
+   * Close this database. Transactions that are still open give back the pages they pinned and
+   * the working memory they reserved, since the BufferPool may outlive this database.
    */
   public synchronized void close() {
+    if (this.vacuumTask != null) {
+      this.vacuumTask.cancel(false);
+      this.vacuumTask = null;
+    }
+    for (Transaction t : this.activeTransactions.values()) {
+      t.unpinAllPages();
+      t.releaseMemoryPages();
+    }
+    this.activeTransactions.clear();
     for (Table t : this.tableLookup.values()) {
       t.close();
     }
+    for (BPlusTree tree : this.indexLookup.values()) {
+      tree.close();
+    }
+    if (this.log != null) {
+      // closing the tables and indices forced their pages, so no record is needed anymore
+      this.log.truncate();
+      this.log.close();
+    }
 
     this.tableLookup.clear();
+    this.indexLookup.clear();
+    this.lockMan.close();
   }
 
   /**
@@ -179,7 +1089,10 @@ public class Database {
    * @return the new Transaction
    */
   public synchronized Transaction beginTransaction() {
-    Transaction t = new Transaction(this.numTransactions);
+    Transaction t = new Transaction(this.numTransactions,
+        new Snapshot(this.numTransactions, this.activeSnapshots.keySet()));
+    this.activeSnapshots.put(t.transNum, t.snapshot);
+    this.activeTransactions.put(t.transNum, t);
 
     this.numTransactions++;
     return t;
@@ -191,25 +1104,108 @@ public class Database {
     HashMap<String, LockManager.LockType> locksHeld;
     HashMap<String, Table> tempTables;
     HashMap<String, String> aliasMaps;
+    int numReservedPages;
+    Set<PageHandle> pinnedPages;
+    IOStats ioStats;
+    Snapshot snapshot;
 
-    private Transaction(long tNum) {
+    private Transaction(long tNum, Snapshot snapshot) {
       this.transNum = tNum;
+      this.snapshot = snapshot;
       this.active = true;
+      this.numReservedPages = 0;
       this.locksHeld = new HashMap<String, LockManager.LockType>();
       this.tempTables = new HashMap<String, Table>();
       this.aliasMaps = new HashMap<String, String>();
+      this.pinnedPages = new HashSet<PageHandle>();
+      this.ioStats = new IOStats();
+    }
+
+    /**
+     * @return the page I/O this transaction has caused so far, across all tables and indices
+     */
+    public IOStats getIOStats() {
+      return this.ioStats;
     }
 
     public boolean isActive() {
       return this.active;
     }
 
+    /**
+     * @return the versions of the records of multi-version tables this transaction reads
+     */
+    public Snapshot getSnapshot() {
+      return this.snapshot;
+    }
+
     public void end() {
       assert(this.active);
 
+      unpinAllPages();
+      if (Database.this.log != null) {
+        Database.this.log.commit(this.transNum);
+      } else if (Database.this.isGroupCommit()) {
+        Database.this.sync();
+      }
+      for (Table table : Database.this.tableLookup.values()) {
+        if (table.isMultiVersion()) {
+          table.commit(this.transNum);
+        }
+      }
+      Database.this.activeSnapshots.remove(this.transNum);
+      Database.this.activeTransactions.remove(this.transNum);
+      releaseAllLocks();
+      deleteAllTempTables();
+      releaseMemoryPages();
+      this.active = false;
+      Database.this.checkpointIfLarge();
+    }
+
+    /**
+     * Ends this transaction without waiting for its changes to be synced, releasing its locks
+     * so that the transactions waiting for them can go on. This happens on its own when a lock
+     * request of the transaction fails with a LockException. The versions the transaction wrote
+     * to multi-version tables are rolled back, and so are its changes to other tables if the
+     * database has a WriteAheadLog (see WriteAheadLog#rollback).
+     */
+    public void abort() {
+      if (!this.active) {
+        return;
+      }
+
+      unpinAllPages();
+      long previous = WriteAheadLog.bind(this.transNum);
+      try {
+        for (String tableName : Database.this.tableLookup.keySet()) {
+          Table table = Database.this.tableLookup.get(tableName);
+          if (table.isMultiVersion()) {
+            synchronized (table) {
+              beginOperation();
+              try {
+                deleteVersionKeys(tableName, table, table.rollback(this.transNum));
+              } catch (DatabaseException e) {
+                // the rollback of the table stopped at a restored record of a SLOTTED table that
+                // no longer fits on its page; the other tables are still rolled back
+              } finally {
+                endOperation(tableName, DELETE_CHANGE, null, null, null);
+              }
+            }
+          }
+        }
+      } finally {
+        WriteAheadLog.restore(previous);
+      }
+      if (Database.this.log != null) {
+        Database.this.log.rollback(this.transNum, new ChangeUndo(false));
+      }
+      Database.this.activeSnapshots.remove(this.transNum);
+      Database.this.activeTransactions.remove(this.transNum);
       releaseAllLocks();
       deleteAllTempTables();
+      releaseMemoryPages();
       this.active = false;
+      Database.this.checkpointIfLarge();
     }
 
     /**
@@ -270,7 +1266,8 @@ public class Database {
         f.mkdirs();
       }
 
-      this.tempTables.put(tempTableName, new Table(schema, tempTableName, Database.this.fileDir + "temp/"));
+      this.tempTables.put(tempTableName, Database.this.withGroupCommit(new Table(schema, tempTableName,
+          Database.this.fileDir + "temp/", Database.this.bufferPool)));
       this.locksHeld.put(tempTableName, LockManager.LockType.EXCLUSIVE);
     }
 
@@ -291,112 +1288,418 @@ public class Database {
     }
 
     public Iterator<Record> sortedScan(String tableName, String columnName) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
       Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      if (tab.isMultiVersion()) {
+        return new SnapshotIndexIterator(tab, indexName, index.sortedEntryScan(), this.snapshot, false);
+      }
       return new RecordIterator(tab, index.sortedScan());
     }
 
     public Iterator<Record> sortedScanFrom(String tableName, String columnName, DataBox startValue) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
       Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return new RecordIterator(tab, index.sortedScanFrom(startValue));
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      if (tab.isMultiVersion()) {
+        return new SnapshotIndexIterator(tab, indexName,
+            index.sortedEntryScanFrom(toIndexKey(indexName, startValue)), this.snapshot, false);
+      }
+      return new RecordIterator(tab, index.sortedScanFrom(toIndexKey(indexName, startValue)));
     }
 
     public Iterator<Record> lookupKey(String tableName, String columnName, DataBox key) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
       Table tab = getTable(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return new RecordIterator(tab, index.lookupKey(key));
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      if (tab.isMultiVersion()) {
+        return new SnapshotIndexIterator(tab, indexName,
+            index.lookupEntries(toIndexKey(indexName, key)), this.snapshot, false);
+      }
+      return new RecordIterator(tab, index.lookupKey(toIndexKey(indexName, key)));
     }
 
     public boolean contains(String tableName, String columnName, DataBox key) throws DatabaseException {
       checkAndGrabSharedLock(tableName);
-      BPlusTree index = resolveIndexFromName(tableName, columnName);
-      return index.containsKey(key);
+      if (getTable(tableName).isMultiVersion()) {
+        return lookupKey(tableName, columnName, key).hasNext();
+      }
+      String indexName = resolveIndexName(tableName, columnName);
+      return Database.this.indexLookup.get(indexName).containsKey(toIndexKey(indexName, key));
     }
 
-    public RecordID addRecord(String tableName, List<DataBox> values) throws DatabaseException {
-      assert(this.active);
+    /**
+     * Returns the columns of the index that the scans of tableName on columnName use, which are
+     * the columns index-only scans return.
+     *
+     * @param tableName the name of the table
+     * @param columnName the name of the column
+     * @return the key columns and then the include columns of the index
+     * @throws DatabaseException if there is no index on columnName
+     */
+    public List<String> getIndexColumns(String tableName, String columnName) throws DatabaseException {
+      return getColumnsOfIndex(resolveIndexName(tableName, columnName));
+    }
 
-      checkAndGrabExclusiveLock(tableName);
+    /**
+     * Index-only counterpart of sortedScan: the records hold the values of the index's columns,
+     * in the order of getIndexColumns, and are read from the index without visiting the table.
+     * The index of a multi-version table also holds the keys of versions this transaction does
+     * not see, so its records are still visited to skip those.
+     */
+    public Iterator<Record> indexOnlySortedScan(String tableName, String columnName) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      return indexOnlyRecords(tableName, indexName, index.sortedEntryScan());
+    }
+
+    /**
+     * Index-only counterpart of sortedScanFrom. See indexOnlySortedScan.
+     */
+    public Iterator<Record> indexOnlySortedScanFrom(String tableName, String columnName, DataBox startValue) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      return indexOnlyRecords(tableName, indexName,
+          index.sortedEntryScanFrom(toIndexKey(indexName, startValue)));
+    }
+
+    /**
+     * Index-only counterpart of lookupKey. See indexOnlySortedScan.
+     */
+    public Iterator<Record> indexOnlyLookupKey(String tableName, String columnName, DataBox key) throws DatabaseException {
+      checkAndGrabSharedLock(tableName);
+      String indexName = resolveIndexName(tableName, columnName);
+      BPlusTree index = Database.this.indexLookup.get(indexName);
+      return indexOnlyRecords(tableName, indexName, index.lookupEntries(toIndexKey(indexName, key)));
+    }
+
+    private Iterator<Record> indexOnlyRecords(String tableName, String indexName,
+                                              Iterator<LeafEntry> entries) throws DatabaseException {
       Table tab = getTable(tableName);
-      RecordID rid = tab.addRecord(values);
-      Schema s = tab.getSchema();
-      List<String> colNames = s.getFieldNames();
+      if (tab.isMultiVersion()) {
+        return new SnapshotIndexIterator(tab, indexName, entries, this.snapshot, true);
+      }
+      return new IndexRecordIterator(entries);
+    }
+
+    public RecordID addRecord(String tableName, List<DataBox> values) throws DatabaseException {
+      assert(this.active);
 
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).insertKey(values.get(i), rid);
+      checkAndGrabLock(tableName, LockManager.LockType.INTENTION_EXCLUSIVE);
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      long previousTrans = WriteAheadLog.bind(this.transNum);
+      try {
+        Table tab = getTable(tableName);
+        RecordID rid = null;
+        synchronized (tab) {
+          beginOperation();
+          try {
+            rid = tab.isMultiVersion() ? tab.addRecord(values, this.snapshot) : tab.addRecord(values);
+          } finally {
+            endOperation(tableName, INSERT_CHANGE, rid == null ? null : Collections.singletonList(rid),
+                null, null);
+          }
+        }
+        try {
+          checkAndGrabRecordLock(tableName, rid, LockManager.LockType.EXCLUSIVE);
+        } catch (LockException e) {
+          // the slot is still locked by a transaction that deleted its record; the abort rolled
+          // the new version of a multi-version table back, as well as the new row if the log
+          // holds it, any other new row is removed here
+          if (!tab.isMultiVersion() && Database.this.log == null) {
+            tab.deleteRecord(rid);
+          }
+          throw e;
         }
+        Schema s = tab.getSchema();
+        synchronized (tab) {
+          beginOperation();
+          try {
+            if (tab.isMultiVersion()) {
+              insertVersionKeys(tableName, s, values, rid);
+              return rid;
+            }
+
+            for (String indexName : getIndexNames(tableName)) {
+              Database.this.indexLookup.get(indexName).insertKey(getIndexKey(indexName, s, values), rid);
+            }
+          } finally {
+            endOperation(tableName, INSERT_CHANGE, null, null, null);
+          }
+        }
+
+        return rid;
+      } finally {
+        WriteAheadLog.restore(previousTrans);
+        IOStats.restore(previous);
       }
+    }
+
+    /**
+     * Appends every row of rows to tableName with Table#bulkLoad, which fills new pages one after
+     * the other instead of placing each record separately. Indexes on the table are updated
+     * after the load.
+     *
+     * @param tableName the table to load into
+     * @param rows the values of the records to add
+     * @return the number of records and pages written and the time it took
+     * @throws DatabaseException if the table does not exist or a row does not correspond to its
+     *         schema; the rows before it stay in the table
+     */
+    public BulkLoadStats bulkInsert(String tableName, Iterator<List<DataBox>> rows)
+        throws DatabaseException {
+      assert(this.active);
 
-      return rid;
+      checkAndGrabExclusiveLock(tableName);
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      long previousTrans = WriteAheadLog.bind(this.transNum);
+      try {
+        Table tab = getTable(tableName);
+        List<String> indexNames = getIndexNames(tableName);
+        long start = System.nanoTime();
+        long numLoaded = 0;
+        int numPages = 0;
+
+        // with a log, every chunk of rows is an operation of its own, so that the UNDO record of
+        // an operation stays small
+        final int chunkSize = Database.this.log == null ? Integer.MAX_VALUE : tab.getNumEntriesPerPage();
+        final Iterator<List<DataBox>> source = rows;
+        final List<List<DataBox>> loaded = new ArrayList<List<DataBox>>();
+        Iterator<List<DataBox>> chunk = new Iterator<List<DataBox>>() {
+          public boolean hasNext() {
+            return loaded.size() < chunkSize && source.hasNext();
+          }
+
+          public List<DataBox> next() {
+            if (!hasNext()) {
+              throw new NoSuchElementException();
+            }
+            List<DataBox> values = source.next();
+            loaded.add(values);
+            return values;
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+        List<RecordID> rids = new ArrayList<RecordID>();
+        do {
+          loaded.clear();
+          rids.clear();
+          BulkLoadStats stats;
+          synchronized (tab) {
+            beginOperation();
+            try {
+              stats = tab.isMultiVersion() ? tab.bulkLoad(chunk, rids, this.snapshot)
+                  : tab.bulkLoad(chunk, rids);
+            } finally {
+              try {
+                for (String indexName : indexNames) {
+                  BPlusTree index = Database.this.indexLookup.get(indexName);
+                  for (int j = 0; j < rids.size(); j++) {
+                    index.insertKey(getIndexKey(indexName, tab.getSchema(), loaded.get(j)), rids.get(j));
+                  }
+                }
+              } finally {
+                endOperation(tableName, INSERT_CHANGE, rids, null, null);
+              }
+            }
+          }
+          numLoaded += stats.getNumRecords();
+          numPages += stats.getNumPages();
+        } while (rows.hasNext());
+        return new BulkLoadStats(numLoaded, numPages, System.nanoTime() - start);
+      } finally {
+        WriteAheadLog.restore(previousTrans);
+        IOStats.restore(previous);
+      }
     }
 
+    /**
+     * Returns the number of pages of working memory this transaction's operators may use. The
+     * first call reserves those pages out of the database's buffer pool; they are given back to
+     * the pool when the transaction ends. When many transactions hold reservations at once, a
+     * transaction gets what is left of the pool, and waits for others to end if that is less than
+     * MIN_MEMORY_PAGES.
+     *
+     * @return the number of memory pages available to this transaction
+     * @throws DatabaseException if the buffer pool cannot spare the pages
+     */
     public int getNumMemoryPages() throws DatabaseException {
       assert(this.active);
 
-      return Database.this.numMemoryPages;
+      if (this.numReservedPages == 0) {
+        int wanted = Database.this.numMemoryPages;
+        try {
+          this.numReservedPages = Database.this.bufferPool.reservePages(
+              Math.min(MIN_MEMORY_PAGES, wanted), wanted);
+        } catch (PageException e) {
+          throw new DatabaseException(e.getMessage());
+        }
+      }
+      return this.numReservedPages;
+    }
 
+    private void releaseMemoryPages() {
+      Database.this.bufferPool.releasePages(this.numReservedPages);
+      this.numReservedPages = 0;
     }
 
     public void deleteRecord(String tableName, RecordID rid) throws DatabaseException {
       assert(active);
 
-      checkAndGrabExclusiveLock(tableName);
-      Table tab = getTable(tableName);
-      Schema s = tab.getSchema();
-
-      Record rec = tab.deleteRecord(rid);
-      List<DataBox> values = rec.getValues();
-      List<String> colNames = s.getFieldNames();
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          resolveIndexFromName(tableName, col).deleteKey(values.get(i), rid);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.EXCLUSIVE);
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      long previousTrans = WriteAheadLog.bind(this.transNum);
+      try {
+        Table tab = getTable(tableName);
+        Schema s = tab.getSchema();
+
+        synchronized (tab) {
+          beginOperation();
+          Record rec = null;
+          try {
+            if (tab.isMultiVersion()) {
+              // the index entries of the record stay, see insertVersionKeys, and so does the record
+              // on its page until vacuum; the UNDO record of the delete is what redoes it after a
+              // crash, see redoVersionDeletes
+              rec = tab.deleteRecord(rid, this.snapshot);
+            } else {
+              rec = tab.deleteRecord(rid);
+              List<DataBox> values = rec.getValues();
+              for (String indexName : getIndexNames(tableName)) {
+                Database.this.indexLookup.get(indexName).deleteKey(getIndexKey(indexName, s, values),
+                    rid);
+              }
+            }
+          } finally {
+            endOperation(tableName, DELETE_CHANGE, rec == null ? null : Collections.singletonList(rid),
+                s, rec);
+          }
         }
+      } finally {
+        WriteAheadLog.restore(previousTrans);
+        IOStats.restore(previous);
       }
     }
 
     public Record getRecord(String tableName, RecordID rid) throws DatabaseException {
       assert(active);
 
-      checkAndGrabSharedLock(tableName);
-      return getTable(tableName).getRecord(rid);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.SHARED);
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      try {
+        Table tab = getTable(tableName);
+        return tab.isMultiVersion() ? tab.getRecord(rid, this.snapshot) : tab.getRecord(rid);
+      } finally {
+        IOStats.restore(previous);
+      }
     }
 
     public Iterator<Record> getRecordIterator(String tableName) throws DatabaseException {
       assert(this.active);
 
       checkAndGrabSharedLock(tableName);
-      return getTable(tableName).iterator();
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      try {
+        Table tab = getTable(tableName);
+        return IOStats.wrap(tab.isMultiVersion() ? tab.iterator(this.snapshot) : tab.iterator(),
+            this.ioStats);
+      } finally {
+        IOStats.restore(previous);
+      }
     }
 
     public Iterator<Page> getPageIterator(String tableName) throws DatabaseException {
       assert(this.active);
 
       checkAndGrabSharedLock(tableName);
-      return getTable(tableName).pageIterator();
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      try {
+        return IOStats.wrap(getTable(tableName).pageIterator(), this.ioStats);
+      } finally {
+        IOStats.restore(previous);
+      }
     }
 
-    public void updateRecord(String tableName, List<DataBox> values, RecordID rid) throws DatabaseException {
+    /**
+     * Pins page pageNum of tableName in the buffer pool. The page stays pinned until the handle is
+     * passed to unpinPage or the transaction ends.
+     *
+     * @param tableName the name of the table the page belongs to
+     * @param pageNum the page number to pin
+     * @return an open PageHandle for the page
+     * @throws DatabaseException if the table does not exist or the page is not allocated
+     */
+    public PageHandle pinPage(String tableName, int pageNum) throws DatabaseException {
       assert(this.active);
-      checkAndGrabExclusiveLock(tableName);
-      Table tab = getTable(tableName);
-      Schema s = tab.getSchema();
 
-      Record rec = tab.updateRecord(values, rid);
+      checkAndGrabSharedLock(tableName);
+      PageHandle handle;
+      try {
+        handle = getTable(tableName).pinPage(pageNum);
+      } catch (PageException e) {
+        throw new DatabaseException(e.getMessage());
+      }
+      this.pinnedPages.add(handle);
+      return handle;
+    }
+
+    public void unpinPage(PageHandle handle) {
+      handle.close();
+      this.pinnedPages.remove(handle);
+    }
 
-      List<DataBox> oldValues = rec.getValues();
-      List<String> colNames = s.getFieldNames();
+    private void unpinAllPages() {
+      for (PageHandle handle : this.pinnedPages) {
+        handle.close();
+      }
+      this.pinnedPages.clear();
+    }
 
-      for (int i = 0; i < colNames.size(); i++) {
-        String col = colNames.get(i);
-        if (indexExists(tableName, col)) {
-          BPlusTree tree = resolveIndexFromName(tableName, col);
-          tree.deleteKey(oldValues.get(i), rid);
-          tree.insertKey(values.get(i), rid);
+    public void updateRecord(String tableName, List<DataBox> values, RecordID rid) throws DatabaseException {
+      assert(this.active);
+      checkAndGrabRecordLock(tableName, rid, LockManager.LockType.EXCLUSIVE);
+      IOStats previous = IOStats.bindWithin(this.ioStats);
+      long previousTrans = WriteAheadLog.bind(this.transNum);
+      try {
+        Table tab = getTable(tableName);
+        Schema s = tab.getSchema();
+
+        synchronized (tab) {
+          beginOperation();
+          Record rec = null;
+          try {
+            if (tab.isMultiVersion()) {
+              // the old versions keep their index entries, which snapshot reads check against the
+              // version they see
+              rec = tab.updateRecord(values, rid, this.snapshot);
+              insertVersionKeys(tableName, s, values, rid);
+              return;
+            }
+            rec = tab.updateRecord(values, rid);
+
+            List<DataBox> oldValues = rec.getValues();
+
+            for (String indexName : getIndexNames(tableName)) {
+              BPlusTree tree = Database.this.indexLookup.get(indexName);
+              tree.deleteKey(getIndexKey(indexName, s, oldValues), rid);
+              tree.insertKey(getIndexKey(indexName, s, values), rid);
+            }
+          } finally {
+            endOperation(tableName, UPDATE_CHANGE, rec == null ? null : Collections.singletonList(rid),
+                s, rec);
+          }
         }
+      } finally {
+        WriteAheadLog.restore(previousTrans);
+        IOStats.restore(previous);
       }
     }
 
@@ -425,7 +1728,16 @@ public class Database {
       assert(this.active);
 
       checkAndGrabSharedLock(tableName);
-      return getTable(tableName).readPageHeader(p);
+      Table tab = getTable(tableName);
+      return tab.isMultiVersion() ? tab.readPageHeader(p, this.snapshot) : tab.readPageHeader(p);
+    }
+
+    public Record readRecord(String tableName, Page p, int entryNum) throws DatabaseException {
+      assert(this.active);
+
+      checkAndGrabSharedLock(tableName);
+      Table tab = getTable(tableName);
+      return tab.isMultiVersion() ? tab.readRecord(p, entryNum, this.snapshot) : tab.readRecord(p, entryNum);
     }
 
     public int getPageHeaderSize(String tableName) throws DatabaseException{
@@ -480,6 +1792,14 @@ public class Database {
     }
 
     private BPlusTree resolveIndexFromName(String tableName, String columnName) throws DatabaseException {
+      return Database.this.indexLookup.get(resolveIndexName(tableName, columnName));
+    }
+
+    /**
+     * Finds the index to use for columnName of tableName: the widest index whose first key column
+     * is columnName, so that as many queries as possible are covered by it.
+     */
+    private String resolveIndexName(String tableName, String columnName) throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
@@ -493,11 +1813,45 @@ public class Database {
         }
         columnName = columnName.split("\\.")[1];
       }
-      String indexName = tableName + "," + columnName;
-      if (Database.this.indexLookup.containsKey(indexName)) {
-        return Database.this.indexLookup.get(indexName);
+      String found = null;
+      for (String indexName : getIndexNames(tableName)) {
+        if (getIndexKeyColumns(indexName).get(0).equals(columnName) && (found == null
+            || getColumnsOfIndex(indexName).size() > getColumnsOfIndex(found).size()
+            || getColumnsOfIndex(indexName).size() == getColumnsOfIndex(found).size()
+                && indexName.compareTo(found) < 0)) {
+          found = indexName;
+        }
+      }
+      if (found == null) {
+        throw new DatabaseException("Index does not exist");
+      }
+      return found;
+    }
+
+    /**
+     * @return the names of the indices of tableName
+     */
+    private List<String> getIndexNames(String tableName) {
+      while (aliasMaps.containsKey(tableName)) {
+        tableName = aliasMaps.get(tableName);
+      }
+      List<String> indexNames = new ArrayList<String>();
+      for (String indexName : Database.this.indexLookup.keySet()) {
+        if (getIndexTable(indexName).equals(tableName)) {
+          indexNames.add(indexName);
+        }
+      }
+      return indexNames;
+    }
+
+    /**
+     * @return key as the key of index indexName, or as a prefix of the keys of a composite index
+     */
+    private DataBox toIndexKey(String indexName, DataBox key) {
+      if (!isCompositeIndex(indexName)) {
+        return key;
       }
-      throw new DatabaseException("Index does not exist");
+      return new CompositeDataBox(Collections.singletonList(key));
     }
 
     private Table getTable(String tableName) throws DatabaseException {
@@ -512,58 +1866,196 @@ public class Database {
       if (!Database.this.tableLookup.containsKey(tableName)) {
         throw new DatabaseException("Table: " + tableName + "does not exist");
       }
-      checkAndGrabSharedLock(tableName);
+      checkAndGrabLock(tableName, LockManager.LockType.INTENTION_SHARED);
       return Database.this.tableLookup.get(tableName);
     }
 
-    private void checkAndGrabSharedLock(String tableName) throws DatabaseException{
-      if (this.locksHeld.containsKey(tableName)) {
-        return;
-      }
+    private void checkAndGrabSharedLock(String tableName) throws DatabaseException {
+      checkAndGrabLock(tableName, LockManager.LockType.SHARED);
+    }
 
+    private void checkAndGrabExclusiveLock(String tableName) throws DatabaseException {
+      checkAndGrabLock(tableName, LockManager.LockType.EXCLUSIVE);
+    }
+
+    /**
+     * Locks tableName for this transaction unless its lock on the table already allows lockType.
+     * Temporary tables belong to their transaction and are never locked.
+     */
+    private void checkAndGrabLock(String tableName, LockManager.LockType lockType) throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
 
+      if (this.locksHeld.containsKey(tableName) && this.locksHeld.get(tableName).substitutes(lockType)) {
+        return;
+      }
+      if (readsSnapshot(tableName, lockType)) {
+        return;
+      }
+
       if (!this.tempTables.containsKey(tableName) && !Database.this.tableLookup.containsKey(tableName)) {
         throw new DatabaseException("Table: " + tableName + " Does not exist");
       }
 
       LockManager lockMan = Database.this.lockMan;
-      if (lockMan.holdsLock(tableName, this.transNum, LockManager.LockType.SHARED)) {
-        this.locksHeld.put(tableName, LockManager.LockType.SHARED);
-      } else {
-        lockMan.acquireLock(tableName, this.transNum, LockManager.LockType.SHARED);
+      try {
+        lockMan.acquireLock(tableName, this.transNum, lockType);
+      } catch (LockException e) {
+        abort();
+        throw e;
       }
+      this.locksHeld.put(tableName, lockMan.getLockType(tableName, this.transNum));
     }
 
-    private void checkAndGrabExclusiveLock(String tableName) throws DatabaseException {
+    /**
+     * Locks record rid of tableName, and its page and table with the matching intention locks,
+     * for this transaction unless its lock on the table already covers the record. The lock
+     * manager may escalate the request to a lock on the whole table.
+     */
+    private void checkAndGrabRecordLock(String tableName, RecordID rid, LockManager.LockType lockType)
+        throws DatabaseException {
       while (aliasMaps.containsKey(tableName)) {
         tableName = aliasMaps.get(tableName);
       }
-
-      if (this.locksHeld.containsKey(tableName) && this.locksHeld.get(tableName).equals(LockManager.LockType.EXCLUSIVE)) {
+      if (this.tempTables.containsKey(tableName) || readsSnapshot(tableName, lockType)) {
         return;
       }
 
-      if (!this.tempTables.containsKey(tableName) && !Database.this.tableLookup.containsKey(tableName)) {
-        throw new DatabaseException("Table: " + tableName + " Does not exist");
+      LockManager.LockType held = this.locksHeld.get(tableName);
+      if (held == LockManager.LockType.EXCLUSIVE
+          || (held != null && held.substitutes(lockType))) {
+        return;
       }
-
+      checkAndGrabLock(tableName, lockType.intention());
       LockManager lockMan = Database.this.lockMan;
+      try {
+        lockMan.acquireRecordLock(tableName, rid, this.transNum, lockType);
+      } catch (LockException e) {
+        abort();
+        throw e;
+      }
+      this.locksHeld.put(tableName, lockMan.getLockType(tableName, this.transNum));
+    }
 
-      if (lockMan.holdsLock(tableName, this.transNum, LockManager.LockType.EXCLUSIVE)) {
-        this.locksHeld.put(tableName, LockManager.LockType.EXCLUSIVE);
-      } else {
-        lockMan.acquireLock(tableName, this.transNum, LockManager.LockType.EXCLUSIVE);
+    /**
+     * @return whether a lockType lock on tableName is not needed because the transaction reads
+     *         the table through its snapshot
+     */
+    private boolean readsSnapshot(String tableName, LockManager.LockType lockType) {
+      if (lockType != LockManager.LockType.SHARED && lockType != LockManager.LockType.INTENTION_SHARED) {
+        return false;
       }
+      Table table = Database.this.tableLookup.get(tableName);
+      return !this.tempTables.containsKey(tableName) && table != null && table.isMultiVersion();
+    }
+
+    private void releaseLock(String tableName) {
+      Database.this.lockMan.releaseLock(tableName, this.transNum);
+      this.locksHeld.remove(tableName);
     }
 
     private void releaseAllLocks() {
-      LockManager lockMan = Database.this.lockMan;
+      Database.this.lockMan.releaseAllLocks(this.transNum);
+      this.locksHeld.clear();
+    }
+
+    /**
+     * Starts an operation of the log of the database, if it has one, see
+     * WriteAheadLog#beginOperation. The caller holds the monitor of the table it changes until
+     * the operation ends, which keeps the pages of the table and its indices to itself.
+     */
+    private void beginOperation() {
+      if (Database.this.log != null) {
+        Database.this.log.beginOperation();
+      }
+    }
+
+    /**
+     * Ends the operation started by beginOperation. Unless rids is null, the operation made the
+     * change of the records rids of tableName described by describeChange, which the log keeps
+     * to roll it back.
+     */
+    private void endOperation(String tableName, byte kind, List<RecordID> rids, Schema s,
+                              Record old) {
+      WriteAheadLog log = Database.this.log;
+      if (log == null) {
+        return;
+      }
+      byte[] change = null;
+      if (rids != null && !rids.isEmpty() && !this.tempTables.containsKey(tableName)) {
+        while (aliasMaps.containsKey(tableName)) {
+          tableName = aliasMaps.get(tableName);
+        }
+        change = describeChange(kind, tableName, rids, s, old);
+      }
+      log.endOperation(this.transNum, change);
+    }
 
-      for (String tableName : this.locksHeld.keySet()) {
-        lockMan.releaseLock(tableName, this.transNum);
+    /**
+     * Adds the index entries of a new version of record rid of the multi-version table tableName.
+     * Versions of a record share the entries of equal keys, so an entry is only added if the
+     * index does not hold it yet, and vacuum only removes it with the last version that has it.
+     */
+    private void insertVersionKeys(String tableName, Schema s, List<DataBox> values, RecordID rid) {
+      for (String indexName : getIndexNames(tableName)) {
+        insertKeyIfAbsent(Database.this.indexLookup.get(indexName), getIndexKey(indexName, s, values),
+            rid);
+      }
+    }
+
+    /**
+     * Reclaims the versions of the records of the multi-version table tableName that no running
+     * transaction sees anymore, see deleteVersionKeys.
+     *
+     * @return the number of record versions reclaimed
+     */
+    private long vacuum(String tableName, Table tab) throws DatabaseException {
+      long numReclaimed = 0;
+      long previousTrans = WriteAheadLog.bind(this.transNum);
+      try {
+        synchronized (tab) {
+          beginOperation();
+          try {
+            Map<RecordID, List<Record>> reclaimed = tab.vacuum(getVacuumHorizon());
+            for (List<Record> versions : reclaimed.values()) {
+              numReclaimed += versions.size();
+            }
+            deleteVersionKeys(tableName, tab, reclaimed);
+          } finally {
+            endOperation(tableName, DELETE_CHANGE, null, null, null);
+          }
+        }
+      } finally {
+        WriteAheadLog.restore(previousTrans);
+      }
+      return numReclaimed;
+    }
+
+    /**
+     * Removes the index entries of the versions removed from the records of the multi-version
+     * table tableName, unless a remaining version of the same record has the same key.
+     *
+     * @param removed the removed versions of each record
+     */
+    private void deleteVersionKeys(String tableName, Table tab, Map<RecordID, List<Record>> removed)
+        throws DatabaseException {
+      Schema s = tab.getSchema();
+      for (Map.Entry<RecordID, List<Record>> entry : removed.entrySet()) {
+        RecordID rid = entry.getKey();
+        List<Record> remaining = tab.readVersions(rid);
+        for (String indexName : getIndexNames(tableName)) {
+          Set<DataBox> keys = new HashSet<DataBox>();
+          for (Record version : remaining) {
+            keys.add(getIndexKey(indexName, s, version.getValues()));
+          }
+          for (Record version : entry.getValue()) {
+            DataBox key = getIndexKey(indexName, s, version.getValues());
+            if (keys.add(key)) {
+              Database.this.indexLookup.get(indexName).deleteKey(key, rid);
+            }
+          }
+        }
       }
     }
 
@@ -579,6 +2071,7 @@ public class Database {
 
       File f = new File(Database.this.fileDir + "temp/" + tempTableName + Table.FILENAME_EXTENSION);
       f.delete();
+      new File(Database.this.fileDir + "temp/" + tempTableName + Table.FREE_SPACE_EXTENSION).delete();
     }
 
     private void deleteAllTempTables() {
@@ -589,4 +2082,88 @@ public class Database {
       }
     }
   }
+
+  /**
+   * Turns the LeafEntries of an index into Records of the values of the index's columns.
+   */
+  private static class IndexRecordIterator implements Iterator<Record> {
+    private Iterator<LeafEntry> entries;
+
+    IndexRecordIterator(Iterator<LeafEntry> entries) {
+      this.entries = entries;
+    }
+
+    public boolean hasNext() {
+      return this.entries.hasNext();
+    }
+
+    public Record next() {
+      return toRecord(this.entries.next().getKey());
+    }
+
+    static Record toRecord(DataBox key) {
+      if (key instanceof CompositeDataBox) {
+        return new Record(((CompositeDataBox) key).getValues());
+      }
+      return new Record(Collections.singletonList(key));
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  /**
+   * Reads the records of the LeafEntries of an index on a multi-version table as a snapshot sees
+   * them. The index holds the keys of every kept version of a record, so the entries whose key is
+   * not the key of the version the snapshot sees are skipped. If indexOnly is set, the Records
+   * hold the values of the index's columns, as with IndexRecordIterator.
+   */
+  private static class SnapshotIndexIterator implements Iterator<Record> {
+    private Table table;
+    private String indexName;
+    private Iterator<LeafEntry> entries;
+    private Snapshot snapshot;
+    private boolean indexOnly;
+    private Record nextRecord;
+
+    SnapshotIndexIterator(Table table, String indexName, Iterator<LeafEntry> entries,
+                          Snapshot snapshot, boolean indexOnly) {
+      this.table = table;
+      this.indexName = indexName;
+      this.entries = entries;
+      this.snapshot = snapshot;
+      this.indexOnly = indexOnly;
+    }
+
+    public boolean hasNext() {
+      while (this.nextRecord == null && this.entries.hasNext()) {
+        LeafEntry entry = this.entries.next();
+        Record record;
+        try {
+          record = this.table.getRecord(entry.getRecordID(), this.snapshot);
+        } catch (DatabaseException e) {
+          continue;
+        }
+        DataBox key = getIndexKey(this.indexName, this.table.getSchema(), record.getValues());
+        if (key.equals(entry.getKey())) {
+          this.nextRecord = this.indexOnly ? IndexRecordIterator.toRecord(key) : record;
+        }
+      }
+      return this.nextRecord != null;
+    }
+
+    public Record next() {
+      if (!this.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Record record = this.nextRecord;
+      this.nextRecord = null;
+      return record;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
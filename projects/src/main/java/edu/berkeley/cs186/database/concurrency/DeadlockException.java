@@ -0,0 +1,12 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Exception thrown to the transaction chosen to break a cycle in the waits-for graph.
+ */
+public class DeadlockException extends LockException {
+  private static final long serialVersionUID = 1L;
+
+  public DeadlockException(String message) {
+    super(message);
+  }
+}
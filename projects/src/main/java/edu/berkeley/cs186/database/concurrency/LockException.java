@@ -0,0 +1,15 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.DatabaseException;
+
+/**
+ * Exception thrown when a lock request is given up on before it was granted. The transaction that
+ * made it should abort, which releases the locks it holds.
+ */
+public class LockException extends DatabaseException {
+  private static final long serialVersionUID = 1L;
+
+  public LockException(String message) {
+    super(message);
+  }
+}
@@ -1,55 +1,363 @@
 package edu.berkeley.cs186.database.concurrency;
 
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 /**
- * The LockManager provides a basic locking implementation that ensures that only one transaction runs at a time.
- * We will cover locking later in the semester; for now, you don't need to change anything here.
+ * The LockManager grants multi-granularity locks on the database, its tables, their pages and
+ * the records on those pages.
+ *
+ * Locking a table first takes the matching intention lock on the database, and locking a page
+ * or record takes intention locks on everything above it, so a transaction that reads or writes
+ * a few rows of a table does not keep others from the rest of it. Once a transaction holds more
+ * record locks on a table than the escalation threshold, its next record lock there is escalated
+ * to a lock on the whole table if that lock is free, and its page and record locks on the table
+ * are dropped. Escalation never waits, so that transactions sharing a table do not deadlock on
+ * each other's intention locks; they keep taking record locks instead. Each resource
+ * grants compatible requests together and queues the others in FIFO order; a transaction that
+ * asks for a stronger lock on a resource it already holds is upgraded ahead of the queue.
+ * Transactions keep their locks until they call releaseAllLocks.
  *
+ * While requests are waiting, a background task periodically looks for cycles in the waits-for
+ * graph and fails the waiting request of the youngest transaction in each cycle with a
+ * DeadlockException. Requests can also be given a timeout, after which they fail with a
+ * LockTimeoutException. How long requests waited is recorded per table in LockWaitStats.
  */
 public class LockManager {
-  private boolean databaseLocked;
-  private long databaseTransactionOwner;
+  public enum LockType {
+    INTENTION_SHARED, INTENTION_EXCLUSIVE, SHARED, SHARED_INTENTION_EXCLUSIVE, EXCLUSIVE;
+
+    // COMPATIBLE[a][b]: whether a and b may be held on a resource by different transactions
+    private static final boolean[][] COMPATIBLE = {
+      //           IS     IX     S      SIX    X
+      /* IS  */ {true,  true,  true,  true,  false},
+      /* IX  */ {true,  true,  false, false, false},
+      /* S   */ {true,  false, true,  false, false},
+      /* SIX */ {true,  false, false, false, false},
+      /* X   */ {false, false, false, false, false},
+    };
+
+    // SUBSTITUTES[a][b]: whether holding a allows everything holding b does
+    private static final boolean[][] SUBSTITUTES = {
+      //           IS     IX     S      SIX    X
+      /* IS  */ {true,  false, false, false, false},
+      /* IX  */ {true,  true,  false, false, false},
+      /* S   */ {true,  false, true,  false, false},
+      /* SIX */ {true,  true,  true,  true,  false},
+      /* X   */ {true,  true,  true,  true,  true},
+    };
+
+    public boolean isCompatibleWith(LockType other) {
+      return COMPATIBLE[this.ordinal()][other.ordinal()];
+    }
+
+    public boolean substitutes(LockType other) {
+      return SUBSTITUTES[this.ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest lock type that allows everything both this and other do
+     */
+    public LockType combine(LockType other) {
+      if (this.substitutes(other)) {
+        return this;
+      }
+      if (other.substitutes(this)) {
+        return other;
+      }
+      // S and IX are the only incomparable pair
+      return SHARED_INTENTION_EXCLUSIVE;
+    }
+
+    /**
+     * @return the intention lock a transaction needs on the parent of a resource it locks this way
+     */
+    public LockType intention() {
+      if (this == INTENTION_SHARED || this == SHARED) {
+        return INTENTION_SHARED;
+      }
+      return INTENTION_EXCLUSIVE;
+    }
+  }
 
-  public enum LockType {SHARED, EXCLUSIVE};
+  public static final long DEFAULT_DETECTION_INTERVAL_MILLIS = 100;
+  public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+  private static ScheduledExecutorService detectionScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "LockManager-deadlock-detector");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  private ResourceLock databaseLock;
+  private Map<String, ResourceLock> tableLocks;
+  private Map<String, Map<Integer, ResourceLock>> pageLocks;
+  private Map<String, Map<RecordID, ResourceLock>> recordLocks;
+  private Map<Long, Set<ResourceLock>> transactionLocks;
+  private Map<Long, Map<String, Integer>> numRecordLocks;
+  private int escalationThreshold;
+  private LockWaitStats databaseWaitStats;
+  private Map<String, LockWaitStats> tableWaitStats;
+  private long lockTimeoutMillis;
+  private long detectionIntervalMillis;
+  private ScheduledFuture<?> detectionTask;
+  private int numWaiting;
 
   public LockManager() {
-    this.databaseLocked = false;
-    this.databaseTransactionOwner = -1;
+    this.databaseLock = new ResourceLock(null, ResourceLock.NONE, ResourceLock.NONE);
+    this.tableLocks = new HashMap<String, ResourceLock>();
+    this.pageLocks = new HashMap<String, Map<Integer, ResourceLock>>();
+    this.recordLocks = new HashMap<String, Map<RecordID, ResourceLock>>();
+    this.transactionLocks = new HashMap<Long, Set<ResourceLock>>();
+    this.numRecordLocks = new HashMap<Long, Map<String, Integer>>();
+    this.escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    this.databaseWaitStats = new LockWaitStats();
+    this.tableWaitStats = new HashMap<String, LockWaitStats>();
+    this.lockTimeoutMillis = 0;
+    this.detectionIntervalMillis = DEFAULT_DETECTION_INTERVAL_MILLIS;
+    this.detectionTask = null;
+    this.numWaiting = 0;
+  }
+
+  /**
+   * Sets how long a lock request may wait before it fails with a LockTimeoutException. A timeout
+   * of 0, the default, lets requests wait until they are granted or picked as a deadlock victim.
+   *
+   * @param millis the timeout in milliseconds
+   */
+  public synchronized void setLockTimeout(long millis) {
+    this.lockTimeoutMillis = millis;
+  }
+
+  /**
+   * Sets how many record locks a transaction may hold on one table before further record locks
+   * are escalated to a lock on the table.
+   *
+   * @param numRecordLocks the number of record locks
+   */
+  public synchronized void setEscalationThreshold(int numRecordLocks) {
+    this.escalationThreshold = numRecordLocks;
   }
+
   /**
-   * Acquires a lock on tableNum of type lockType for transaction transNum.
+   * Sets how often the waits-for graph is checked for cycles while requests are waiting.
+   *
+   * @param millis the interval in milliseconds
+   */
+  public synchronized void setDeadlockDetectionInterval(long millis) {
+    this.detectionIntervalMillis = millis;
+    if (this.detectionTask != null) {
+      this.detectionTask.cancel(false);
+      this.detectionTask = null;
+      this.scheduleDetection();
+    }
+  }
+
+  /**
+   * @return the waits of lock requests on tableName and its pages so far
+   */
+  public synchronized LockWaitStats getWaitStats(String tableName) {
+    LockWaitStats stats = this.tableWaitStats.get(tableName);
+    return stats == null ? new LockWaitStats() : new LockWaitStats(stats);
+  }
+
+  /**
+   * @return the waits of lock requests on the database itself so far
+   */
+  public synchronized LockWaitStats getDatabaseWaitStats() {
+    return new LockWaitStats(this.databaseWaitStats);
+  }
+
+  /**
+   * Stops looking for deadlocks. Requests that are still waiting can then only time out.
+   */
+  public synchronized void close() {
+    if (this.detectionTask != null) {
+      this.detectionTask.cancel(false);
+      this.detectionTask = null;
+    }
+  }
+
+  /**
+   * Acquires a lock of type lockType on the whole database for transaction transNum, waiting
+   * until it can be granted.
    *
-   * @param tableName the database to lock on
    * @param transNum the transactions id
    * @param lockType the type of lock
+   * @throws LockException if the request times out or is picked to break a deadlock
    */
-  public synchronized void acquireLock(String tableName, long transNum, LockType lockType) {
-    while (this.databaseLocked) {
-      if (this.databaseTransactionOwner == transNum) {
-        break;
+  public synchronized void acquireDatabaseLock(long transNum, LockType lockType)
+      throws LockException {
+    this.acquire(this.databaseLock, transNum, lockType);
+  }
+
+  /**
+   * Acquires a lock on tableName of type lockType for transaction transNum, along with the
+   * intention lock it needs on the database, waiting until they can be granted.
+   *
+   * @param tableName the table to lock on
+   * @param transNum the transactions id
+   * @param lockType the type of lock
+   * @throws LockException if the request times out or is picked to break a deadlock
+   */
+  public synchronized void acquireLock(String tableName, long transNum, LockType lockType)
+      throws LockException {
+    this.acquire(this.databaseLock, transNum, lockType.intention());
+    this.acquire(this.getTableLock(tableName), transNum, lockType);
+  }
+
+  /**
+   * Acquires a lock on page pageNum of tableName of type lockType for transaction transNum, along
+   * with the intention locks it needs on the table and the database. Nothing is locked if the
+   * transaction's lock on the table already covers the page.
+   *
+   * @param tableName the table the page belongs to
+   * @param pageNum the page to lock on
+   * @param transNum the transactions id
+   * @param lockType the type of lock
+   * @throws LockException if the request times out or is picked to break a deadlock
+   */
+  public synchronized void acquirePageLock(String tableName, int pageNum, long transNum,
+                                           LockType lockType) throws LockException {
+    LockType tableType = this.getTableLock(tableName).holders.get(transNum);
+    if (tableType != null && coversChildren(tableType, lockType)) {
+      return;
+    }
+    this.acquire(this.databaseLock, transNum, lockType.intention());
+    this.acquire(this.getTableLock(tableName), transNum, lockType.intention());
+    this.acquire(this.getPageLock(tableName, pageNum), transNum, lockType);
+  }
+
+  /**
+   * Acquires a lock on record rid of tableName of type lockType for transaction transNum, along
+   * with the intention locks it needs on the record's page, the table and the database. Nothing
+   * is locked if the transaction's lock on the table or page already covers the record. If the
+   * transaction holds as many record locks on the table as the escalation threshold, it locks
+   * the table instead: exclusively if it writes to the table, shared otherwise. The record is
+   * locked after all if the table lock cannot be granted right away.
+   *
+   * @param tableName the table the record belongs to
+   * @param rid the record to lock on
+   * @param transNum the transactions id
+   * @param lockType the type of lock
+   * @throws LockException if the request times out or is picked to break a deadlock
+   */
+  public synchronized void acquireRecordLock(String tableName, RecordID rid, long transNum,
+                                             LockType lockType) throws LockException {
+    LockType tableType = this.getTableLock(tableName).holders.get(transNum);
+    if (tableType != null && coversChildren(tableType, lockType)) {
+      return;
+    }
+    Map<Integer, ResourceLock> locks = this.pageLocks.get(tableName);
+    ResourceLock pageLock = locks == null ? null : locks.get(rid.getPageNum());
+    LockType pageType = pageLock == null ? null : pageLock.holders.get(transNum);
+    if (pageType != null && coversChildren(pageType, lockType)) {
+      return;
+    }
+
+    if (this.getNumRecordLocks(tableName, transNum) >= this.escalationThreshold) {
+      boolean writes = lockType.substitutes(LockType.INTENTION_EXCLUSIVE)
+          || (tableType != null && tableType.substitutes(LockType.INTENTION_EXCLUSIVE));
+      if (this.escalate(tableName, transNum, writes ? LockType.EXCLUSIVE : LockType.SHARED)) {
+        return;
       }
-      try {
-        wait();
-      } catch (InterruptedException e) {
+    }
+    this.acquire(this.databaseLock, transNum, lockType.intention());
+    this.acquire(this.getTableLock(tableName), transNum, lockType.intention());
+    this.acquire(this.getPageLock(tableName, rid.getPageNum()), transNum, lockType.intention());
+    this.acquire(this.getRecordLock(tableName, rid), transNum, lockType);
+  }
 
+  /**
+   * Locks tableName as lockType for transNum and drops the page and record locks it covers,
+   * unless that would have to wait.
+   *
+   * @return whether the table was locked
+   */
+  private boolean escalate(String tableName, long transNum, LockType lockType) {
+    if (!this.tryAcquire(this.databaseLock, transNum, lockType.intention())
+        || !this.tryAcquire(this.getTableLock(tableName), transNum, lockType)) {
+      return false;
+    }
+    for (ResourceLock lock : new ArrayList<ResourceLock>(this.transactionLocks.get(transNum))) {
+      if (lock.isBelow(tableName)) {
+        this.release(lock, transNum);
       }
     }
+    return true;
+  }
 
-    this.databaseTransactionOwner = transNum;
-    this.databaseLocked = true;
+  /**
+   * @return the number of record locks transNum holds on tableName
+   */
+  public synchronized int getNumRecordLocks(String tableName, long transNum) {
+    Map<String, Integer> counts = this.numRecordLocks.get(transNum);
+    Integer count = counts == null ? null : counts.get(tableName);
+    return count == null ? 0 : count;
   }
 
   /**
-   * Releases transNum's lock on tableName.
+   * Releases transNum's lock on tableName and its locks on the pages and records of tableName. The lock on
+   * the database goes too if it was only an intention lock and nothing else is locked.
    *
    * @param tableName the table that was locked
    * @param transNum the transaction that held the lock
    */
   public synchronized void releaseLock(String tableName, long transNum) {
-    if (this.databaseLocked && this.databaseTransactionOwner == transNum) {
-      this.databaseLocked = false;
-      this.databaseTransactionOwner = -1;
+    Set<ResourceLock> held = this.transactionLocks.get(transNum);
+    if (held == null) {
+      return;
+    }
+    for (ResourceLock lock : new ArrayList<ResourceLock>(held)) {
+      if (lock.isBelow(tableName)) {
+        this.release(lock, transNum);
+      }
+    }
+    ResourceLock tableLock = this.tableLocks.get(tableName);
+    if (tableLock != null && held.contains(tableLock)) {
+      this.release(tableLock, transNum);
+    }
 
-      notifyAll();
+    LockType databaseType = this.databaseLock.holders.get(transNum);
+    if (held.size() == 1 && databaseType != null
+        && !databaseType.substitutes(LockType.SHARED)) {
+      this.release(this.databaseLock, transNum);
+    }
+  }
+
+  /**
+   * Releases every lock transNum holds, most recently acquired first.
+   *
+   * @param transNum the transaction that held the locks
+   */
+  public synchronized void releaseAllLocks(long transNum) {
+    Set<ResourceLock> held = this.transactionLocks.get(transNum);
+    if (held == null) {
+      return;
+    }
+    List<ResourceLock> locks = new ArrayList<ResourceLock>(held);
+    Collections.reverse(locks);
+    for (ResourceLock lock : locks) {
+      this.release(lock, transNum);
     }
   }
 
@@ -62,6 +370,525 @@ public class LockManager {
    * @return whether the lock is held or not
    */
   public synchronized boolean holdsLock(String tableName, long transNum, LockType lockType) {
-    return this.databaseLocked && this.databaseTransactionOwner == transNum;
+    LockType held = this.getLockType(tableName, transNum);
+    return held != null && held.substitutes(lockType);
+  }
+
+  /**
+   * Returns whether transNum may access page pageNum of tableName as a lock of type lockType
+   * allows, either through a lock on the page or through its lock on the table.
+   */
+  public synchronized boolean holdsPageLock(String tableName, int pageNum, long transNum,
+                                            LockType lockType) {
+    LockType tableType = this.getLockType(tableName, transNum);
+    if (tableType != null && coversChildren(tableType, lockType)) {
+      return true;
+    }
+    Map<Integer, ResourceLock> locks = this.pageLocks.get(tableName);
+    ResourceLock lock = locks == null ? null : locks.get(pageNum);
+    LockType held = lock == null ? null : lock.holders.get(transNum);
+    return held != null && held.substitutes(lockType);
+  }
+
+  /**
+   * Returns whether transNum may access record rid of tableName as a lock of type lockType
+   * allows, either through a lock on the record or through its lock on the page or table.
+   */
+  public synchronized boolean holdsRecordLock(String tableName, RecordID rid, long transNum,
+                                              LockType lockType) {
+    LockType tableType = this.getLockType(tableName, transNum);
+    if (tableType != null && coversChildren(tableType, lockType)) {
+      return true;
+    }
+    Map<Integer, ResourceLock> pages = this.pageLocks.get(tableName);
+    ResourceLock pageLock = pages == null ? null : pages.get(rid.getPageNum());
+    LockType pageType = pageLock == null ? null : pageLock.holders.get(transNum);
+    if (pageType != null && coversChildren(pageType, lockType)) {
+      return true;
+    }
+    Map<RecordID, ResourceLock> records = this.recordLocks.get(tableName);
+    ResourceLock lock = records == null ? null : records.get(rid);
+    LockType held = lock == null ? null : lock.holders.get(transNum);
+    return held != null && held.substitutes(lockType);
+  }
+
+  /**
+   * @return the type of the lock transNum holds on tableName, or null if it holds none
+   */
+  public synchronized LockType getLockType(String tableName, long transNum) {
+    ResourceLock lock = this.tableLocks.get(tableName);
+    return lock == null ? null : lock.holders.get(transNum);
+  }
+
+  /**
+   * @return the type of the lock transNum holds on the database, or null if it holds none
+   */
+  public synchronized LockType getDatabaseLockType(long transNum) {
+    return this.databaseLock.holders.get(transNum);
+  }
+
+  /**
+   * Whether a lock of type parentType on a table or page lets its holder access everything in it
+   * as a lock of type childType would.
+   */
+  private static boolean coversChildren(LockType parentType, LockType childType) {
+    if (parentType == LockType.EXCLUSIVE) {
+      return true;
+    }
+    return parentType.substitutes(LockType.SHARED) && LockType.SHARED.substitutes(childType);
+  }
+
+  private ResourceLock getTableLock(String tableName) {
+    ResourceLock lock = this.tableLocks.get(tableName);
+    if (lock == null) {
+      lock = new ResourceLock(tableName, ResourceLock.NONE, ResourceLock.NONE);
+      this.tableLocks.put(tableName, lock);
+    }
+    return lock;
+  }
+
+  private ResourceLock getPageLock(String tableName, int pageNum) {
+    Map<Integer, ResourceLock> locks = this.pageLocks.get(tableName);
+    if (locks == null) {
+      locks = new HashMap<Integer, ResourceLock>();
+      this.pageLocks.put(tableName, locks);
+    }
+    ResourceLock lock = locks.get(pageNum);
+    if (lock == null) {
+      lock = new ResourceLock(tableName, pageNum, ResourceLock.NONE);
+      locks.put(pageNum, lock);
+    }
+    return lock;
+  }
+
+  private ResourceLock getRecordLock(String tableName, RecordID rid) {
+    Map<RecordID, ResourceLock> locks = this.recordLocks.get(tableName);
+    if (locks == null) {
+      locks = new HashMap<RecordID, ResourceLock>();
+      this.recordLocks.put(tableName, locks);
+    }
+    ResourceLock lock = locks.get(rid);
+    if (lock == null) {
+      lock = new ResourceLock(tableName, rid.getPageNum(), rid.getEntryNumber());
+      locks.put(rid, lock);
+    }
+    return lock;
+  }
+
+  /**
+   * Grants transNum a lock of type lockType on lock's resource, combined with any lock it
+   * already holds there, waiting as long as that conflicts with other holders or queued
+   * requests.
+   */
+  private void acquire(ResourceLock lock, long transNum, LockType lockType) throws LockException {
+    LockType held = lock.holders.get(transNum);
+    if (held != null && held.substitutes(lockType)) {
+      return;
+    }
+    LockRequest request = new LockRequest(transNum, held == null ? lockType : held.combine(lockType));
+
+    if (held == null) {
+      if (lock.queue.isEmpty() && lock.isCompatible(request)) {
+        this.grant(lock, request);
+        return;
+      }
+      lock.queue.addLast(request);
+    } else {
+      // upgrades wait only for the holders and earlier upgrades, not for new requests
+      ListIterator<LockRequest> iter = lock.queue.listIterator();
+      boolean upgradesQueued = false;
+      while (iter.hasNext()) {
+        if (lock.holders.containsKey(iter.next().transNum)) {
+          upgradesQueued = true;
+        } else {
+          iter.previous();
+          break;
+        }
+      }
+      if (!upgradesQueued && lock.isCompatible(request)) {
+        this.grant(lock, request);
+        return;
+      }
+      iter.add(request);
+    }
+
+    this.await(lock, request);
+  }
+
+  /**
+   * Grants transNum a lock of type lockType on lock's resource as acquire does, but only if it
+   * can be granted without waiting.
+   *
+   * @return whether transNum holds the lock now
+   */
+  private boolean tryAcquire(ResourceLock lock, long transNum, LockType lockType) {
+    LockType held = lock.holders.get(transNum);
+    if (held != null && held.substitutes(lockType)) {
+      return true;
+    }
+    LockRequest request = new LockRequest(transNum, held == null ? lockType : held.combine(lockType));
+    boolean queuedFirst = held == null ? !lock.queue.isEmpty()
+        : !lock.queue.isEmpty() && lock.holders.containsKey(lock.queue.getFirst().transNum);
+    if (queuedFirst || !lock.isCompatible(request)) {
+      return false;
+    }
+    this.grant(lock, request);
+    return true;
+  }
+
+  /**
+   * Waits until request is granted, times out, or is failed to break a deadlock.
+   */
+  private void await(ResourceLock lock, LockRequest request) throws LockException {
+    long start = System.nanoTime();
+    this.numWaiting++;
+    this.scheduleDetection();
+    try {
+      while (!request.granted && request.failure == null) {
+        long waitMillis = 0;
+        if (this.lockTimeoutMillis > 0) {
+          waitMillis = this.lockTimeoutMillis - (System.nanoTime() - start) / 1000000;
+          if (waitMillis <= 0) {
+            this.cancel(lock, request);
+            this.getWaitStats(lock).recordTimeout();
+            throw new LockTimeoutException("Transaction " + request.transNum + " timed out waiting for "
+                + request.lockType + " lock on " + lock);
+          }
+        }
+        try {
+          wait(waitMillis);
+        } catch (InterruptedException e) {
+          this.cancel(lock, request);
+          Thread.currentThread().interrupt();
+          throw new LockException("Transaction " + request.transNum + " was interrupted waiting for "
+              + request.lockType + " lock on " + lock);
+        }
+      }
+    } finally {
+      this.numWaiting--;
+      this.getWaitStats(lock).recordWait(System.nanoTime() - start);
+    }
+    if (request.failure != null) {
+      throw request.failure;
+    }
+  }
+
+  /**
+   * Removes request from the queue of lock, which may let the requests behind it through.
+   */
+  private void cancel(ResourceLock lock, LockRequest request) {
+    lock.queue.remove(request);
+    this.grantWaiting(lock);
+    this.removeIfUnused(lock);
+  }
+
+  private LockWaitStats getWaitStats(ResourceLock lock) {
+    if (lock.tableName == null) {
+      return this.databaseWaitStats;
+    }
+    LockWaitStats stats = this.tableWaitStats.get(lock.tableName);
+    if (stats == null) {
+      stats = new LockWaitStats();
+      this.tableWaitStats.put(lock.tableName, stats);
+    }
+    return stats;
+  }
+
+  private void scheduleDetection() {
+    if (this.detectionTask != null) {
+      return;
+    }
+    this.detectionTask = detectionScheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        LockManager.this.detectDeadlocks();
+      }
+    }, this.detectionIntervalMillis, this.detectionIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Fails the waiting request of the youngest transaction of each cycle in the waits-for graph,
+   * until there are no cycles left. Stops the background detection once nothing waits.
+   */
+  synchronized void detectDeadlocks() {
+    if (this.numWaiting == 0) {
+      if (this.detectionTask != null) {
+        this.detectionTask.cancel(false);
+        this.detectionTask = null;
+      }
+      return;
+    }
+
+    List<Long> cycle = findCycle(this.getWaitsForGraph());
+    while (cycle != null) {
+      long victim = Collections.max(cycle);
+      for (ResourceLock lock : this.getWaitedOnLocks()) {
+        for (LockRequest request : lock.queue) {
+          if (request.transNum == victim) {
+            request.failure = new DeadlockException("Transaction " + victim
+                + " was aborted to break the deadlock of transactions " + cycle);
+            this.getWaitStats(lock).recordDeadlock();
+            this.cancel(lock, request);
+            break;
+          }
+        }
+      }
+      notifyAll();
+      cycle = findCycle(this.getWaitsForGraph());
+    }
+  }
+
+  private List<ResourceLock> getWaitedOnLocks() {
+    List<ResourceLock> locks = new ArrayList<ResourceLock>();
+    if (!this.databaseLock.queue.isEmpty()) {
+      locks.add(this.databaseLock);
+    }
+    for (ResourceLock lock : this.tableLocks.values()) {
+      if (!lock.queue.isEmpty()) {
+        locks.add(lock);
+      }
+    }
+    for (Map<Integer, ResourceLock> locksOfTable : this.pageLocks.values()) {
+      for (ResourceLock lock : locksOfTable.values()) {
+        if (!lock.queue.isEmpty()) {
+          locks.add(lock);
+        }
+      }
+    }
+    for (Map<RecordID, ResourceLock> locksOfTable : this.recordLocks.values()) {
+      for (ResourceLock lock : locksOfTable.values()) {
+        if (!lock.queue.isEmpty()) {
+          locks.add(lock);
+        }
+      }
+    }
+    return locks;
+  }
+
+  /**
+   * Maps each waiting transaction to the transactions it waits for: the holders of conflicting
+   * locks on the resource it waits for and, since queues are FIFO, the conflicting requests
+   * ahead of it.
+   */
+  private Map<Long, Set<Long>> getWaitsForGraph() {
+    Map<Long, Set<Long>> graph = new HashMap<Long, Set<Long>>();
+    for (ResourceLock lock : this.getWaitedOnLocks()) {
+      List<LockRequest> ahead = new ArrayList<LockRequest>();
+      for (LockRequest request : lock.queue) {
+        Set<Long> waitsFor = graph.get(request.transNum);
+        if (waitsFor == null) {
+          waitsFor = new LinkedHashSet<Long>();
+          graph.put(request.transNum, waitsFor);
+        }
+        for (Map.Entry<Long, LockType> holder : lock.holders.entrySet()) {
+          if (holder.getKey() != request.transNum && !holder.getValue().isCompatibleWith(request.lockType)) {
+            waitsFor.add(holder.getKey());
+          }
+        }
+        for (LockRequest other : ahead) {
+          if (other.transNum != request.transNum && !other.lockType.isCompatibleWith(request.lockType)) {
+            waitsFor.add(other.transNum);
+          }
+        }
+        ahead.add(request);
+      }
+    }
+    return graph;
+  }
+
+  /**
+   * @return the transactions of some cycle in graph, or null if it has none
+   */
+  private static List<Long> findCycle(Map<Long, Set<Long>> graph) {
+    Set<Long> done = new HashSet<Long>();
+    for (Long start : graph.keySet()) {
+      List<Long> path = new ArrayList<Long>();
+      List<Long> cycle = findCycle(graph, start, path, done);
+      if (cycle != null) {
+        return cycle;
+      }
+    }
+    return null;
+  }
+
+  private static List<Long> findCycle(Map<Long, Set<Long>> graph, Long node, List<Long> path,
+                                      Set<Long> done) {
+    int index = path.indexOf(node);
+    if (index >= 0) {
+      return new ArrayList<Long>(path.subList(index, path.size()));
+    }
+    if (done.contains(node) || !graph.containsKey(node)) {
+      return null;
+    }
+    path.add(node);
+    for (Long next : graph.get(node)) {
+      List<Long> cycle = findCycle(graph, next, path, done);
+      if (cycle != null) {
+        return cycle;
+      }
+    }
+    path.remove(path.size() - 1);
+    done.add(node);
+    return null;
+  }
+
+  private void grant(ResourceLock lock, LockRequest request) {
+    if (lock.holders.put(request.transNum, request.lockType) == null && lock.isRecord()) {
+      this.countRecordLock(lock.tableName, request.transNum, 1);
+    }
+    request.granted = true;
+
+    Set<ResourceLock> held = this.transactionLocks.get(request.transNum);
+    if (held == null) {
+      held = new LinkedHashSet<ResourceLock>();
+      this.transactionLocks.put(request.transNum, held);
+    }
+    held.add(lock);
+  }
+
+  private void release(ResourceLock lock, long transNum) {
+    lock.holders.remove(transNum);
+    if (lock.isRecord()) {
+      this.countRecordLock(lock.tableName, transNum, -1);
+    }
+    Set<ResourceLock> held = this.transactionLocks.get(transNum);
+    held.remove(lock);
+    if (held.isEmpty()) {
+      this.transactionLocks.remove(transNum);
+    }
+
+    this.grantWaiting(lock);
+    this.removeIfUnused(lock);
+  }
+
+  /**
+   * Grants queued requests of lock in order until one conflicts.
+   */
+  private void grantWaiting(ResourceLock lock) {
+    boolean granted = false;
+    Iterator<LockRequest> iter = lock.queue.iterator();
+    while (iter.hasNext()) {
+      LockRequest request = iter.next();
+      if (!lock.isCompatible(request)) {
+        break;
+      }
+      iter.remove();
+      this.grant(lock, request);
+      granted = true;
+    }
+    if (granted) {
+      notifyAll();
+    }
+  }
+
+  private void countRecordLock(String tableName, long transNum, int delta) {
+    Map<String, Integer> counts = this.numRecordLocks.get(transNum);
+    if (counts == null) {
+      counts = new HashMap<String, Integer>();
+      this.numRecordLocks.put(transNum, counts);
+    }
+    Integer count = counts.get(tableName);
+    int newCount = (count == null ? 0 : count) + delta;
+    if (newCount > 0) {
+      counts.put(tableName, newCount);
+    } else {
+      counts.remove(tableName);
+      if (counts.isEmpty()) {
+        this.numRecordLocks.remove(transNum);
+      }
+    }
+  }
+
+  private void removeIfUnused(ResourceLock lock) {
+    if (!lock.holders.isEmpty() || !lock.queue.isEmpty()) {
+      return;
+    }
+    if (lock.isPage()) {
+      Map<Integer, ResourceLock> locks = this.pageLocks.get(lock.tableName);
+      locks.remove(lock.pageNum);
+      if (locks.isEmpty()) {
+        this.pageLocks.remove(lock.tableName);
+      }
+    } else if (lock.isRecord()) {
+      Map<RecordID, ResourceLock> locks = this.recordLocks.get(lock.tableName);
+      locks.remove(new RecordID(lock.pageNum, lock.entryNum));
+      if (locks.isEmpty()) {
+        this.recordLocks.remove(lock.tableName);
+      }
+    }
+  }
+
+  /**
+   * The holders and the queue of waiting requests of one lockable resource: the database if
+   * tableName is null, a table if pageNum is NONE, a page of a table if entryNum is NONE, or
+   * else one record.
+   */
+  private static class ResourceLock {
+    static final int NONE = -1;
+
+    final String tableName;
+    final int pageNum;
+    final int entryNum;
+    final Map<Long, LockType> holders;
+    final LinkedList<LockRequest> queue;
+
+    ResourceLock(String tableName, int pageNum, int entryNum) {
+      this.tableName = tableName;
+      this.pageNum = pageNum;
+      this.entryNum = entryNum;
+      this.holders = new HashMap<Long, LockType>();
+      this.queue = new LinkedList<LockRequest>();
+    }
+
+    boolean isPage() {
+      return this.pageNum != NONE && this.entryNum == NONE;
+    }
+
+    boolean isRecord() {
+      return this.entryNum != NONE;
+    }
+
+    /**
+     * Whether this is a page or record of table tableName.
+     */
+    boolean isBelow(String tableName) {
+      return this.pageNum != NONE && this.tableName.equals(tableName);
+    }
+
+    @Override
+    public String toString() {
+      if (this.tableName == null) {
+        return "the database";
+      }
+      if (this.isRecord()) {
+        return "record " + this.pageNum + ":" + this.entryNum + " of " + this.tableName;
+      }
+      return this.isPage() ? "page " + this.pageNum + " of " + this.tableName : this.tableName;
+    }
+
+    /**
+     * Whether request may be granted alongside the locks other transactions hold.
+     */
+    boolean isCompatible(LockRequest request) {
+      for (Map.Entry<Long, LockType> holder : this.holders.entrySet()) {
+        if (holder.getKey() != request.transNum && !holder.getValue().isCompatibleWith(request.lockType)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static class LockRequest {
+    final long transNum;
+    final LockType lockType;
+    boolean granted;
+    LockException failure;
+
+    LockRequest(long transNum, LockType lockType) {
+      this.transNum = transNum;
+      this.lockType = lockType;
+      this.granted = false;
+      this.failure = null;
+    }
   }
 }
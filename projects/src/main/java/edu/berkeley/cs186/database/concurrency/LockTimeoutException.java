@@ -0,0 +1,12 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * Exception thrown when a lock request waits longer than the LockManager's lock timeout.
+ */
+public class LockTimeoutException extends LockException {
+  private static final long serialVersionUID = 1L;
+
+  public LockTimeoutException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,74 @@
+package edu.berkeley.cs186.database.concurrency;
+
+/**
+ * How long lock requests on a table, or on the database, had to wait: the number of requests
+ * that waited at all, the total and longest wait, and how many waits ended in a timeout or
+ * deadlock instead of a grant.
+ */
+public class LockWaitStats {
+  private long numWaits;
+  private long totalWaitNanos;
+  private long maxWaitNanos;
+  private long numTimeouts;
+  private long numDeadlocks;
+
+  public LockWaitStats() {
+    this.numWaits = 0;
+    this.totalWaitNanos = 0;
+    this.maxWaitNanos = 0;
+    this.numTimeouts = 0;
+    this.numDeadlocks = 0;
+  }
+
+  /**
+   * Creates a copy of stats.
+   */
+  public LockWaitStats(LockWaitStats stats) {
+    this.numWaits = stats.numWaits;
+    this.totalWaitNanos = stats.totalWaitNanos;
+    this.maxWaitNanos = stats.maxWaitNanos;
+    this.numTimeouts = stats.numTimeouts;
+    this.numDeadlocks = stats.numDeadlocks;
+  }
+
+  void recordWait(long waitNanos) {
+    this.numWaits++;
+    this.totalWaitNanos += waitNanos;
+    this.maxWaitNanos = Math.max(this.maxWaitNanos, waitNanos);
+  }
+
+  void recordTimeout() {
+    this.numTimeouts++;
+  }
+
+  void recordDeadlock() {
+    this.numDeadlocks++;
+  }
+
+  public long getNumWaits() {
+    return this.numWaits;
+  }
+
+  public long getTotalWaitNanos() {
+    return this.totalWaitNanos;
+  }
+
+  public long getMaxWaitNanos() {
+    return this.maxWaitNanos;
+  }
+
+  public long getNumTimeouts() {
+    return this.numTimeouts;
+  }
+
+  public long getNumDeadlocks() {
+    return this.numDeadlocks;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d waits, %.1f ms total, %.1f ms max, %d timeouts, %d deadlocks",
+        this.numWaits, this.totalWaitNanos / 1e6, this.maxWaitNanos / 1e6, this.numTimeouts,
+        this.numDeadlocks);
+  }
+}
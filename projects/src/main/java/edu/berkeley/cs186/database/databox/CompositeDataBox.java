@@ -0,0 +1,162 @@
+package edu.berkeley.cs186.database.databox;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The key of a multi-column index, which serializes to the concatenated bytes of its values.
+ *
+ * The first numKeyValues values are the key columns and order the boxes lexicographically. Any
+ * values after them are INCLUDE columns that are carried along for index-only scans and do not
+ * affect the order. Boxes are compared on the key values both of them have, so a box with fewer
+ * key values, such as the value of just the leading column, compares equal to every key it is a
+ * prefix of and can be used to look up or scan from such keys.
+ */
+public class CompositeDataBox extends DataBox {
+  private List<DataBox> values;
+  private int numKeyValues;
+
+  /**
+   * Constructs a CompositeDataBox whose values are all key values.
+   *
+   * @param values the values of the CompositeDataBox
+   */
+  public CompositeDataBox(List<DataBox> values) {
+    this(values, values.size());
+  }
+
+  /**
+   * Constructs a CompositeDataBox of values whose first numKeyValues values are key values.
+   *
+   * @param values the values of the CompositeDataBox
+   * @param numKeyValues the number of values that order the box
+   */
+  public CompositeDataBox(List<DataBox> values, int numKeyValues) {
+    if (numKeyValues < 1 || numKeyValues > values.size()) {
+      throw new DataBoxException("Invalid number of key values " + numKeyValues);
+    }
+    this.values = Collections.unmodifiableList(new ArrayList<DataBox>(values));
+    this.numKeyValues = numKeyValues;
+  }
+
+  /**
+   * Construct a CompositeDataBox of the same types as schema from the bytes in buf.
+   *
+   * @param schema a CompositeDataBox of the types to decode
+   * @param buf the byte buffer source
+   */
+  public CompositeDataBox(CompositeDataBox schema, byte[] buf) {
+    if (buf.length != schema.getSize()) {
+      throw new DataBoxException("Wrong size buffer for composite");
+    }
+    List<DataBox> values = new ArrayList<DataBox>(schema.values.size());
+    int offset = 0;
+    for (DataBox field : schema.values) {
+      byte[] bytes = Arrays.copyOfRange(buf, offset, offset + field.getSize());
+      switch (field.type()) {
+        case INT:
+          values.add(new IntDataBox(bytes));
+          break;
+        case FLOAT:
+          values.add(new FloatDataBox(bytes));
+          break;
+        case BOOL:
+          values.add(new BoolDataBox(bytes));
+          break;
+        case STRING:
+          values.add(new StringDataBox(bytes));
+          break;
+        default:
+          throw new DataBoxException("Nested composite values are not supported");
+      }
+      offset += field.getSize();
+    }
+    this.values = Collections.unmodifiableList(values);
+    this.numKeyValues = schema.numKeyValues;
+  }
+
+  /**
+   * @return the values of this box, key values first
+   */
+  public List<DataBox> getValues() {
+    return this.values;
+  }
+
+  /**
+   * @return the number of values that order this box
+   */
+  public int getNumKeyValues() {
+    return this.numKeyValues;
+  }
+
+  @Override
+  public Types type() {
+    return DataBox.Types.COMPOSITE;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (this.getClass() != obj.getClass())
+      return false;
+    CompositeDataBox other = (CompositeDataBox) obj;
+    return this.numKeyValues == other.numKeyValues && this.values.equals(other.values);
+  }
+
+  @Override
+  public int hashCode() {
+    return this.values.hashCode();
+  }
+
+  @Override
+  public int compareTo(Object obj) {
+    if (this.getClass() != obj.getClass()) {
+      throw new DataBoxException("Invalid Comparsion");
+    }
+    CompositeDataBox other = (CompositeDataBox) obj;
+    int n = Math.min(this.numKeyValues, other.numKeyValues);
+    for (int i = 0; i < n; i++) {
+      int comp = this.values.get(i).compareTo(other.values.get(i));
+      if (comp != 0) {
+        return comp;
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public byte[] getBytes() {
+    ByteBuffer buf = ByteBuffer.allocate(getSize());
+    for (DataBox value : this.values) {
+      buf.put(value.getBytes());
+    }
+    return buf.array();
+  }
+
+  @Override
+  public int getSize() {
+    int size = 0;
+    for (DataBox value : this.values) {
+      size += value.getSize();
+    }
+    return size;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder s = new StringBuilder("(");
+    for (int i = 0; i < this.values.size(); i++) {
+      if (i > 0) {
+        s.append(i == this.numKeyValues ? " | " : ", ");
+      }
+      s.append(this.values.get(i));
+    }
+    return s.append(")").toString();
+  }
+}
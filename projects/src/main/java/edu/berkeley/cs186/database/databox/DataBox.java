@@ -2,7 +2,7 @@ package edu.berkeley.cs186.database.databox;
 
 /**
  * Abstract DataBox for all database primitives Currently supported: integers, booleans, floats,
- * fixed-length strings.
+ * fixed-length strings, and composites of these as keys of multi-column indices.
  *
  * DataBoxes are also comparable allowing comparisons or sorting.
  *
@@ -14,7 +14,7 @@ public abstract class DataBox implements Comparable {
   /**
    * An enum with the current supported types.
    */
-  public enum Types {BOOL, INT, FLOAT, STRING}
+  public enum Types {BOOL, INT, FLOAT, STRING, COMPOSITE}
 
   public DataBox() throws DataBoxException {
   }
@@ -1,9 +1,18 @@
 package edu.berkeley.cs186.database.index;
 
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.databox.BoolDataBox;
+import edu.berkeley.cs186.database.databox.CompositeDataBox;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.FloatDataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.table.RecordID;
+import edu.berkeley.cs186.database.table.Schema;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
@@ -13,6 +22,25 @@ import java.util.ArrayList;
  * bitmap, and entries. The type of page header and entry are determined by the
  * subclasses InnerNode and LeafNode.
  *
+ * The entries of a node are kept sorted and packed at the front of the node:
+ * entry i is valid exactly when i is less than the number of valid entries.
+ * Lookups binary search the page and only decode the entries they visit.
+ *
+ * Nodes of an index on a string column are compressed instead, since their
+ * fixed-width keys are mostly padding and shared prefixes. After the page
+ * header, such a node holds the number of entries, the start of the entry
+ * data, the length and bytes of a prefix that all its keys share, and a
+ * directory of 2-byte entry offsets in key order. Each entry is stored at the
+ * end of the page as the length and bytes of the rest of its key, without the
+ * padding, followed by its RecordID or child page number. How many entries
+ * such a node holds depends on its keys; leaves split with suffix-truncated
+ * separators, the shortest prefix of the first key on the right that still
+ * sorts after the last key on the left, to keep inner nodes small as well.
+ *
+ * Trees with posting lists use compressed nodes whatever their key type. Their
+ * leaves hold a PostingEntry per distinct key, whose RecordIDs follow the key
+ * as the 2-byte length and bytes of a PostingList posting.
+ *
  * Properties:
  * keySchema: DataBox for this index's search key
  * entrySize: physical size (in bytes) of the page entry of this node
@@ -23,8 +51,16 @@ import java.util.ArrayList;
  * pageNum`: page number corresponding to this node
  */
 public abstract class BPlusNode {
+    private static final int COMPRESSED_HEADER_SIZE = 6;
+    private static final int SLOT_SIZE = 2;
+    private static final int LENGTH_SIZE = 2;
+
     private DataBox keySchema;
 
+    private boolean compressed;
+    private boolean postings;
+    private int keySize;
+    private int payloadSize;
     private int entrySize;
     protected int numEntries;
     private int bitMapSize;
@@ -52,8 +88,20 @@ public abstract class BPlusNode {
             this.entrySize = keySchema.getSize() + 4;
         }
 
-        this.bitMapSize = (8 * (Page.pageSize - 5) / (1 + 8 * this.entrySize)) / 8;
-        this.numEntries = bitMapSize * 8;
+        this.keySize = keySchema.getSize();
+        this.payloadSize = this.entrySize - this.keySize;
+        this.compressed = keySchema.type() == DataBox.Types.STRING || tree.usesPostingLists();
+        this.postings = isLeaf && tree.usesPostingLists();
+
+        if (this.compressed) {
+            // the number of entries that always fit, whatever their keys
+            this.bitMapSize = 0;
+            this.numEntries = (Page.pageSize - this.headerSize - COMPRESSED_HEADER_SIZE)
+                    / (SLOT_SIZE + LENGTH_SIZE + this.entrySize);
+        } else {
+            this.bitMapSize = (8 * (Page.pageSize - this.headerSize) / (1 + 8 * this.entrySize)) / 8;
+            this.numEntries = bitMapSize * 8;
+        }
     }
 
     /**
@@ -94,8 +142,49 @@ public abstract class BPlusNode {
         return pageNum;
     }
 
+    /**
+     * @return whether any one entry can be inserted into this node without
+     * splitting it
+     */
     public boolean hasSpace() {
-        return findFreeEntry() > -1;
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        if (!this.compressed) {
+            return numValid < this.numEntries;
+        }
+        // the new key may share no prefix with the others and have no padding
+        int payloadLength = this.postings ? LENGTH_SIZE + PostingList.MAX_SINGLE_SIZE : this.payloadSize;
+        int entryBytes = LENGTH_SIZE + this.keySize + payloadLength;
+        return getGrownSize(page, numValid, 0, entryBytes) <= Page.pageSize;
+    }
+
+    /**
+     * @param ent an entry to insert
+     * @return whether ent can be inserted into this node without splitting it
+     */
+    protected boolean hasSpaceFor(BEntry ent) {
+        if (!this.compressed) {
+            return hasSpace();
+        }
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        byte[] key = encodeKey(ent.getKey());
+        int prefixLength = 0;
+        if (numValid > 0) {
+            prefixLength = getPrefixLength(page);
+            prefixLength = Math.min(prefixLength,
+                    getSharedLength(key, page.readBytes(getPrefixOffset(), prefixLength)));
+        }
+        int entryBytes = LENGTH_SIZE + key.length - prefixLength + getPayloadLength(ent);
+        return getGrownSize(page, numValid, prefixLength, entryBytes) <= Page.pageSize;
+    }
+
+    protected boolean isCompressed() {
+        return this.compressed;
+    }
+
+    protected boolean usesPostingLists() {
+        return this.postings;
     }
 
     /**
@@ -118,113 +207,588 @@ public abstract class BPlusNode {
         throw new BPlusTreeException("Not Implemented");
     }
 
-    private byte[] getBitMap() {
-        return getPage().readBytes(headerSize, bitMapSize);
-    }
-
     private void setBitMap(byte[] bitMap) {
         getPage().writeBytes(headerSize, bitMapSize, bitMap);
     }
 
     /**
-     * @param entryNum position of bit on bitmap
-     * @return starting byte of entry indicated by entryNum
+     * @param page the Page of this node
+     * @return the number of valid entries, which are the first entries of the node
      */
+    protected int getNumValidEntries(Page page) {
+        if (this.compressed) {
+            return page.readShort(this.headerSize);
+        }
+        int count = 0;
+        for (int i = 0; i < this.bitMapSize; i++) {
+            byte b = page.readByte(this.headerSize + i);
+            if (b != (byte) 0xFF) {
+                for (int mask = 0x80; (b & mask) != 0; mask >>= 1) {
+                    count++;
+                }
+                break;
+            }
+            count += 8;
+        }
+        return count;
+    }
 
-    private int getOffset(int entryNum) {
-        return entryNum*entrySize + this.headerSize + this.bitMapSize;
+    /**
+     * @param page the Page of this node
+     * @param entryNum a valid entry number
+     * @return the key of entry entryNum
+     */
+    protected DataBox readKey(Page page, int entryNum) {
+        if (!this.compressed) {
+            return Schema.decodeField(this.keySchema, page, getOffset(entryNum));
+        }
+        int offset = getSlot(page, entryNum);
+        int prefixLength = getPrefixLength(page);
+        int suffixLength = page.readShort(offset);
+        byte[] key = new byte[prefixLength + suffixLength];
+        System.arraycopy(page.readBytes(getPrefixOffset(), prefixLength), 0, key, 0, prefixLength);
+        System.arraycopy(page.readBytes(offset + LENGTH_SIZE, suffixLength), 0, key, prefixLength,
+                suffixLength);
+        return decodeKey(key);
+    }
+
+    /**
+     * @param page the Page of this node
+     * @param entryNum a valid entry number
+     * @return the posting of entry entryNum of a leaf with posting lists
+     */
+    protected byte[] readPosting(Page page, int entryNum) {
+        int offset = getPayloadOffset(page, entryNum);
+        return page.readBytes(offset + LENGTH_SIZE, page.readShort(offset));
+    }
+
+    /**
+     * @param page the Page of this node
+     * @param entryNum a valid entry number
+     * @return the RecordID of entry entryNum of a leaf
+     */
+    protected RecordID readRecordID(Page page, int entryNum) {
+        return new RecordID(page, getPayloadOffset(page, entryNum));
+    }
+
+    /**
+     * @param page the Page of this node
+     * @param entryNum a valid entry number
+     * @return the child page number of entry entryNum of an inner node
+     */
+    protected int readChildPageNum(Page page, int entryNum) {
+        return page.readInt(getPayloadOffset(page, entryNum));
     }
 
     /**
-     * Write a BEentry into the entryNum specified.
+     * Binary searches the first numValid entries of this node for key.
      *
-     * @param entryNum the entry number to fill
-     * @param ent the BEntry to write
+     * @param page the Page of this node
+     * @param numValid the number of valid entries
+     * @param key the key to search for
+     * @param inclusive whether to also count the entries equal to key
+     * @return the number of entries whose key is less than key (or at most key,
+     * if inclusive), i.e. the position of the first entry that is not
      */
-    private void writeEntry(int entryNum, BEntry ent) {
-        int byteOffset = entryNum/8;
-        int bitOffset = 7 - (entryNum % 8);
-        byte mask = (byte) (1 << bitOffset);
+    protected int findKey(Page page, int numValid, DataBox key, boolean inclusive) {
+        int lo = 0;
+        int hi = numValid;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = readKey(page, mid).compareTo(key);
+            if (cmp < 0 || (inclusive && cmp == 0)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
 
-        byte[] bitMap = getBitMap();
-        bitMap[byteOffset] = (byte) (bitMap[byteOffset] | mask);
-        setBitMap(bitMap);
-        int entryOffset = getOffset(entryNum);
-        getPage().writeBytes(entryOffset, entrySize, ent.toBytes());
+    /**
+     * Inserts ent at its sorted position, moving the entries after it one
+     * entry up. This node must have space.
+     *
+     * @param ent the entry to insert
+     */
+    protected void insertSorted(BEntry ent) {
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        int lo = 0;
+        int hi = numValid;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (readEntry(page, mid).compareTo(ent) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+
+        if (this.compressed) {
+            insertCompressed(page, numValid, lo, ent);
+            return;
+        }
+        if (lo < numValid) {
+            byte[] tail = page.readBytes(getOffset(lo), (numValid - lo) * this.entrySize);
+            page.writeBytes(getOffset(lo + 1), tail.length, tail);
+        }
+        page.writeBytes(getOffset(lo), this.entrySize, ent.toBytes());
+        int byteOffset = this.headerSize + numValid / 8;
+        byte mask = (byte) (1 << (7 - numValid % 8));
+        page.writeByte(byteOffset, (byte) (page.readByte(byteOffset) | mask));
     }
 
     /**
-     * Read a BEntry from the entryNum specified.
+     * Removes entry entryNum, moving the entries after it one entry down.
      *
-     * @param entryNum the entry number to read from
-     * @return the BEntry corresponding to the entryNum
+     * @param entryNum a valid entry number
      */
-    private BEntry readEntry(int entryNum) {
-        if (isLeaf()) {
-            return new LeafEntry(this.keySchema, getPage().readBytes(getOffset(entryNum), entrySize));
-        } else {
-            return new InnerEntry(this.keySchema, getPage().readBytes(getOffset(entryNum), entrySize));
+    protected void removeEntry(int entryNum) {
+        if (this.compressed) {
+            List<BEntry> entries = getAllValidEntries();
+            entries.remove(entryNum);
+            overwriteBNodeEntries(entries);
+            return;
+        }
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        if (entryNum < numValid - 1) {
+            byte[] tail = page.readBytes(getOffset(entryNum + 1), (numValid - entryNum - 1) * this.entrySize);
+            page.writeBytes(getOffset(entryNum), tail.length, tail);
+        }
+        int last = numValid - 1;
+        int byteOffset = this.headerSize + last / 8;
+        byte mask = (byte) ~(1 << (7 - last % 8));
+        page.writeByte(byteOffset, (byte) (page.readByte(byteOffset) & mask));
+    }
+
+    /**
+     * Inserts ent at position entryNum of a compressed node. A key that does
+     * not start with the prefix of the node makes the node be rewritten with
+     * a shorter prefix.
+     */
+    private void insertCompressed(Page page, int numValid, int entryNum, BEntry ent) {
+        byte[] key = encodeKey(ent.getKey());
+        int prefixLength = getPrefixLength(page);
+        byte[] prefix = page.readBytes(getPrefixOffset(), prefixLength);
+        if (getSharedLength(key, prefix) < prefixLength) {
+            List<BEntry> entries = getAllValidEntries();
+            entries.add(entryNum, ent);
+            overwriteBNodeEntries(entries);
+            return;
         }
+
+        byte[] bytes = encodeCompressedEntry(key, prefixLength, ent);
+        int heapStart = getHeapStart(page) - bytes.length;
+        page.writeBytes(heapStart, bytes.length, bytes);
+        int slotOffset = getPrefixOffset() + prefixLength + SLOT_SIZE * entryNum;
+        if (entryNum < numValid) {
+            byte[] tail = page.readBytes(slotOffset, (numValid - entryNum) * SLOT_SIZE);
+            page.writeBytes(slotOffset + SLOT_SIZE, tail.length, tail);
+        }
+        page.writeShort(slotOffset, (short) heapStart);
+        page.writeShort(this.headerSize + 2, (short) heapStart);
+        page.writeShort(this.headerSize, (short) (numValid + 1));
     }
 
     /**
-     * Return the entry number of the first free entry of this node.
+     * Replaces entry entryNum of a compressed node by ent, which has the same
+     * key. The entries stored below it in the page are moved by the
+     * difference in size, so the entry data stays contiguous.
      *
-     * @return the first free entry number, otherwise -1 if none exists
+     * @param page the Page of this node
+     * @param entryNum a valid entry number
+     * @param ent the new entry, which must fit
      */
-    private int findFreeEntry() {
-        byte[] bitMap = this.getBitMap();
+    protected void replaceEntry(Page page, int entryNum, BEntry ent) {
+        int prefixLength = getPrefixLength(page);
+        byte[] bytes = encodeCompressedEntry(encodeKey(ent.getKey()), prefixLength, ent);
+        int offset = getSlot(page, entryNum);
+        int delta = bytes.length - getEntryLength(page, offset);
+        int heapStart = getHeapStart(page);
+        if (delta != 0) {
+            byte[] below = page.readBytes(heapStart, offset - heapStart);
+            page.writeBytes(heapStart - delta, below.length, below);
+            int numValid = getNumValidEntries(page);
+            for (int i = 0; i < numValid; i++) {
+                int slot = getSlot(page, i);
+                if (slot < offset) {
+                    page.writeShort(getPrefixOffset() + prefixLength + SLOT_SIZE * i, (short) (slot - delta));
+                }
+            }
+            page.writeShort(this.headerSize + 2, (short) (heapStart - delta));
+        }
+        page.writeBytes(offset - delta, bytes.length, bytes);
+        page.writeShort(getPrefixOffset() + prefixLength + SLOT_SIZE * entryNum, (short) (offset - delta));
+    }
+
+    /**
+     * @param page the Page of a compressed node
+     * @return the number of bytes of the page its entries do not use
+     */
+    protected int getFreeBytes(Page page) {
+        return Page.pageSize - getGrownSize(page, getNumValidEntries(page) - 1, getPrefixLength(page), 0);
+    }
+
+    private int getEntryLength(Page page, int offset) {
+        int length = LENGTH_SIZE + page.readShort(offset);
+        if (this.postings) {
+            return length + LENGTH_SIZE + page.readShort(offset + length);
+        }
+        return length + this.payloadSize;
+    }
+
+    private int getPayloadLength(BEntry ent) {
+        if (ent instanceof PostingEntry) {
+            return LENGTH_SIZE + ((PostingEntry) ent).getPosting().length;
+        }
+        return this.payloadSize;
+    }
 
-        for (int i = 0; i < this.numEntries; i++) {
-            int byteOffset = i/8;
-            int bitOffset = 7 - (i % 8);
-            byte mask = (byte) (1 << bitOffset);
-            byte value = (byte) (bitMap[byteOffset] & mask);
-            if (value == 0) {
+    private byte[] encodeCompressedEntry(byte[] key, int prefixLength, BEntry ent) {
+        ByteBuffer buf = ByteBuffer.allocate(LENGTH_SIZE + key.length - prefixLength + getPayloadLength(ent));
+        buf.putShort((short) (key.length - prefixLength));
+        buf.put(key, prefixLength, key.length - prefixLength);
+        if (ent instanceof PostingEntry) {
+            byte[] posting = ((PostingEntry) ent).getPosting();
+            buf.putShort((short) posting.length);
+            buf.put(posting);
+        } else if (isLeaf()) {
+            buf.put(ent.getRecordID().getBytes());
+        } else {
+            buf.putInt(ent.getPageNum());
+        }
+        return buf.array();
+    }
+
+    private int getPrefixOffset() {
+        return this.headerSize + COMPRESSED_HEADER_SIZE;
+    }
+
+    private int getPrefixLength(Page page) {
+        return page.readShort(this.headerSize + 4);
+    }
+
+    private int getHeapStart(Page page) {
+        int heapStart = page.readShort(this.headerSize + 2);
+        return heapStart == 0 ? Page.pageSize : heapStart;
+    }
+
+    /**
+     * @return the offset of entry entryNum of a compressed node
+     */
+    private int getSlot(Page page, int entryNum) {
+        return page.readShort(getPrefixOffset() + getPrefixLength(page) + SLOT_SIZE * entryNum);
+    }
+
+    /**
+     * @return the offset of the RecordID or child page number of entry entryNum
+     */
+    private int getPayloadOffset(Page page, int entryNum) {
+        if (!this.compressed) {
+            return getOffset(entryNum) + this.keySize;
+        }
+        int offset = getSlot(page, entryNum);
+        return offset + LENGTH_SIZE + page.readShort(offset);
+    }
+
+    /**
+     * @param page the Page of a compressed node
+     * @param numValid the number of entries of the node
+     * @param prefixLength the length of the prefix the node would have
+     * @param entryBytes the size of an entry to add, with its own slot
+     * @return the number of bytes the node would need
+     */
+    private int getGrownSize(Page page, int numValid, int prefixLength, int entryBytes) {
+        int entryData = Page.pageSize - getHeapStart(page);
+        return getPrefixOffset() + prefixLength + (numValid + 1) * SLOT_SIZE + entryData
+                + numValid * (getPrefixLength(page) - prefixLength) + entryBytes;
+    }
+
+    /**
+     * @param numValid a number of entries
+     * @param keyBytes the total length of their keys, without padding
+     * @param payloadBytes the total length of their RecordIDs, child page
+     * numbers or postings
+     * @param prefixLength the length of the prefix they share
+     * @return the number of bytes a compressed node needs for the entries
+     */
+    private int getCompressedSize(int numValid, int keyBytes, int payloadBytes, int prefixLength) {
+        return getPrefixOffset() + prefixLength + numValid * (SLOT_SIZE + LENGTH_SIZE)
+                + keyBytes - numValid * prefixLength + payloadBytes;
+    }
+
+    /**
+     * @return the bytes of a key, without padding if it is a string
+     */
+    private static byte[] encodeKey(DataBox key) {
+        if (key.type() != DataBox.Types.STRING) {
+            return key.getBytes();
+        }
+        String s = key.getString();
+        int end = s.length();
+        while (end > 0 && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return s.substring(0, end).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private DataBox decodeKey(byte[] key) {
+        switch (this.keySchema.type()) {
+            case STRING:
+                return new StringDataBox(new String(key, StandardCharsets.UTF_8), this.keySize);
+            case INT:
+                return new IntDataBox(key);
+            case FLOAT:
+                return new FloatDataBox(key);
+            case COMPOSITE:
+                return new CompositeDataBox((CompositeDataBox) this.keySchema, key);
+            default:
+                return new BoolDataBox(key);
+        }
+    }
+
+    private static int getSharedLength(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
                 return i;
             }
         }
-        return -1;
+        return length;
     }
 
     /**
-     * Return a list of valid, existing entries of this node.
+     * Returns the key to separate the entries of two nodes by when they are
+     * split. For a string key it is the shortest prefix of rightKey that is
+     * still greater than leftKey.
      *
-     * @return a list of entries that have the valid bit set
+     * @param leftKey the largest key of the left node
+     * @param rightKey the smallest key of the right node
+     * @return a key greater than leftKey and no greater than rightKey, or
+     * rightKey if the keys are equal
+     */
+    protected DataBox getSeparator(DataBox leftKey, DataBox rightKey) {
+        if (this.keySchema.type() != DataBox.Types.STRING) {
+            return rightKey;
+        }
+        String right = rightKey.getString();
+        for (int length = 1; length < right.length(); length++) {
+            if (Character.isHighSurrogate(right.charAt(length - 1))) {
+                continue;
+            }
+            DataBox separator = new StringDataBox(right.substring(0, length), this.keySize);
+            if (separator.compareTo(leftKey) > 0 && separator.compareTo(rightKey) <= 0) {
+                return separator;
+            }
+        }
+        return rightKey;
+    }
+
+    /**
+     * Picks where to split entries, which do not fit on this node, over two
+     * nodes. Fixed-width nodes split in the middle; compressed nodes split as
+     * close to the middle as both halves fit.
+     *
+     * @param entries the sorted entries to split
+     * @param pushUp whether the entry at the split index moves up to the
+     * parent rather than to the right node
+     * @return the number of entries that go to the left node
+     */
+    protected int getSplitIndex(List<BEntry> entries, boolean pushUp) {
+        int n = entries.size();
+        int middle = n / 2;
+        if (!this.compressed) {
+            return middle;
+        }
+
+        // leftFits[k]: entries [0, k) fit on a node, rightFits[k]: entries [k, n) do
+        boolean[] leftFits = new boolean[n + 1];
+        boolean[] rightFits = new boolean[n + 1];
+        NodeSize size = new NodeSize(1.0);
+        leftFits[0] = true;
+        for (int k = 1; k <= n; k++) {
+            leftFits[k] = size.add(entries.get(k - 1));
+        }
+        size = new NodeSize(1.0);
+        rightFits[n] = true;
+        for (int k = n - 1; k >= 0; k--) {
+            rightFits[k] = size.add(entries.get(k));
+        }
+
+        int best = -1;
+        for (int k = pushUp ? 0 : 1; k < n; k++) {
+            if (leftFits[k] && rightFits[pushUp ? k + 1 : k]
+                    && (best == -1 || Math.abs(k - middle) < Math.abs(best - middle))) {
+                best = k;
+            }
+        }
+        if (best == -1) {
+            throw new BPlusTreeException("entries do not fit on two nodes");
+        }
+        return best;
+    }
+
+    /**
+     * The room a node needs for a list of entries that grows one entry at a
+     * time, in sorted or reverse sorted order.
+     */
+    protected class NodeSize {
+        private double fillFactor;
+        private int count;
+        private int keyBytes;
+        private int payloadBytes;
+        private byte[] firstKey;
+        private int prefixLength;
+
+        /**
+         * @param fillFactor the fraction of the node the entries may fill
+         */
+        protected NodeSize(double fillFactor) {
+            this.fillFactor = fillFactor;
+        }
+
+        /**
+         * Adds ent to the entries.
+         *
+         * @param ent the entry to add
+         * @return whether all entries added so far fit on a node filled up to
+         * fillFactor; a single entry always does
+         */
+        protected boolean add(BEntry ent) {
+            this.count++;
+            if (!BPlusNode.this.compressed) {
+                return this.count <= Math.max(1, (int) (numEntries * this.fillFactor));
+            }
+            byte[] key = encodeKey(ent.getKey());
+            if (this.firstKey == null) {
+                this.firstKey = key;
+                this.prefixLength = key.length;
+            } else {
+                this.prefixLength = Math.min(this.prefixLength, getSharedLength(this.firstKey, key));
+            }
+            this.keyBytes += key.length;
+            this.payloadBytes += getPayloadLength(ent);
+            int available = Page.pageSize - getPrefixOffset();
+            int used = getCompressedSize(this.count, this.keyBytes, this.payloadBytes, this.prefixLength)
+                    - getPrefixOffset();
+            return this.count == 1 || used <= this.fillFactor * available;
+        }
+    }
+
+    /**
+     * @param entryNum position of bit on bitmap
+     * @return starting byte of entry indicated by entryNum
      */
-    protected List<BEntry> getAllValidEntries() {
-        byte[] bitMap = this.getBitMap();
-        List<BEntry> entries = new ArrayList<BEntry>();
-        for (int i = 0; i < this.numEntries; i++) {
-            int byteOffset = i/8;
-            int bitOffset = 7 - (i % 8);
-            byte mask = (byte) (1 << bitOffset);
 
-            byte value = (byte) (bitMap[byteOffset] & mask);
+    private int getOffset(int entryNum) {
+        return entryNum*entrySize + this.headerSize + this.bitMapSize;
+    }
 
-            if (value != 0) {
-                entries.add(readEntry(i));
+    /**
+     * Read a BEntry from the entryNum specified.
+     *
+     * @param page the Page of this node
+     * @param entryNum the entry number to read from
+     * @return the BEntry corresponding to the entryNum
+     */
+    protected BEntry readEntry(Page page, int entryNum) {
+        if (this.compressed) {
+            DataBox key = readKey(page, entryNum);
+            if (this.postings) {
+                return new PostingEntry(key, readPosting(page, entryNum));
+            } else if (isLeaf()) {
+                return new LeafEntry(key, readRecordID(page, entryNum));
+            } else {
+                return new InnerEntry(key, readChildPageNum(page, entryNum));
             }
         }
+        if (isLeaf()) {
+            return new LeafEntry(this.keySchema, page, getOffset(entryNum));
+        } else {
+            return new InnerEntry(this.keySchema, page, getOffset(entryNum));
+        }
+    }
+
+    /**
+     * Return a list of valid, existing entries of this node.
+     *
+     * @return a list of entries that have the valid bit set
+     */
+    protected List<BEntry> getAllValidEntries() {
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        List<BEntry> entries = new ArrayList<BEntry>(numValid);
+        for (int i = 0; i < numValid; i++) {
+            entries.add(readEntry(page, i));
+        }
         return entries;
     }
 
     /**
      * Clear all the entries of this node, and write all the given entries into
-     * the node, starting from the first entry number.
+     * the node, starting from the first entry number. The entries must be
+     * sorted.
      *
      * @param entries the list of entries to write
      */
     protected void overwriteBNodeEntries(List<BEntry> entries) {
-        byte[] zeros = new byte[bitMapSize];
-        setBitMap(zeros);
+        if (this.compressed) {
+            overwriteCompressedEntries(entries);
+            return;
+        }
         if (entries.size() > numEntries) {
             throw new BPlusTreeException("too many BEntry given to fit on page");
         }
 
+        Page page = getPage();
         for (int i = 0; i < entries.size(); i++) {
-            writeEntry(i, entries.get(i));
+            page.writeBytes(getOffset(i), entrySize, entries.get(i).toBytes());
+        }
+        byte[] bitMap = new byte[bitMapSize];
+        Arrays.fill(bitMap, 0, entries.size() / 8, (byte) 0xFF);
+        if (entries.size() % 8 != 0) {
+            bitMap[entries.size() / 8] = (byte) (0xFF << (8 - entries.size() % 8));
+        }
+        setBitMap(bitMap);
+    }
+
+    private void overwriteCompressedEntries(List<BEntry> entries) {
+        List<byte[]> keys = new ArrayList<byte[]>(entries.size());
+        int prefixLength = 0;
+        int keyBytes = 0;
+        int payloadBytes = 0;
+        for (BEntry ent : entries) {
+            byte[] key = encodeKey(ent.getKey());
+            prefixLength = keys.isEmpty() ? key.length
+                    : Math.min(prefixLength, getSharedLength(keys.get(0), key));
+            keyBytes += key.length;
+            payloadBytes += getPayloadLength(ent);
+            keys.add(key);
+        }
+        if (getCompressedSize(entries.size(), keyBytes, payloadBytes, prefixLength) > Page.pageSize) {
+            throw new BPlusTreeException("too many BEntry given to fit on page");
+        }
+
+        // the page from the end of the page header on, written at once
+        ByteBuffer buf = ByteBuffer.allocate(Page.pageSize - this.headerSize);
+        int heapStart = Page.pageSize;
+        for (int i = 0; i < entries.size(); i++) {
+            byte[] bytes = encodeCompressedEntry(keys.get(i), prefixLength, entries.get(i));
+            heapStart -= bytes.length;
+            buf.position(heapStart - this.headerSize);
+            buf.put(bytes);
+            buf.putShort(COMPRESSED_HEADER_SIZE + prefixLength + SLOT_SIZE * i, (short) heapStart);
+        }
+        buf.putShort(0, (short) entries.size());
+        buf.putShort(2, (short) (entries.isEmpty() ? 0 : heapStart));
+        buf.putShort(4, (short) prefixLength);
+        if (!keys.isEmpty()) {
+            buf.position(COMPRESSED_HEADER_SIZE);
+            buf.put(keys.get(0), 0, prefixLength);
         }
+        getPage().writeBytes(this.headerSize, buf.capacity(), buf.array());
     }
 
     /**
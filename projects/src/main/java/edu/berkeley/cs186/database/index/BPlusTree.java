@@ -1,11 +1,18 @@
 package edu.berkeley.cs186.database.index;
 
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.WriteAheadLog;
 import edu.berkeley.cs186.database.table.RecordID;
 import edu.berkeley.cs186.database.databox.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.nio.file.Paths;
 
 /**
@@ -16,22 +23,41 @@ import java.nio.file.Paths;
  * BPlusNode, specifically either an InnerNode or LeafNode. Note that a
  * BPlusTree can have duplicate keys that appear across multiple pages.
  *
+ * A BPlusTree is safe for concurrent readers and writers. Every node has a
+ * read-write latch, and the root page number has one of its own. Operations
+ * crab down the tree: a reader latches a child before releasing its parent,
+ * and a writer keeps the latches of the ancestors a split could reach, i.e.
+ * up to the closest node on its path that has space, and releases the rest.
+ * An iterator crabs down to the first leaf it has to visit and from there
+ * follows the links between the leaves, latching each leaf only while reading
+ * it; it sees every entry that was in the tree before it was created.
+ *
+ * A BPlusTree created with posting lists stores each key once per leaf,
+ * followed by the delta-encoded list of its RecordIDs (see PostingList),
+ * which suits indexes of columns with few distinct values.
+ *
  * Properties:
  * allocator: PageAllocator for this index
  * keySchema: DataBox for this index's search key
  * rootPageNum: page number of the root node
  * firstLeafPageNum: page number of the first leaf node
  * numNodes: number of BPlusNodes
+ * postingLists: whether leaves store a posting list per distinct key
  */
 public class BPlusTree {
     public static final String FILENAME_PREFIX = "db";
     public static final String FILENAME_EXTENSION = ".index";
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
 
     protected PageAllocator allocator;
     protected DataBox keySchema;
+    private String fileName;
     private int rootPageNum;
     private int firstLeafPageNum;
-    private int numNodes;
+    private AtomicInteger numNodes;
+    private boolean postingLists;
+    private ReentrantReadWriteLock rootLatch;
+    private ConcurrentHashMap<Integer, ReentrantReadWriteLock> latches;
 
     /**
      * This constructor is used for creating an empty BPlusTree.
@@ -44,12 +70,57 @@ public class BPlusTree {
     }
 
     public BPlusTree(DataBox keySchema, String fName, String filePrefix) {
-        String pathname = Paths.get(filePrefix, fName + FILENAME_EXTENSION).toString();
-        this.allocator = new PageAllocator(pathname, true);
+        this(keySchema, fName, filePrefix, false);
+    }
+
+    /**
+     * This constructor is used for creating an empty BPlusTree that may store
+     * posting lists.
+     *
+     * @param keySchema the schema of the index key
+     * @param fName the filename of select the index will be built
+     * @param filePrefix the directory the index file is created in
+     * @param postingLists whether to store the RecordIDs of each key as a posting list
+     */
+    public BPlusTree(DataBox keySchema, String fName, String filePrefix, boolean postingLists) {
+        this(keySchema, fName, filePrefix, PageAllocator.getDefaultBufferPool(), postingLists);
+    }
+
+    /**
+     * This constructor is used for creating an empty BPlusTree whose pages
+     * are cached in bufferPool.
+     *
+     * @param keySchema the schema of the index key
+     * @param fName the filename of select the index will be built
+     * @param filePrefix the directory the index file is created in
+     * @param bufferPool the BufferPool to cache this index's pages in
+     */
+    public BPlusTree(DataBox keySchema, String fName, String filePrefix, BufferPool bufferPool) {
+        this(keySchema, fName, filePrefix, bufferPool, false);
+    }
+
+    /**
+     * This constructor is used for creating an empty BPlusTree whose pages
+     * are cached in bufferPool and that may store posting lists.
+     *
+     * @param keySchema the schema of the index key
+     * @param fName the filename of select the index will be built
+     * @param filePrefix the directory the index file is created in
+     * @param bufferPool the BufferPool to cache this index's pages in
+     * @param postingLists whether to store the RecordIDs of each key as a posting list
+     */
+    public BPlusTree(DataBox keySchema, String fName, String filePrefix, BufferPool bufferPool,
+                     boolean postingLists) {
+        this.fileName = fName + FILENAME_EXTENSION;
+        String pathname = Paths.get(filePrefix, this.fileName).toString();
+        this.allocator = new PageAllocator(pathname, true, true, bufferPool);
         this.keySchema = keySchema;
+        this.postingLists = postingLists;
         int headerPageNum = this.allocator.allocPage();
         assert(headerPageNum == 0);
-        this.numNodes = 0;
+        this.numNodes = new AtomicInteger(0);
+        this.rootLatch = new ReentrantReadWriteLock();
+        this.latches = new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
         BPlusNode root = new LeafNode(this);
         this.rootPageNum = root.getPageNum();
         this.firstLeafPageNum = rootPageNum;
@@ -66,21 +137,60 @@ public class BPlusTree {
     }
 
     public BPlusTree(String fName, String filePrefix) {
-        String pathname = Paths.get(filePrefix, fName + FILENAME_EXTENSION).toString();
-        this.allocator = new PageAllocator(pathname, false);
+        this(fName, filePrefix, PageAllocator.getDefaultBufferPool());
+    }
+
+    /**
+     * This constructor is used for loading a BPlusTree from a file whose
+     * pages are cached in bufferPool.
+     *
+     * @param fName the filename of a preexisting BPlusTree
+     * @param filePrefix the directory the index file lives in
+     * @param bufferPool the BufferPool to cache this index's pages in
+     */
+    public BPlusTree(String fName, String filePrefix, BufferPool bufferPool) {
+        this.fileName = fName + FILENAME_EXTENSION;
+        String pathname = Paths.get(filePrefix, this.fileName).toString();
+        this.allocator = new PageAllocator(pathname, false, true, bufferPool);
+        this.numNodes = new AtomicInteger(0);
+        this.rootLatch = new ReentrantReadWriteLock();
+        this.latches = new ConcurrentHashMap<Integer, ReentrantReadWriteLock>();
         this.readHeader();
     }
 
+    /**
+     * @return whether the leaves of this tree store posting lists
+     */
+    public boolean usesPostingLists() {
+        return this.postingLists;
+    }
+
     public void incrementNumNodes() {
-        this.numNodes++;
+        this.numNodes.incrementAndGet();
     }
 
     public void decrementNumNodes() {
-        this.numNodes--;
+        this.numNodes.decrementAndGet();
     }
 
     public int getNumNodes() {
-        return this.numNodes;
+        return this.numNodes.get();
+    }
+
+    /**
+     * @param pageNum the page number of a node
+     * @return the latch of the node
+     */
+    ReentrantReadWriteLock getLatch(int pageNum) {
+        ReentrantReadWriteLock latch = this.latches.get(pageNum);
+        if (latch == null) {
+            ReentrantReadWriteLock newLatch = new ReentrantReadWriteLock();
+            latch = this.latches.putIfAbsent(pageNum, newLatch);
+            if (latch == null) {
+                latch = newLatch;
+            }
+        }
+        return latch;
     }
 
     /**
@@ -91,8 +201,7 @@ public class BPlusTree {
      * @return Iterator of all RecordIDs in sorted order
      */
     public Iterator<RecordID> sortedScan() {
-        BPlusNode rootNode = BPlusNode.getBPlusNode(this, rootPageNum);
-        return new BPlusIterator(rootNode);
+        return new RecordIDIterator(new BPlusIterator());
     }
 
     /**
@@ -105,8 +214,7 @@ public class BPlusTree {
      * in sorted order
      */
     public Iterator<RecordID> sortedScanFrom(DataBox keyStart) {
-        BPlusNode root = BPlusNode.getBPlusNode(this, rootPageNum);
-        return new BPlusIterator(root, keyStart, true);
+        return new RecordIDIterator(new BPlusIterator(keyStart, true));
     }
 
     /**
@@ -117,8 +225,64 @@ public class BPlusTree {
      * @return Iterator of RecordIDs that match the given key
      */
     public Iterator<RecordID> lookupKey(DataBox key) {
-        BPlusNode root = BPlusNode.getBPlusNode(this, rootPageNum);
-        return new BPlusIterator(root, key, false);
+        return new RecordIDIterator(new BPlusIterator(key, false));
+    }
+
+    /**
+     * Perform a sorted scan in descending order.
+     * The iterator should return all RecordIDs, starting from the end to the
+     * beginning of the index.
+     *
+     * @return Iterator of all RecordIDs in descending order
+     */
+    public Iterator<RecordID> reverseSortedScan() {
+        return new RecordIDIterator(new BPlusIterator(TypeOfScan.REVERSE_SCAN, null));
+    }
+
+    /**
+     * Perform a descending range search ending at a specified key.
+     * The iterator should return all RecordIDs, starting from the specified
+     * key to the beginning of the index.
+     *
+     * @param keyEnd the key to start iterating from
+     * @return Iterator of RecordIDs that are equal to or less than keyEnd in
+     * descending order
+     */
+    public Iterator<RecordID> reverseSortedScanTo(DataBox keyEnd) {
+        return new RecordIDIterator(new BPlusIterator(TypeOfScan.REVERSE_SCAN_TO, keyEnd));
+    }
+
+    /**
+     * Perform a sorted scan that returns the keys along with the RecordIDs,
+     * for scans that are answered from the index alone.
+     *
+     * @return Iterator of all LeafEntries in sorted order
+     */
+    public Iterator<LeafEntry> sortedEntryScan() {
+        return new BPlusIterator();
+    }
+
+    /**
+     * Perform a range search beginning from a specified key that returns the
+     * keys along with the RecordIDs.
+     *
+     * @param keyStart the key to start iterating from
+     * @return Iterator of LeafEntries whose keys are equal to or greater than
+     * keyStart in sorted order
+     */
+    public Iterator<LeafEntry> sortedEntryScanFrom(DataBox keyStart) {
+        return new BPlusIterator(keyStart, true);
+    }
+
+    /**
+     * Perform an equality search on the specified key that returns the keys
+     * along with the RecordIDs.
+     *
+     * @param key the key to match
+     * @return Iterator of LeafEntries that match the given key
+     */
+    public Iterator<LeafEntry> lookupEntries(DataBox key) {
+        return new BPlusIterator(key, false);
     }
 
     /**
@@ -129,30 +293,264 @@ public class BPlusTree {
      */
     public void insertKey(DataBox key, RecordID rid) {
         LeafEntry leafEntryToInsert = new LeafEntry(key, rid);
-        BPlusNode rootNode = BPlusNode.getBPlusNode(this, rootPageNum);
-        InnerEntry pushedEntry = rootNode.insertBEntry(leafEntryToInsert);
-
-        if (pushedEntry != null) {
-            InnerNode newRoot = new InnerNode(this);
-            newRoot.setFirstChild(rootPageNum);
-            List<BEntry> newRootEntries = new ArrayList<BEntry>();
-            newRootEntries.add(pushedEntry);
-            newRoot.overwriteBNodeEntries(newRootEntries);
-            updateRoot(newRoot.getPageNum());
+
+        // the latches held, outermost first, and the nodes a split could reach
+        List<Lock> held = new ArrayList<Lock>();
+        List<BPlusNode> path = new ArrayList<BPlusNode>();
+        Lock rootLock = this.rootLatch.writeLock();
+        rootLock.lock();
+        held.add(rootLock);
+        try {
+            int pageNum = rootPageNum;
+            while (true) {
+                Lock latch = getLatch(pageNum).writeLock();
+                latch.lock();
+                held.add(latch);
+                BPlusNode node = BPlusNode.getBPlusNode(this, pageNum);
+                boolean safe = node.isLeaf() ? node.hasSpaceFor(leafEntryToInsert) : node.hasSpace();
+                if (safe) {
+                    // a split below stops here, so the ancestors are safe to release
+                    while (held.size() > 1) {
+                        held.remove(0).unlock();
+                    }
+                    path.clear();
+                }
+                path.add(node);
+                if (node.isLeaf()) {
+                    break;
+                }
+                pageNum = ((InnerNode) node).findChildFromKey(key);
+            }
+
+            InnerEntry pushedEntry = path.get(path.size() - 1).insertBEntry(leafEntryToInsert);
+            for (int i = path.size() - 2; i >= 0 && pushedEntry != null; i--) {
+                pushedEntry = ((InnerNode) path.get(i)).insertInnerEntry(pushedEntry);
+            }
+
+            if (pushedEntry != null) {
+                // the root split, so its latch and rootLock are still held
+                InnerNode newRoot = new InnerNode(this);
+                newRoot.setFirstChild(rootPageNum);
+                List<BEntry> newRootEntries = new ArrayList<BEntry>();
+                newRootEntries.add(pushedEntry);
+                newRoot.overwriteBNodeEntries(newRootEntries);
+                updateRoot(newRoot.getPageNum());
+            }
+        } finally {
+            for (int i = held.size() - 1; i >= 0; i--) {
+                held.get(i).unlock();
+            }
+        }
+    }
+
+    /**
+     * Builds this tree bottom-up from entries, which must be sorted (see EntrySorter). Leaves are
+     * filled left to right up to fillFactor of their capacity, then each level of inner nodes is
+     * built over the level below it, so no entry has to descend the tree. The tree must be empty.
+     *
+     * @param entries the entries to load, in sorted order
+     * @param fillFactor the fraction of each node to fill, in (0, 1]
+     */
+    public void bulkLoad(Iterator<LeafEntry> entries, double fillFactor) {
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new BPlusTreeException("Fill factor " + fillFactor + " is not in (0, 1].");
+        }
+        this.rootLatch.writeLock().lock();
+        try {
+            bulkLoadLocked(entries, fillFactor);
+        } finally {
+            this.rootLatch.writeLock().unlock();
+        }
+    }
+
+    private void bulkLoadLocked(Iterator<LeafEntry> entries, double fillFactor) {
+        BPlusNode root = BPlusNode.getBPlusNode(this, rootPageNum);
+        if (!root.isLeaf() || !root.getAllValidEntries().isEmpty()) {
+            throw new BPlusTreeException("Only an empty BPlusTree can be bulk loaded.");
+        }
+
+        // the empty root becomes the first leaf; every further leaf gets an entry in level
+        LeafNode leaf = (LeafNode) root;
+        BPlusNode.NodeSize leafSize = leaf.new NodeSize(fillFactor);
+        List<BEntry> leafEntries = new ArrayList<BEntry>();
+        List<BEntry> level = new ArrayList<BEntry>();
+        Iterator<? extends BEntry> leafIterator = this.postingLists ? new PostingIterator(entries) : entries;
+        BEntry previous = null;
+        while (leafIterator.hasNext()) {
+            BEntry entry = leafIterator.next();
+            if (previous != null && previous.compareTo(entry) > 0) {
+                throw new BPlusTreeException("Bulk loaded entries are not sorted.");
+            }
+            if (!leafSize.add(entry)) {
+                leaf.overwriteBNodeEntries(leafEntries);
+                LeafNode nextLeaf = new LeafNode(this);
+                nextLeaf.setPrevLeaf(leaf.getPageNum());
+                leaf.setNextLeaf(nextLeaf.getPageNum());
+                DataBox separator = leaf.getSeparator(previous.getKey(), entry.getKey());
+                leaf = nextLeaf;
+                level.add(new InnerEntry(separator, leaf.getPageNum()));
+                leafEntries.clear();
+                leafSize = leaf.new NodeSize(fillFactor);
+                leafSize.add(entry);
+            }
+            previous = entry;
+            leafEntries.add(entry);
+        }
+        leaf.overwriteBNodeEntries(leafEntries);
+
+        int firstChild = rootPageNum;
+        while (!level.isEmpty()) {
+            List<BEntry> parentLevel = new ArrayList<BEntry>();
+            firstChild = buildInnerLevel(firstChild, level, fillFactor, parentLevel);
+            level = parentLevel;
+        }
+        updateRoot(firstChild);
+    }
+
+    /**
+     * Groups sorted LeafEntries into a PostingEntry per key.
+     */
+    private class PostingIterator implements Iterator<PostingEntry> {
+        private Iterator<LeafEntry> entries;
+        private LeafEntry next;
+
+        PostingIterator(Iterator<LeafEntry> entries) {
+            this.entries = entries;
+            this.next = entries.hasNext() ? entries.next() : null;
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public PostingEntry next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            DataBox key = this.next.getKey();
+            PostingList.Builder builder = new PostingList.Builder(BPlusTree.this);
+            LeafEntry previous = null;
+            while (this.next != null && this.next.getKey().compareTo(key) == 0) {
+                if (previous != null && previous.compareTo(this.next) > 0) {
+                    throw new BPlusTreeException("Bulk loaded entries are not sorted.");
+                }
+                builder.add(this.next.getRecordID());
+                previous = this.next;
+                this.next = this.entries.hasNext() ? this.entries.next() : null;
+            }
+            return new PostingEntry(key, builder.finish());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Builds a level of InnerNodes over the children firstChild, level.get(0).getPageNum(),
+     * level.get(1).getPageNum(), and so on, spreading the children evenly over as few nodes as
+     * fillFactor allows. Compressed nodes, whose capacity depends on their keys, are filled one
+     * after the other instead.
+     *
+     * @param firstChild the page number of the first child
+     * @param level an InnerEntry for every other child, in order
+     * @param fillFactor the fraction of each node to fill
+     * @param parentLevel receives an InnerEntry for every built node but the first
+     * @return the page number of the first built node
+     */
+    private int buildInnerLevel(int firstChild, List<BEntry> level, double fillFactor,
+                                List<BEntry> parentLevel) {
+        InnerNode first = new InnerNode(this);
+        int numChildren = level.size() + 1;
+        List<Integer> counts = new ArrayList<Integer>();
+        if (first.isCompressed()) {
+            for (int start = 0; start < numChildren; ) {
+                BPlusNode.NodeSize size = first.new NodeSize(fillFactor);
+                int count = 1;
+                while (start + count < numChildren && size.add(level.get(start + count - 1))) {
+                    count++;
+                }
+                counts.add(count);
+                start += count;
+            }
         } else {
-            // do nothing
+            int capacity = Math.max(2, (int) (first.numEntries * fillFactor));
+            int numNodes = (numChildren + capacity) / (capacity + 1);
+            for (int i = 0; i < numNodes; i++) {
+                counts.add(numChildren / numNodes + (i < numChildren % numNodes ? 1 : 0));
+            }
         }
+
+        int start = 0;
+        for (int i = 0; i < counts.size(); i++) {
+            int count = counts.get(i);
+            InnerNode node = i == 0 ? first : new InnerNode(this);
+            node.setFirstChild(start == 0 ? firstChild : level.get(start - 1).getPageNum());
+            node.overwriteBNodeEntries(level.subList(start, start + count - 1));
+            if (i > 0) {
+                parentLevel.add(new InnerEntry(level.get(start - 1).getKey(), node.getPageNum()));
+            }
+            start += count;
+        }
+        return first.getPageNum();
     }
 
     /**
-     * Delete an entry with the matching key and RecordID.
+     * Delete an entry with the matching key and RecordID. Deletes are lazy:
+     * the entry is removed from its leaf, but nodes are never merged. The
+     * inner nodes are read latched on the way down like a lookup, and only
+     * the leaves searched for the entry are write latched.
      *
      * @param key the key to be deleted
      * @param rid the RecordID of the key to be deleted
+     * @return whether the entry was in the tree
      */
     public boolean deleteKey(DataBox key, RecordID rid) {
-        /* You will not have to implement this in this project. */
-        throw new BPlusTreeException("BPlusTree#DeleteKey Not Implemented!");
+        int pageNum;
+        Lock held = this.rootLatch.readLock();
+        held.lock();
+        try {
+            pageNum = rootPageNum;
+            while (true) {
+                Lock latch = getLatch(pageNum).readLock();
+                latch.lock();
+                held.unlock();
+                held = latch;
+
+                BPlusNode node = BPlusNode.getBPlusNode(this, pageNum);
+                if (node.isLeaf()) {
+                    break;
+                }
+                InnerNode inner = (InnerNode) node;
+                Page page = inner.getPage();
+                pageNum = inner.getChild(page, inner.findKey(page, inner.getNumValidEntries(page), key, false));
+            }
+        } finally {
+            held.unlock();
+        }
+
+        // a split only moves entries to a new leaf on the right, so the entry
+        // is in this leaf or in one of the leaves after it
+        Lock latch = getLatch(pageNum).writeLock();
+        latch.lock();
+        try {
+            while (true) {
+                LeafNode leaf = new LeafNode(this, pageNum);
+                if (leaf.deleteEntry(key, rid)) {
+                    return true;
+                }
+                if (leaf.hasKeyAfter(key) || leaf.getNextLeaf() == -1) {
+                    return false;
+                }
+                pageNum = leaf.getNextLeaf();
+                Lock next = getLatch(pageNum).writeLock();
+                next.lock();
+                latch.unlock();
+                latch = next;
+            }
+        } finally {
+            latch.unlock();
+        }
     }
 
     /**
@@ -165,6 +563,51 @@ public class BPlusTree {
         return lookupKey(key).hasNext();
     }
 
+    public void close() {
+        this.allocator.close();
+    }
+
+    /**
+     * Batches the metadata flushes of this index's page allocator. See
+     * PageAllocator#enableGroupCommit.
+     *
+     * @param flushIntervalMillis the time between background syncs, or 0 to only sync on demand
+     */
+    public void enableGroupCommit(long flushIntervalMillis) {
+        this.allocator.enableGroupCommit(flushIntervalMillis);
+    }
+
+    /**
+     * Logs the writes to this index's pages in log. See PageAllocator#enableLogging.
+     *
+     * @param log the log of the database the index belongs to
+     * @param created whether the index was created since the log was last truncated
+     */
+    public void enableWriteAheadLog(WriteAheadLog log, boolean created) {
+        this.allocator.enableLogging(log, this.fileName, created);
+    }
+
+    /**
+     * Forces any batched page allocation metadata of this index to disk.
+     */
+    public void sync() {
+        this.allocator.sync();
+    }
+
+    /**
+     * Forces every page of this index to disk. See PageAllocator#force.
+     */
+    public void force() {
+        this.allocator.force();
+    }
+
+    /**
+     * @return the I/O statistics of this index's page allocator
+     */
+    public IOStats getIOStats() {
+        return this.allocator.getIOStats();
+    }
+
     /**
      * Return the number of pages.
      *
@@ -194,14 +637,37 @@ public class BPlusTree {
         headerPage.writeInt(bytesWritten, this.firstLeafPageNum);
         bytesWritten += 4;
 
+        bytesWritten = writeKeySchema(headerPage, bytesWritten, this.keySchema);
+
+        headerPage.writeByte(bytesWritten, (byte) (this.postingLists ? 1 : 0));
+        bytesWritten += 1;
+        headerPage.flush();
+    }
+
+    /**
+     * Writes the type of keySchema, the length of a string, and the number
+     * and types of the values of a composite.
+     *
+     * @return the offset after the written bytes
+     */
+    private static int writeKeySchema(Page headerPage, int bytesWritten, DataBox keySchema) {
         headerPage.writeInt(bytesWritten, keySchema.type().ordinal());
         bytesWritten += 4;
 
-        if (this.keySchema.type().equals(DataBox.Types.STRING)) {
-            headerPage.writeInt(bytesWritten, this.keySchema.getSize());
+        if (keySchema.type().equals(DataBox.Types.STRING)) {
+            headerPage.writeInt(bytesWritten, keySchema.getSize());
             bytesWritten += 4;
+        } else if (keySchema.type().equals(DataBox.Types.COMPOSITE)) {
+            CompositeDataBox composite = (CompositeDataBox) keySchema;
+            headerPage.writeInt(bytesWritten, composite.getValues().size());
+            bytesWritten += 4;
+            headerPage.writeInt(bytesWritten, composite.getNumKeyValues());
+            bytesWritten += 4;
+            for (DataBox value : composite.getValues()) {
+                bytesWritten = writeKeySchema(headerPage, bytesWritten, value);
+            }
         }
-        headerPage.flush();
+        return bytesWritten;
     }
 
     private void readHeader() {
@@ -215,67 +681,99 @@ public class BPlusTree {
         this.firstLeafPageNum = headerPage.readInt(bytesRead);
         bytesRead += 4;
 
+        List<DataBox> keySchemas = new ArrayList<DataBox>();
+        bytesRead = readKeySchema(headerPage, bytesRead, keySchemas);
+        this.keySchema = keySchemas.get(0);
+
+        this.postingLists = headerPage.readByte(bytesRead) == (byte) 1;
+    }
+
+    /**
+     * Reads a key schema written by writeKeySchema into keySchemas.
+     *
+     * @return the offset after the read bytes
+     */
+    private static int readKeySchema(Page headerPage, int bytesRead, List<DataBox> keySchemas) {
         int keyOrd = headerPage.readInt(bytesRead);
         bytesRead += 4;
         DataBox.Types type = DataBox.Types.values()[keyOrd];
 
         switch(type) {
             case INT:
-                this.keySchema = new IntDataBox();
+                keySchemas.add(new IntDataBox());
                 break;
             case STRING:
                 int len = headerPage.readInt(bytesRead);
-                this.keySchema = new StringDataBox(len);
+                bytesRead += 4;
+                keySchemas.add(new StringDataBox(len));
                 break;
             case BOOL:
-                this.keySchema = new BoolDataBox();
+                keySchemas.add(new BoolDataBox());
                 break;
             case FLOAT:
-                this.keySchema = new FloatDataBox();
+                keySchemas.add(new FloatDataBox());
+                break;
+            case COMPOSITE:
+                int numValues = headerPage.readInt(bytesRead);
+                bytesRead += 4;
+                int numKeyValues = headerPage.readInt(bytesRead);
+                bytesRead += 4;
+                List<DataBox> values = new ArrayList<DataBox>();
+                for (int i = 0; i < numValues; i++) {
+                    bytesRead = readKeySchema(headerPage, bytesRead, values);
+                }
+                keySchemas.add(new CompositeDataBox(values, numKeyValues));
                 break;
         }
+        return bytesRead;
     }
 
-    private enum TypeOfScan {SORTED_SCAN, SORTED_SCAN_FROM, LOOKUP_KEY};
+    private enum TypeOfScan {SORTED_SCAN, SORTED_SCAN_FROM, LOOKUP_KEY, REVERSE_SCAN, REVERSE_SCAN_TO};
+
+    /**
+     * Returns the RecordIDs of the LeafEntries of a BPlusIterator.
+     */
+    private static class RecordIDIterator implements Iterator<RecordID> {
+        private Iterator<LeafEntry> entries;
+
+        RecordIDIterator(Iterator<LeafEntry> entries) {
+            this.entries = entries;
+        }
+
+        public boolean hasNext() {
+            return this.entries.hasNext();
+        }
+
+        public RecordID next() {
+            return this.entries.next().getRecordID();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 
     /**
-     * A BPlusIterator provides several ways of iterating over RecordIDs stored
-     * in a BPlusTree.
+     * A BPlusIterator provides several ways of iterating over the entries
+     * stored in a BPlusTree. It descends to the first leaf it has to visit
+     * once, and then walks the leaves through their sibling links.
      */
-    private class BPlusIterator implements Iterator<RecordID> {
+    private class BPlusIterator implements Iterator<LeafEntry> {
 
         private TypeOfScan typeOfScan;
-        private BPlusNode rootNode;
         private DataBox searchKey;
-        private Stack<BPlusNode> nodeStack = new Stack<BPlusNode>();
-        private BPlusNode currentNode;
-        private Iterator<RecordID> currLeafIterator;
+        private Iterator<LeafEntry> currLeafIterator;
+        private int currPageNum;
+        private int nextPageNum;
 
         /**
          * Construct an iterator that performs a sorted scan on this BPlusTree
          * tree.
          * The iterator should return all RecordIDs, starting from the
          * beginning to the end of the index.
-         *
-         * @param root the root node of this BPlusTree
          */
-        public BPlusIterator(BPlusNode root) {
-            typeOfScan = TypeOfScan.SORTED_SCAN;
-            rootNode = root;
-            currentNode = root;
-            while (!currentNode.isLeaf()) {
-                List<BEntry> validEntries = currentNode.getAllValidEntries();
-                Collections.reverse(validEntries);
-                for (BEntry entry : validEntries) {
-                    int childPageNum = entry.getPageNum();
-                    BPlusNode childNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), childPageNum);
-                    nodeStack.add(childNode);
-                }
-                int firstChildPageNum = ((InnerNode) currentNode).getFirstChild();
-                BPlusNode firstChildNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), firstChildPageNum);
-                currentNode = firstChildNode;
-            }
-            currLeafIterator = ((LeafNode) currentNode).scan();
+        public BPlusIterator() {
+            this(TypeOfScan.SORTED_SCAN, null);
         }
 
         /**
@@ -286,116 +784,155 @@ public class BPlusTree {
          * If @param scan is false, the iterator should return all RecordIDs
          * that match the specified key.
          *
-         * @param root the root node of this BPlusTree
          * @param key the specified key value
          * @param scan if true, do a range search; else, equality search
          */
-        public BPlusIterator(BPlusNode root, DataBox key, boolean scan) {
-            searchKey = key;
-            rootNode = root;
-            currentNode = root;
-            if (scan) {
-                typeOfScan = TypeOfScan.SORTED_SCAN_FROM;
-            } else {
-                typeOfScan = TypeOfScan.LOOKUP_KEY;
-            }
-            while (!currentNode.isLeaf()) {
-                List<BEntry> validEntries = currentNode.getAllValidEntries();
-                Collections.reverse(validEntries);
-                boolean addFirstChild = true;
-                for (BEntry entry : validEntries) {
-                    if (typeOfScan == TypeOfScan.LOOKUP_KEY && entry.getKey().compareTo(searchKey) > 0) {
-                        continue;
+        public BPlusIterator(DataBox key, boolean scan) {
+            this(scan ? TypeOfScan.SORTED_SCAN_FROM : TypeOfScan.LOOKUP_KEY, key);
+        }
+
+        /**
+         * @param typeOfScan the kind of scan to perform
+         * @param key the key the scan starts from, or null for a full scan
+         */
+        public BPlusIterator(TypeOfScan typeOfScan, DataBox key) {
+            this.typeOfScan = typeOfScan;
+            this.searchKey = key;
+            descendFromRoot();
+        }
+
+        private boolean isReverse() {
+            return typeOfScan == TypeOfScan.REVERSE_SCAN
+                    || typeOfScan == TypeOfScan.REVERSE_SCAN_TO;
+        }
+
+        /**
+         * Walks down to the leaf this scan starts at and reads it. Each node
+         * is read latched, and the latch of its parent is released only once
+         * it is held. Inner nodes are binary searched for searchKey: forward
+         * scans start at the child of the last entry with a smaller key (any
+         * equal keys may continue from there), and backward scans at the child
+         * of the last entry whose key is not larger.
+         */
+        private void descendFromRoot() {
+            Lock held = BPlusTree.this.rootLatch.readLock();
+            held.lock();
+            try {
+                int pageNum = rootPageNum;
+                while (true) {
+                    Lock latch = getLatch(pageNum).readLock();
+                    latch.lock();
+                    held.unlock();
+                    held = latch;
+
+                    BPlusNode node = BPlusNode.getBPlusNode(BPlusTree.this, pageNum);
+                    if (node.isLeaf()) {
+                        readLeaf((LeafNode) node);
+                        return;
                     }
-                    int childPageNum = entry.getPageNum();
-                    BPlusNode childNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), childPageNum);
-                    nodeStack.add(childNode);
-                    if (entry.getKey().compareTo(searchKey) < 0) {
-                        addFirstChild = false;
-                        break;
+                    InnerNode inner = (InnerNode) node;
+                    Page page = inner.getPage();
+                    int numValid = inner.getNumValidEntries(page);
+                    int child;
+                    switch (typeOfScan) {
+                        case SORTED_SCAN:
+                            child = 0;
+                            break;
+                        case REVERSE_SCAN:
+                            child = numValid;
+                            break;
+                        case REVERSE_SCAN_TO:
+                            child = inner.findKey(page, numValid, searchKey, true);
+                            break;
+                        default:
+                            child = inner.findKey(page, numValid, searchKey, false);
+                            break;
                     }
+                    pageNum = inner.getChild(page, child);
                 }
-                if (addFirstChild) {
-                    int firstChildPageNum = ((InnerNode) currentNode).getFirstChild();
-                    BPlusNode firstChildNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), firstChildPageNum);
-                    nodeStack.add(firstChildNode);
-                }
-                currentNode = nodeStack.pop();
+            } finally {
+                held.unlock();
             }
+        }
+
+        /**
+         * Reads the entries of leaf this scan returns and the leaf to visit
+         * after it. The caller holds the read latch of leaf.
+         */
+        private void readLeaf(LeafNode leaf) {
+            currPageNum = leaf.getPageNum();
             switch (typeOfScan) {
+                case SORTED_SCAN:
+                    currLeafIterator = leaf.scan();
+                    nextPageNum = leaf.getNextLeaf();
+                    break;
                 case SORTED_SCAN_FROM:
-                    currLeafIterator = ((LeafNode) currentNode).scanFrom(searchKey);
+                    currLeafIterator = leaf.scanFrom(searchKey);
+                    nextPageNum = leaf.getNextLeaf();
                     break;
                 case LOOKUP_KEY:
-                    currLeafIterator = ((LeafNode) currentNode).scanForKey(searchKey);
+                    currLeafIterator = leaf.scanForKey(searchKey);
+                    nextPageNum = leaf.hasKeyAfter(searchKey) ? -1 : leaf.getNextLeaf();
+                    break;
+                case REVERSE_SCAN:
+                    currLeafIterator = leaf.reverseScan();
+                    nextPageNum = leaf.getPrevLeaf();
+                    break;
+                case REVERSE_SCAN_TO:
+                    currLeafIterator = leaf.reverseScanTo(searchKey);
+                    nextPageNum = leaf.getPrevLeaf();
                     break;
             }
         }
 
         /**
-         * Confirm if iterator has more RecordIDs to return.
+         * Moves on to the leaf nextPageNum. Going backward, a leaf that no
+         * longer links forward to the current leaf has been split since its
+         * page number was read, and the leaves split off it lie in between,
+         * so the scan moves right until it finds the leaf that does.
+         */
+        private void readNextLeaf() {
+            int pageNum = nextPageNum;
+            while (true) {
+                Lock latch = getLatch(pageNum).readLock();
+                latch.lock();
+                try {
+                    LeafNode leaf = new LeafNode(BPlusTree.this, pageNum);
+                    if (!isReverse() || leaf.getNextLeaf() == currPageNum) {
+                        readLeaf(leaf);
+                        return;
+                    }
+                    pageNum = leaf.getNextLeaf();
+                } finally {
+                    latch.unlock();
+                }
+            }
+        }
+
+        /**
+         * Confirm if iterator has more entries to return.
          *
-         * @return true if there are still RecordIDs to be returned, false
+         * @return true if there are still entries to be returned, false
          * otherwise
          */
         public boolean hasNext() {
-            if (currLeafIterator.hasNext()) {
-                return true;
-            } else if (nodeStack.isEmpty()) {
-                return false;
-            } else {
-                currentNode = nodeStack.pop();
-                while (!currentNode.isLeaf()) {
-                    List<BEntry> validEntries = currentNode.getAllValidEntries();
-                    Collections.reverse(validEntries);
-                    boolean addFirstChild = true;
-                    for (BEntry entry : validEntries) {
-                        if (typeOfScan == TypeOfScan.LOOKUP_KEY && entry.getKey().compareTo(searchKey) > 0) {
-                            continue;
-                        }
-                        int childPageNum = entry.getPageNum();
-                        BPlusNode childNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), childPageNum);
-                        nodeStack.add(childNode);
-                        if ((typeOfScan == TypeOfScan.SORTED_SCAN_FROM || typeOfScan == TypeOfScan.LOOKUP_KEY)
-                                && entry.getKey().compareTo(searchKey) < 0) {
-                            addFirstChild = false;
-                            break;
-                        }
-                    }
-                    if (addFirstChild) {
-                        int firstChildPageNum = ((InnerNode) currentNode).getFirstChild();
-                        BPlusNode firstChildNode = BPlusNode.getBPlusNode(this.rootNode.getTree(), firstChildPageNum);
-                        nodeStack.add(firstChildNode);
-                    }
-                    currentNode = nodeStack.pop();
-                }
-                switch (typeOfScan) {
-                    case SORTED_SCAN:
-                        currLeafIterator = ((LeafNode) currentNode).scan();
-                        break;
-                    case SORTED_SCAN_FROM:
-                        currLeafIterator = ((LeafNode) currentNode).scanFrom(searchKey);
-                        break;
-                    case LOOKUP_KEY:
-                        currLeafIterator = ((LeafNode) currentNode).scanForKey(searchKey);
-                        break;
-                }
-                if (currLeafIterator.hasNext()) {
-                    return true;
-                } else {
+            while (!currLeafIterator.hasNext()) {
+                if (nextPageNum == -1) {
                     return false;
                 }
+                readNextLeaf();
             }
+            return true;
         }
 
         /**
-         * Yield the next RecordID of this iterator.
+         * Yield the next entry of this iterator.
          *
-         * @return the next RecordID
-         * @throws NoSuchElementException if there are no more RecordIDs to
+         * @return the next LeafEntry
+         * @throws NoSuchElementException if there are no more entries to
          * yield
          */
-        public RecordID next() {
+        public LeafEntry next() {
             if (hasNext()) {
                 return currLeafIterator.next();
             } else {
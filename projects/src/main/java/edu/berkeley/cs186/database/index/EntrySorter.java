@@ -0,0 +1,200 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts LeafEntries for BPlusTree#bulkLoad. Entries are collected in memory in runs of at most
+ * runSize entries; once a run is full it is sorted and written to a temporary file, and the runs
+ * are merged when the sorted entries are read. Sorting fewer than runSize entries does not touch
+ * the disk.
+ *
+ * Properties:
+ * `keySchema`: DataBox for the key of the entries
+ * `tempDir`: the directory run files are written to
+ * `runSize`: the number of entries sorted in memory at a time
+ * `run`: the entries of the current, unsorted run
+ * `runFiles`: the sorted runs written so far
+ */
+public class EntrySorter {
+    public static final int DEFAULT_RUN_SIZE = 8192;
+
+    private static final Comparator<LeafEntry> ENTRY_ORDER = new Comparator<LeafEntry>() {
+        public int compare(LeafEntry a, LeafEntry b) {
+            return a.compareTo(b);
+        }
+    };
+
+    private DataBox keySchema;
+    private File tempDir;
+    private int runSize;
+    private List<LeafEntry> run;
+    private List<File> runFiles;
+
+    /**
+     * @param keySchema the schema of the index key
+     * @param tempDir the directory to write sorted runs to
+     * @param runSize the number of entries to sort in memory at a time
+     */
+    public EntrySorter(DataBox keySchema, File tempDir, int runSize) {
+        this.keySchema = keySchema;
+        this.tempDir = tempDir;
+        this.runSize = runSize;
+        this.run = new ArrayList<LeafEntry>();
+        this.runFiles = new ArrayList<File>();
+    }
+
+    /**
+     * Adds an entry to be sorted.
+     *
+     * @param entry the entry to add
+     */
+    public void add(LeafEntry entry) {
+        this.run.add(entry);
+        if (this.run.size() >= this.runSize) {
+            writeRun();
+        }
+    }
+
+    /**
+     * @return the number of runs written to disk so far
+     */
+    public int getNumRuns() {
+        return this.runFiles.size();
+    }
+
+    /**
+     * Returns all added entries in sorted order. The run files are deleted once the returned
+     * iterator is exhausted; no more entries may be added.
+     *
+     * @return an iterator over the sorted entries
+     */
+    public Iterator<LeafEntry> sortedIterator() {
+        if (this.runFiles.isEmpty()) {
+            Collections.sort(this.run, ENTRY_ORDER);
+            return this.run.iterator();
+        }
+        if (!this.run.isEmpty()) {
+            writeRun();
+        }
+        this.run = null;
+        return new MergeIterator();
+    }
+
+    private void writeRun() {
+        Collections.sort(this.run, ENTRY_ORDER);
+        try {
+            File file = File.createTempFile("sort", ".run", this.tempDir);
+            file.deleteOnExit();
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file)));
+            try {
+                for (LeafEntry entry : this.run) {
+                    out.write(entry.toBytes());
+                }
+            } finally {
+                out.close();
+            }
+            this.runFiles.add(file);
+        } catch (IOException e) {
+            throw new BPlusTreeException(e);
+        }
+        this.run.clear();
+    }
+
+    /**
+     * Reads one sorted run file, one entry ahead.
+     */
+    private class RunReader {
+        private File file;
+        private DataInputStream in;
+        private byte[] buf;
+        private LeafEntry current;
+
+        private RunReader(File file) throws IOException {
+            this.file = file;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.buf = new byte[EntrySorter.this.keySchema.getSize() + RecordID.getSize()];
+            advance();
+        }
+
+        private void advance() throws IOException {
+            try {
+                this.in.readFully(this.buf);
+                this.current = new LeafEntry(EntrySorter.this.keySchema, this.buf);
+            } catch (EOFException e) {
+                this.current = null;
+                this.in.close();
+                this.file.delete();
+            }
+        }
+    }
+
+    /**
+     * Merges all run files at once.
+     */
+    private class MergeIterator implements Iterator<LeafEntry> {
+        private PriorityQueue<RunReader> readers;
+
+        private MergeIterator() {
+            this.readers = new PriorityQueue<RunReader>(EntrySorter.this.runFiles.size(),
+                    new Comparator<RunReader>() {
+                        public int compare(RunReader a, RunReader b) {
+                            return a.current.compareTo(b.current);
+                        }
+                    });
+            try {
+                for (File file : EntrySorter.this.runFiles) {
+                    RunReader reader = new RunReader(file);
+                    if (reader.current != null) {
+                        this.readers.add(reader);
+                    }
+                }
+            } catch (IOException e) {
+                throw new BPlusTreeException(e);
+            }
+        }
+
+        public boolean hasNext() {
+            return !this.readers.isEmpty();
+        }
+
+        public LeafEntry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            RunReader reader = this.readers.poll();
+            LeafEntry entry = reader.current;
+            try {
+                reader.advance();
+            } catch (IOException e) {
+                throw new BPlusTreeException(e);
+            }
+            if (reader.current != null) {
+                this.readers.add(reader);
+            }
+            return entry;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
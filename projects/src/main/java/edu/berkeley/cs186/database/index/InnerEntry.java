@@ -1,6 +1,8 @@
 package edu.berkeley.cs186.database.index;
 
 import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.Schema;
 
 import java.util.Arrays;
 import java.nio.ByteBuffer;
@@ -36,11 +38,26 @@ public class InnerEntry extends BEntry {
             case FLOAT:
                 this.key = new FloatDataBox(keyBytes);
                 break;
+            case COMPOSITE:
+                this.key = new CompositeDataBox((CompositeDataBox) keySchema, keyBytes);
+                break;
         }
         byte[] pBytes = Arrays.copyOfRange(buff, keySchema.getSize(), keySchema.getSize() + 4);
         this.pageNum = ByteBuffer.wrap(pBytes).getInt();
     }
 
+    /**
+     * Reads an entry straight from offset of page, without copying it out first.
+     *
+     * @param keySchema a DataBox of the key type
+     * @param page the page holding the entry
+     * @param offset the offset of the entry within page
+     */
+    public InnerEntry(DataBox keySchema, Page page, int offset) {
+        super(Schema.decodeField(keySchema, page, offset));
+        this.pageNum = page.readInt(offset + keySchema.getSize());
+    }
+
     @Override
     public int getPageNum() {
         return this.pageNum;
@@ -53,16 +53,17 @@ public class InnerNode extends BPlusNode {
      * contains the given key
      */
     public int findChildFromKey(DataBox key) {
-        int childToTraverse = getFirstChild();
-        List<BEntry> validEntries = getAllValidEntries();
-        for (BEntry entry : validEntries) {
-            if (key.compareTo(entry.getKey()) < 0) {
-                break;
-            } else {
-                childToTraverse = entry.getPageNum();
-            }
-        }
-        return childToTraverse;
+        Page page = getPage();
+        return getChild(page, findKey(page, getNumValidEntries(page), key, true));
+    }
+
+    /**
+     * @param page the Page of this node
+     * @param childNum 0 for the first child, or i + 1 for the child of entry i
+     * @return the page number of the child
+     */
+    public int getChild(Page page, int childNum) {
+        return childNum == 0 ? page.readInt(1) : readChildPageNum(page, childNum - 1);
     }
 
     /**
@@ -78,25 +79,33 @@ public class InnerNode extends BPlusNode {
         InnerEntry pushedEntry = childNode.insertBEntry(ent);
 
         if (pushedEntry != null) {
-            if (hasSpace()) {
-                List<BEntry> validEntries = getAllValidEntries();
-                validEntries.add(pushedEntry);
-                Collections.sort(validEntries);
-                overwriteBNodeEntries(validEntries);
-                return null;
-            } else {
-                return splitNode(pushedEntry);
-            }
+            return insertInnerEntry(pushedEntry);
         } else {
             return null;
         }
     }
 
+    /**
+     * Inserts the InnerEntry pushed up by a split child into this InnerNode.
+     *
+     * @param ent the InnerEntry to be inserted
+     * @return the InnerEntry to be pushed/copied up to this InnerNode's parent
+     * as a result of this InnerNode being split, null otherwise
+     */
+    public InnerEntry insertInnerEntry(InnerEntry ent) {
+        if (hasSpaceFor(ent)) {
+            insertSorted(ent);
+            return null;
+        } else {
+            return splitNode(ent);
+        }
+    }
+
     /**
      * Splits this InnerNode and returns the resulting InnerEntry to be
      * pushed/copied up to this InnerNode's parent as a result of the split.
      * The left node should contain d entries and the right node should contain
-     * d entries.
+     * d entries; compressed nodes split as evenly as their keys allow.
      *
      * @param newEntry the BEntry that is being added to this InnerNode
      * @return the resulting InnerEntry to be pushed/copied up to this
@@ -108,9 +117,10 @@ public class InnerNode extends BPlusNode {
         validEntries.add(newEntry);
         Collections.sort(validEntries);
 
-        List<BEntry> leftNodeEntries = validEntries.subList(0, validEntries.size()/2);
-        BEntry middleEntry = validEntries.get(validEntries.size()/2);
-        List<BEntry> rightNodeEntries = validEntries.subList(validEntries.size()/2 + 1, validEntries.size());
+        int splitIndex = getSplitIndex(validEntries, true);
+        List<BEntry> leftNodeEntries = validEntries.subList(0, splitIndex);
+        BEntry middleEntry = validEntries.get(splitIndex);
+        List<BEntry> rightNodeEntries = validEntries.subList(splitIndex + 1, validEntries.size());
 
         overwriteBNodeEntries(leftNodeEntries);
 
@@ -1,6 +1,8 @@
 package edu.berkeley.cs186.database.index;
 
 import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.RecordID;
 
 import java.util.Arrays;
@@ -39,11 +41,26 @@ public class LeafEntry extends BEntry {
             case FLOAT:
                 this.key = new FloatDataBox(keyBytes);
                 break;
+            case COMPOSITE:
+                this.key = new CompositeDataBox((CompositeDataBox) keySchema, keyBytes);
+                break;
         }
         byte[] rBytes = Arrays.copyOfRange(buff, keySchema.getSize(), keySchema.getSize() + RecordID.getSize());
         this.rid = new RecordID(rBytes);
     }
 
+    /**
+     * Reads an entry straight from offset of page, without copying it out first.
+     *
+     * @param keySchema a DataBox of the key type
+     * @param page the page holding the entry
+     * @param offset the offset of the entry within page
+     */
+    public LeafEntry(DataBox keySchema, Page page, int offset) {
+        super(Schema.decodeField(keySchema, page, offset));
+        this.rid = new RecordID(page, offset + keySchema.getSize());
+    }
+
     @Override
     public RecordID getRecordID() {
         return rid;
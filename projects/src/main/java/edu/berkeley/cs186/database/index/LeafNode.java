@@ -8,21 +8,37 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.locks.Lock;
 
 /**
  * A leaf node of a B+ tree. A LeafNode header contains an `isLeaf` flag set
- * to 1. A LeafNode contains LeafEntries.
+ * to 1 and the page numbers of the next and previous leaf nodes (or -1 if
+ * there is none), so the leaves form a doubly linked list in key order. A
+ * LeafNode contains LeafEntries.
+ *
+ * A split always moves the upper half of a leaf into a new leaf to its right,
+ * so any leaf that was once to the right of another leaf still is. A forward
+ * scan can therefore follow next links without holding on to the leaf it
+ * came from. A backward scan checks that the leaf it moves to still links
+ * forward to the leaf it came from, and moves right over any leaves that
+ * were split off in between.
+ *
+ * In a tree with posting lists a LeafNode contains a PostingEntry per key
+ * instead, and inserting a key that is already there adds its RecordID to
+ * the posting of the key.
  *
  * Inherits all the properties of a BPlusNode.
  */
 public class LeafNode extends BPlusNode {
 
-    public static int headerSize = 1;       // isLeaf
+    public static int headerSize = 9;       // isLeaf + pageNums of next and previous leaves
 
     public LeafNode(BPlusTree tree) {
         super(tree, true);
         tree.incrementNumNodes();
         getPage().writeByte(0, (byte) 1);   // isLeaf = 1
+        setNextLeaf(-1);
+        setPrevLeaf(-1);
     }
 
     public LeafNode(BPlusTree tree, int pageNum) {
@@ -37,6 +53,22 @@ public class LeafNode extends BPlusNode {
         return true;
     }
 
+    public int getNextLeaf() {
+        return getPage().readInt(1);
+    }
+
+    public void setNextLeaf(int val) {
+        getPage().writeInt(1, val);
+    }
+
+    public int getPrevLeaf() {
+        return getPage().readInt(5);
+    }
+
+    public void setPrevLeaf(int val) {
+        getPage().writeInt(5, val);
+    }
+
     /**
      * Inserts a LeafEntry into this LeafNode.
      *
@@ -46,22 +78,101 @@ public class LeafNode extends BPlusNode {
      */
     @Override
     public InnerEntry insertBEntry(LeafEntry ent) {
-        if (hasSpace()) {
-            List<BEntry> validEntries = getAllValidEntries();
-            validEntries.add(ent);
-            Collections.sort(validEntries);
-            overwriteBNodeEntries(validEntries);
+        if (!hasSpaceFor(ent)) {
+            return splitNode(ent);
+        }
+        if (!usesPostingLists()) {
+            insertSorted(ent);
             return null;
+        }
+        Page page = getPage();
+        int entryNum = findPosting(page, ent.getKey());
+        if (entryNum == -1) {
+            insertSorted(new PostingEntry(ent.getKey(), PostingList.encode(ent.getRecordID())));
         } else {
-            return splitNode(ent);
+            byte[] posting = PostingList.add(getTree(), readPosting(page, entryNum), ent.getRecordID());
+            replaceEntry(page, entryNum, new PostingEntry(ent.getKey(), posting));
         }
+        return null;
+    }
+
+    /**
+     * Removes the entry of key and rid from this LeafNode. In a tree with
+     * posting lists rid is removed from the posting of key, and the entry
+     * goes once its posting is empty. Nodes are never merged, so a leaf may
+     * be left empty.
+     *
+     * @param key the key of the entry
+     * @param rid the RecordID of the entry
+     * @return whether this LeafNode had an entry of key and rid
+     */
+    public boolean deleteEntry(DataBox key, RecordID rid) {
+        Page page = getPage();
+        if (usesPostingLists()) {
+            int entryNum = findPosting(page, key);
+            if (entryNum == -1) {
+                return false;
+            }
+            byte[] posting = readPosting(page, entryNum);
+            byte[] remaining = PostingList.remove(getTree(), posting, rid);
+            if (remaining == posting) {
+                return false;
+            }
+            if (remaining == null) {
+                removeEntry(entryNum);
+            } else {
+                replaceEntry(page, entryNum, new PostingEntry(key, remaining));
+            }
+            return true;
+        }
+        int numValid = getNumValidEntries(page);
+        int to = findKey(page, numValid, key, true);
+        for (int i = findKey(page, numValid, key, false); i < to; i++) {
+            if (readRecordID(page, i).equals(rid)) {
+                removeEntry(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * In a tree with posting lists, a LeafEntry fits if the posting of its key
+     * can grow by its RecordID, or if a new posting of the key fits.
+     */
+    @Override
+    protected boolean hasSpaceFor(BEntry ent) {
+        if (!usesPostingLists() || ent instanceof PostingEntry) {
+            return super.hasSpaceFor(ent);
+        }
+        Page page = getPage();
+        int entryNum = findPosting(page, ent.getKey());
+        if (entryNum == -1) {
+            return super.hasSpaceFor(new PostingEntry(ent.getKey(), PostingList.encode(ent.getRecordID())));
+        }
+        byte[] posting = readPosting(page, entryNum);
+        return PostingList.getAddedSize(posting, ent.getRecordID()) - posting.length <= getFreeBytes(page);
+    }
+
+    /**
+     * @return the number of the entry of key in a leaf with posting lists, or
+     * -1 if there is none
+     */
+    private int findPosting(Page page, DataBox key) {
+        int numValid = getNumValidEntries(page);
+        int entryNum = findKey(page, numValid, key, false);
+        if (entryNum < numValid && readKey(page, entryNum).compareTo(key) == 0) {
+            return entryNum;
+        }
+        return -1;
     }
 
     /**
      * Splits this LeafNode and returns the resulting InnerEntry to be
      * pushed/copied up to this LeafNode's parent as a result of the split.
      * The left node should contain d entries and the right node should contain
-     * d+1 entries.
+     * d+1 entries; compressed nodes split as evenly as their keys allow. The
+     * key pushed up is the separator of the two nodes.
      *
      * @param newEntry the BEntry that is being added to this LeafNode
      * @return the resulting InnerEntry to be pushed/copied up to this
@@ -70,87 +181,184 @@ public class LeafNode extends BPlusNode {
     @Override
     public InnerEntry splitNode(BEntry newEntry) {
         List<BEntry> validEntries = getAllValidEntries();
-        validEntries.add(newEntry);
-        Collections.sort(validEntries);
+        if (usesPostingLists()) {
+            addToPostings(validEntries, newEntry);
+        } else {
+            validEntries.add(newEntry);
+            Collections.sort(validEntries);
+        }
 
-        List<BEntry> leftNodeEntries = validEntries.subList(0, validEntries.size()/2);
-        BEntry middleEntry = validEntries.get(validEntries.size()/2);
-        List<BEntry> rightNodeEntries = validEntries.subList(validEntries.size()/2, validEntries.size());
+        int splitIndex = getSplitIndex(validEntries, false);
+        List<BEntry> leftNodeEntries = validEntries.subList(0, splitIndex);
+        BEntry middleEntry = validEntries.get(splitIndex);
+        List<BEntry> rightNodeEntries = validEntries.subList(splitIndex, validEntries.size());
+        DataBox separator = getSeparator(validEntries.get(splitIndex - 1).getKey(), middleEntry.getKey());
 
         overwriteBNodeEntries(leftNodeEntries);
 
         LeafNode rightNode = new LeafNode(getTree());
         rightNode.overwriteBNodeEntries(rightNodeEntries);
+        linkRight(rightNode);
 
-        InnerEntry newMiddleEntry = new InnerEntry(middleEntry.getKey(), rightNode.getPageNum());
+        InnerEntry newMiddleEntry = new InnerEntry(separator, rightNode.getPageNum());
 
         return newMiddleEntry;
     }
 
+    /**
+     * Adds the RecordID of newEntry to the posting of its key among the
+     * sorted PostingEntries entries, or adds a new posting for it.
+     */
+    private void addToPostings(List<BEntry> entries, BEntry newEntry) {
+        DataBox key = newEntry.getKey();
+        int i = 0;
+        while (i < entries.size() && entries.get(i).getKey().compareTo(key) < 0) {
+            i++;
+        }
+        if (i < entries.size() && entries.get(i).getKey().compareTo(key) == 0) {
+            byte[] posting = ((PostingEntry) entries.get(i)).getPosting();
+            entries.set(i, new PostingEntry(key, PostingList.add(getTree(), posting, newEntry.getRecordID())));
+        } else {
+            entries.add(i, new PostingEntry(key, PostingList.encode(newEntry.getRecordID())));
+        }
+    }
 
     /**
-     * Creates an iterator of RecordIDs for all entries in this node.
+     * Links rightNode into the leaf list right after this node. The caller
+     * holds the write latch of this node; the old next leaf is latched here,
+     * which is safe because leaf latches are only ever taken left to right
+     * while another leaf latch is held.
      *
-     * @return an iterator of RecordIDs
+     * @param rightNode a new leaf
      */
-    public Iterator<RecordID> scan() {
-        List<BEntry> validEntries = getAllValidEntries();
-        List<RecordID> rids = new ArrayList<RecordID>();
-
-        for (BEntry le : validEntries) {
-            rids.add(le.getRecordID());
+    void linkRight(LeafNode rightNode) {
+        int nextPageNum = getNextLeaf();
+        rightNode.setNextLeaf(nextPageNum);
+        rightNode.setPrevLeaf(getPageNum());
+        if (nextPageNum != -1) {
+            Lock latch = getTree().getLatch(nextPageNum).writeLock();
+            latch.lock();
+            try {
+                new LeafNode(getTree(), nextPageNum).setPrevLeaf(rightNode.getPageNum());
+            } finally {
+                latch.unlock();
+            }
         }
+        setNextLeaf(rightNode.getPageNum());
+    }
 
-        return rids.iterator();
+    /**
+     * Creates an iterator of the LeafEntries of all entries in this node.
+     *
+     * @return an iterator of LeafEntries
+     */
+    public Iterator<LeafEntry> scan() {
+        Page page = getPage();
+        return scanRange(page, 0, getNumValidEntries(page));
     }
 
     /**
-     * Creates an iterator of RecordIDs whose keys are greater than or equal to
-     * the given start value key.
+     * Creates an iterator of LeafEntries whose keys are greater than or equal
+     * to the given start value key.
      *
      * @param startValue the start value key
-     * @return an iterator of RecordIDs
+     * @return an iterator of LeafEntries
      */
-    public Iterator<RecordID> scanFrom(DataBox startValue) {
-        List<BEntry> validEntries = getAllValidEntries();
-        List<RecordID> rids = new ArrayList<RecordID>();
-
-        for (BEntry le : validEntries) {
-            if (startValue.compareTo(le.getKey()) < 1) {
-                rids.add(le.getRecordID());
-            }
-        }
-        return rids.iterator();
+    public Iterator<LeafEntry> scanFrom(DataBox startValue) {
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        return scanRange(page, findKey(page, numValid, startValue, false), numValid);
     }
 
     /**
-     * Creates an iterator of RecordIDs that correspond to the given key in the
-     * current leafNode Page.
+     * Creates an iterator of LeafEntries that correspond to the given key in
+     * the current leafNode Page.
      *
      * @param key the search key
-     * @return an iterator of RecordIDs
+     * @return an iterator of LeafEntries
      */
-    public Iterator<RecordID> scanForKey(DataBox key) {
-        List<BEntry> validEntries = getAllValidEntries();
-        List<RecordID> rids = new ArrayList<RecordID>();
-
-        for (BEntry le : validEntries) {
-            if (key.compareTo(le.getKey()) == 0) {
-                rids.add(le.getRecordID());
-            }
-        }
-        return rids.iterator();
+    public Iterator<LeafEntry> scanForKey(DataBox key) {
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        return scanRange(page, findKey(page, numValid, key, false), findKey(page, numValid, key, true));
     }
 
     public boolean containsKey(DataBox key) {
-        List<BEntry> validEntries = getAllValidEntries();
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        int entryNum = findKey(page, numValid, key, false);
+        return entryNum < numValid && readKey(page, entryNum).compareTo(key) == 0;
+    }
 
-        for (BEntry le : validEntries) {
-            if (key.compareTo(le.getKey()) == 0) {
-                return true;
+    /**
+     * Creates an iterator of the LeafEntries of all entries in this node, in
+     * descending order.
+     *
+     * @return an iterator of LeafEntries
+     */
+    public Iterator<LeafEntry> reverseScan() {
+        Page page = getPage();
+        return reverseScanRange(page, 0, getNumValidEntries(page));
+    }
+
+    /**
+     * Creates an iterator of LeafEntries whose keys are less than or equal to
+     * the given end value key, in descending order.
+     *
+     * @param endValue the end value key
+     * @return an iterator of LeafEntries
+     */
+    public Iterator<LeafEntry> reverseScanTo(DataBox endValue) {
+        Page page = getPage();
+        return reverseScanRange(page, 0, findKey(page, getNumValidEntries(page), endValue, true));
+    }
+
+    /**
+     * @param key the key to compare to
+     * @return whether this node has an entry with a key greater than key
+     */
+    public boolean hasKeyAfter(DataBox key) {
+        Page page = getPage();
+        int numValid = getNumValidEntries(page);
+        return numValid > 0 && readKey(page, numValid - 1).compareTo(key) > 0;
+    }
+
+    /**
+     * @return an iterator of the LeafEntries of entries from (inclusive) to
+     * (exclusive)
+     */
+    private Iterator<LeafEntry> scanRange(Page page, int from, int to) {
+        List<LeafEntry> entries = new ArrayList<LeafEntry>(Math.max(to - from, 0));
+        for (int i = from; i < to; i++) {
+            DataBox key = readKey(page, i);
+            if (usesPostingLists()) {
+                for (RecordID rid : PostingList.read(getTree(), readPosting(page, i))) {
+                    entries.add(new LeafEntry(key, rid));
+                }
+            } else {
+                entries.add(new LeafEntry(key, readRecordID(page, i)));
             }
         }
-        return false;
+        return entries.iterator();
+    }
 
+    /**
+     * @return an iterator of the LeafEntries of entries from (inclusive) to
+     * (exclusive), last entry first
+     */
+    private Iterator<LeafEntry> reverseScanRange(Page page, int from, int to) {
+        List<LeafEntry> entries = new ArrayList<LeafEntry>(Math.max(to - from, 0));
+        for (int i = to - 1; i >= from; i--) {
+            DataBox key = readKey(page, i);
+            if (usesPostingLists()) {
+                List<RecordID> posting = PostingList.read(getTree(), readPosting(page, i));
+                for (int j = posting.size() - 1; j >= 0; j--) {
+                    entries.add(new LeafEntry(key, posting.get(j)));
+                }
+            } else {
+                entries.add(new LeafEntry(key, readRecordID(page, i)));
+            }
+        }
+        return entries.iterator();
     }
 }
@@ -0,0 +1,54 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.databox.DataBox;
+
+import java.util.Arrays;
+
+/**
+ * A B+ tree leaf node entry of a tree with posting lists, holding all
+ * RecordIDs of a key.
+ *
+ * Properties:
+ * `key`: the search key
+ * `posting`: the RecordIDs of records containing the search key, encoded by
+ * PostingList
+ */
+public class PostingEntry extends BEntry {
+    private byte[] posting;
+
+    public PostingEntry(DataBox key, byte[] posting) {
+        super(key);
+        this.posting = posting;
+    }
+
+    public byte[] getPosting() {
+        return this.posting;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PostingEntry)) {
+            return false;
+        }
+
+        PostingEntry otherPE = (PostingEntry) other;
+        return otherPE.getKey().equals(this.getKey()) && Arrays.equals(otherPE.posting, this.posting);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * this.getKey().hashCode() + Arrays.hashCode(this.posting);
+    }
+
+    @Override
+    public String toString() {
+        return this.getKey() + ", <" + this.posting.length + " byte posting>";
+    }
+
+    public int compareTo(Object obj) {
+        if (this.getClass() != obj.getClass()) {
+            throw new BPlusTreeException("Object does not match");
+        }
+        return this.getKey().compareTo(((PostingEntry) obj).getKey());
+    }
+}
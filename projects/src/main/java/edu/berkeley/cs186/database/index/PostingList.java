@@ -0,0 +1,421 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes the sorted RecordIDs of one key of a BPlusTree with posting lists.
+ * A RecordID is numbered as its page number times 2^16 plus its entry number,
+ * and a list is stored as the first number followed by the differences
+ * between consecutive numbers, each as a variable-length integer of 7 bits
+ * per byte, so RecordIDs of nearby records take a byte or two each.
+ *
+ * A posting is stored in the leaf entry of its key and starts with its kind:
+ * INLINE postings hold the encoded list itself. Once that grows beyond
+ * MAX_INLINE_SIZE the list moves to a chain of overflow pages, and the
+ * posting holds the first and last page of the chain, the number of
+ * RecordIDs, and the largest one, so that appending does not have to read
+ * the chain.
+ *
+ * Overflow page layout:
+ * bytes 0-3: the page number of the next page of the chain, or -1
+ * bytes 4-5: the number of RecordIDs on the page
+ * bytes 6-7: the number of bytes of encoded RecordIDs on the page
+ * bytes 8-: the encoded RecordIDs, starting with an absolute number
+ *
+ * Overflow pages belong to the leaf entry that points to them and are only
+ * read or written while its leaf is latched.
+ */
+class PostingList {
+    static final byte INLINE = 0;
+    static final byte OVERFLOW = 1;
+    static final int MAX_INLINE_SIZE = Page.pageSize / 16;
+    static final int OVERFLOW_SIZE = 1 + 4 + 4 + 4 + 8;
+    // the size of a posting with a single RecordID, whose number has 47 bits at most
+    static final int MAX_SINGLE_SIZE = 1 + 7;
+    private static final int OVERFLOW_HEADER_SIZE = 8;
+
+    /**
+     * @param rid a RecordID
+     * @return an inline posting of rid
+     */
+    static byte[] encode(RecordID rid) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(INLINE);
+        writeVarLong(out, toNumber(rid));
+        return out.toByteArray();
+    }
+
+    /**
+     * @param tree the tree holding the overflow pages of posting
+     * @param posting a posting
+     * @return the RecordIDs of posting, in ascending order
+     */
+    static List<RecordID> read(BPlusTree tree, byte[] posting) {
+        List<RecordID> rids = new ArrayList<RecordID>();
+        if (posting[0] == INLINE) {
+            for (long number : decode(posting, 1, posting.length)) {
+                rids.add(toRecordID(number));
+            }
+            return rids;
+        }
+        int pageNum = ByteBuffer.wrap(posting).getInt(1);
+        while (pageNum != -1) {
+            Page page = tree.allocator.fetchPage(pageNum);
+            byte[] bytes = page.readBytes(OVERFLOW_HEADER_SIZE, page.readShort(6));
+            for (long number : decode(bytes, 0, bytes.length)) {
+                rids.add(toRecordID(number));
+            }
+            pageNum = page.readInt(0);
+        }
+        return rids;
+    }
+
+    /**
+     * @return the size of posting once rid is added, which does not depend
+     * on any overflow pages
+     */
+    static int getAddedSize(byte[] posting, RecordID rid) {
+        if (posting[0] == OVERFLOW) {
+            return posting.length;
+        }
+        List<Long> numbers = decode(posting, 1, posting.length);
+        insertSorted(numbers, toNumber(rid));
+        int size = 1 + getEncodedSize(numbers);
+        return size > MAX_INLINE_SIZE ? OVERFLOW_SIZE : size;
+    }
+
+    /**
+     * Adds rid to posting, moving the list to overflow pages if it gets too
+     * large for the leaf.
+     *
+     * @param tree the tree to allocate overflow pages from
+     * @param posting a posting
+     * @param rid the RecordID to add
+     * @return the new posting
+     */
+    static byte[] add(BPlusTree tree, byte[] posting, RecordID rid) {
+        long number = toNumber(rid);
+        if (posting[0] == INLINE) {
+            List<Long> numbers = decode(posting, 1, posting.length);
+            insertSorted(numbers, number);
+            Builder builder = new Builder(tree);
+            for (long n : numbers) {
+                builder.add(n);
+            }
+            return builder.finish();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(posting);
+        int head = buf.getInt(1);
+        int tail = buf.getInt(5);
+        int count = buf.getInt(9);
+        long last = buf.getLong(13);
+        if (number >= last) {
+            tail = appendToPage(tree, tail, number, last);
+            last = number;
+        } else {
+            tail = insertIntoChain(tree, head, tail, number);
+        }
+        return overflowPosting(head, tail, count + 1, last);
+    }
+
+    /**
+     * Removes rid from posting. An overflow page that is left empty is
+     * unlinked from the chain and freed; the posting does not move back
+     * inline.
+     *
+     * @param tree the tree holding the overflow pages of posting
+     * @param posting a posting
+     * @param rid the RecordID to remove
+     * @return the posting without rid, posting itself if it does not hold
+     * rid, or null if rid was its only RecordID
+     */
+    static byte[] remove(BPlusTree tree, byte[] posting, RecordID rid) {
+        Long number = toNumber(rid);
+        if (posting[0] == INLINE) {
+            List<Long> numbers = decode(posting, 1, posting.length);
+            if (!numbers.remove(number)) {
+                return posting;
+            }
+            if (numbers.isEmpty()) {
+                return null;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(INLINE);
+            byte[] list = encode(numbers);
+            out.write(list, 0, list.length);
+            return out.toByteArray();
+        }
+
+        ByteBuffer buf = ByteBuffer.wrap(posting);
+        int head = buf.getInt(1);
+        int tail = buf.getInt(5);
+        int count = buf.getInt(9);
+        long last = buf.getLong(13);
+        if (number > last) {
+            return posting;
+        }
+        int previous = -1;
+        int pageNum = head;
+        Page page = tree.allocator.fetchPage(pageNum);
+        while (page.readInt(0) != -1) {
+            Page next = tree.allocator.fetchPage(page.readInt(0));
+            byte[] first = next.readBytes(OVERFLOW_HEADER_SIZE, Math.min(10, next.readShort(6)));
+            if (decode(first, 0, first.length, 1).get(0) > number) {
+                break;
+            }
+            previous = pageNum;
+            pageNum = page.readInt(0);
+            page = next;
+        }
+
+        byte[] bytes = page.readBytes(OVERFLOW_HEADER_SIZE, page.readShort(6));
+        List<Long> numbers = decode(bytes, 0, bytes.length, page.readShort(4));
+        if (!numbers.remove(number)) {
+            return posting;
+        }
+        int next = page.readInt(0);
+        if (count == 1) {
+            tree.allocator.freePage(pageNum);
+            return null;
+        }
+        if (numbers.isEmpty()) {
+            // pages are never left empty, since the walk above reads the first number of each
+            if (previous == -1) {
+                head = next;
+            } else {
+                tree.allocator.fetchPage(previous).writeInt(0, next);
+            }
+            if (pageNum == tail) {
+                tail = previous;
+            }
+            tree.allocator.freePage(pageNum);
+        } else {
+            writePage(tree, pageNum, next, numbers.size(), encode(numbers));
+        }
+        if (number == last) {
+            Page tailPage = tree.allocator.fetchPage(tail);
+            byte[] tailBytes = tailPage.readBytes(OVERFLOW_HEADER_SIZE, tailPage.readShort(6));
+            List<Long> tailNumbers = decode(tailBytes, 0, tailBytes.length);
+            last = tailNumbers.get(tailNumbers.size() - 1);
+        }
+        return overflowPosting(head, tail, count - 1, last);
+    }
+
+    /**
+     * Builds a posting from RecordIDs that are added in ascending order.
+     */
+    static class Builder {
+        private BPlusTree tree;
+        private ByteArrayOutputStream bytes;
+        private int pageCount;
+        private int head;
+        private int tail;
+        private int count;
+        private long last;
+
+        Builder(BPlusTree tree) {
+            this.tree = tree;
+            this.bytes = new ByteArrayOutputStream();
+            this.head = -1;
+            this.tail = -1;
+        }
+
+        void add(RecordID rid) {
+            add(toNumber(rid));
+        }
+
+        private void add(long number) {
+            int size = getVarLongSize(this.bytes.size() == 0 ? number : number - this.last);
+            if (this.head == -1 && 1 + this.bytes.size() + size > MAX_INLINE_SIZE) {
+                // the inline list starts with an absolute number too, so it becomes the first page
+                this.head = this.tree.allocator.allocPage();
+                this.tail = this.head;
+            }
+            if (this.head != -1 && OVERFLOW_HEADER_SIZE + this.bytes.size() + size > Page.pageSize) {
+                int next = this.tree.allocator.allocPage();
+                writePage(this.tree, this.tail, next, this.pageCount, this.bytes.toByteArray());
+                this.tail = next;
+                this.bytes.reset();
+                this.pageCount = 0;
+            }
+            writeVarLong(this.bytes, this.bytes.size() == 0 ? number : number - this.last);
+            this.pageCount++;
+            this.count++;
+            this.last = number;
+        }
+
+        /**
+         * @return the posting of the added RecordIDs
+         */
+        byte[] finish() {
+            if (this.head == -1) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(INLINE);
+                byte[] list = this.bytes.toByteArray();
+                out.write(list, 0, list.length);
+                return out.toByteArray();
+            }
+            writePage(this.tree, this.tail, -1, this.pageCount, this.bytes.toByteArray());
+            return overflowPosting(this.head, this.tail, this.count, this.last);
+        }
+    }
+
+    /**
+     * Appends number, which is at least last, to the overflow page tail.
+     *
+     * @return the new last page of the chain
+     */
+    private static int appendToPage(BPlusTree tree, int tail, long number, long last) {
+        Page page = tree.allocator.fetchPage(tail);
+        int count = page.readShort(4);
+        int used = page.readShort(6);
+        int size = getVarLongSize(number - last);
+        if (OVERFLOW_HEADER_SIZE + used + size <= Page.pageSize) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeVarLong(out, number - last);
+            page.writeBytes(OVERFLOW_HEADER_SIZE + used, size, out.toByteArray());
+            page.writeShort(4, (short) (count + 1));
+            page.writeShort(6, (short) (used + size));
+            return tail;
+        }
+        int next = tree.allocator.allocPage();
+        page.writeInt(0, next);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarLong(out, number);
+        writePage(tree, next, -1, 1, out.toByteArray());
+        return next;
+    }
+
+    /**
+     * Inserts number into the page of the chain it belongs on, splitting the
+     * page if it is full.
+     *
+     * @return the new last page of the chain
+     */
+    private static int insertIntoChain(BPlusTree tree, int head, int tail, long number) {
+        int pageNum = head;
+        Page page = tree.allocator.fetchPage(pageNum);
+        while (page.readInt(0) != -1) {
+            Page next = tree.allocator.fetchPage(page.readInt(0));
+            byte[] first = next.readBytes(OVERFLOW_HEADER_SIZE, Math.min(10, next.readShort(6)));
+            if (decode(first, 0, first.length, 1).get(0) > number) {
+                break;
+            }
+            pageNum = page.readInt(0);
+            page = next;
+        }
+
+        byte[] bytes = page.readBytes(OVERFLOW_HEADER_SIZE, page.readShort(6));
+        List<Long> numbers = decode(bytes, 0, bytes.length, page.readShort(4));
+        insertSorted(numbers, number);
+        int next = page.readInt(0);
+        if (OVERFLOW_HEADER_SIZE + getEncodedSize(numbers) <= Page.pageSize) {
+            writePage(tree, pageNum, next, numbers.size(), encode(numbers));
+            return tail;
+        }
+        List<Long> left = numbers.subList(0, numbers.size() / 2);
+        List<Long> right = numbers.subList(numbers.size() / 2, numbers.size());
+        int newPageNum = tree.allocator.allocPage();
+        writePage(tree, newPageNum, next, right.size(), encode(right));
+        writePage(tree, pageNum, newPageNum, left.size(), encode(left));
+        return pageNum == tail ? newPageNum : tail;
+    }
+
+    private static void writePage(BPlusTree tree, int pageNum, int next, int count, byte[] bytes) {
+        Page page = tree.allocator.fetchPage(pageNum);
+        ByteBuffer buf = ByteBuffer.allocate(OVERFLOW_HEADER_SIZE + bytes.length);
+        buf.putInt(next).putShort((short) count).putShort((short) bytes.length).put(bytes);
+        page.writeBytes(0, buf.capacity(), buf.array());
+    }
+
+    private static byte[] overflowPosting(int head, int tail, int count, long last) {
+        return ByteBuffer.allocate(OVERFLOW_SIZE).put(OVERFLOW).putInt(head).putInt(tail)
+                .putInt(count).putLong(last).array();
+    }
+
+    private static long toNumber(RecordID rid) {
+        return ((long) rid.getPageNum() << 16) | (rid.getEntryNumber() & 0xFFFF);
+    }
+
+    private static RecordID toRecordID(long number) {
+        return new RecordID((int) (number >>> 16), (int) (number & 0xFFFF));
+    }
+
+    private static void insertSorted(List<Long> numbers, long number) {
+        int i = numbers.size();
+        while (i > 0 && numbers.get(i - 1) > number) {
+            i--;
+        }
+        numbers.add(i, number);
+    }
+
+    private static byte[] encode(List<Long> numbers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long previous = 0;
+        for (long number : numbers) {
+            writeVarLong(out, number - previous);
+            previous = number;
+        }
+        return out.toByteArray();
+    }
+
+    private static int getEncodedSize(List<Long> numbers) {
+        int size = 0;
+        long previous = 0;
+        for (long number : numbers) {
+            size += getVarLongSize(number - previous);
+            previous = number;
+        }
+        return size;
+    }
+
+    private static List<Long> decode(byte[] bytes, int from, int to) {
+        return decode(bytes, from, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the first (at most max) numbers encoded in bytes[from, to)
+     */
+    private static List<Long> decode(byte[] bytes, int from, int to, int max) {
+        List<Long> numbers = new ArrayList<Long>();
+        long previous = 0;
+        int i = from;
+        while (i < to && numbers.size() < max) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[i++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            previous += value;
+            numbers.add(previous);
+        }
+        return numbers;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int getVarLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,508 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A buffer pool for caching Pages across PageAllocators. The pool is split into a fixed number of
+ * stripes, and a page is assigned to a stripe by hashing its virtual page number (see
+ * PageAllocator#translatePageNum). Each stripe has its own lock, frame table, and CLOCK hand, so
+ * concurrent accesses to pages that live on different stripes never contend.
+ *
+ * Every cached page occupies a Frame which keeps a pin count and a reference bit. The CLOCK
+ * replacement policy sweeps the frames of a stripe, clearing reference bits as it goes, and evicts
+ * the first unpinned frame whose reference bit is already clear. Pinned frames are never evicted;
+ * a stripe whose frames are all pinned temporarily grows past its share to admit another pinned
+ * page and shrinks back as pages are unpinned and evicted.
+ *
+ * The capacity of a pool is a memory budget shared between cached pages and the working memory
+ * of query operators. Pages handed out with reservePages are subtracted from the number of frames
+ * available for caching until they are released.
+ */
+public class BufferPool {
+  private static final int numStripes = 16;
+
+  private Stripe[] stripes;
+  private int capacity;
+  private int numReservedPages;
+
+  /**
+   * Create a new BufferPool that caches up to capacity pages.
+   *
+   * @param capacity the total number of pages this pool may hold
+   */
+  public BufferPool(int capacity) {
+    if (capacity < numStripes) {
+      throw new PageException("buffer pool capacity must be at least " + numStripes + " pages");
+    }
+    this.capacity = capacity;
+    this.numReservedPages = 0;
+    this.stripes = new Stripe[numStripes];
+    for (int i = 0; i < numStripes; i++) {
+      this.stripes[i] = new Stripe(stripeShare(capacity, i));
+    }
+  }
+
+  /**
+   * Create a new BufferPool whose capacity is the number of whole pages that fit in numBytes.
+   *
+   * @param numBytes the memory budget of the pool in bytes
+   * @return a new BufferPool
+   */
+  public static BufferPool withMemoryBudget(long numBytes) {
+    long numPages = numBytes / Page.pageSize;
+    if (numPages > Integer.MAX_VALUE) {
+      throw new PageException("buffer pool memory budget is too large");
+    }
+    return new BufferPool((int) numPages);
+  }
+
+  /**
+   * Looks up the page cached under vPageNum and marks it as recently used.
+   *
+   * @param vPageNum the virtual page number
+   * @return the cached Page, or null if it is not in the pool
+   */
+  public Page get(long vPageNum) {
+    return stripeFor(vPageNum).get(vPageNum);
+  }
+
+  /**
+   * @param vPageNum the virtual page number
+   * @return whether or not the page is currently cached
+   */
+  public boolean contains(long vPageNum) {
+    return stripeFor(vPageNum).contains(vPageNum);
+  }
+
+  /**
+   * Caches page under vPageNum, evicting an unpinned page of the same stripe if the stripe is full.
+   * If another thread cached the same page first, that page is kept and returned instead so that
+   * all callers agree on a single Page object per virtual page number, and the given page is
+   * discarded. If every frame of the stripe is pinned, the page is returned without being cached,
+   * unless its writes only reach the file once it is released (see BufferedPage); such a page is
+   * cached beyond the stripe's limit until a frame can be evicted.
+   *
+   * @param vPageNum the virtual page number
+   * @param page the page to cache
+   * @return the Page that is now associated with vPageNum
+   */
+  public Page put(long vPageNum, Page page) {
+    return stripeFor(vPageNum).put(vPageNum, page, false);
+  }
+
+  /**
+   * Looks up the page cached under vPageNum and pins it in a single step.
+   *
+   * @param vPageNum the virtual page number
+   * @return the cached Page, now pinned, or null if it is not in the pool
+   */
+  public Page getAndPin(long vPageNum) {
+    return stripeFor(vPageNum).getAndPin(vPageNum);
+  }
+
+  /**
+   * Caches page under vPageNum like put, and pins the Page that ends up associated with vPageNum.
+   * Unlike put, the page is always cached: if every frame of the stripe is pinned the stripe is
+   * allowed to exceed its share of the pool.
+   *
+   * @param vPageNum the virtual page number
+   * @param page the page to cache
+   * @return the pinned Page that is now associated with vPageNum
+   */
+  public Page putAndPin(long vPageNum, Page page) {
+    return stripeFor(vPageNum).put(vPageNum, page, true);
+  }
+
+  /**
+   * Drops the page cached under vPageNum without flushing it.
+   *
+   * @param vPageNum the virtual page number
+   * @return the page that was removed, or null if it was not cached
+   */
+  public Page remove(long vPageNum) {
+    return stripeFor(vPageNum).remove(vPageNum);
+  }
+
+  /**
+   * Increments the pin count of a cached page so that it cannot be evicted.
+   *
+   * @param vPageNum the virtual page number
+   * @return whether or not the page was cached (and therefore pinned)
+   */
+  public boolean pin(long vPageNum) {
+    return stripeFor(vPageNum).pin(vPageNum);
+  }
+
+  /**
+   * Decrements the pin count of a cached page.
+   *
+   * @param vPageNum the virtual page number
+   */
+  public void unpin(long vPageNum) {
+    stripeFor(vPageNum).unpin(vPageNum);
+  }
+
+  /**
+   * @param vPageNum the virtual page number
+   * @return the pin count of the page, or 0 if the page is not cached
+   */
+  public int getPinCount(long vPageNum) {
+    return stripeFor(vPageNum).getPinCount(vPageNum);
+  }
+
+  /**
+   * @param allocID the id of an allocator
+   * @return the pages of the allocator allocID that are currently cached
+   */
+  public List<Page> getAll(int allocID) {
+    List<Page> pages = new ArrayList<Page>();
+    for (Stripe s : this.stripes) {
+      s.getAll(allocID, pages);
+    }
+    return pages;
+  }
+
+  /**
+   * Removes every page that belongs to the allocator allocID from the pool, regardless of pin
+   * counts. Used when a PageAllocator is closed.
+   *
+   * @param allocID the id of the allocator whose pages should be dropped
+   * @return the pages that were removed
+   */
+  public List<Page> removeAll(int allocID) {
+    List<Page> removed = new ArrayList<Page>();
+    for (Stripe s : this.stripes) {
+      s.removeAll(allocID, removed);
+    }
+    return removed;
+  }
+
+  /**
+   * @return the number of pages currently cached
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe s : this.stripes) {
+      size += s.size();
+    }
+    return size;
+  }
+
+  public int getCapacity() {
+    return this.capacity;
+  }
+
+  /**
+   * Reserves numPages pages of this pool's budget as working memory (e.g. for the buffers of a
+   * join). Reserved pages shrink the number of frames available for caching until they are given
+   * back with releasePages; cached pages beyond the new limit are evicted lazily.
+   *
+   * @param numPages the number of pages to reserve
+   * @throws PageException if the reservation would leave fewer than one frame per stripe
+   */
+  public synchronized void reservePages(int numPages) {
+    if (numPages < 0) {
+      throw new PageException("cannot reserve a negative number of pages");
+    }
+    if (this.capacity - this.numReservedPages - numPages < numStripes) {
+      throw new PageException("buffer pool has only " + getNumUnreservedPages()
+          + " pages available for reservation; " + numPages + " requested");
+    }
+    this.numReservedPages += numPages;
+    updateStripeLimits();
+  }
+
+  /**
+   * Reserves between minPages and maxPages pages of this pool's budget as working memory: as many
+   * as are available, up to maxPages. If fewer than minPages are available, waits until other
+   * reservations are released.
+   *
+   * @param minPages the least number of pages the caller can work with
+   * @param maxPages the number of pages the caller would like
+   * @return the number of pages reserved
+   * @throws PageException if this pool can never spare minPages, or the wait is interrupted
+   */
+  public synchronized int reservePages(int minPages, int maxPages) {
+    if (minPages < 0 || maxPages < minPages) {
+      throw new PageException("cannot reserve between " + minPages + " and " + maxPages + " pages");
+    }
+    if (this.capacity - numStripes < minPages) {
+      throw new PageException("buffer pool has only " + (this.capacity - numStripes)
+          + " pages available for reservation; " + minPages + " requested");
+    }
+    while (getNumUnreservedPages() < minPages) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new PageException("interrupted while waiting to reserve " + minPages + " pages");
+      }
+    }
+    int numPages = Math.min(maxPages, getNumUnreservedPages());
+    this.numReservedPages += numPages;
+    updateStripeLimits();
+    return numPages;
+  }
+
+  /**
+   * Returns numPages previously reserved pages to the cache.
+   *
+   * @param numPages the number of pages to release
+   */
+  public synchronized void releasePages(int numPages) {
+    this.numReservedPages = Math.max(0, this.numReservedPages - numPages);
+    updateStripeLimits();
+    notifyAll();
+  }
+
+  /**
+   * @return the number of pages currently reserved as working memory
+   */
+  public synchronized int getNumReservedPages() {
+    return this.numReservedPages;
+  }
+
+  /**
+   * @return the number of pages that may still be reserved
+   */
+  public synchronized int getNumUnreservedPages() {
+    return this.capacity - this.numReservedPages - numStripes;
+  }
+
+  private void updateStripeLimits() {
+    int cachePages = this.capacity - this.numReservedPages;
+    for (int i = 0; i < numStripes; i++) {
+      this.stripes[i].setLimit(stripeShare(cachePages, i));
+    }
+  }
+
+  private static int stripeShare(int numPages, int stripe) {
+    return numPages / numStripes + (stripe < numPages % numStripes ? 1 : 0);
+  }
+
+  private Stripe stripeFor(long vPageNum) {
+    long h = vPageNum * 0x9E3779B97F4A7C15L;
+    return this.stripes[(int) (h >>> 60) & (numStripes - 1)];
+  }
+
+  /**
+   * A cached page along with its replacement metadata.
+   */
+  private static class Frame {
+    private long vPageNum;
+    private Page page;
+    private int pinCount;
+    private boolean referenced;
+
+    private Frame(long vPageNum, Page page) {
+      this.vPageNum = vPageNum;
+      this.page = page;
+      this.pinCount = 0;
+      this.referenced = true;
+    }
+  }
+
+  /**
+   * One independently locked partition of the pool, managed with the CLOCK algorithm.
+   */
+  private static class Stripe {
+    private Map<Long, Frame> frameTable;
+    private Frame[] clock;
+    private int hand;
+    private int numFrames;
+    private int limit;
+
+    private Stripe(int capacity) {
+      this.frameTable = new HashMap<Long, Frame>();
+      this.clock = new Frame[capacity];
+      this.hand = 0;
+      this.numFrames = 0;
+      this.limit = capacity;
+    }
+
+    private synchronized void setLimit(int limit) {
+      this.limit = limit;
+    }
+
+    private synchronized Page get(long vPageNum) {
+      Frame f = this.frameTable.get(vPageNum);
+      if (f == null) {
+        return null;
+      }
+      f.referenced = true;
+      return f.page;
+    }
+
+    private synchronized Page getAndPin(long vPageNum) {
+      Frame f = this.frameTable.get(vPageNum);
+      if (f == null) {
+        return null;
+      }
+      f.pinCount++;
+      f.referenced = true;
+      return f.page;
+    }
+
+    private synchronized boolean contains(long vPageNum) {
+      return this.frameTable.containsKey(vPageNum);
+    }
+
+    private Page put(long vPageNum, Page page, boolean pin) {
+      List<Page> evicted = new ArrayList<Page>();
+      Page existingPage = null;
+      synchronized (this) {
+        Frame existing = this.frameTable.get(vPageNum);
+        if (existing != null) {
+          existing.referenced = true;
+          if (pin) {
+            existing.pinCount++;
+          }
+          existingPage = existing.page;
+        } else {
+          boolean cached = true;
+          while (this.numFrames >= this.limit) {
+            int slot = findVictim();
+            if (slot == -1) {
+              // a page whose writes only reach the file on release cannot be left uncached
+              cached = pin || page.needsWriteBack();
+              break;
+            }
+            Frame victim = this.clock[slot];
+            this.frameTable.remove(victim.vPageNum);
+            removeFromClock(slot);
+            evicted.add(victim.page);
+          }
+
+          if (cached) {
+            Frame f = new Frame(vPageNum, page);
+            if (pin) {
+              f.pinCount = 1;
+            }
+            if (this.numFrames == this.clock.length) {
+              this.clock = Arrays.copyOf(this.clock, 2 * this.clock.length + 1);
+            }
+            this.clock[this.numFrames] = f;
+            this.numFrames++;
+            this.frameTable.put(vPageNum, f);
+          }
+        }
+      }
+
+      if (existingPage != null) {
+        if (existingPage != page) {
+          page.discard();
+        }
+        return existingPage;
+      }
+      for (Page p : evicted) {
+        p.evict();
+      }
+      return page;
+    }
+
+    /**
+     * Advances the clock hand until an unpinned frame with a clear reference bit is found. Gives
+     * up after two full sweeps, which is only possible when every frame is pinned.
+     *
+     * @return the slot of the victim frame, or -1 if there is no evictable frame
+     */
+    private int findVictim() {
+      for (int i = 0; i < 2 * this.numFrames; i++) {
+        if (this.hand >= this.numFrames) {
+          this.hand = 0;
+        }
+        int slot = this.hand;
+        this.hand++;
+        Frame f = this.clock[slot];
+        if (f.pinCount > 0) {
+          continue;
+        }
+        if (f.referenced) {
+          f.referenced = false;
+          continue;
+        }
+        return slot;
+      }
+      return -1;
+    }
+
+    private synchronized Page remove(long vPageNum) {
+      Frame f = this.frameTable.remove(vPageNum);
+      if (f == null) {
+        return null;
+      }
+      removeFromClock(indexOf(f));
+      return f.page;
+    }
+
+    private synchronized boolean pin(long vPageNum) {
+      Frame f = this.frameTable.get(vPageNum);
+      if (f == null) {
+        return false;
+      }
+      f.pinCount++;
+      f.referenced = true;
+      return true;
+    }
+
+    private synchronized void unpin(long vPageNum) {
+      Frame f = this.frameTable.get(vPageNum);
+      if (f != null && f.pinCount > 0) {
+        f.pinCount--;
+      }
+    }
+
+    private synchronized int getPinCount(long vPageNum) {
+      Frame f = this.frameTable.get(vPageNum);
+      return f == null ? 0 : f.pinCount;
+    }
+
+    private synchronized void getAll(int allocID, List<Page> pages) {
+      for (int i = 0; i < this.numFrames; i++) {
+        if (PageAllocator.translateAllocator(this.clock[i].vPageNum) == allocID) {
+          pages.add(this.clock[i].page);
+        }
+      }
+    }
+
+    private synchronized void removeAll(int allocID, List<Page> removed) {
+      int i = 0;
+      while (i < this.numFrames) {
+        Frame f = this.clock[i];
+        if (PageAllocator.translateAllocator(f.vPageNum) == allocID) {
+          this.frameTable.remove(f.vPageNum);
+          removeFromClock(i);
+          removed.add(f.page);
+        } else {
+          i++;
+        }
+      }
+    }
+
+    private synchronized int size() {
+      return this.numFrames;
+    }
+
+    private int indexOf(Frame f) {
+      for (int i = 0; i < this.numFrames; i++) {
+        if (this.clock[i] == f) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Removes the frame in slot from the clock by moving the last frame into its place.
+     */
+    private void removeFromClock(int slot) {
+      this.numFrames--;
+      this.clock[slot] = this.clock[this.numFrames];
+      this.clock[this.numFrames] = null;
+    }
+  }
+}
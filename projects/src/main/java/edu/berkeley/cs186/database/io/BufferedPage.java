@@ -0,0 +1,168 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A Page whose bytes are read into a direct buffer from the FramePool with positional
+ * FileChannel reads, and written back with positional writes. Unlike a mapped Page, the moment a
+ * dirty page reaches the file is decided by the allocator: on flush, on eviction from the
+ * BufferPool, and when the allocator is closed. If its writes are logged, the log is flushed up to
+ * the page's last write first.
+ *
+ * Once evicted, a BufferedPage gives its frame back to the FramePool. Touching it afterwards brings
+ * it back into the BufferPool through its allocator, which reads the block in again; since the
+ * allocator hands out the same BufferedPage for a page for as long as a caller holds on to it,
+ * writes through a page kept across other fetches still reach the file. Touching a page that was
+ * freed fails.
+ */
+class BufferedPage extends Page {
+  private PageAllocator allocator;
+  private FileChannel fc;
+  private long position;
+  private ByteBuffer frame;
+  private boolean dirty;
+  private boolean discarded;
+
+  /**
+   * Create a new page holding block blockNum of fc, reading its current contents.
+   *
+   * @param allocator the allocator the page is brought back into the BufferPool through
+   * @param fc the file channel for this Page
+   * @param blockNum the block in the file for this page
+   * @param pageNum the virtual page number
+   * @param durable whether flush forces the page to disk
+   */
+  BufferedPage(PageAllocator allocator, FileChannel fc, int blockNum, int pageNum,
+               boolean durable) {
+    super(pageNum, durable);
+    this.allocator = allocator;
+    this.fc = fc;
+    this.position = ((long) blockNum) * Page.pageSize;
+    this.dirty = false;
+    this.discarded = false;
+    readFrame();
+  }
+
+  @Override
+  ByteBuffer getBuffer() {
+    while (true) {
+      synchronized (this) {
+        if (this.discarded) {
+          throw new PageException("page " + getPageNum() + " was freed");
+        }
+        if (this.frame != null) {
+          return this.frame;
+        }
+      }
+      // not under the monitor of this page, since caching it may evict others
+      this.allocator.recache(this);
+    }
+  }
+
+  /**
+   * Reads the page in again if it was evicted, for PageAllocator#recache.
+   */
+  synchronized void reload() {
+    if (this.frame == null && !this.discarded) {
+      readFrame();
+      IOStats.recordPhysicalRead(getIOStats());
+    }
+  }
+
+  @Override
+  boolean needsWriteBack() {
+    return true;
+  }
+
+  @Override
+  synchronized void markDirty() {
+    this.dirty = true;
+  }
+
+  synchronized boolean isDirty() {
+    return this.dirty;
+  }
+
+  /**
+   * Writes the page back to the file if it has been modified, and forces it to disk if the page
+   * is durable.
+   */
+  @Override
+  public synchronized void flush() {
+    writeBack();
+    if (this.isDurable()) {
+      PageAllocator.incrementCacheMisses();
+      try {
+        this.fc.force(false);
+      } catch (IOException e) {
+        throw new PageException("Can't force page: " + getPageNum() + " ; " + e.getMessage());
+      }
+      IOStats.recordFlush(getIOStats());
+    }
+  }
+
+  @Override
+  synchronized void release() {
+    if (this.frame == null) {
+      return;
+    }
+    if (this.isDurable()) {
+      flush();
+    } else {
+      writeBack();
+    }
+    FramePool.release(this.frame);
+    this.frame = null;
+  }
+
+  /**
+   * Gives the frame back to the FramePool without writing it back, since the page was freed or
+   * another Page holds it.
+   */
+  @Override
+  synchronized void discard() {
+    if (this.frame != null) {
+      FramePool.release(this.frame);
+      this.frame = null;
+    }
+    this.dirty = false;
+    this.discarded = true;
+  }
+
+  private void readFrame() {
+    ByteBuffer buf = FramePool.acquire();
+    try {
+      while (buf.hasRemaining()) {
+        int n = this.fc.read(buf, this.position + buf.position());
+        if (n < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      FramePool.release(buf);
+      throw new PageException("Can't read page: " + getPageNum() + " ; " + e.getMessage());
+    }
+    buf.clear();
+    this.frame = buf;
+  }
+
+  private void writeBack() {
+    if (!this.dirty || this.frame == null) {
+      return;
+    }
+    flushLog();
+    ByteBuffer out = this.frame.duplicate();
+    out.clear();
+    try {
+      while (out.hasRemaining()) {
+        this.fc.write(out, this.position + out.position());
+      }
+    } catch (IOException e) {
+      throw new PageException("Can't write page: " + getPageNum() + " ; " + e.getMessage());
+    }
+    this.dirty = false;
+    IOStats.recordPhysicalWrite(getIOStats());
+  }
+}
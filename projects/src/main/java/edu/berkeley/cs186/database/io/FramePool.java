@@ -0,0 +1,50 @@
+package edu.berkeley.cs186.database.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of reusable page-sized direct ByteBuffers used as frames by BufferedPages. Allocating a
+ * direct buffer is expensive and its memory is only returned when the buffer is garbage collected,
+ * so released frames are kept for reuse, up to maxFreeFrames of them.
+ */
+class FramePool {
+  private static final int maxFreeFrames = 256;
+
+  private static ConcurrentLinkedQueue<ByteBuffer> freeFrames = new ConcurrentLinkedQueue<ByteBuffer>();
+  private static AtomicInteger numFreeFrames = new AtomicInteger(0);
+
+  /**
+   * @return a zeroed page-sized direct buffer
+   */
+  static ByteBuffer acquire() {
+    ByteBuffer frame = freeFrames.poll();
+    if (frame == null) {
+      return ByteBuffer.allocateDirect(Page.pageSize);
+    }
+    numFreeFrames.decrementAndGet();
+    frame.clear();
+    for (int i = 0; i < Page.pageSize; i += 8) {
+      frame.putLong(i, 0L);
+    }
+    return frame;
+  }
+
+  /**
+   * Gives frame back to the pool. The caller must not touch frame afterwards.
+   *
+   * @param frame a buffer obtained from acquire
+   */
+  static void release(ByteBuffer frame) {
+    if (numFreeFrames.incrementAndGet() > maxFreeFrames) {
+      numFreeFrames.decrementAndGet();
+      return;
+    }
+    freeFrames.offer(frame);
+  }
+
+  static int getNumFreeFrames() {
+    return numFreeFrames.get();
+  }
+}
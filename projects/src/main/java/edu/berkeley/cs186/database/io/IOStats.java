@@ -0,0 +1,260 @@
+package edu.berkeley.cs186.database.io;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the page I/O done on behalf of some part of the system.
+ *
+ * Every PageAllocator owns an IOStats that counts everything done to its file. In addition, an
+ * IOStats can be bound to a thread (see bind); while it is bound, every I/O event caused by that
+ * thread is counted in it as well, and in its parent, grandparent and so on. Transactions and
+ * query plans use this to find out how much I/O they caused across all the tables they touch.
+ *
+ * The counters are:
+ * `logicalReads`: calls to PageAllocator#fetchPage
+ * `cacheHits`: logical reads served from the BufferPool
+ * `physicalReads`: pages brought in from the file, including read-ahead
+ * `physicalWrites`: pages written back to the file
+ * `flushes`: pages forced to disk
+ * `evictions`: pages evicted from the BufferPool
+ * `bytesRead` and `bytesWritten`: the bytes moved by physical reads and writes
+ */
+public class IOStats {
+  private static ThreadLocal<IOStats> boundStats = new ThreadLocal<IOStats>();
+
+  private IOStats parent;
+  private AtomicLong logicalReads;
+  private AtomicLong cacheHits;
+  private AtomicLong physicalReads;
+  private AtomicLong physicalWrites;
+  private AtomicLong flushes;
+  private AtomicLong evictions;
+  private AtomicLong bytesRead;
+  private AtomicLong bytesWritten;
+
+  public IOStats() {
+    this(null);
+  }
+
+  /**
+   * Create a new IOStats whose events are also counted in parent.
+   *
+   * @param parent the IOStats to propagate events to, or null
+   */
+  public IOStats(IOStats parent) {
+    this.parent = parent;
+    this.logicalReads = new AtomicLong(0);
+    this.cacheHits = new AtomicLong(0);
+    this.physicalReads = new AtomicLong(0);
+    this.physicalWrites = new AtomicLong(0);
+    this.flushes = new AtomicLong(0);
+    this.evictions = new AtomicLong(0);
+    this.bytesRead = new AtomicLong(0);
+    this.bytesWritten = new AtomicLong(0);
+  }
+
+  public long getNumLogicalReads() {
+    return this.logicalReads.get();
+  }
+
+  public long getNumCacheHits() {
+    return this.cacheHits.get();
+  }
+
+  public long getNumPhysicalReads() {
+    return this.physicalReads.get();
+  }
+
+  public long getNumPhysicalWrites() {
+    return this.physicalWrites.get();
+  }
+
+  public long getNumFlushes() {
+    return this.flushes.get();
+  }
+
+  public long getNumEvictions() {
+    return this.evictions.get();
+  }
+
+  public long getNumBytesRead() {
+    return this.bytesRead.get();
+  }
+
+  public long getNumBytesWritten() {
+    return this.bytesWritten.get();
+  }
+
+  /**
+   * @return the fraction of logical reads that were cache hits, or 0 if there were none
+   */
+  public double getHitRatio() {
+    long reads = getNumLogicalReads();
+    return reads == 0 ? 0 : ((double) getNumCacheHits()) / reads;
+  }
+
+  /**
+   * Sets every counter back to zero. Does not affect the parent.
+   */
+  public void reset() {
+    this.logicalReads.set(0);
+    this.cacheHits.set(0);
+    this.physicalReads.set(0);
+    this.physicalWrites.set(0);
+    this.flushes.set(0);
+    this.evictions.set(0);
+    this.bytesRead.set(0);
+    this.bytesWritten.set(0);
+  }
+
+  @Override
+  public String toString() {
+    return "logical reads: " + getNumLogicalReads() +
+        "\ncache hits: " + getNumCacheHits() +
+        "\nphysical reads: " + getNumPhysicalReads() +
+        "\nphysical writes: " + getNumPhysicalWrites() +
+        "\nflushes: " + getNumFlushes() +
+        "\nevictions: " + getNumEvictions() +
+        "\nbytes read: " + getNumBytesRead() +
+        "\nbytes written: " + getNumBytesWritten();
+  }
+
+  /**
+   * Binds stats to the current thread, so that I/O done by this thread is counted in it.
+   *
+   * @param stats the IOStats to bind, or null to unbind
+   * @return the IOStats that was bound before, to be passed to restore
+   */
+  public static IOStats bind(IOStats stats) {
+    IOStats previous = boundStats.get();
+    boundStats.set(stats);
+    return previous;
+  }
+
+  /**
+   * Like bind, but keeps the current binding if it already counts into stats, i.e. if stats is
+   * the bound IOStats or one of its ancestors. This way a query plan bound below its transaction
+   * keeps receiving events while the plan calls back into the transaction.
+   *
+   * @param stats the IOStats to bind
+   * @return the IOStats that was bound before, to be passed to restore
+   */
+  public static IOStats bindWithin(IOStats stats) {
+    IOStats previous = boundStats.get();
+    for (IOStats s = previous; s != null; s = s.parent) {
+      if (s == stats) {
+        return previous;
+      }
+    }
+    boundStats.set(stats);
+    return previous;
+  }
+
+  /**
+   * Undoes a call to bind or bindWithin.
+   *
+   * @param previous the value returned by bind
+   */
+  public static void restore(IOStats previous) {
+    boundStats.set(previous);
+  }
+
+  /**
+   * @return the IOStats bound to the current thread, or null
+   */
+  public static IOStats current() {
+    return boundStats.get();
+  }
+
+  /**
+   * Wraps iterator so that stats is bound (with bindWithin) to the calling thread during every
+   * call to it. Used to attribute the I/O of lazily evaluated operators to the query that created
+   * them.
+   *
+   * @param iterator the iterator to wrap
+   * @param stats the IOStats to bind
+   * @return the wrapped iterator
+   */
+  public static <T> Iterator<T> wrap(final Iterator<T> iterator, final IOStats stats) {
+    return new Iterator<T>() {
+      public boolean hasNext() {
+        IOStats previous = bindWithin(stats);
+        try {
+          return iterator.hasNext();
+        } finally {
+          restore(previous);
+        }
+      }
+
+      public T next() {
+        IOStats previous = bindWithin(stats);
+        try {
+          return iterator.next();
+        } finally {
+          restore(previous);
+        }
+      }
+
+      public void remove() {
+        iterator.remove();
+      }
+    };
+  }
+
+  static void recordLogicalRead(IOStats owner, boolean hit) {
+    for (IOStats s = owner; s != null; s = s.parent) {
+      s.record(hit);
+    }
+    for (IOStats s = boundStats.get(); s != null; s = s.parent) {
+      s.record(hit);
+    }
+  }
+
+  static void recordPhysicalRead(IOStats owner) {
+    for (IOStats s = owner; s != null; s = s.parent) {
+      s.physicalReads.getAndIncrement();
+      s.bytesRead.getAndAdd(Page.pageSize);
+    }
+    for (IOStats s = boundStats.get(); s != null; s = s.parent) {
+      s.physicalReads.getAndIncrement();
+      s.bytesRead.getAndAdd(Page.pageSize);
+    }
+  }
+
+  static void recordPhysicalWrite(IOStats owner) {
+    for (IOStats s = owner; s != null; s = s.parent) {
+      s.physicalWrites.getAndIncrement();
+      s.bytesWritten.getAndAdd(Page.pageSize);
+    }
+    for (IOStats s = boundStats.get(); s != null; s = s.parent) {
+      s.physicalWrites.getAndIncrement();
+      s.bytesWritten.getAndAdd(Page.pageSize);
+    }
+  }
+
+  static void recordFlush(IOStats owner) {
+    for (IOStats s = owner; s != null; s = s.parent) {
+      s.flushes.getAndIncrement();
+    }
+    for (IOStats s = boundStats.get(); s != null; s = s.parent) {
+      s.flushes.getAndIncrement();
+    }
+  }
+
+  static void recordEviction(IOStats owner) {
+    for (IOStats s = owner; s != null; s = s.parent) {
+      s.evictions.getAndIncrement();
+    }
+    for (IOStats s = boundStats.get(); s != null; s = s.parent) {
+      s.evictions.getAndIncrement();
+    }
+  }
+
+  private void record(boolean hit) {
+    this.logicalReads.getAndIncrement();
+    if (hit) {
+      this.cacheHits.getAndIncrement();
+    }
+  }
+}
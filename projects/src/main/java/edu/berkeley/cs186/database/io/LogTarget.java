@@ -0,0 +1,10 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * Where the writes to the pages of one PageAllocator are logged. Shared by all of the allocator's
+ * pages, so that logging can be enabled after some of them were created. Until then log is null.
+ */
+class LogTarget {
+  volatile WriteAheadLog log;
+  volatile String fileId;
+}
@@ -4,18 +4,39 @@ import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
- * General-purpose wrapper for interacting with the memory-mapped bytes on a page.
+ * General-purpose wrapper for interacting with the memory-mapped bytes on a page. Subclasses may
+ * keep the bytes somewhere else (see BufferedPage) by overriding getBuffer, markDirty, flush,
+ * release and discard.
  *
  * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
  */
 public class Page {
   public static final int pageSize = 4096;
 
-  private MappedByteBuffer pageData;
+  private ByteBuffer pageData;
+  private MappedByteBuffer mapping;
   private int pageNum;
   private boolean durable;
+  private IOStats ioStats;
+  private LogTarget logTarget;
+  private int blockNum;
+  private volatile long pageLSN = -1;
+
+  /**
+   * Create a page that is not backed by a mapping. Subclasses using this constructor must
+   * override getBuffer and flush.
+   *
+   * @param pageNum the virtual page number
+   * @param durable whether flush forces the page to disk
+   */
+  Page(int pageNum, boolean durable) {
+    this.pageNum = pageNum;
+    this.durable = durable;
+    PageAllocator.incrementCacheMisses();
+  }
 
   /**
    * Create a new page using fc with at offset blockNum with virtual page number pageNum
@@ -33,10 +54,31 @@ public class Page {
     this.durable = durable;
     PageAllocator.incrementCacheMisses();
     try {
-      this.pageData = fc.map(FileChannel.MapMode.READ_WRITE, blockNum*Page.pageSize, Page.pageSize);
+      this.mapping = fc.map(FileChannel.MapMode.READ_WRITE, blockNum*Page.pageSize, Page.pageSize);
     } catch (IOException e) {
       throw new PageException("Can't mmap page: " + pageNum + "at block: " + blockNum + " ; " + e.getMessage());
     }
+    this.pageData = this.mapping;
+  }
+
+  /**
+   * Create a new page that is a view of pageSize bytes at offset of an already mapped segment of
+   * a file. Flushing the page forces the whole segment.
+   *
+   * @param segment the mapped region that contains this page
+   * @param offset the offset of this page within segment
+   * @param pageNum the virtual page number
+   * @param durable whether flush forces the page to disk
+   */
+  Page(MappedByteBuffer segment, int offset, int pageNum, boolean durable) {
+    this.pageNum = pageNum;
+    this.durable = durable;
+    PageAllocator.incrementCacheMisses();
+    ByteBuffer view = segment.duplicate();
+    view.position(offset);
+    view.limit(offset + Page.pageSize);
+    this.pageData = view.slice();
+    this.mapping = segment;
   }
 
   /**
@@ -53,8 +95,10 @@ public class Page {
     if (buf.length < num) {
       throw new PageException("num bytes to read is longer than buffer");
     }
-    pageData.position(position);
-    pageData.get(buf, 0, num);
+    // a private view, so that threads reading the same page do not race on its position
+    ByteBuffer data = getBuffer().duplicate();
+    data.position(position);
+    data.get(buf, 0, num);
   }
 
   /**
@@ -92,7 +136,7 @@ public class Page {
     if (position < 0 || position >= Page.pageSize) {
       throw new PageException("readByte is out of bounds of page");
     }
-    return pageData.get(position);
+    return getBuffer().get(position);
   }
 
   /**
@@ -115,8 +159,13 @@ public class Page {
       throw new PageException("writeBytes would go out of bounds");
     }
 
-    pageData.position(position);
-    pageData.put(buf, 0, num);
+    if (isLogged()) {
+      logWrite(position, Arrays.copyOf(buf, num));
+    }
+    ByteBuffer data = getBuffer().duplicate();
+    data.position(position);
+    data.put(buf, 0, num);
+    markDirty();
   }
 
   /**
@@ -129,7 +178,11 @@ public class Page {
     if (position < 0 || position >= Page.pageSize) {
       throw new PageException("readByte is out of bounds of page");
     }
-    pageData.put(position, b);
+    if (isLogged()) {
+      logWrite(position, new byte[] {b});
+    }
+    getBuffer().put(position, b);
+    markDirty();
   }
 
   /**
@@ -139,7 +192,12 @@ public class Page {
    * @param value the value to write
    */
   public void writeInt(int startPos, int value) {
-    this.writeBytes(startPos, 4, ByteBuffer.allocate(4).putInt(value).array());
+    checkBounds(startPos, 4);
+    if (isLogged()) {
+      logWrite(startPos, ByteBuffer.allocate(4).putInt(value).array());
+    }
+    getBuffer().putInt(startPos, value);
+    markDirty();
   }
 
   /**
@@ -149,15 +207,126 @@ public class Page {
    * @return the 4-byte integer at startPos
    */
   public int readInt(int startPos) {
-    return ByteBuffer.wrap(this.readBytes(startPos, 4)).getInt();
+    checkBounds(startPos, 4);
+    return getBuffer().getInt(startPos);
+  }
+
+  /**
+   * Write a 2-byte short into the page at offset startPos.
+   *
+   * @param startPos the offset in the file to write to
+   * @param value the value to write
+   */
+  public void writeShort(int startPos, short value) {
+    checkBounds(startPos, 2);
+    if (isLogged()) {
+      logWrite(startPos, ByteBuffer.allocate(2).putShort(value).array());
+    }
+    getBuffer().putShort(startPos, value);
+    markDirty();
+  }
+
+  /**
+   * Read a 2-byte short from the page at offset startPos.
+   *
+   * @param startPos the offset in the file to read from
+   * @return the 2-byte short at startPos
+   */
+  public short readShort(int startPos) {
+    checkBounds(startPos, 2);
+    return getBuffer().getShort(startPos);
+  }
+
+  /**
+   * Write a 4-byte float into the page at offset startPos.
+   *
+   * @param startPos the offset in the file to write to
+   * @param value the value to write
+   */
+  public void writeFloat(int startPos, float value) {
+    checkBounds(startPos, 4);
+    if (isLogged()) {
+      logWrite(startPos, ByteBuffer.allocate(4).putFloat(value).array());
+    }
+    getBuffer().putFloat(startPos, value);
+    markDirty();
+  }
+
+  /**
+   * Read a 4-byte float from the page at offset startPos.
+   *
+   * @param startPos the offset in the file to read from
+   * @return the 4-byte float at startPos
+   */
+  public float readFloat(int startPos) {
+    checkBounds(startPos, 4);
+    return getBuffer().getFloat(startPos);
+  }
+
+  /**
+   * Returns a read-only view of num bytes at offset position, without copying them. The view
+   * reads the page directly, so it should only be used while the page is pinned.
+   *
+   * @param position the offset in the page where the view starts
+   * @param num the number of bytes in the view
+   * @return a read-only ByteBuffer over the bytes, positioned at 0
+   */
+  public ByteBuffer slice(int position, int num) {
+    checkBounds(position, num);
+    ByteBuffer view = getBuffer().asReadOnlyBuffer();
+    view.limit(position + num);
+    view.position(position);
+    return view.slice();
   }
 
   /**
    * Completely wipe (zero out) the page.
    */
   public void wipe() {
-    byte[] zeros = new byte[Page.pageSize];
-    this.writeBytes(0, Page.pageSize, zeros);
+    if (isLogged()) {
+      logWrite(0, new byte[Page.pageSize]);
+    }
+    ByteBuffer data = getBuffer();
+    for (int i = 0; i < Page.pageSize; i += 8) {
+      data.putLong(i, 0L);
+    }
+    markDirty();
+  }
+
+  private boolean isLogged() {
+    return this.logTarget != null && this.logTarget.log != null;
+  }
+
+  /**
+   * Logs that after is about to be written at position, on behalf of the transaction bound to the
+   * current thread (see WriteAheadLog#bind). Only the bytes written are logged; the changes of a
+   * transaction are undone logically, see WriteAheadLog#rollback.
+   */
+  private void logWrite(int position, byte[] after) {
+    this.logTarget.log.logUpdate(this.logTarget.fileId, this.blockNum, position, after, this);
+  }
+
+  /**
+   * Raises the LSN of this page to lsn, the LSN of a record of a write to it.
+   */
+  synchronized void updatePageLSN(long lsn) {
+    this.pageLSN = Math.max(this.pageLSN, lsn);
+  }
+
+  /**
+   * Flushes the log up to the last record of a write to this page, which has to happen before
+   * the page itself is written back to its file.
+   */
+  void flushLog() {
+    if (isLogged() && this.pageLSN >= 0) {
+      this.logTarget.log.flush(this.pageLSN);
+    }
+  }
+
+  private void checkBounds(int position, int num) {
+    if (position < 0 || num < 0 || Page.pageSize < position + num) {
+      throw new PageException("access of " + num + " bytes at " + position + " is out of bounds");
+    }
   }
 
   /**
@@ -166,10 +335,95 @@ public class Page {
   public void flush() {
     if (this.durable) {
       PageAllocator.incrementCacheMisses();
-      this.pageData.force();
+      flushLog();
+      this.mapping.force();
+      IOStats.recordFlush(this.ioStats);
+      IOStats.recordPhysicalWrite(this.ioStats);
     }
   }
 
+  /**
+   * Called by the BufferPool when this page is evicted or its allocator is closed. Mapped pages
+   * are simply flushed.
+   */
+  void release() {
+    flush();
+  }
+
+  /**
+   * Called when the page is freed, or dropped in favor of another Page of the same block, so its
+   * bytes need not reach the file. Mapped pages hold nothing to give up.
+   */
+  void discard() {
+  }
+
+  /**
+   * @return whether writes to this page only reach the file once it is released, so that the
+   *         BufferPool has to keep track of it even when every frame is pinned
+   */
+  boolean needsWriteBack() {
+    return false;
+  }
+
+  /**
+   * Called by the BufferPool when it evicts this page.
+   */
+  void evict() {
+    IOStats.recordEviction(this.ioStats);
+    release();
+  }
+
+  /**
+   * @param ioStats the statistics of the allocator this page belongs to
+   */
+  void setIOStats(IOStats ioStats) {
+    this.ioStats = ioStats;
+  }
+
+  IOStats getIOStats() {
+    return this.ioStats;
+  }
+
+  /**
+   * @param logTarget where the writes to this page are logged once logging is enabled
+   * @param blockNum the block of the file this page holds
+   */
+  void setLogTarget(LogTarget logTarget, int blockNum) {
+    this.logTarget = logTarget;
+    this.blockNum = blockNum;
+  }
+
+  /**
+   * @return the LSN of the last logged write to this page, or -1 if there was none
+   */
+  public long getPageLSN() {
+    return this.pageLSN;
+  }
+
+  /**
+   * Brings the bytes of this page into memory ahead of use, by touching the mapping.
+   */
+  void load() {
+    getBuffer().get(0);
+  }
+
+  /**
+   * @return the buffer holding the bytes of this page, positioned anywhere
+   */
+  ByteBuffer getBuffer() {
+    return this.pageData;
+  }
+
+  /**
+   * Called after every write to the page. Writes to mapped pages need no bookkeeping.
+   */
+  void markDirty() {
+  }
+
+  boolean isDurable() {
+    return this.durable;
+  }
+
   /**
    * @return the virtual page number of this page
    */
@@ -3,6 +3,7 @@ package edu.berkeley.cs186.database.io;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.IntBuffer;
 import java.nio.ByteOrder;
 import java.util.LinkedHashMap;
@@ -17,28 +18,97 @@ import java.util.ArrayList;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.TreeSet;
+import java.util.Collections;
 import java.io.Closeable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
 /**
  * A PageAllocation system for an OS paging system. Provides memory-mapped paging from the OS, an
- * interface to individual pages with the Page objects, an LRU cache for pages, 16GB worth of paging,
- * and virtual page translation.
+ * interface to individual pages with the Page objects, a BufferPool for caching pages, 16GB worth
+ * of paging, and virtual page translation. Allocators that are not given a BufferPool share a
+ * process-wide default pool.
+ *
+ * By default every page is mapped on its own. An allocator created with StorageMode.MAPPED_SEGMENT
+ * instead maps the file in segments of segmentSize bytes, each at most once, and hands out Pages
+ * as views into those segments; only the master and header pages keep mappings of their own.
+ * StorageMode.POSITIONAL does not map the file at all: pages are read into pooled direct buffers
+ * and written back when flushed, evicted, or on close.
+ *
+ * A durable allocator normally forces its master and header pages on every allocPage and freePage.
+ * In group commit mode (see enableGroupCommit) those changes are only recorded, and are forced
+ * together by sync, which runs on a timer, on close, and whenever a caller such as a committing
+ * transaction asks for it.
+ *
+ * Once logging is enabled (see enableLogging), every write to the allocator's pages is recorded
+ * in a WriteAheadLog, which can recover the file after a crash.
+ *
+ * Iterating over an allocator's pages triggers read-ahead: once an iterator has returned two pages,
+ * the next readAheadPages allocated pages are loaded into the BufferPool on a background thread,
+ * staying that far ahead of the iterator.
  *
  * YOU SHOULD NOT NEED TO CHANGE ANY OF THE CODE IN THIS PACKAGE.
  */
 public class PageAllocator implements Iterable<Page>, Closeable {
+  /**
+   * How the bytes of an allocator's file are brought into memory.
+   */
+  public enum StorageMode {
+    MAPPED_PAGE,
+    MAPPED_SEGMENT,
+    POSITIONAL
+  }
+
+  public static final int segmentSize = 64 * 1024 * 1024;
+
   private static final int numHeaderPages = 1024;
-  private static final int cacheSize = 1024;
+  private static final int defaultCacheSize = 1024;
 
   private static AtomicInteger pACounter = new AtomicInteger(0);
-  private static LRUCache<Long, Page> pageLRU = new LRUCache<Long, Page>(cacheSize);
+  private static BufferPool defaultBufferPool = new BufferPool(defaultCacheSize);
   private static AtomicLong numIOs = new AtomicLong(0);
   private static AtomicLong cacheMisses = new AtomicLong(0);
+  private static AtomicLong readAheadHits = new AtomicLong(0);
+  private static AtomicLong readAheadMisses = new AtomicLong(0);
+  private static int defaultReadAheadPages = 8;
+  private static ScheduledExecutorService flushScheduler =
+      Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("PageAllocator-flusher"));
+  private static ExecutorService readAheadExecutor =
+      Executors.newFixedThreadPool(2, daemonThreadFactory("PageAllocator-read-ahead"));
 
   private Page masterPage;
+  private volatile boolean closed;
+  private Page[] headPages;
+  private int[] pageCounts;
+  private long[][] allocatedPages;
+  private int[] freePageHints;
+  private int freeHeadHint;
+  private boolean groupCommit;
+  private boolean masterPageDirty;
+  private TreeSet<Integer> dirtyHeadPages;
+  private ScheduledFuture<?> flushTask;
+  private int readAheadPages;
+  private Set<Long> readAheadPending;
+  private IOStats ioStats;
   private FileChannel fc;
   private int numPages;
   private int allocID;
   private boolean durable;
+  private BufferPool bufferPool;
+  private StorageMode storageMode;
+  private MappedByteBuffer[] segments;
+  private LogTarget logTarget;
+  private Map<Integer, PageReference> bufferedPages;
+  private ReferenceQueue<BufferedPage> clearedPages;
   /**
    * Create a new PageAllocator that writes its bytes into a file named fName. If wipe is true, the
    * data in the page is completely removed.
@@ -51,28 +121,61 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   }
 
   public PageAllocator(String fName, boolean wipe, boolean durable) {
+    this(fName, wipe, durable, defaultBufferPool);
+  }
+
+  /**
+   * Create a new PageAllocator that caches its pages in bufferPool.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable a boolean specifying whether pages are forced to disk on flush
+   * @param bufferPool the BufferPool to cache this allocator's pages in
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, BufferPool bufferPool) {
+    this(fName, wipe, durable, bufferPool, StorageMode.MAPPED_PAGE);
+  }
+
+  /**
+   * Create a new PageAllocator that caches its pages in bufferPool and maps its file according to
+   * storageMode.
+   *
+   * @param fName the name of the file for this PageAllocator
+   * @param wipe a boolean specifying whether to wipe the file
+   * @param durable a boolean specifying whether pages are forced to disk on flush
+   * @param bufferPool the BufferPool to cache this allocator's pages in
+   * @param storageMode how pages of the file are mapped into memory
+   */
+  public PageAllocator(String fName, boolean wipe, boolean durable, BufferPool bufferPool,
+                       StorageMode storageMode) {
     this.durable = durable;
+    this.bufferPool = bufferPool;
+    this.storageMode = storageMode;
+    this.ioStats = new IOStats();
+    this.logTarget = new LogTarget();
+    this.headPages = new Page[1];
+    if (storageMode == StorageMode.POSITIONAL) {
+      this.bufferedPages = new HashMap<Integer, PageReference>();
+      this.clearedPages = new ReferenceQueue<BufferedPage>();
+    }
+    if (storageMode == StorageMode.MAPPED_SEGMENT) {
+      long maxBytes = ((long) numHeaderPages * (Page.pageSize + 1) + 2) * Page.pageSize;
+      this.segments = new MappedByteBuffer[(int) ((maxBytes + segmentSize - 1) / segmentSize)];
+    }
     try {
       this.fc = new RandomAccessFile(fName, "rw").getChannel();
     } catch (IOException e) {
       throw new PageException("Could not open File: " + e.getMessage());
     }
 
-    this.masterPage = new Page(this.fc, 0, -1);
+    this.masterPage = newMetaPage(0);
     this.allocID = pACounter.getAndIncrement();
 
     if (wipe) {
       // Nukes masterPage and headerPages
-      byte[] masterBytes = this.masterPage.readBytes();
-      IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-
-      int[] pageCounts = new int[ib.capacity()];
-      ib.get(pageCounts);
-
-      this.numPages = 0;
-
+      int[] oldCounts = readPageCounts();
       for (int i = 0; i < numHeaderPages; i++) {
-        if (pageCounts[i] > 0) {
+        if (oldCounts[i] > 0) {
           getHeadPage(i).wipe();
         }
       }
@@ -80,71 +183,159 @@ public class PageAllocator implements Iterable<Page>, Closeable {
       this.masterPage.wipe();
     }
 
-    byte[] masterBytes = masterPage.readBytes();
-    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
-    ib.get(pageCounts);
-
+    // The per-header-page arrays only cover the header pages in use, since a database can have
+    // many small tables open at once
+    int[] counts = readPageCounts();
+    int numUsedHeads = 1;
     this.numPages = 0;
     for (int i = 0; i < numHeaderPages; i++) {
-      this.numPages += pageCounts[i];
+      this.numPages += counts[i];
+      if (counts[i] > 0) {
+        numUsedHeads = i + 1;
+      }
+    }
+    this.pageCounts = Arrays.copyOf(counts, numUsedHeads);
+    this.allocatedPages = new long[numUsedHeads][];
+    this.freePageHints = new int[numUsedHeads];
+    this.freeHeadHint = 0;
+    this.groupCommit = false;
+    this.masterPageDirty = false;
+    this.dirtyHeadPages = new TreeSet<Integer>();
+    this.readAheadPages = defaultReadAheadPages;
+    this.readAheadPending = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+  }
+
+  private static ThreadFactory daemonThreadFactory(final String name) {
+    return new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+      }
+    };
+  }
+
+  /**
+   * Grows the per-header-page arrays so that they cover header page headIndex.
+   */
+  private void ensureHeadCapacity(int headIndex) {
+    if (headIndex < this.pageCounts.length) {
+      return;
     }
+    int newLength = Math.min(numHeaderPages, Math.max(headIndex + 1, 2 * this.pageCounts.length));
+    this.pageCounts = Arrays.copyOf(this.pageCounts, newLength);
+    this.allocatedPages = Arrays.copyOf(this.allocatedPages, newLength);
+    this.freePageHints = Arrays.copyOf(this.freePageHints, newLength);
+  }
+
+  private int[] readPageCounts() {
+    IntBuffer ib = ByteBuffer.wrap(this.masterPage.readBytes()).asIntBuffer();
+    int[] counts = new int[numHeaderPages];
+    ib.get(counts);
+    return counts;
   }
 
   /**
-   * Allocates a new page in the file.
+   * Allocates a new page in the file. The lowest free page number is always chosen.
+   *
+   * Free pages are found with an in-memory two-level structure: freeHeadHint is the lowest header
+   * page that may have a free page, and within a header page a bitset (built from the header page
+   * the first time it is needed) with its own hint locates the lowest free page. Both hints only
+   * move forward on allocation and back on free, so allocation is O(1) amortized. The master and
+   * header pages are still updated on every allocation and remain the persistent copy.
    *
    * @return the virtual page number of the page
    */
   public int allocPage() {
-    byte[] masterBytes = this.masterPage.readBytes();
-    IntBuffer ib = ByteBuffer.wrap(masterBytes).asIntBuffer();
-    int[] pageCounts = new int[ib.capacity()];
-    ib.get(pageCounts);
+    int pageNum;
+    Page headerPage;
+    synchronized (this) {
+      int headerIndex = this.freeHeadHint;
+      while (headerIndex < this.pageCounts.length && this.pageCounts[headerIndex] >= Page.pageSize) {
+        headerIndex++;
+      }
+      this.freeHeadHint = headerIndex;
+      if (headerIndex == numHeaderPages) {
+        throw new PageException("No free Pages Available");
+      }
+      ensureHeadCapacity(headerIndex);
 
-    Page headerPage = null;
-    int headerIndex = -1;
-    for (int i = 0; i < numHeaderPages; i++) {
-      if (pageCounts[i] < Page.pageSize) {
-        // Found header page with space
-        headerPage = getHeadPage(i);
-        headerIndex = i;
-        break;
+      long[] allocated = getAllocatedPages(headerIndex);
+      int pageIndex = nextClearBit(allocated, this.freePageHints[headerIndex]);
+      if (pageIndex == -1) {
+        throw new PageException("Header page should have free page but doesnt");
+      }
+      allocated[pageIndex / 64] |= 1L << (pageIndex % 64);
+      this.freePageHints[headerIndex] = pageIndex + 1;
+      this.pageCounts[headerIndex]++;
+
+      headerPage = getHeadPage(headerIndex);
+      this.masterPage.writeInt(headerIndex*4, this.pageCounts[headerIndex]);
+      headerPage.writeByte(pageIndex, (byte) 1);
+      pageNum = headerIndex * Page.pageSize + pageIndex;
+      this.numPages += 1;
+      if (this.groupCommit) {
+        this.masterPageDirty = true;
+        this.dirtyHeadPages.add(headerIndex);
       }
     }
 
-    if (headerPage == null) {
-      throw new PageException("No free Pages Available");
+    if (this.durable && !this.groupCommit) {
+      this.masterPage.flush();
+      headerPage.flush();
     }
 
-    byte[] headerBytes = headerPage.readBytes();
-    int pageIndex = -1;
+    fetchPage(pageNum).wipe();
+    return pageNum;
+  }
 
-    for (int i = 0; i < Page.pageSize; i++) {
-      if (headerBytes[i] == 0) {
-        pageIndex = i;
-        break;
+  /**
+   * Returns the allocation bitset of header page headIndex, building it from the header page on
+   * first use.
+   */
+  private long[] getAllocatedPages(int headIndex) {
+    ensureHeadCapacity(headIndex);
+    if (this.allocatedPages[headIndex] == null) {
+      long[] allocated = new long[Page.pageSize / 64];
+      if (this.pageCounts[headIndex] > 0) {
+        byte[] headerBytes = getHeadPage(headIndex).readBytes();
+        for (int i = 0; i < Page.pageSize; i++) {
+          if (headerBytes[i] != 0) {
+            allocated[i / 64] |= 1L << (i % 64);
+          }
+        }
       }
+      this.allocatedPages[headIndex] = allocated;
     }
+    return this.allocatedPages[headIndex];
+  }
 
-    if (pageIndex == -1) {
-     throw new PageException("Header page should have free page but doesnt");
+  /**
+   * @return the index of the first clear bit at or after from, or -1 if there is none
+   */
+  private static int nextClearBit(long[] bits, int from) {
+    int word = from / 64;
+    if (word >= bits.length) {
+      return -1;
     }
-
-    int newCount = pageCounts[headerIndex] + 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    this.masterPage.writeBytes(headerIndex*4, 4, newCountBytes);
-    headerPage.writeByte(pageIndex, (byte) 1);
-
-    if (this.durable) {
-      this.masterPage.flush();
-      headerPage.flush();
+    long free = ~bits[word] & (-1L << (from % 64));
+    while (free == 0) {
+      word++;
+      if (word == bits.length) {
+        return -1;
+      }
+      free = ~bits[word];
     }
+    return word * 64 + Long.numberOfTrailingZeros(free);
+  }
 
-    int pageNum = headerIndex * Page.pageSize + pageIndex;
-    fetchPage(pageNum).wipe();
-    this.numPages += 1;
-    return pageNum;
+  private synchronized boolean isAllocated(int pageNum) {
+    int headIndex = pageNum / Page.pageSize;
+    if (headIndex >= this.pageCounts.length || this.pageCounts[headIndex] < 1) {
+      return false;
+    }
+    int pageIndex = pageNum % Page.pageSize;
+    return (getAllocatedPages(headIndex)[pageIndex / 64] & (1L << (pageIndex % 64))) != 0;
   }
 
   /**
@@ -154,16 +345,42 @@ public class PageAllocator implements Iterable<Page>, Closeable {
    * @return a Page object wrapping the page corresponding to pageNum
    */
   public Page fetchPage(int pageNum) {
+    return fetchPage(pageNum, false);
+  }
+
+  /**
+   * Fetches the page corresponding to virtual page number pageNum and pins it in the BufferPool so
+   * that it cannot be evicted until the returned handle is closed.
+   *
+   * @param pageNum the virtual page number
+   * @return an open PageHandle for the page
+   */
+  public PageHandle pinPage(int pageNum) {
+    Page p = fetchPage(pageNum, true);
+    return new PageHandle(this.bufferPool, translatePageNum(pageNum), p);
+  }
+
+  /**
+   * Decrements the pin count of page pageNum. Prefer closing the PageHandle returned by pinPage.
+   *
+   * @param pageNum the virtual page number
+   */
+  public void unpinPage(int pageNum) {
+    this.bufferPool.unpin(translatePageNum(pageNum));
+  }
+
+  private Page fetchPage(int pageNum, boolean pin) {
     if (pageNum < 0) {
       throw new PageException("invalid page number -- out of bounds");
     }
 
     numIOs.getAndIncrement();
 
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        return pageLRU.get(translatePageNum(pageNum));
-      }
+    long vPageNum = translatePageNum(pageNum);
+    Page cached = pin ? this.bufferPool.getAndPin(vPageNum) : this.bufferPool.get(vPageNum);
+    IOStats.recordLogicalRead(this.ioStats, cached != null);
+    if (cached != null) {
+      return cached;
     }
 
     int headPageIndex = pageNum/Page.pageSize;
@@ -172,31 +389,86 @@ public class PageAllocator implements Iterable<Page>, Closeable {
       throw new PageException("invalid page number -- out of bounds");
     }
 
-    byte[] headCountBytes = this.masterPage.readBytes(headPageIndex*4, 4);
-    int headCount = ByteBuffer.wrap(headCountBytes).getInt();
-
-    if (headCount < 1) {
+    if (!isAllocated(pageNum)) {
       throw new PageException("invalid page number -- page not allocated");
     }
 
-    Page headPage = getHeadPage(headPageIndex);
+    Page dataPage = newDataPage(pageNum);
+
+    if (pin) {
+      return this.bufferPool.putAndPin(vPageNum, dataPage);
+    }
+    return this.bufferPool.put(vPageNum, dataPage);
+  }
 
+  private static int dataBlockID(int pageNum) {
+    int headPageIndex = pageNum/Page.pageSize;
     int dataPageIndex = pageNum % Page.pageSize;
+    return 2 + headPageIndex*(Page.pageSize + 1) + dataPageIndex;
+  }
 
-    byte validByte = headPage.readByte(dataPageIndex);
+  /**
+   * Loads the allocated pages in [from, to) that are not already cached into the BufferPool.
+   * Runs on the read-ahead executor; gives up quietly if the allocator is closed meanwhile.
+   */
+  private void readAhead(int from, int to) {
+    try {
+      for (int pageNum = from; pageNum < to; pageNum++) {
+        long vPageNum = translatePageNum(pageNum);
+        if (this.closed) {
+          return;
+        }
+        if (!isAllocated(pageNum) || this.bufferPool.contains(vPageNum)) {
+          continue;
+        }
+        Page p = newDataPage(pageNum);
+        p.load();
+        this.readAheadPending.add(vPageNum);
+        if (this.bufferPool.put(vPageNum, p) != p) {
+          this.readAheadPending.remove(vPageNum);
+        }
+        // close() marks the allocator closed before it empties the BufferPool, so either it
+        // removed the page just put or the page is seen here and taken out again
+        if (this.closed) {
+          Page removed = this.bufferPool.remove(vPageNum);
+          if (removed != null) {
+            removed.release();
+          }
+          this.readAheadPending.remove(vPageNum);
+          return;
+        }
+      }
+    } catch (PageException e) {
+      // the allocator was closed while reading ahead
+    }
+  }
 
-    if (validByte == 0) {
-      throw new PageException("invalid page number -- page not allocated");
+  /**
+   * Sets how many pages ahead of an iterator this allocator reads. 0 disables read-ahead.
+   *
+   * @param readAheadPages the read-ahead window in pages
+   */
+  public void setReadAheadPages(int readAheadPages) {
+    if (readAheadPages < 0) {
+      throw new PageException("read-ahead window cannot be negative");
     }
+    this.readAheadPages = readAheadPages;
+  }
 
-    int dataBlockID = 2 + headPageIndex*(Page.pageSize + 1) + dataPageIndex;
-    Page dataPage = new Page(this.fc, dataBlockID, pageNum, this.durable);
+  public int getReadAheadPages() {
+    return this.readAheadPages;
+  }
 
-    synchronized(PageAllocator.class) {
-      pageLRU.put(translatePageNum(pageNum), dataPage);
+  /**
+   * Sets the read-ahead window of allocators created from now on.
+   *
+   * @param readAheadPages the read-ahead window in pages
+   */
+  public static void setDefaultReadAheadPages(int readAheadPages) {
+    if (readAheadPages < 0) {
+      throw new PageException("read-ahead window cannot be negative");
     }
-
-    return dataPage;
+    defaultReadAheadPages = readAheadPages;
   }
 
   /**
@@ -214,33 +486,42 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     int headPageIndex = pageNum/Page.pageSize;
     int dataPageIndex = pageNum % Page.pageSize;
 
-    Page headPage = getHeadPage(headPageIndex);
-
-    if (headPage.readByte(dataPageIndex) == 0) {
-      return false;
+    Page headPage;
+    synchronized (this) {
+      if (!isAllocated(pageNum)) {
+        return false;
+      }
+      this.allocatedPages[headPageIndex][dataPageIndex / 64] &= ~(1L << (dataPageIndex % 64));
+      this.freePageHints[headPageIndex] = Math.min(this.freePageHints[headPageIndex], dataPageIndex);
+      this.freeHeadHint = Math.min(this.freeHeadHint, headPageIndex);
+      this.pageCounts[headPageIndex]--;
+      this.numPages -= 1;
+
+      headPage = getHeadPage(headPageIndex);
+      headPage.writeByte(dataPageIndex, (byte) 0);
+      this.masterPage.writeInt(headPageIndex*4, this.pageCounts[headPageIndex]);
+      if (this.groupCommit) {
+        this.masterPageDirty = true;
+        this.dirtyHeadPages.add(headPageIndex);
+      }
     }
 
-    headPage.writeByte(dataPageIndex, (byte) 0);
-    if (this.durable) {
+    if (this.durable && !this.groupCommit) {
       headPage.flush();
+      this.masterPage.flush();
     }
-    byte[] countBytes = masterPage.readBytes(4*headPageIndex,4);
-    int oldCount = ByteBuffer.wrap(countBytes).getInt();
 
-    int newCount = oldCount - 1;
-    byte[] newCountBytes = ByteBuffer.allocate(4).putInt(newCount).array();
-    masterPage.writeBytes(headPageIndex*4, 4, newCountBytes);
-    if (this.durable) {
-      masterPage.flush();
+    // a freed page's bytes are garbage, so a BufferedPage gives its frame back unwritten
+    Page removed = this.bufferPool.remove(translatePageNum(pageNum));
+    if (removed != null) {
+      removed.discard();
     }
-
-    synchronized(PageAllocator.class) {
-      if (pageLRU.containsKey(translatePageNum(pageNum))) {
-        pageLRU.remove(translatePageNum(pageNum));
+    p.discard();
+    if (this.bufferedPages != null) {
+      synchronized (this.bufferedPages) {
+        this.bufferedPages.remove(pageNum);
       }
     }
-
-    this.numPages -= 1;
     return true;
   }
 
@@ -262,43 +543,190 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   }
 
   /**
-   * Close this PageAllocator.
+   * Switches this allocator to group commit mode: allocPage and freePage stop forcing the master
+   * and header pages, and sync is run every flushIntervalMillis milliseconds instead. Calling this
+   * again changes the interval.
+   *
+   * @param flushIntervalMillis the time between background syncs, or 0 to only sync on demand
    */
-  public void close() {
+  public synchronized void enableGroupCommit(long flushIntervalMillis) {
     if (this.masterPage == null) {
-      return;
+      throw new PageException("page allocator has been closed");
     }
-    if (this.durable) {
-      this.masterPage.flush();
+    this.groupCommit = true;
+    if (this.flushTask != null) {
+      this.flushTask.cancel(false);
+      this.flushTask = null;
     }
-    List<Long> toRemove = new ArrayList<Long>();
-    Set<Long> vPageNums = null;
-    List<Page> toFlush = new ArrayList<Page>();
+    if (flushIntervalMillis > 0) {
+      this.flushTask = flushScheduler.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          try {
+            PageAllocator.this.sync();
+          } catch (PageException e) {
+            // the allocator was closed concurrently; close flushes everything itself
+          }
+        }
+      }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
 
-    synchronized(PageAllocator.class) {
-      vPageNums = pageLRU.keySet();
+  /**
+   * Leaves group commit mode, first syncing any pending metadata changes.
+   */
+  public void disableGroupCommit() {
+    synchronized (this) {
+      if (this.flushTask != null) {
+        this.flushTask.cancel(false);
+        this.flushTask = null;
+      }
     }
+    sync();
+    synchronized (this) {
+      this.groupCommit = false;
+    }
+  }
+
+  public synchronized boolean isGroupCommit() {
+    return this.groupCommit;
+  }
 
-    for (Long l : vPageNums) {
-      if (translateAllocator(l) == this.allocID) {
-        toRemove.add(l);
+  /**
+   * Forces the master page and every header page changed since the last sync to disk. Does
+   * nothing if there are no pending changes or the allocator is not durable.
+   */
+  public void sync() {
+    List<Page> toFlush = new ArrayList<Page>();
+    synchronized (this) {
+      if (this.masterPage == null || !this.durable) {
+        return;
+      }
+      for (int headIndex : this.dirtyHeadPages) {
+        toFlush.add(getHeadPage(headIndex));
       }
+      if (this.masterPageDirty) {
+        toFlush.add(this.masterPage);
+      }
+      this.dirtyHeadPages.clear();
+      this.masterPageDirty = false;
+    }
+    for (Page p : toFlush) {
+      p.flush();
     }
+  }
 
-    synchronized(PageAllocator.class) {
-      for (Long vPageNum : toRemove) {
-        if (pageLRU.containsKey(vPageNum)) {
-          toFlush.add(pageLRU.get(vPageNum));
-          pageLRU.remove(vPageNum);
+  /**
+   * Forces every page of this allocator to disk, along with its master and header pages, so that
+   * the log records of the writes to them are no longer needed. Pages evicted from the BufferPool
+   * were forced when they were evicted.
+   */
+  public void force() {
+    sync();
+    synchronized (this) {
+      if (this.masterPage == null || !this.durable) {
+        return;
+      }
+    }
+    if (this.storageMode == StorageMode.MAPPED_SEGMENT) {
+      // the segments do not know the LSNs of their pages, so every record goes first
+      if (this.logTarget.log != null) {
+        this.logTarget.log.flush();
+      }
+      synchronized (this) {
+        for (MappedByteBuffer segment : this.segments) {
+          if (segment != null) {
+            segment.force();
+          }
         }
       }
+      return;
     }
-    if (this.durable) {
-      for (Page p : toFlush) {
-        p.flush();
+    for (Page p : this.bufferPool.getAll(this.allocID)) {
+      p.flush();
+    }
+  }
+
+  /**
+   * Logs every write to the pages of this allocator from now on in log, where the file is known
+   * as fileId. If the file was just created, the log is told so and the current contents of its
+   * allocated pages are logged, since the writes that created them were not.
+   *
+   * @param log the log to write to
+   * @param fileId the name of the file within the directory WriteAheadLog#redo is run on
+   * @param created whether the file was created since the log was last truncated
+   */
+  public void enableLogging(WriteAheadLog log, String fileId, boolean created) {
+    synchronized (this) {
+      if (this.masterPage == null) {
+        throw new PageException("page allocator has been closed");
+      }
+      this.logTarget.fileId = fileId;
+    }
+    if (created) {
+      log.logCreate(fileId);
+      log.logUpdate(fileId, 0, 0, this.masterPage.readBytes(), null);
+      for (int headIndex = 0; headIndex < this.pageCounts.length; headIndex++) {
+        if (this.pageCounts[headIndex] == 0) {
+          continue;
+        }
+        log.logUpdate(fileId, 1 + headIndex*(Page.pageSize + 1), 0,
+            getHeadPage(headIndex).readBytes(), null);
+        for (int pageIndex = 0; pageIndex < Page.pageSize; pageIndex++) {
+          int pageNum = headIndex * Page.pageSize + pageIndex;
+          if (isAllocated(pageNum)) {
+            log.logUpdate(fileId, dataBlockID(pageNum), 0, fetchPage(pageNum).readBytes(), null);
+          }
+        }
+      }
+    }
+    this.logTarget.log = log;
+  }
+
+  /**
+   * Close this PageAllocator.
+   */
+  public void close() {
+    synchronized (this) {
+      if (this.flushTask != null) {
+        this.flushTask.cancel(false);
+        this.flushTask = null;
+      }
+      if (this.masterPage == null) {
+        return;
+      }
+      this.closed = true;
+    }
+    List<Page> toRelease = this.bufferPool.removeAll(this.allocID);
+    toRelease.add(this.masterPage);
+    for (Page headPage : this.headPages) {
+      if (headPage != null) {
+        toRelease.add(headPage);
+      }
+    }
+    if (this.storageMode == StorageMode.MAPPED_SEGMENT) {
+      // Data pages are views of the segments, so forcing each segment once covers all of them;
+      // the master and header pages are mapped on their own
+      if (this.durable) {
+        for (MappedByteBuffer segment : this.segments) {
+          if (segment != null) {
+            segment.force();
+          }
+        }
+        this.masterPage.release();
+        for (Page headPage : this.headPages) {
+          if (headPage != null) {
+            headPage.release();
+          }
+        }
+      }
+    } else if (this.durable || this.storageMode == StorageMode.POSITIONAL) {
+      for (Page p : toRelease) {
+        p.release();
       }
     }
     this.masterPage = null;
+    this.headPages = null;
+    this.segments = null;
     try {
       this.fc.close();
     } catch (IOException e) {
@@ -306,19 +734,163 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     }
   }
 
-  private Page getHeadPage(int headIndex) {
-    int headBlockID = 1 + headIndex*(Page.pageSize + 1);
-    return new Page(this.fc, headBlockID, -1);
+  private synchronized Page getHeadPage(int headIndex) {
+    if (headIndex >= this.headPages.length) {
+      int newLength = Math.min(numHeaderPages, Math.max(headIndex + 1, 2 * this.headPages.length));
+      this.headPages = Arrays.copyOf(this.headPages, newLength);
+    }
+    if (this.headPages[headIndex] == null) {
+      int headBlockID = 1 + headIndex*(Page.pageSize + 1);
+      this.headPages[headIndex] = newMetaPage(headBlockID);
+    }
+    return this.headPages[headIndex];
+  }
+
+  /**
+   * Creates the Page for the master or a header page at block blockNum. In MAPPED_SEGMENT mode it
+   * gets a mapping of its own, so that forcing it after an allocPage or freePage does not force
+   * the whole segment around it.
+   */
+  private Page newMetaPage(int blockNum) {
+    if (this.storageMode != StorageMode.MAPPED_SEGMENT) {
+      return newPage(blockNum, -1, true);
+    }
+    Page p = new Page(this.fc, blockNum, -1, true);
+    p.setIOStats(this.ioStats);
+    p.setLogTarget(this.logTarget, blockNum);
+    IOStats.recordPhysicalRead(this.ioStats);
+    return p;
+  }
+
+  /**
+   * Creates the Page of data page pageNum. In POSITIONAL mode, the same BufferedPage is handed out
+   * for as long as a caller holds on to it, so that a page kept across other fetches and the one
+   * fetched again after its eviction are the same object, see BufferedPage.
+   */
+  private Page newDataPage(int pageNum) {
+    if (this.bufferedPages == null) {
+      return newPage(dataBlockID(pageNum), pageNum, this.durable);
+    }
+    synchronized (this.bufferedPages) {
+      PageReference cleared = (PageReference) this.clearedPages.poll();
+      while (cleared != null) {
+        if (this.bufferedPages.get(cleared.pageNum) == cleared) {
+          this.bufferedPages.remove(cleared.pageNum);
+        }
+        cleared = (PageReference) this.clearedPages.poll();
+      }
+      PageReference ref = this.bufferedPages.get(pageNum);
+      BufferedPage p = ref == null ? null : ref.get();
+      if (p == null) {
+        p = (BufferedPage) newPage(dataBlockID(pageNum), pageNum, this.durable);
+        this.bufferedPages.put(pageNum, new PageReference(p, this.clearedPages));
+      }
+      return p;
+    }
+  }
+
+  /**
+   * Brings a BufferedPage evicted while a caller held on to it back into the BufferPool, reading
+   * it in again, so that its writes are written back like those of any other cached page.
+   *
+   * @param p the evicted page
+   */
+  void recache(BufferedPage p) {
+    int pageNum = p.getPageNum();
+    synchronized (this) {
+      if (this.closed) {
+        throw new PageException("page allocator has been closed");
+      }
+      if (pageNum < 0 || !isAllocated(pageNum)) {
+        throw new PageException("page " + pageNum + " is not allocated");
+      }
+    }
+    p.reload();
+    this.bufferPool.put(translatePageNum(pageNum), p);
+  }
+
+  /**
+   * Creates a Page for block blockNum of the file according to this allocator's StorageMode.
+   */
+  private Page newPage(int blockNum, int pageNum, boolean durable) {
+    Page p;
+    if (this.storageMode == StorageMode.MAPPED_PAGE) {
+      p = new Page(this.fc, blockNum, pageNum, durable);
+    } else if (this.storageMode == StorageMode.POSITIONAL) {
+      p = new BufferedPage(this, this.fc, blockNum, pageNum, durable);
+    } else {
+      long position = ((long) blockNum) * Page.pageSize;
+      MappedByteBuffer segment = getSegment((int) (position / segmentSize));
+      p = new Page(segment, (int) (position % segmentSize), pageNum, durable);
+    }
+    p.setIOStats(this.ioStats);
+    p.setLogTarget(this.logTarget, blockNum);
+    IOStats.recordPhysicalRead(this.ioStats);
+    return p;
+  }
+
+  private synchronized MappedByteBuffer getSegment(int segmentIndex) {
+    if (this.segments == null) {
+      throw new PageException("page allocator has been closed");
+    }
+    if (this.segments[segmentIndex] == null) {
+      try {
+        this.segments[segmentIndex] = this.fc.map(FileChannel.MapMode.READ_WRITE,
+            ((long) segmentIndex) * segmentSize, segmentSize);
+      } catch (IOException e) {
+        throw new PageException("Can't mmap segment: " + segmentIndex + " ; " + e.getMessage());
+      }
+    }
+    return this.segments[segmentIndex];
+  }
+
+  /**
+   * @return the I/O statistics of this allocator's file
+   */
+  public IOStats getIOStats() {
+    return this.ioStats;
+  }
+
+  public StorageMode getStorageMode() {
+    return this.storageMode;
   }
 
   public int getNumPages() {
     return this.numPages;
   }
 
+  /**
+   * @return the BufferPool this allocator caches its pages in
+   */
+  public BufferPool getBufferPool() {
+    return this.bufferPool;
+  }
+
+  /**
+   * @return the BufferPool shared by allocators that were not given one explicitly
+   */
+  public static BufferPool getDefaultBufferPool() {
+    return defaultBufferPool;
+  }
+
   public static long getNumIOs() {
     return PageAllocator.numIOs.get();
   }
 
+  /**
+   * @return the number of pages iterators found in the cache because read-ahead loaded them
+   */
+  public static long getNumReadAheadHits() {
+    return PageAllocator.readAheadHits.get();
+  }
+
+  /**
+   * @return the number of pages iterators had to load themselves while reading ahead
+   */
+  public static long getNumReadAheadMisses() {
+    return PageAllocator.readAheadMisses.get();
+  }
+
   static void incrementNumIOs() {
     PageAllocator.numIOs.getAndIncrement();
   }
@@ -335,7 +907,7 @@ public class PageAllocator implements Iterable<Page>, Closeable {
     return (((long) this.allocID) << 32) | (((long) pageNum) & 0xFFFFFFFFL);
   }
 
-  static private int translateAllocator(long vPageNum) {
+  static int translateAllocator(long vPageNum) {
     return (int) ((vPageNum & 0xFFFFFFFF00000000L) >> 32);
   }
 
@@ -349,10 +921,12 @@ public class PageAllocator implements Iterable<Page>, Closeable {
   private class PageIterator implements Iterator<Page> {
     private int pageNum;
     private int cursor;
+    private int readAheadCursor;
 
     public PageIterator() {
       this.pageNum = 0;
       this.cursor = 0;
+      this.readAheadCursor = 0;
     }
 
     public boolean hasNext() {
@@ -364,9 +938,11 @@ public class PageAllocator implements Iterable<Page>, Closeable {
         while (true) {
           Page p;
           try {
+            countReadAhead(cursor);
             p = PageAllocator.this.fetchPage(cursor);
             cursor++;
             pageNum++;
+            readAhead();
             return p;
           } catch (PageException e) {
             cursor++;
@@ -376,8 +952,64 @@ public class PageAllocator implements Iterable<Page>, Closeable {
       throw new NoSuchElementException();
     }
 
+    private void countReadAhead(int pageNum) {
+      if (this.readAheadCursor == 0) {
+        return;
+      }
+      long vPageNum = PageAllocator.this.translatePageNum(pageNum);
+      if (PageAllocator.this.readAheadPending.remove(vPageNum)) {
+        readAheadHits.getAndIncrement();
+      } else if (!PageAllocator.this.bufferPool.contains(vPageNum)) {
+        readAheadMisses.getAndIncrement();
+      }
+    }
+
+    /**
+     * Once the scan has returned two pages, keeps the read-ahead window full: whenever less than
+     * half of the window is left ahead of the cursor, the next stretch is submitted.
+     */
+    private void readAhead() {
+      int window = PageAllocator.this.readAheadPages;
+      if (window == 0 || this.pageNum < 2) {
+        return;
+      }
+      if (this.readAheadCursor == 0) {
+        this.readAheadCursor = this.cursor;
+      }
+      if (this.readAheadCursor - this.cursor > window / 2) {
+        return;
+      }
+      final int from = this.readAheadCursor;
+      final int to = this.cursor + window;
+      final IOStats scanStats = IOStats.current();
+      this.readAheadCursor = to;
+      readAheadExecutor.execute(new Runnable() {
+        public void run() {
+          IOStats previous = IOStats.bind(scanStats);
+          try {
+            PageAllocator.this.readAhead(from, to);
+          } finally {
+            IOStats.restore(previous);
+          }
+        }
+      });
+    }
+
     public void remove() {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * A weak reference to the BufferedPage of a page, which is cleared once no caller holds on to
+   * the page and it is out of the BufferPool.
+   */
+  private static class PageReference extends WeakReference<BufferedPage> {
+    private int pageNum;
+
+    private PageReference(BufferedPage page, ReferenceQueue<BufferedPage> queue) {
+      super(page, queue);
+      this.pageNum = page.getPageNum();
+    }
+  }
 }
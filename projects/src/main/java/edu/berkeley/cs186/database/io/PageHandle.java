@@ -0,0 +1,53 @@
+package edu.berkeley.cs186.database.io;
+
+/**
+ * A pinned Page. While a PageHandle is open, the page it wraps stays in its allocator's
+ * BufferPool and cannot be chosen for eviction. Closing the handle unpins the page; it is meant to
+ * be used with try-with-resources, or held by an operator for as long as the page is in use.
+ */
+public class PageHandle implements AutoCloseable {
+  private BufferPool bufferPool;
+  private long vPageNum;
+  private Page page;
+  private boolean closed;
+
+  PageHandle(BufferPool bufferPool, long vPageNum, Page page) {
+    this.bufferPool = bufferPool;
+    this.vPageNum = vPageNum;
+    this.page = page;
+    this.closed = false;
+  }
+
+  /**
+   * @return the pinned Page
+   * @throws PageException if this handle has already been closed
+   */
+  public Page getPage() {
+    if (this.closed) {
+      throw new PageException("page handle has already been closed");
+    }
+    return this.page;
+  }
+
+  /**
+   * @return the virtual page number of the pinned page
+   */
+  public int getPageNum() {
+    return this.page.getPageNum();
+  }
+
+  public boolean isClosed() {
+    return this.closed;
+  }
+
+  /**
+   * Unpins the page. Closing a handle more than once has no further effect.
+   */
+  public void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    this.bufferPool.unpin(this.vPageNum);
+  }
+}
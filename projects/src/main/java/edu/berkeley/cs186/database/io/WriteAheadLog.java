@@ -0,0 +1,805 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A sequential, append-only log of the writes to the pages of PageAllocators that have logging
+ * enabled (see PageAllocator#enableLogging) and of the changes of transactions, used to recover
+ * their files after a crash and to roll transactions back.
+ *
+ * Every write to a logged page appends an UPDATE record with the bytes it writes, which recovery
+ * redoes. The changes of transactions are undone logically instead, by the code that made them
+ * (see Undo), since the pages they wrote, such as slot bitmaps, B+ tree leaves and allocator
+ * headers, are shared with the changes of other transactions. A change is logged as an operation
+ * (see beginOperation), which ends with an UNDO record that describes how to undo it. The UPDATE
+ * records of an operation also hold the bytes they overwrite, so that redo can take back an
+ * operation that a crash interrupted before logging its end, such as half of a B+ tree split.
+ *
+ * The log sequence number (LSN) of a record is its offset in the log file. Records are buffered in
+ * memory and written to the file when the log is flushed and when the buffer fills up, except
+ * that the UPDATE of a write to a mapped page, which is in the file as soon as it is made, and
+ * UNDO records are written to the file right away, so that a crash of the process cannot leave a
+ * change in a file that its log does not describe. Records are only forced to disk when the log
+ * is flushed. A committing transaction flushes the log once, up to its COMMIT record, and a page
+ * that is forced or written back to its file first flushes the log up to the last record that
+ * changed it. Transactions that commit while the log is being forced share the next force.
+ *
+ * Rolling back follows ARIES: the UNDO records of a transaction are visited newest first along the
+ * prevLSN chain of its records, and every undone change is followed by a compensation record (CLR)
+ * that points past it, so that a rollback interrupted by a crash does not undo a change twice.
+ * After a crash, redo repeats history, including the changes of the transactions that did not
+ * finish, which are then rolled back once the logged files are open again.
+ */
+public class WriteAheadLog implements Closeable {
+  public static final String FILENAME = "database.log";
+
+  /**
+   * The transaction of writes done outside of any transaction. They are never undone.
+   */
+  public static final long NO_TRANSACTION = -1;
+
+  static final byte UPDATE = 1;
+  static final byte COMPENSATION = 2;
+  static final byte CREATE = 3;
+  static final byte COMMIT = 4;
+  static final byte ABORT = 5;
+  static final byte END = 6;
+  static final byte UNDO = 7;
+  static final byte OPERATION_UPDATE = 8;
+  static final byte OPERATION_END = 9;
+
+  /**
+   * The number of buffered bytes past which records are written to the file.
+   */
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int HEADER_SIZE = 21;
+  private static final byte[] EMPTY = new byte[0];
+
+  private static ThreadLocal<Long> boundTransaction = new ThreadLocal<Long>();
+
+  private FileChannel fc;
+  private Object forceLock;
+  private long nextLSN;
+  private long writtenLSN;
+  private volatile long flushedLSN;
+  private byte[] buffer;
+  private int bufferSize;
+  private Map<Long, Long> lastLSNs;
+  private long numForces;
+  private ThreadLocal<Operation> operations;
+  private ThreadLocal<LogRecord> undoing;
+
+  /**
+   * Undoes the changes of transactions, as described by the UNDO records of their operations.
+   */
+  public interface Undo {
+    /**
+     * Undoes a change of transaction transNum. The undo has to write its pages in a single
+     * operation, whose end logs the CLR of the change.
+     *
+     * @param transNum the transaction that made the change
+     * @param change the description of the change passed to endOperation
+     */
+    void undo(long transNum, byte[] change);
+  }
+
+  /**
+   * Visits the changes of the transactions that committed, for the changes that repeating the
+   * page writes of the log does not redo.
+   */
+  public interface Redo {
+    /**
+     * Visits a change of transaction transNum, which committed.
+     *
+     * @param transNum the transaction that made the change
+     * @param change the description of the change passed to endOperation
+     */
+    void redo(long transNum, byte[] change);
+  }
+
+  /**
+   * A record of the log, as read back by redo and rollback.
+   */
+  static class LogRecord {
+    long lsn;
+    byte type;
+    long transNum;
+    long prevLSN;
+    String fileId;
+    int blockNum;
+    int offset;
+    byte[] after;
+    byte[] before;
+    long undoNextLSN;
+    long operationLSN = -1;
+    byte[] change;
+    boolean compensated;
+  }
+
+  /**
+   * The operation a thread is in.
+   */
+  private static class Operation {
+    // the LSN of the last OPERATION_UPDATE of the operation
+    long lastLSN = -1;
+  }
+
+  /**
+   * Opens the log in file fName, creating it if it does not exist. Records are appended after the
+   * ones already in the file.
+   *
+   * @param fName the name of the log file
+   */
+  public WriteAheadLog(String fName) {
+    try {
+      this.fc = new RandomAccessFile(fName, "rw").getChannel();
+      this.nextLSN = this.fc.size();
+    } catch (IOException e) {
+      throw new PageException("Could not open log: " + e.getMessage());
+    }
+    this.writtenLSN = this.nextLSN;
+    this.flushedLSN = this.nextLSN;
+    this.buffer = new byte[2 * BUFFER_SIZE];
+    this.bufferSize = 0;
+    this.forceLock = new Object();
+    this.lastLSNs = new ConcurrentHashMap<Long, Long>();
+    this.numForces = 0;
+    this.operations = new ThreadLocal<Operation>();
+    this.undoing = new ThreadLocal<LogRecord>();
+  }
+
+  /**
+   * Binds transaction transNum to the current thread, so that the page writes of this thread are
+   * logged on its behalf.
+   *
+   * @param transNum the transaction to bind
+   * @return the transaction that was bound before, to be passed to restore
+   */
+  public static long bind(long transNum) {
+    long previous = current();
+    boundTransaction.set(transNum);
+    return previous;
+  }
+
+  /**
+   * Undoes a call to bind.
+   *
+   * @param previous the value returned by bind
+   */
+  public static void restore(long previous) {
+    if (previous == NO_TRANSACTION) {
+      boundTransaction.remove();
+    } else {
+      boundTransaction.set(previous);
+    }
+  }
+
+  /**
+   * @return the transaction bound to the current thread, or NO_TRANSACTION
+   */
+  public static long current() {
+    Long transNum = boundTransaction.get();
+    return transNum == null ? NO_TRANSACTION : transNum;
+  }
+
+  /**
+   * Starts an operation of the current thread: the page writes it logs until endOperation are
+   * either all kept or all taken back by recovery. Operations do not nest. The caller has to keep
+   * the pages it writes from being written by other threads until the operation ends, so that an
+   * operation that a crash interrupted can be taken back from the bytes it overwrote.
+   */
+  public void beginOperation() {
+    if (this.operations.get() != null) {
+      throw new PageException("operation already in progress");
+    }
+    this.operations.set(new Operation());
+  }
+
+  /**
+   * Ends the operation of the current thread. If the operation undoes a change for rollback, its
+   * end is logged with the CLR of the change, otherwise with an UNDO record of transNum holding
+   * change, unless change is null.
+   *
+   * @param transNum the transaction the operation belongs to
+   * @param change a description of how to undo the operation, passed to Undo#undo, or null
+   */
+  public void endOperation(long transNum, byte[] change) {
+    Operation op = this.operations.get();
+    if (op == null) {
+      throw new PageException("no operation in progress");
+    }
+    this.operations.remove();
+
+    LogRecord undone = this.undoing.get();
+    if (undone != null && !undone.compensated) {
+      undone.compensated = true;
+      append(COMPENSATION, transNum, -1, compensation(undone.prevLSN, op.lastLSN), false);
+    } else if (change != null && transNum != NO_TRANSACTION) {
+      byte[] body = ByteBuffer.allocate(8 + change.length).putLong(op.lastLSN).put(change).array();
+      append(UNDO, transNum, -1, body, true);
+    } else if (op.lastLSN >= 0) {
+      append(OPERATION_END, transNum, -1, ByteBuffer.allocate(8).putLong(op.lastLSN).array(),
+          false);
+    }
+  }
+
+  /**
+   * @return the body of a CLR pointing to undoNextLSN, which ends the operation whose last
+   *         OPERATION_UPDATE is at operationLSN
+   */
+  private static byte[] compensation(long undoNextLSN, long operationLSN) {
+    return ByteBuffer.allocate(16).putLong(undoNextLSN).putLong(operationLSN).array();
+  }
+
+  /**
+   * Logs that after is about to be written at offset of block blockNum of the file fileId, on
+   * behalf of the transaction bound to the current thread. Within an operation, the record also
+   * holds the bytes of page that are about to be overwritten.
+   *
+   * @param page the page written, whose LSN is raised to that of the record, or null
+   */
+  void logUpdate(String fileId, int blockNum, int offset, byte[] after, Page page) {
+    Operation op = this.operations.get();
+    boolean undoable = op != null && page != null;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+        16 + fileId.length() + (undoable ? 2 : 1) * after.length);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeUTF(fileId);
+      out.writeInt(blockNum);
+      out.writeInt(offset);
+      out.writeInt(after.length);
+      out.write(after);
+      if (undoable) {
+        out.write(page.readBytes(offset, after.length));
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not log update: " + e.getMessage());
+    }
+
+    // a mapped page changes its file as soon as it is written, so its record has to be there first
+    boolean write = page == null || !page.needsWriteBack();
+    long lsn;
+    if (undoable) {
+      lsn = append(OPERATION_UPDATE, current(), op.lastLSN, bytes.toByteArray(), write);
+      op.lastLSN = lsn;
+    } else {
+      lsn = append(UPDATE, current(), -1, bytes.toByteArray(), write);
+    }
+    if (page != null) {
+      page.updatePageLSN(lsn);
+    }
+  }
+
+  /**
+   * Logs that the file fileId was created, so that redo ignores the records of an earlier file of
+   * the same name.
+   */
+  void logCreate(String fileId) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new DataOutputStream(bytes).writeUTF(fileId);
+    } catch (IOException e) {
+      throw new PageException("Could not log create: " + e.getMessage());
+    }
+    append(CREATE, NO_TRANSACTION, -1, bytes.toByteArray(), false);
+  }
+
+  /**
+   * Logs that transaction transNum committed and flushes the log, which makes its changes
+   * durable. Does nothing if the transaction did not log a change.
+   *
+   * @param transNum the committing transaction
+   */
+  public void commit(long transNum) {
+    if (!this.lastLSNs.containsKey(transNum)) {
+      return;
+    }
+    flush(append(COMMIT, transNum, -1, EMPTY, false));
+    append(END, transNum, -1, EMPTY, false);
+  }
+
+  /**
+   * Rolls transaction transNum back. See rollback(Collection, Undo).
+   *
+   * @param transNum the aborting transaction
+   * @param undo undoes the changes of the transaction
+   */
+  public void rollback(long transNum, Undo undo) {
+    rollback(Collections.singleton(transNum), undo);
+  }
+
+  /**
+   * Rolls the transactions transNums back together, undoing their changes newest first with undo,
+   * each followed by its CLR. Changes that were undone before, by a rollback that a crash
+   * interrupted, are skipped. Does nothing for a transaction that did not log a change.
+   *
+   * @param transNums the aborting transactions
+   * @param undo undoes the changes of the transactions
+   */
+  public void rollback(Collection<Long> transNums, Undo undo) {
+    // the LSN of the next record to visit of each transaction
+    TreeMap<Long, Long> toVisit = new TreeMap<Long, Long>();
+    for (long transNum : transNums) {
+      if (this.lastLSNs.containsKey(transNum)) {
+        toVisit.put(append(ABORT, transNum, -1, EMPTY, false), transNum);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      Map.Entry<Long, Long> newest = toVisit.pollLastEntry();
+      long transNum = newest.getValue();
+      LogRecord record = readRecord(newest.getKey());
+      if (record.type == UNDO) {
+        this.undoing.set(record);
+        try {
+          undo.undo(transNum, record.change);
+        } finally {
+          this.undoing.remove();
+        }
+        if (!record.compensated) {
+          append(COMPENSATION, transNum, -1, compensation(record.prevLSN, -1), false);
+        }
+      }
+      long next = record.type == COMPENSATION ? record.undoNextLSN : record.prevLSN;
+      if (next >= 0) {
+        toVisit.put(next, transNum);
+      } else {
+        append(END, transNum, -1, EMPTY, false);
+      }
+    }
+  }
+
+  private static byte[] encode(byte type, long transNum, long prevLSN, byte[] body) {
+    ByteBuffer buf = ByteBuffer.allocate(body.length + HEADER_SIZE);
+    buf.putInt(body.length + HEADER_SIZE - 4);
+    buf.put(type);
+    buf.putLong(transNum);
+    buf.putLong(prevLSN);
+    buf.put(body);
+    return buf.array();
+  }
+
+  /**
+   * @return whether a record of type type of transaction transNum is on the prevLSN chain of the
+   *         transaction, which rollback follows
+   */
+  private static boolean isChained(byte type, long transNum) {
+    return transNum != NO_TRANSACTION && type != UPDATE && type != OPERATION_UPDATE
+        && type != OPERATION_END;
+  }
+
+  /**
+   * Appends a record of type type of transaction transNum. The prevLSN of a record on the chain of
+   * its transaction is the transaction's last record; other records get prevLSN.
+   *
+   * @param write whether to write the record to the file before returning
+   * @return the LSN of the record
+   */
+  private synchronized long append(byte type, long transNum, long prevLSN, byte[] body,
+                                   boolean write) {
+    long lsn = this.nextLSN;
+    if (isChained(type, transNum)) {
+      Long lastLSN = this.lastLSNs.get(transNum);
+      prevLSN = lastLSN == null ? -1 : lastLSN;
+      if (type == END) {
+        this.lastLSNs.remove(transNum);
+      } else {
+        this.lastLSNs.put(transNum, lsn);
+      }
+    }
+    put(encode(type, transNum, prevLSN, body));
+    if (write || this.bufferSize >= BUFFER_SIZE) {
+      writeBuffer();
+    }
+    return lsn;
+  }
+
+  private void put(byte[] bytes) {
+    if (this.bufferSize + bytes.length > this.buffer.length) {
+      this.buffer = Arrays.copyOf(this.buffer,
+          Math.max(2 * this.buffer.length, this.bufferSize + bytes.length));
+    }
+    System.arraycopy(bytes, 0, this.buffer, this.bufferSize, bytes.length);
+    this.bufferSize += bytes.length;
+    this.nextLSN += bytes.length;
+  }
+
+  /**
+   * Writes the buffered records to the file. The caller holds the monitor of this log.
+   */
+  private void writeBuffer() {
+    ByteBuffer buf = ByteBuffer.wrap(this.buffer, 0, this.bufferSize);
+    try {
+      while (buf.hasRemaining()) {
+        this.fc.write(buf, this.writtenLSN + buf.position());
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not append to log: " + e.getMessage());
+    }
+    this.writtenLSN += this.bufferSize;
+    this.bufferSize = 0;
+    if (this.buffer.length > 2 * BUFFER_SIZE) {
+      // a record larger than the buffer grew it
+      this.buffer = new byte[2 * BUFFER_SIZE];
+    }
+  }
+
+  /**
+   * Forces the log to disk up to and including the record at lsn, unless it is there already.
+   * The records appended before the force starts are forced as well.
+   *
+   * @param lsn the LSN of the last record that has to be on disk
+   */
+  public void flush(long lsn) {
+    synchronized (this.forceLock) {
+      if (lsn < this.flushedLSN) {
+        return;
+      }
+      long forced;
+      synchronized (this) {
+        if (this.flushedLSN >= this.nextLSN) {
+          return;
+        }
+        writeBuffer();
+        forced = this.nextLSN;
+      }
+      try {
+        this.fc.force(false);
+      } catch (IOException e) {
+        throw new PageException("Could not flush log: " + e.getMessage());
+      }
+      synchronized (this) {
+        this.flushedLSN = Math.max(this.flushedLSN, forced);
+        this.numForces++;
+      }
+    }
+  }
+
+  /**
+   * Flushes every record appended so far.
+   */
+  public void flush() {
+    flush(getNextLSN() - 1);
+  }
+
+  /**
+   * @return the LSN the next record will get
+   */
+  public synchronized long getNextLSN() {
+    return this.nextLSN;
+  }
+
+  /**
+   * @return the LSN up to which records are on disk
+   */
+  public long getFlushedLSN() {
+    return this.flushedLSN;
+  }
+
+  /**
+   * @return how many times the log has been forced to disk
+   */
+  public synchronized long getNumForces() {
+    return this.numForces;
+  }
+
+  /**
+   * Discards every record. Only safe while no transaction is running and once the writes the
+   * records describe are on disk, such as after the logged allocators were forced or closed.
+   */
+  public synchronized void truncate() {
+    try {
+      this.fc.truncate(0);
+      this.fc.force(false);
+    } catch (IOException e) {
+      throw new PageException("Could not truncate log: " + e.getMessage());
+    }
+    this.nextLSN = 0;
+    this.writtenLSN = 0;
+    this.bufferSize = 0;
+    this.flushedLSN = 0;
+    this.lastLSNs.clear();
+  }
+
+  /**
+   * Redoes the page writes in the log to the files of directory fileDir named by its records,
+   * which must not be open while this runs, takes back the writes of the operations whose end is
+   * not in the log, and forces the files to disk. Records after the first one that was not
+   * completely written are discarded. The transactions that neither committed nor finished their
+   * rollback are left to be rolled back (see rollback) once the files are open and logging to this
+   * log again.
+   *
+   * @param fileDir the directory the logged files are in
+   * @return the transactions that have to be rolled back
+   */
+  public synchronized Set<Long> redo(String fileDir) {
+    return redo(fileDir, null);
+  }
+
+  /**
+   * Redoes the log like redo(String), then visits the changes of the transactions that committed
+   * with redo, oldest first.
+   *
+   * @param fileDir the directory the logged files are in
+   * @param redo visits the changes of the committed transactions, or null
+   * @return the transactions that have to be rolled back
+   */
+  public synchronized Set<Long> redo(String fileDir, Redo redo) {
+    List<LogRecord> records = readRecords();
+    Map<String, Long> created = new HashMap<String, Long>();
+    Map<Long, Long> unfinished = new HashMap<Long, Long>();
+    Set<Long> committed = new HashSet<Long>();
+    Map<Long, LogRecord> operationUpdates = new HashMap<Long, LogRecord>();
+    List<Long> operationEnds = new ArrayList<Long>();
+    for (LogRecord record : records) {
+      if (record.type == CREATE) {
+        created.put(record.fileId, record.lsn);
+      } else if (record.type == OPERATION_UPDATE) {
+        operationUpdates.put(record.lsn, record);
+      } else if (record.type == END) {
+        unfinished.remove(record.transNum);
+        committed.remove(record.transNum);
+      } else if (isChained(record.type, record.transNum)) {
+        unfinished.put(record.transNum, record.lsn);
+        if (record.type == COMMIT) {
+          committed.add(record.transNum);
+        }
+      }
+      if (record.operationLSN >= 0) {
+        operationEnds.add(record.operationLSN);
+      }
+    }
+
+    // the OPERATION_UPDATEs left are those of the operations a crash interrupted
+    for (long lsn : operationEnds) {
+      LogRecord update = operationUpdates.remove(lsn);
+      while (update != null) {
+        update = operationUpdates.remove(update.prevLSN);
+      }
+    }
+    List<LogRecord> interrupted = new ArrayList<LogRecord>();
+    for (LogRecord record : records) {
+      if (operationUpdates.containsKey(record.lsn)) {
+        interrupted.add(record);
+      }
+    }
+
+    Map<String, RandomAccessFile> files = new HashMap<String, RandomAccessFile>();
+    try {
+      // repeat history, including the writes of the unfinished transactions and of their undos
+      for (LogRecord record : records) {
+        if ((record.type == UPDATE || record.type == OPERATION_UPDATE)
+            && isCurrent(record, created)) {
+          write(files, fileDir, record, record.after);
+        }
+      }
+      // then take the interrupted operations back, newest write first; no other operation wrote
+      // their pages after them
+      for (int i = interrupted.size() - 1; i >= 0; i--) {
+        LogRecord record = interrupted.get(i);
+        if (isCurrent(record, created)) {
+          write(files, fileDir, record, record.before);
+        }
+      }
+      for (RandomAccessFile file : files.values()) {
+        if (file != null) {
+          file.getChannel().force(true);
+        }
+      }
+    } catch (IOException e) {
+      throw new PageException("Could not redo log: " + e.getMessage());
+    } finally {
+      for (RandomAccessFile file : files.values()) {
+        try {
+          if (file != null) {
+            file.close();
+          }
+        } catch (IOException e) {
+          // everything was forced or nothing is left to keep
+        }
+      }
+    }
+
+    // log the writes that took the interrupted operations back, and end the operations, so that
+    // the next redo repeats them in order instead of taking the operations back again
+    for (int i = interrupted.size() - 1; i >= 0; i--) {
+      LogRecord record = interrupted.get(i);
+      logUpdate(record.fileId, record.blockNum, record.offset, record.before, null);
+    }
+    Set<Long> earlier = new HashSet<Long>();
+    for (LogRecord record : interrupted) {
+      earlier.add(record.prevLSN);
+    }
+    for (LogRecord record : interrupted) {
+      if (!earlier.contains(record.lsn)) {
+        append(OPERATION_END, record.transNum, -1,
+            ByteBuffer.allocate(8).putLong(record.lsn).array(), false);
+      }
+    }
+
+    this.lastLSNs.putAll(unfinished);
+    for (long transNum : committed) {
+      // the transaction committed before the crash but its END record did not make it
+      append(END, transNum, -1, EMPTY, false);
+    }
+    if (redo != null) {
+      Set<Long> commits = new HashSet<Long>();
+      for (LogRecord record : records) {
+        if (record.type == COMMIT) {
+          commits.add(record.transNum);
+        }
+      }
+      for (LogRecord record : records) {
+        if (record.type == UNDO && commits.contains(record.transNum)) {
+          redo.redo(record.transNum, record.change);
+        }
+      }
+    }
+    return new HashSet<Long>(this.lastLSNs.keySet());
+  }
+
+  /**
+   * Writes bytes where the UPDATE record wrote, unless its file has been deleted.
+   */
+  private static void write(Map<String, RandomAccessFile> files, String fileDir, LogRecord record,
+                            byte[] bytes) throws IOException {
+    RandomAccessFile file = getFile(files, fileDir, record.fileId);
+    if (file != null) {
+      file.seek(((long) record.blockNum) * Page.pageSize + record.offset);
+      file.write(bytes);
+    }
+  }
+
+  /**
+   * @return whether record was logged after the last creation of its file
+   */
+  private static boolean isCurrent(LogRecord record, Map<String, Long> created) {
+    Long createLSN = created.get(record.fileId);
+    return createLSN == null || record.lsn > createLSN;
+  }
+
+  /**
+   * @return the file fileId of fileDir, opened once, or null if it has been deleted
+   */
+  private static RandomAccessFile getFile(Map<String, RandomAccessFile> files, String fileDir,
+                                          String fileId) throws IOException {
+    if (!files.containsKey(fileId)) {
+      File f = new File(fileDir, fileId);
+      files.put(fileId, f.exists() ? new RandomAccessFile(f, "rw") : null);
+    }
+    return files.get(fileId);
+  }
+
+  /**
+   * @return the record at lsn, which may still be buffered
+   */
+  private synchronized LogRecord readRecord(long lsn) {
+    try {
+      byte[] body;
+      if (lsn >= this.writtenLSN) {
+        int from = (int) (lsn - this.writtenLSN);
+        int length = ByteBuffer.wrap(this.buffer).getInt(from);
+        body = Arrays.copyOfRange(this.buffer, from + 4, from + 4 + length);
+      } else {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(length, lsn);
+        ByteBuffer buf = ByteBuffer.allocate(length.getInt(0));
+        readFully(buf, lsn + 4);
+        body = buf.array();
+      }
+      return parse(lsn, body);
+    } catch (IOException e) {
+      throw new PageException("Could not read log: " + e.getMessage());
+    }
+  }
+
+  private void readFully(ByteBuffer buf, long position) throws IOException {
+    while (buf.hasRemaining()) {
+      if (this.fc.read(buf, position + buf.position()) < 0) {
+        throw new IOException("unexpected end of log at " + position);
+      }
+    }
+  }
+
+  /**
+   * Reads the records in the log file, up to the first one that was not completely written, and
+   * cuts the file off after the last complete one.
+   */
+  private List<LogRecord> readRecords() {
+    List<LogRecord> records = new ArrayList<LogRecord>();
+    try {
+      ByteBuffer buf = ByteBuffer.allocate((int) this.fc.size());
+      while (buf.hasRemaining()) {
+        if (this.fc.read(buf, buf.position()) < 0) {
+          break;
+        }
+      }
+      buf.flip();
+      int end = 0;
+      while (buf.remaining() >= 4) {
+        int length = buf.getInt();
+        if (length < HEADER_SIZE - 4 || length > buf.remaining()) {
+          break;
+        }
+        byte[] body = new byte[length];
+        buf.get(body);
+        records.add(parse(end, body));
+        end = buf.position();
+      }
+      if (end < this.fc.size()) {
+        this.fc.truncate(end);
+      }
+      this.nextLSN = end;
+      this.writtenLSN = end;
+      this.flushedLSN = end;
+      this.bufferSize = 0;
+    } catch (IOException e) {
+      throw new PageException("Could not read log: " + e.getMessage());
+    }
+    return records;
+  }
+
+  private static LogRecord parse(long lsn, byte[] body) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    LogRecord record = new LogRecord();
+    record.lsn = lsn;
+    record.type = in.readByte();
+    record.transNum = in.readLong();
+    record.prevLSN = in.readLong();
+    if (record.type == UPDATE || record.type == OPERATION_UPDATE || record.type == CREATE) {
+      record.fileId = in.readUTF();
+    }
+    if (record.type == UPDATE || record.type == OPERATION_UPDATE) {
+      record.blockNum = in.readInt();
+      record.offset = in.readInt();
+      record.after = new byte[in.readInt()];
+      in.readFully(record.after);
+      if (record.type == OPERATION_UPDATE) {
+        record.before = new byte[record.after.length];
+        in.readFully(record.before);
+      }
+    } else if (record.type == COMPENSATION) {
+      record.undoNextLSN = in.readLong();
+      record.operationLSN = in.readLong();
+    } else if (record.type == UNDO) {
+      record.operationLSN = in.readLong();
+      record.change = Arrays.copyOfRange(body, HEADER_SIZE + 4, body.length);
+    } else if (record.type == OPERATION_END) {
+      record.operationLSN = in.readLong();
+    }
+    return record;
+  }
+
+  /**
+   * Flushes the log and closes its file.
+   */
+  public void close() {
+    flush();
+    try {
+      this.fc.close();
+    } catch (IOException e) {
+      throw new PageException("Could not close log: " + e.getMessage());
+    }
+  }
+}
@@ -4,6 +4,7 @@ import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageHandle;
 import edu.berkeley.cs186.database.table.Record;
 
 import java.util.ArrayList;
@@ -61,6 +62,8 @@ public class BNLJOperator extends JoinOperator {
     private int leftEntryNum;
     private int rightEntryNum;
     private Page[] block;
+    private PageHandle[] blockHandles;
+    private PageHandle rightHandle;
     private int pageInBlock;
     private int numPagesInBlock;
 
@@ -91,16 +94,13 @@ public class BNLJOperator extends JoinOperator {
       this.leftEntryNum = 0;
       this.rightEntryNum = 0;
       this.block = new Page[numBuffers - 2];
+      this.blockHandles = new PageHandle[numBuffers - 2];
       this.pageInBlock = 0;
       this.numPagesInBlock = 0;
       if (this.leftIterator.hasNext()) {
-        assert(this.leftIterator.next().getPageNum() == 0);
-        for (int i = 0; i < numBuffers - 2; i++) {
-          if (this.leftIterator.hasNext()) {
-            this.block[i] = this.leftIterator.next();
-            this.numPagesInBlock++;
-          }
-        }
+        // skip the header page
+        this.leftIterator.next();
+        this.fillBlock();
         if (this.block[this.pageInBlock] != null) {
           this.leftPage = this.block[this.pageInBlock];
           this.leftHeader = BNLJOperator.this.getPageHeader(this.leftTableName, this.leftPage);
@@ -108,15 +108,54 @@ public class BNLJOperator extends JoinOperator {
         }
       }
       if (this.rightIterator.hasNext()) {
-        assert(this.rightIterator.next().getPageNum() == 0);
+        // skip the header page
+        this.rightIterator.next();
         if (this.rightIterator.hasNext()) {
-          this.rightPage = this.rightIterator.next();
+          this.pinRightPage(this.rightIterator.next());
           this.rightHeader = BNLJOperator.this.getPageHeader(this.rightTableName, this.rightPage);
           this.rightRecord = getNextRightRecordInPage();
         }
       }
     }
 
+    /**
+     * Reads the next numBuffers - 2 pages of the left relation into the block, pinning each of
+     * them so that they stay cached while every page of the right relation is scanned.
+     */
+    private void fillBlock() throws DatabaseException {
+      this.unpinBlock();
+      this.numPagesInBlock = 0;
+      for (int i = 0; i < numBuffers - 2; i++) {
+        if (this.leftIterator.hasNext()) {
+          this.blockHandles[i] = BNLJOperator.this.pinPage(this.leftTableName, this.leftIterator.next());
+          this.block[i] = this.blockHandles[i].getPage();
+          this.numPagesInBlock++;
+        }
+      }
+    }
+
+    private void unpinBlock() {
+      for (int i = 0; i < this.blockHandles.length; i++) {
+        if (this.blockHandles[i] != null) {
+          BNLJOperator.this.unpinPage(this.blockHandles[i]);
+          this.blockHandles[i] = null;
+        }
+      }
+    }
+
+    private void pinRightPage(Page p) throws DatabaseException {
+      this.unpinRightPage();
+      this.rightHandle = BNLJOperator.this.pinPage(this.rightTableName, p);
+      this.rightPage = this.rightHandle.getPage();
+    }
+
+    private void unpinRightPage() {
+      if (this.rightHandle != null) {
+        BNLJOperator.this.unpinPage(this.rightHandle);
+        this.rightHandle = null;
+      }
+    }
+
     /**
      * Checks if there are more record(s) to yield
      *
@@ -134,12 +173,12 @@ public class BNLJOperator extends JoinOperator {
           this.leftRecord = getNextLeftRecordInBlock();
           if (this.leftRecord == null) {
             if (this.rightIterator.hasNext()) {
-              this.rightPage = this.rightIterator.next();
               this.rightEntryNum = 0;
               this.leftEntryNum = 0;
               this.pageInBlock = 0;
               this.leftPage = this.block[this.pageInBlock];
               try {
+                this.pinRightPage(this.rightIterator.next());
                 this.leftHeader = BNLJOperator.this.getPageHeader(this.leftTableName, this.leftPage);
                 this.rightHeader = BNLJOperator.this.getPageHeader(this.rightTableName, this.rightPage);
               } catch (DatabaseException d) {
@@ -151,17 +190,11 @@ public class BNLJOperator extends JoinOperator {
             } else {
               if (this.leftIterator.hasNext()) {
                 this.pageInBlock = 0;
-                this.numPagesInBlock = 0;
-                for (int i = 0; i < numBuffers - 2; i++) {
-                  if (this.leftIterator.hasNext()) {
-                    this.block[i] = this.leftIterator.next();
-                    this.numPagesInBlock++;
-                  }
-                }
                 try {
+                  this.fillBlock();
                   this.rightIterator = BNLJOperator.this.getPageIterator(this.rightTableName);
                   this.rightIterator.next();
-                  this.rightPage = this.rightIterator.next();
+                  this.pinRightPage(this.rightIterator.next());
                   this.leftPage = this.block[this.pageInBlock];
                   this.leftHeader = BNLJOperator.this.getPageHeader(this.leftTableName, this.leftPage);
                   this.rightHeader = BNLJOperator.this.getPageHeader(this.rightTableName, this.rightPage);
@@ -173,6 +206,8 @@ public class BNLJOperator extends JoinOperator {
                 this.leftRecord = getNextLeftRecordInBlock();
                 this.rightRecord = getNextRightRecordInPage();
               } else {
+                this.unpinBlock();
+                this.unpinRightPage();
                 return false;
               }
             }
@@ -204,10 +239,7 @@ public class BNLJOperator extends JoinOperator {
             byte mask = (byte) (1 << bitOffset);
             byte value = (byte) (b & mask);
             if (value != 0) {
-              int entrySize = BNLJOperator.this.getEntrySize(this.leftTableName);
-              int offset = BNLJOperator.this.getHeaderSize(this.leftTableName) + (entrySize * this.leftEntryNum);
-              byte[] bytes = this.leftPage.readBytes(offset, entrySize);
-              Record toRtn = BNLJOperator.this.getLeftSource().getOutputSchema().decode(bytes);
+              Record toRtn = BNLJOperator.this.readRecord(this.leftTableName, this.leftPage, this.leftEntryNum);
               this.leftEntryNum++;
               return toRtn;
             }
@@ -234,10 +266,7 @@ public class BNLJOperator extends JoinOperator {
           byte mask = (byte) (1 << bitOffset);
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = BNLJOperator.this.getEntrySize(this.rightTableName);
-            int offset = BNLJOperator.this.getHeaderSize(this.rightTableName) + (entrySize * rightEntryNum);
-            byte[] bytes = this.rightPage.readBytes(offset, entrySize);
-            Record toRtn = BNLJOperator.this.getRightSource().getOutputSchema().decode(bytes);
+            Record toRtn = BNLJOperator.this.readRecord(this.rightTableName, this.rightPage, this.rightEntryNum);
             this.rightEntryNum++;
             return toRtn;
           }
@@ -6,7 +6,6 @@ import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
-import edu.berkeley.cs186.database.table.stats.Histogram;
 
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -19,6 +18,7 @@ public class IndexScanOperator extends QueryOperator {
   private String columnName;
   private QueryPlan.PredicateOperator predicate;
   private DataBox value;
+  private boolean indexOnly;
 
   private int columnIndex;
 
@@ -36,12 +36,34 @@ public class IndexScanOperator extends QueryOperator {
                            String columnName,
                            QueryPlan.PredicateOperator predicate,
                            DataBox value) throws QueryPlanException, DatabaseException {
+    this(transaction, tableName, columnName, predicate, value, false);
+  }
+
+  /**
+   * An index scan operator that, if indexOnly is set, reads its records from the index alone.
+   * Such records hold just the columns of the index (see Database.Transaction#getIndexColumns),
+   * so the index has to cover every column the query uses.
+   *
+   * @param transaction the transaction containing this operator
+   * @param tableName the table to iterate over
+   * @param columnName the name of the column the index is on
+   * @param indexOnly whether to return the values stored in the index instead of the records
+   * @throws QueryPlanException
+   * @throws DatabaseException
+   */
+  public IndexScanOperator(Database.Transaction transaction,
+                           String tableName,
+                           String columnName,
+                           QueryPlan.PredicateOperator predicate,
+                           DataBox value,
+                           boolean indexOnly) throws QueryPlanException, DatabaseException {
     super(OperatorType.INDEXSCAN);
     this.tableName = tableName;
     this.transaction = transaction;
     this.columnName = columnName;
     this.predicate = predicate;
     this.value = value;
+    this.indexOnly = indexOnly;
     this.setOutputSchema(this.computeSchema());
     columnName = this.checkSchemaForColumn(this.getOutputSchema(), columnName);
     this.columnIndex = this.getOutputSchema().getFieldNames().indexOf(columnName);
@@ -55,7 +77,12 @@ public class IndexScanOperator extends QueryOperator {
         "\ntable: " + this.tableName +
         "\ncolumn: " + this.columnName +
         "\noperator: " + this.predicate +
-        "\nvalue: " + this.value;
+        "\nvalue: " + this.value +
+        (this.indexOnly ? "\nindex only: true" : "");
+  }
+
+  public boolean isIndexOnly() {
+    return this.indexOnly;
   }
 
   /**
@@ -68,6 +95,15 @@ public class IndexScanOperator extends QueryOperator {
 
     try {
       stats = this.transaction.getStats(this.tableName);
+      if (this.indexOnly) {
+        // the histograms of the index's columns
+        Schema tableSchema = this.transaction.getSchema(this.tableName);
+        List<Integer> columns = new ArrayList<Integer>();
+        for (String column : this.transaction.getIndexColumns(this.tableName, this.columnName)) {
+          columns.add(tableSchema.getFieldNames().indexOf(column));
+        }
+        stats = stats.copyWithColumns(this.getOutputSchema(), columns);
+      }
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
     }
@@ -81,7 +117,8 @@ public class IndexScanOperator extends QueryOperator {
    * Estimates the IO cost of executing this query operator.
    * You should calculate this estimate cost with the formula
    * taught to you in class. Note that the index you've implemented
-   * in this project is an unclustered index.
+   * in this project is an unclustered index. An index-only scan
+   * reads the matching index pages and no records.
    *
    * You will find the following instance variables helpful:
    * this.transaction, this.tableName, this.columnName,
@@ -101,9 +138,19 @@ public class IndexScanOperator extends QueryOperator {
 
     //float reductF=this.stats.getReductionFactor(columnIndex,predicate, value);
     try{
-      float reductF=this.transaction.getStats(tableName).getReductionFactor(columnIndex,predicate,value);
+      int tableColumnIndex = this.columnIndex;
+      if (this.indexOnly) {
+        // columnIndex is a position in the index's schema, the table stats need the table's
+        Schema tableSchema = this.transaction.getFullyQualifiedSchema(this.tableName);
+        tableColumnIndex = tableSchema.getFieldNames().indexOf(
+            this.getOutputSchema().getFieldNames().get(this.columnIndex));
+      }
+      float reductF=this.transaction.getStats(tableName).getReductionFactor(tableColumnIndex,predicate,value);
       long norecords = this.transaction.getNumRecords(this.tableName);
       int noIndexPages=this.transaction.getNumIndexPages(this.tableName,columnName);
+      if (this.indexOnly) {
+        return (int) Math.ceil((double) noIndexPages * reductF);
+      }
       double estimate = Math.ceil((double) (norecords+noIndexPages) *reductF);
       return (int) estimate;
     } catch(DatabaseException  e){
@@ -117,7 +164,17 @@ public class IndexScanOperator extends QueryOperator {
 
   public Schema computeSchema() throws QueryPlanException {
     try {
-      return this.transaction.getFullyQualifiedSchema(this.tableName);
+      Schema schema = this.transaction.getFullyQualifiedSchema(this.tableName);
+      if (!this.indexOnly) {
+        return schema;
+      }
+      List<String> names = new ArrayList<String>();
+      List<DataBox> types = new ArrayList<DataBox>();
+      for (String column : this.transaction.getIndexColumns(this.tableName, this.columnName)) {
+        names.add(this.tableName + "." + column);
+        types.add(schema.getFieldTypes().get(schema.getFieldNames().indexOf(this.tableName + "." + column)));
+      }
+      return new Schema(names, types);
     } catch (DatabaseException de) {
       throw new QueryPlanException(de);
     }
@@ -133,20 +190,12 @@ public class IndexScanOperator extends QueryOperator {
     public IndexScanIterator() throws QueryPlanException, DatabaseException {
       this.nextRecord = null;
       if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.lookupKey(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
+        this.sourceIterator = this.lookupKey();
       } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN ||
               IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.LESS_THAN_EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScan(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName);
+        this.sourceIterator = this.sortedScan();
       } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.GREATER_THAN) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
+        this.sourceIterator = this.sortedScanFrom();
         while (this.sourceIterator.hasNext()) {
           Record r = this.sourceIterator.next();
 
@@ -157,11 +206,38 @@ public class IndexScanOperator extends QueryOperator {
           }
         }
       } else if (IndexScanOperator.this.predicate == QueryPlan.PredicateOperator.GREATER_THAN_EQUALS) {
-        this.sourceIterator = IndexScanOperator.this.transaction.sortedScanFrom(
-                IndexScanOperator.this.tableName,
-                IndexScanOperator.this.columnName,
-                IndexScanOperator.this.value);
+        this.sourceIterator = this.sortedScanFrom();
+      }
+    }
+
+    private Iterator<Record> lookupKey() throws DatabaseException {
+      Database.Transaction transaction = IndexScanOperator.this.transaction;
+      if (IndexScanOperator.this.indexOnly) {
+        return transaction.indexOnlyLookupKey(IndexScanOperator.this.tableName,
+                IndexScanOperator.this.columnName, IndexScanOperator.this.value);
+      }
+      return transaction.lookupKey(IndexScanOperator.this.tableName,
+              IndexScanOperator.this.columnName, IndexScanOperator.this.value);
+    }
+
+    private Iterator<Record> sortedScan() throws DatabaseException {
+      Database.Transaction transaction = IndexScanOperator.this.transaction;
+      if (IndexScanOperator.this.indexOnly) {
+        return transaction.indexOnlySortedScan(IndexScanOperator.this.tableName,
+                IndexScanOperator.this.columnName);
+      }
+      return transaction.sortedScan(IndexScanOperator.this.tableName,
+              IndexScanOperator.this.columnName);
+    }
+
+    private Iterator<Record> sortedScanFrom() throws DatabaseException {
+      Database.Transaction transaction = IndexScanOperator.this.transaction;
+      if (IndexScanOperator.this.indexOnly) {
+        return transaction.indexOnlySortedScanFrom(IndexScanOperator.this.tableName,
+                IndexScanOperator.this.columnName, IndexScanOperator.this.value);
       }
+      return transaction.sortedScanFrom(IndexScanOperator.this.tableName,
+              IndexScanOperator.this.columnName, IndexScanOperator.this.value);
     }
 
     /**
@@ -12,6 +12,7 @@ import edu.berkeley.cs186.database.table.RecordID;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageHandle;
 
 public abstract class JoinOperator extends QueryOperator {
 
@@ -148,10 +149,22 @@ public abstract class JoinOperator extends QueryOperator {
     return this.transaction.getPageIterator(tableName);
   }
 
+  public PageHandle pinPage(String tableName, Page p) throws DatabaseException {
+    return this.transaction.pinPage(tableName, p.getPageNum());
+  }
+
+  public void unpinPage(PageHandle handle) {
+    this.transaction.unpinPage(handle);
+  }
+
   public byte[] getPageHeader(String tableName, Page p) throws DatabaseException {
     return this.transaction.readPageHeader(tableName, p);
   }
 
+  public Record readRecord(String tableName, Page p, int entryNum) throws DatabaseException {
+    return this.transaction.readRecord(tableName, p, entryNum);
+  }
+
   public int getNumEntriesPerPage(String tableName) throws DatabaseException {
     return this.transaction.getNumEntriesPerPage(tableName);
   }
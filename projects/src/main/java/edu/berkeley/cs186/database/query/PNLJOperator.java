@@ -96,7 +96,8 @@ public class PNLJOperator extends JoinOperator {
       this.leftEntryNum = 0;
       this.rightEntryNum = 0;
       if (this.leftIterator.hasNext()) {
-        assert (this.leftIterator.next().getPageNum() == 0);
+        // skip the header page
+        this.leftIterator.next();
         if (this.leftIterator.hasNext()) {
           this.leftPage = this.leftIterator.next();
           this.leftHeader = PNLJOperator.this.getPageHeader(this.leftTableName, this.leftPage);
@@ -104,7 +105,8 @@ public class PNLJOperator extends JoinOperator {
         }
       }
       if (this.rightIterator.hasNext()) {
-        assert(this.rightIterator.next().getPageNum() == 0);
+        // skip the header page
+        this.rightIterator.next();
         if (this.rightIterator.hasNext()) {
           this.rightPage = this.rightIterator.next();
           this.rightHeader = PNLJOperator.this.getPageHeader(this.rightTableName, this.rightPage);
@@ -182,10 +184,7 @@ public class PNLJOperator extends JoinOperator {
           byte mask = (byte) (1 << bitOffset);
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = PNLJOperator.this.getEntrySize(this.leftTableName);
-            int offset = PNLJOperator.this.getHeaderSize(this.leftTableName) + (entrySize * this.leftEntryNum);
-            byte[] bytes = this.leftPage.readBytes(offset, entrySize);
-            Record toRtn = PNLJOperator.this.getLeftSource().getOutputSchema().decode(bytes);
+            Record toRtn = PNLJOperator.this.readRecord(this.leftTableName, this.leftPage, this.leftEntryNum);
             this.leftEntryNum++;
             return toRtn;
           }
@@ -205,10 +204,7 @@ public class PNLJOperator extends JoinOperator {
           byte mask = (byte) (1 << bitOffset);
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = PNLJOperator.this.getEntrySize(this.rightTableName);
-            int offset = PNLJOperator.this.getHeaderSize(this.rightTableName) + (entrySize * rightEntryNum);
-            byte[] bytes = this.rightPage.readBytes(offset, entrySize);
-            Record toRtn = PNLJOperator.this.getRightSource().getOutputSchema().decode(bytes);
+            Record toRtn = PNLJOperator.this.readRecord(this.rightTableName, this.rightPage, this.rightEntryNum);
             this.rightEntryNum++;
             return toRtn;
           }
@@ -5,6 +5,7 @@ import java.util.*;
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.table.Record;
 
 /**
@@ -37,6 +38,7 @@ public class QueryPlan {
   private boolean hasCount;
   private String averageColumnName;
   private String sumColumnName;
+  private IOStats ioStats;
 
   /**
    * Creates a new QueryPlan within transaction. The base table is startTableName.
@@ -64,12 +66,23 @@ public class QueryPlan {
     this.groupByColumn = null;
 
     this.finalOperator = null;
+    this.ioStats = new IOStats(transaction.getIOStats());
   }
 
   public QueryOperator getFinalOperator() {
     return this.finalOperator;
   }
 
+  /**
+   * Returns the I/O done by this query: building its plan and iterating over its results. These
+   * are also counted in the transaction's IOStats.
+   *
+   * @return the IOStats of this query
+   */
+  public IOStats getIOStats() {
+    return this.ioStats;
+  }
+
   /**
    * Add a project operator to the QueryPlan with a list of column names. Can only specify one set
    * of projections.
@@ -166,21 +179,26 @@ public class QueryPlan {
    * @throws QueryPlanException
    */
   public Iterator<Record> execute() throws DatabaseException, QueryPlanException {
-    String indexColumn = this.checkIndexEligible();
-
-    if (indexColumn != null) {
-      this.generateIndexPlan(indexColumn);
-    } else {
-      // start off with the start table scan as the source
-      this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName);
+    IOStats previous = IOStats.bindWithin(this.ioStats);
+    try {
+      String indexColumn = this.checkIndexEligible();
+
+      if (indexColumn != null) {
+        this.generateIndexPlan(indexColumn);
+      } else {
+        // start off with the start table scan as the source
+        this.finalOperator = new SequentialScanOperator(this.transaction, this.startTableName);
+
+        this.addJoins();
+        this.addSelects();
+        this.addGroupBy();
+        this.addProjects();
+      }
 
-      this.addJoins();
-      this.addSelects();
-      this.addGroupBy();
-      this.addProjects();
+      return IOStats.wrap(this.finalOperator.execute(), this.ioStats);
+    } finally {
+      IOStats.restore(previous);
     }
-
-    return this.finalOperator.execute();
   }
 
   /**
@@ -191,38 +209,43 @@ public class QueryPlan {
    * @throws QueryPlanException
    */
   public Iterator<Record> executeOptimal() throws DatabaseException, QueryPlanException {
-    List<String> tableNames = new ArrayList<String>();
-    tableNames.add(this.startTableName);
-    tableNames.addAll(this.joinTableNames);
-    int pass = 1;
-
-    // Pass 1: Iterate through all single tables. For each single table, find
-    // the lowest cost QueryOperator to access that table. Construct a mapping
-    // of each table name to its lowest cost operator.
-    Map<Set, QueryOperator> map = new HashMap<Set, QueryOperator>();
-    for (String table : tableNames) {
-      QueryOperator minOp = this.minCostSingleAccess(table);
-      Set<String> key = new HashSet<String>();
-      key.add(table);
-      map.put(key, minOp);
-    }
+    IOStats previous = IOStats.bindWithin(this.ioStats);
+    try {
+      List<String> tableNames = new ArrayList<String>();
+      tableNames.add(this.startTableName);
+      tableNames.addAll(this.joinTableNames);
+      int pass = 1;
+
+      // Pass 1: Iterate through all single tables. For each single table, find
+      // the lowest cost QueryOperator to access that table. Construct a mapping
+      // of each table name to its lowest cost operator.
+      Map<Set, QueryOperator> map = new HashMap<Set, QueryOperator>();
+      for (String table : tableNames) {
+        QueryOperator minOp = this.minCostSingleAccess(table);
+        Set<String> key = new HashSet<String>();
+        key.add(table);
+        map.put(key, minOp);
+      }
 
-    // Pass i: On each pass, use the results from the previous pass to find the
-    // lowest cost joins with each single table. Repeat until all tables have
-    // been joined.
-    Map<Set, QueryOperator> pass1Map = map;
-    Map<Set, QueryOperator> prevMap;
-    while (pass++ < tableNames.size()) {
-      prevMap = map;
-      map = this.minCostJoins(prevMap, pass1Map);
-    }
+      // Pass i: On each pass, use the results from the previous pass to find the
+      // lowest cost joins with each single table. Repeat until all tables have
+      // been joined.
+      Map<Set, QueryOperator> pass1Map = map;
+      Map<Set, QueryOperator> prevMap;
+      while (pass++ < tableNames.size()) {
+        prevMap = map;
+        map = this.minCostJoins(prevMap, pass1Map);
+      }
 
-    // Get the lowest cost operator from the last pass, add GROUP BY and SELECT
-    // operators, and return an iterator on the final operator
-    this.finalOperator = this.minCostOperator(map);
-    this.addGroupBy();
-    this.addProjects();
-    return this.finalOperator.iterator();
+      // Get the lowest cost operator from the last pass, add GROUP BY and SELECT
+      // operators, and return an iterator on the final operator
+      this.finalOperator = this.minCostOperator(map);
+      this.addGroupBy();
+      this.addProjects();
+      return IOStats.wrap(this.finalOperator.iterator(), this.ioStats);
+    } finally {
+      IOStats.restore(previous);
+    }
   }
 
   /**
@@ -315,8 +338,8 @@ public class QueryPlan {
     minOp=seqOp;
     for (int i: selectIndices){
       String column = this.selectColumnNames.get(i);
-      IndexScanOperator indexOp = new IndexScanOperator(this.transaction, table,
-              column, this.selectOperators.get(i), this.selectDataBoxes.get(i));
+      IndexScanOperator indexOp = this.indexScan(table, column, this.selectOperators.get(i),
+              this.selectDataBoxes.get(i));
       int cost=indexOp.getIOCost();
       if(cost < minCost){
         minSelectIdx=i;
@@ -507,8 +530,7 @@ public class QueryPlan {
     PredicateOperator operator = this.selectOperators.get(selectIndex);
     DataBox value = this.selectDataBoxes.get(selectIndex);
 
-    this.finalOperator = new IndexScanOperator(this.transaction, this.startTableName, indexColumn, operator,
-        value);
+    this.finalOperator = this.indexScan(this.startTableName, indexColumn, operator, value);
 
     this.selectColumnNames.remove(selectIndex);
     this.selectOperators.remove(selectIndex);
@@ -518,6 +540,65 @@ public class QueryPlan {
     this.addProjects();
   }
 
+  /**
+   * Creates an index scan of table on column, which reads only the index if the index holds
+   * every column of table that this query uses.
+   *
+   * @return an IndexScanOperator that scans table with the given predicate
+   * @throws DatabaseException
+   * @throws QueryPlanException
+   */
+  private IndexScanOperator indexScan(String table, String column, PredicateOperator operator,
+                                      DataBox value) throws QueryPlanException, DatabaseException {
+    IndexScanOperator indexOnlyOp = new IndexScanOperator(this.transaction, table, column,
+        operator, value, true);
+    if (this.isCoveredBy(new SequentialScanOperator(this.transaction, table), indexOnlyOp)) {
+      return indexOnlyOp;
+    }
+    return new IndexScanOperator(this.transaction, table, column, operator, value);
+  }
+
+  /**
+   * Checks whether every column of tableOp's schema that this query references is also in
+   * indexOp's schema. Queries without projections need every column, so they are never covered.
+   */
+  private boolean isCoveredBy(QueryOperator tableOp, QueryOperator indexOp) {
+    if (this.projectColumns.isEmpty() && !this.hasCount && this.sumColumnName == null
+        && this.averageColumnName == null) {
+      return false;
+    }
+
+    List<String> columns = new ArrayList<String>();
+    columns.addAll(this.selectColumnNames);
+    columns.addAll(this.projectColumns);
+    columns.addAll(this.joinLeftColumnNames);
+    columns.addAll(this.joinRightColumnNames);
+    if (this.groupByColumn != null) {
+      columns.add(this.groupByColumn);
+    }
+    if (this.sumColumnName != null) {
+      columns.add(this.sumColumnName);
+    }
+    if (this.averageColumnName != null) {
+      columns.add(this.averageColumnName);
+    }
+
+    for (String column : columns) {
+      try {
+        tableOp.checkSchemaForColumn(tableOp.getOutputSchema(), column);
+      } catch (QueryPlanException e) {
+        // not a column of this table
+        continue;
+      }
+      try {
+        indexOp.checkSchemaForColumn(indexOp.getOutputSchema(), column);
+      } catch (QueryPlanException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   private void addJoins() throws QueryPlanException, DatabaseException {
     int index = 0;
 
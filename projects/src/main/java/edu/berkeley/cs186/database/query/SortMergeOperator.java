@@ -4,6 +4,7 @@ import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageHandle;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
 import edu.berkeley.cs186.database.table.stats.TableStats;
@@ -46,6 +47,8 @@ public class SortMergeOperator extends JoinOperator {
     private Record rightRecord;
     private Page leftPage;
     private Page rightPage;
+    private PageHandle leftHandle;
+    private PageHandle rightHandle;
     private byte[] leftHeader;
     private byte[] rightHeader;
     private int leftEntryNum;
@@ -85,23 +88,47 @@ public class SortMergeOperator extends JoinOperator {
       this.rightEntryNum = 0;
       this.marked = false;
       if (this.leftIterator.hasNext()) {
-        assert (this.leftIterator.next().getPageNum() == 0);
+        // skip the header page
+        this.leftIterator.next();
         if (this.leftIterator.hasNext()) {
-          this.leftPage = this.leftIterator.next();
+          this.pinLeftPage(this.leftIterator.next());
           this.leftHeader = SortMergeOperator.this.getPageHeader(this.leftTableName, this.leftPage);
           advanceLeftTable();
         }
       }
       if (this.rightIterator.hasNext()) {
-        assert(this.rightIterator.next().getPageNum() == 0);
+        // skip the header page
+        this.rightIterator.next();
         if (this.rightIterator.hasNext()) {
-          this.rightPage = this.rightIterator.next();
+          this.pinRightPage(this.rightIterator.next());
           this.rightHeader = SortMergeOperator.this.getPageHeader(this.rightTableName, this.rightPage);
           advanceRightTable();
         }
       }
     }
 
+    /**
+     * Pins p and makes it the current left page, unpinning the previous one.
+     */
+    private void pinLeftPage(Page p) throws DatabaseException {
+      if (this.leftHandle != null) {
+        SortMergeOperator.this.unpinPage(this.leftHandle);
+      }
+      this.leftHandle = SortMergeOperator.this.pinPage(this.leftTableName, p);
+      this.leftPage = this.leftHandle.getPage();
+    }
+
+    /**
+     * Pins p and makes it the current right page, unpinning the previous one.
+     */
+    private void pinRightPage(Page p) throws DatabaseException {
+      if (this.rightHandle != null) {
+        SortMergeOperator.this.unpinPage(this.rightHandle);
+      }
+      this.rightHandle = SortMergeOperator.this.pinPage(this.rightTableName, p);
+      this.rightPage = this.rightHandle.getPage();
+    }
+
     /**
      * Checks if there are more record(s) to yield
      *
@@ -188,7 +215,7 @@ public class SortMergeOperator extends JoinOperator {
       if (this.leftRecord == null) {
         while (this.leftIterator.hasNext()) {
           try {
-            this.leftPage = this.leftIterator.next();
+            this.pinLeftPage(this.leftIterator.next());
             this.leftHeader = SortMergeOperator.this.getPageHeader(this.leftTableName, this.leftPage);
             this.leftEntryNum = 0;
             this.leftRecord = getNextLeftRecordInPage();
@@ -210,7 +237,7 @@ public class SortMergeOperator extends JoinOperator {
       if (this.rightRecord == null) {
         while (this.rightIterator.hasNext()) {
           try {
-            this.rightPage = this.rightIterator.next();
+            this.pinRightPage(this.rightIterator.next());
             this.rightHeader = SortMergeOperator.this.getPageHeader(this.rightTableName, this.rightPage);
             this.rightEntryNum = 0;
             this.rightRecord = getNextRightRecordInPage();
@@ -235,10 +262,7 @@ public class SortMergeOperator extends JoinOperator {
           byte mask = (byte) (1 << bitOffset);
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = SortMergeOperator.this .getEntrySize(this.leftTableName);
-            int offset = SortMergeOperator.this.getHeaderSize(this.leftTableName) + (entrySize * this.leftEntryNum);
-            byte[] bytes = this.leftPage.readBytes(offset, entrySize);
-            Record toRtn = SortMergeOperator.this.getLeftSource().getOutputSchema().decode(bytes);
+            Record toRtn = SortMergeOperator.this.readRecord(this.leftTableName, this.leftPage, this.leftEntryNum);
             this.leftEntryNum++;
             return toRtn;
           }
@@ -258,10 +282,7 @@ public class SortMergeOperator extends JoinOperator {
           byte mask = (byte) (1 << bitOffset);
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = SortMergeOperator.this.getEntrySize(this.rightTableName);
-            int offset = SortMergeOperator.this.getHeaderSize(this.rightTableName) + (entrySize * rightEntryNum);
-            byte[] bytes = this.rightPage.readBytes(offset, entrySize);
-            Record toRtn = SortMergeOperator.this.getRightSource().getOutputSchema().decode(bytes);
+            Record toRtn = SortMergeOperator.this.readRecord(this.rightTableName, this.rightPage, this.rightEntryNum);
             this.rightEntryNum++;
             return toRtn;
           }
@@ -0,0 +1,45 @@
+package edu.berkeley.cs186.database.table;
+
+/**
+ * The outcome of a bulk load into a Table: how many records and pages were written and how long
+ * it took.
+ */
+public class BulkLoadStats {
+  private long numRecords;
+  private int numPages;
+  private long elapsedNanos;
+
+  public BulkLoadStats(long numRecords, int numPages, long elapsedNanos) {
+    this.numRecords = numRecords;
+    this.numPages = numPages;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  public long getNumRecords() {
+    return this.numRecords;
+  }
+
+  /**
+   * @return the number of data pages the load started
+   */
+  public int getNumPages() {
+    return this.numPages;
+  }
+
+  public long getElapsedNanos() {
+    return this.elapsedNanos;
+  }
+
+  /**
+   * @return the number of records loaded per second, or 0 if no time was measured
+   */
+  public double getRowsPerSecond() {
+    return this.elapsedNanos == 0 ? 0 : this.numRecords * 1e9 / this.elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d records on %d pages in %.1f ms (%.0f rows/sec)", this.numRecords,
+        this.numPages, this.elapsedNanos / 1e6, this.getRowsPerSecond());
+  }
+}
@@ -0,0 +1,239 @@
+package edu.berkeley.cs186.database.table;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Tracks the free space on the data pages of a Table, so that addRecord can find a page with
+ * room for a record without reading any page headers.
+ *
+ * The free space of a page is counted in free slots for FIXED tables and in free bytes for
+ * SLOTTED tables, out of `capacity`. Pages with free space are kept in NUM_BUCKETS buckets by how
+ * much of their capacity is free; each bucket is a doubly linked list threaded through per-page
+ * arrays, so moving a page between buckets and finding a page are O(1). For every page the map
+ * also keeps a hint: no slot below it is free.
+ *
+ * The map is saved to a file next to the table when the table is closed, and the file is deleted
+ * again when it is loaded. A missing file therefore means the table was not closed cleanly and
+ * the map has to be rebuilt from the pages.
+ */
+class FreeSpaceMap {
+  static final int NUM_BUCKETS = 8;
+  private static final int MAGIC = 0x46534d31;
+
+  private int capacity;
+  private long numRecords;
+  private int[] free;
+  private int[] hints;
+  private int[] next;
+  private int[] prev;
+  private int[] heads;
+
+  /**
+   * @param capacity the free space of an empty page
+   */
+  FreeSpaceMap(int capacity) {
+    this.capacity = capacity;
+    this.numRecords = 0;
+    this.free = new int[16];
+    this.hints = new int[16];
+    this.next = new int[16];
+    this.prev = new int[16];
+    this.heads = new int[NUM_BUCKETS + 1];
+    Arrays.fill(this.heads, -1);
+  }
+
+  long getNumRecords() {
+    return this.numRecords;
+  }
+
+  void setNumRecords(long numRecords) {
+    this.numRecords = numRecords;
+  }
+
+  /**
+   * @param pageNum a data page number
+   * @return the free space last recorded for pageNum, or 0 if the map does not know it
+   */
+  int getFree(int pageNum) {
+    return pageNum < this.free.length ? this.free[pageNum] : 0;
+  }
+
+  /**
+   * @param pageNum a data page number
+   * @return a slot number such that no lower slot of pageNum is free
+   */
+  int getHint(int pageNum) {
+    return pageNum < this.hints.length ? this.hints[pageNum] : 0;
+  }
+
+  void setHint(int pageNum, int hint) {
+    ensureCapacity(pageNum);
+    this.hints[pageNum] = hint;
+  }
+
+  /**
+   * Records that pageNum has freeSpace free, moving it to the matching bucket.
+   *
+   * @param pageNum a data page number
+   * @param freeSpace the free space of the page
+   */
+  void update(int pageNum, int freeSpace) {
+    ensureCapacity(pageNum);
+    int oldBucket = bucketOf(this.free[pageNum]);
+    int newBucket = bucketOf(freeSpace);
+    this.free[pageNum] = freeSpace;
+    if (oldBucket != newBucket) {
+      unlink(pageNum, oldBucket);
+      link(pageNum, newBucket);
+    }
+  }
+
+  /**
+   * Finds a page with at least needed free space. Of the pages that qualify, the ones with the
+   * least free space are preferred, so that pages fill up before new ones are used.
+   *
+   * @param needed the free space required
+   * @return a page number, or -1 if no page is known to have enough room
+   */
+  int findPage(int needed) {
+    for (int bucket = 1; bucket <= NUM_BUCKETS; bucket++) {
+      int head = this.heads[bucket];
+      if (head == -1 || upperBound(bucket) < needed) {
+        continue;
+      }
+      if (lowerBound(bucket) >= needed) {
+        return head;
+      }
+      // only the bucket that contains needed can have pages on either side of it
+      for (int p = head; p != -1; p = this.next[p]) {
+        if (this.free[p] >= needed) {
+          return p;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Writes this map to file, marking the table as cleanly closed.
+   *
+   * @param file the file to write
+   * @param numPages the number of pages of the table, including the header page
+   */
+  void save(File file, int numPages) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(this.capacity);
+      out.writeLong(this.numRecords);
+      out.writeInt(numPages);
+      for (int pageNum = 1; pageNum < numPages; pageNum++) {
+        out.writeShort(getFree(pageNum));
+        out.writeShort(getHint(pageNum));
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the map saved by the last clean close of a table and deletes the file, so that the map
+   * is rebuilt if the table is not closed cleanly again.
+   *
+   * @param file the file written by save
+   * @param capacity the free space of an empty page of the table
+   * @param numPages the number of pages of the table, including the header page
+   * @return the loaded map, or null if there is no usable saved map
+   */
+  static FreeSpaceMap load(File file, int capacity, int numPages) {
+    if (!file.exists()) {
+      return null;
+    }
+    FreeSpaceMap map = null;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() == MAGIC && in.readInt() == capacity) {
+          long numRecords = in.readLong();
+          if (in.readInt() == numPages) {
+            map = new FreeSpaceMap(capacity);
+            map.numRecords = numRecords;
+            for (int pageNum = 1; pageNum < numPages; pageNum++) {
+              map.update(pageNum, in.readUnsignedShort());
+              map.setHint(pageNum, in.readUnsignedShort());
+            }
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      map = null;
+    }
+    file.delete();
+    return map;
+  }
+
+  private int bucketOf(int freeSpace) {
+    if (freeSpace <= 0) {
+      return 0;
+    }
+    int bucket = (int) (((long) freeSpace * NUM_BUCKETS + this.capacity - 1) / this.capacity);
+    return Math.min(bucket, NUM_BUCKETS);
+  }
+
+  private int lowerBound(int bucket) {
+    return (int) (((long) this.capacity * (bucket - 1)) / NUM_BUCKETS) + 1;
+  }
+
+  private int upperBound(int bucket) {
+    return bucket == NUM_BUCKETS ? Integer.MAX_VALUE
+        : (int) (((long) this.capacity * bucket) / NUM_BUCKETS);
+  }
+
+  private void link(int pageNum, int bucket) {
+    if (bucket == 0) {
+      return;
+    }
+    int head = this.heads[bucket];
+    this.next[pageNum] = head;
+    this.prev[pageNum] = -1;
+    if (head != -1) {
+      this.prev[head] = pageNum;
+    }
+    this.heads[bucket] = pageNum;
+  }
+
+  private void unlink(int pageNum, int bucket) {
+    if (bucket == 0) {
+      return;
+    }
+    if (this.prev[pageNum] != -1) {
+      this.next[this.prev[pageNum]] = this.next[pageNum];
+    } else {
+      this.heads[bucket] = this.next[pageNum];
+    }
+    if (this.next[pageNum] != -1) {
+      this.prev[this.next[pageNum]] = this.prev[pageNum];
+    }
+  }
+
+  private void ensureCapacity(int pageNum) {
+    if (pageNum < this.free.length) {
+      return;
+    }
+    int length = Math.max(pageNum + 1, this.free.length * 2);
+    this.free = Arrays.copyOf(this.free, length);
+    this.hints = Arrays.copyOf(this.hints, length);
+    this.next = Arrays.copyOf(this.next, length);
+    this.prev = Arrays.copyOf(this.prev, length);
+  }
+}
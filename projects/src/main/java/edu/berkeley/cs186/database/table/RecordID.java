@@ -1,5 +1,7 @@
 package edu.berkeley.cs186.database.table;
 
+import edu.berkeley.cs186.database.io.Page;
+
 import java.nio.ByteBuffer;
 import java.util.Objects;
 
@@ -22,6 +24,17 @@ public class RecordID {
     this.entryNumber = bb.getShort();
   }
 
+  /**
+   * Reads a RecordID in the format of getBytes from offset of page.
+   *
+   * @param page the page holding the RecordID
+   * @param offset the offset of the RecordID within page
+   */
+  public RecordID(Page page, int offset) {
+    this.pageNum = page.readInt(offset);
+    this.entryNumber = page.readShort(offset + 4);
+  }
+
   public int getPageNum() {
     return this.pageNum;
   }
@@ -1,8 +1,10 @@
 package edu.berkeley.cs186.database.table;
 
 import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.io.Page;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -82,6 +84,35 @@ public class Schema {
     return byteBuffer.array();
   }
 
+  /**
+   * Serializes record straight into page at offset, in the same format as encode, without
+   * building an intermediate byte[].
+   *
+   * @param record the record to encode
+   * @param page the page to write to
+   * @param offset the offset of the record within page
+   */
+  public void encode(Record record, Page page, int offset) {
+    for (DataBox value : record.getValues()) {
+      switch (value.type()) {
+        case INT:
+          page.writeInt(offset, value.getInt());
+          break;
+        case FLOAT:
+          page.writeFloat(offset, value.getFloat());
+          break;
+        case BOOL:
+          page.writeByte(offset, (byte) (value.getBool() ? 1 : 0));
+          break;
+        default:
+          byte[] bytes = value.getBytes();
+          page.writeBytes(offset, bytes.length, bytes);
+          break;
+      }
+      offset += value.getSize();
+    }
+  }
+
   /**
    * Takes a byte[] and decodes it into a Record. This method assumes that the
    * input byte[] represents a record that corresponds to this schema.
@@ -92,30 +123,155 @@ public class Schema {
   public Record decode(byte[] input) {
     int offset = 0;
 
-    List<DataBox> values = new ArrayList<DataBox>();
+    ByteBuffer buf = ByteBuffer.wrap(input);
+    List<DataBox> values = new ArrayList<DataBox>(fieldTypes.size());
     for (DataBox field : fieldTypes) {
-      byte[] fieldBytes = Arrays.copyOfRange(input, offset, offset + field.getSize());
-      offset += field.getSize();
-
       switch (field.type()) {
         case STRING:
-          values.add(new StringDataBox(fieldBytes));
+          values.add(new StringDataBox(Arrays.copyOfRange(input, offset, offset + field.getSize())));
           break;
         case INT:
-          values.add(new IntDataBox(fieldBytes));
+          values.add(new IntDataBox(buf.getInt(offset)));
           break;
         case FLOAT:
-          values.add(new FloatDataBox(fieldBytes));
+          values.add(new FloatDataBox(buf.getFloat(offset)));
           break;
         case BOOL:
-          values.add(new BoolDataBox(fieldBytes));
+          values.add(new BoolDataBox(input[offset] != 0));
           break;
       }
+      offset += field.getSize();
+    }
+
+    return new Record(values);
+  }
+
+  /**
+   * Decodes the record stored at offset of page into a Record, reading the fields straight from
+   * the page instead of copying the record out first.
+   *
+   * @param page the page holding the record
+   * @param offset the offset of the record within page
+   * @return the decoded Record
+   */
+  public Record decode(Page page, int offset) {
+    List<DataBox> values = new ArrayList<DataBox>(fieldTypes.size());
+    for (DataBox field : fieldTypes) {
+      values.add(decodeField(field, page, offset));
+      offset += field.getSize();
+    }
+    return new Record(values);
+  }
+
+  /**
+   * Decodes a single value of the same type and size as field from offset of page.
+   *
+   * @param field a DataBox of the type to decode
+   * @param page the page holding the value
+   * @param offset the offset of the value within page
+   * @return the decoded DataBox
+   */
+  public static DataBox decodeField(DataBox field, Page page, int offset) {
+    switch (field.type()) {
+      case STRING:
+        return new StringDataBox(page.readBytes(offset, field.getSize()));
+      case INT:
+        return new IntDataBox(page.readInt(offset));
+      case FLOAT:
+        return new FloatDataBox(page.readFloat(offset));
+      case BOOL:
+        return new BoolDataBox(page.readByte(offset) != 0);
+      case COMPOSITE:
+        CompositeDataBox composite = (CompositeDataBox) field;
+        List<DataBox> values = new ArrayList<DataBox>(composite.getValues().size());
+        for (DataBox value : composite.getValues()) {
+          values.add(decodeField(value, page, offset));
+          offset += value.getSize();
+        }
+        return new CompositeDataBox(values, composite.getNumKeyValues());
+      default:
+        throw new DataBoxException("unknown field type " + field.type());
+    }
+  }
+
+  /**
+   * Serializes record in the variable-length format used by SLOTTED tables. Fields are
+   * concatenated as in encode, except that strings are stored without their padding, as a 2-byte
+   * length followed by the UTF-8 bytes.
+   *
+   * @param record the record to encode
+   * @return the encoded record as a byte[]
+   */
+  public byte[] encodeVariable(Record record) {
+    List<byte[]> fieldBytes = new ArrayList<byte[]>(fieldTypes.size());
+    int length = 0;
+    for (DataBox value : record.getValues()) {
+      byte[] bytes;
+      if (value.type() == DataBox.Types.STRING) {
+        bytes = trimPadding(value.getString()).getBytes(StandardCharsets.UTF_8);
+        length += 2;
+      } else {
+        bytes = value.getBytes();
+      }
+      fieldBytes.add(bytes);
+      length += bytes.length;
     }
 
+    ByteBuffer byteBuffer = ByteBuffer.allocate(length);
+    for (int i = 0; i < fieldBytes.size(); i++) {
+      byte[] bytes = fieldBytes.get(i);
+      if (fieldTypes.get(i).type() == DataBox.Types.STRING) {
+        byteBuffer.putShort((short) bytes.length);
+      }
+      byteBuffer.put(bytes);
+    }
+    return byteBuffer.array();
+  }
+
+  /**
+   * Decodes a record written by encodeVariable at offset of page. Strings are padded back to the
+   * length declared in this schema.
+   *
+   * @param page the page holding the record
+   * @param offset the offset of the record within page
+   * @return the decoded Record
+   */
+  public Record decodeVariable(Page page, int offset) {
+    List<DataBox> values = new ArrayList<DataBox>(fieldTypes.size());
+    for (DataBox field : fieldTypes) {
+      if (field.type() == DataBox.Types.STRING) {
+        int length = page.readShort(offset);
+        byte[] bytes = page.readBytes(offset + 2, length);
+        values.add(new StringDataBox(new String(bytes, StandardCharsets.UTF_8), field.getSize()));
+        offset += 2 + length;
+      } else {
+        values.add(decodeField(field, page, offset));
+        offset += field.getSize();
+      }
+    }
     return new Record(values);
   }
 
+  /**
+   * @return the size in bytes of the smallest record encodeVariable can produce, i.e. one with
+   *         only empty strings
+   */
+  public int getMinVariableEntrySize() {
+    int minSize = 0;
+    for (DataBox field : fieldTypes) {
+      minSize += field.type() == DataBox.Types.STRING ? 2 : field.getSize();
+    }
+    return minSize;
+  }
+
+  private static String trimPadding(String s) {
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return s.substring(0, end);
+  }
+
   public int getEntrySize() {
     return this.size;
   }
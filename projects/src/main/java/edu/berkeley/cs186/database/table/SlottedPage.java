@@ -0,0 +1,257 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.io.Page;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and modifies data pages of a Table with the SLOTTED page format, which holds records of
+ * varying size.
+ *
+ * Page layout:
+ * bytes 0-1: the number of slots in the slot directory
+ * bytes 2-3: the offset where the record data starts; 0 on a new page, meaning Page.pageSize
+ * bytes 4-: the slot directory, a (2-byte offset, 2-byte length) pair per slot
+ *
+ * Records are written from the end of the page towards the slot directory. A slot with offset 0
+ * is free and is reused by the next insert; the space of deleted records is reclaimed by
+ * compacting the page when a record does not fit into the gap between the slot directory and the
+ * record data. A record keeps its slot for as long as it lives, so RecordIDs stay valid.
+ */
+class SlottedPage {
+  static final int HEADER_SIZE = 4;
+  static final int SLOT_SIZE = 4;
+
+  /**
+   * @param minRecordSize the size in bytes of the smallest record that can be stored
+   * @return the number of slots a page can have if all its records have the smallest size
+   */
+  static int getMaxSlots(int minRecordSize) {
+    return (Page.pageSize - HEADER_SIZE) / (SLOT_SIZE + minRecordSize);
+  }
+
+  /**
+   * @return the largest record that fits on an empty page
+   */
+  static int getMaxRecordSize() {
+    return Page.pageSize - HEADER_SIZE - SLOT_SIZE;
+  }
+
+  static int getNumSlots(Page page) {
+    return page.readShort(0);
+  }
+
+  /**
+   * @param page the page to check
+   * @param slot the slot number
+   * @return whether slot holds a record
+   */
+  static boolean isValid(Page page, int slot) {
+    return slot < getNumSlots(page) && getSlotOffset(page, slot) != 0;
+  }
+
+  /**
+   * @param page the page to read from
+   * @param slot a valid slot number
+   * @return the offset of the record in slot
+   */
+  static int getSlotOffset(Page page, int slot) {
+    return page.readShort(HEADER_SIZE + SLOT_SIZE * slot);
+  }
+
+  /**
+   * @param page the page to read from
+   * @param slot a valid slot number
+   * @return the size in bytes of the record in slot
+   */
+  static int getSlotLength(Page page, int slot) {
+    return page.readShort(HEADER_SIZE + SLOT_SIZE * slot + 2);
+  }
+
+  /**
+   * Builds a slot bitmap for page in the format of a FIXED data page header: bit i (starting at
+   * the most significant bit of the first byte) is set if slot i holds a record.
+   *
+   * @param page the page to read from
+   * @param bitmapSize the size of the bitmap in bytes
+   * @return the slot bitmap
+   */
+  static byte[] getBitmap(Page page, int bitmapSize) {
+    byte[] bitmap = new byte[bitmapSize];
+    int numSlots = Math.min(getNumSlots(page), bitmapSize * 8);
+    for (int slot = 0; slot < numSlots; slot++) {
+      if (getSlotOffset(page, slot) != 0) {
+        bitmap[slot / 8] |= (byte) (1 << (7 - (slot % 8)));
+      }
+    }
+    return bitmap;
+  }
+
+  /**
+   * Stores record on page.
+   *
+   * @param page the page to write to
+   * @param record the encoded record
+   * @param maxSlots the largest number of slots page may have
+   * @param fromSlot a slot number such that no lower slot of page is free
+   * @return the slot number of the record, or -1 if it does not fit on page
+   */
+  static int insert(Page page, byte[] record, int maxSlots, int fromSlot) {
+    int numSlots = getNumSlots(page);
+    int slot = Math.min(fromSlot, numSlots);
+    while (slot < numSlots && getSlotOffset(page, slot) != 0) {
+      slot++;
+    }
+    int needed = record.length;
+    if (slot == numSlots) {
+      if (numSlots >= maxSlots) {
+        return -1;
+      }
+      needed += SLOT_SIZE;
+    }
+    if (!makeRoom(page, needed)) {
+      return -1;
+    }
+
+    if (slot == numSlots) {
+      page.writeShort(0, (short) (numSlots + 1));
+    }
+    writeRecord(page, slot, record);
+    return slot;
+  }
+
+  /**
+   * Frees slot and the space of its record. Free slots at the end of the directory are removed.
+   *
+   * @param page the page to modify
+   * @param slot a valid slot number
+   */
+  static void delete(Page page, int slot) {
+    setSlot(page, slot, 0, 0);
+    int numSlots = getNumSlots(page);
+    while (numSlots > 0 && getSlotOffset(page, numSlots - 1) == 0) {
+      numSlots--;
+    }
+    page.writeShort(0, (short) numSlots);
+    if (numSlots == 0) {
+      page.writeShort(2, (short) 0);
+    }
+  }
+
+  /**
+   * Replaces the record in slot. A record that grows is moved within page; if page does not have
+   * room for it, page is left unchanged.
+   *
+   * @param page the page to modify
+   * @param slot a valid slot number
+   * @param record the new encoded record
+   * @return whether the record was replaced
+   */
+  static boolean update(Page page, int slot, byte[] record) {
+    int offset = getSlotOffset(page, slot);
+    int length = getSlotLength(page, slot);
+    if (record.length <= length) {
+      page.writeBytes(offset, record.length, record);
+      setSlot(page, slot, offset, record.length);
+      return true;
+    }
+
+    if (getFreeSpace(page) + length < record.length) {
+      return false;
+    }
+    setSlot(page, slot, 0, 0);
+    makeRoom(page, record.length);
+    writeRecord(page, slot, record);
+    return true;
+  }
+
+  /**
+   * @param page the page to check
+   * @return the number of bytes on page not used by the slot directory or by records
+   */
+  static int getFreeSpace(Page page) {
+    int numSlots = getNumSlots(page);
+    int used = HEADER_SIZE + SLOT_SIZE * numSlots;
+    for (int slot = 0; slot < numSlots; slot++) {
+      used += getSlotLength(page, slot);
+    }
+    return Page.pageSize - used;
+  }
+
+  /**
+   * @param page the page to check
+   * @param minRecordSize the size in bytes of the smallest record that can be stored
+   * @param maxSlots the largest number of slots page may have
+   * @return whether a record of minRecordSize bytes would fit on page
+   */
+  static boolean hasSpace(Page page, int minRecordSize, int maxSlots) {
+    int numSlots = getNumSlots(page);
+    boolean freeSlot = false;
+    for (int slot = 0; slot < numSlots && !freeSlot; slot++) {
+      freeSlot = getSlotOffset(page, slot) == 0;
+    }
+    if (!freeSlot && numSlots >= maxSlots) {
+      return false;
+    }
+    return getFreeSpace(page) >= minRecordSize + (freeSlot ? 0 : SLOT_SIZE);
+  }
+
+  private static int getDataStart(Page page) {
+    int start = page.readShort(2);
+    return start == 0 ? Page.pageSize : start;
+  }
+
+  private static void setSlot(Page page, int slot, int offset, int length) {
+    page.writeShort(HEADER_SIZE + SLOT_SIZE * slot, (short) offset);
+    page.writeShort(HEADER_SIZE + SLOT_SIZE * slot + 2, (short) length);
+  }
+
+  /**
+   * Writes record just below the record data of page and points slot at it. The caller must
+   * have made room for it.
+   */
+  private static void writeRecord(Page page, int slot, byte[] record) {
+    int offset = getDataStart(page) - record.length;
+    page.writeBytes(offset, record.length, record);
+    page.writeShort(2, (short) offset);
+    setSlot(page, slot, offset, record.length);
+  }
+
+  /**
+   * Makes sure there are at least needed contiguous free bytes between the slot directory and the
+   * record data, compacting the page if that reclaims enough space.
+   *
+   * @return whether there is enough room
+   */
+  private static boolean makeRoom(Page page, int needed) {
+    int directoryEnd = HEADER_SIZE + SLOT_SIZE * getNumSlots(page);
+    if (getDataStart(page) - directoryEnd >= needed) {
+      return true;
+    }
+    if (getFreeSpace(page) < needed) {
+      return false;
+    }
+    compact(page);
+    return true;
+  }
+
+  /**
+   * Moves all records to the end of page so that the free space is contiguous.
+   */
+  private static void compact(Page page) {
+    int numSlots = getNumSlots(page);
+    List<byte[]> records = new ArrayList<byte[]>(numSlots);
+    for (int slot = 0; slot < numSlots; slot++) {
+      int offset = getSlotOffset(page, slot);
+      records.add(offset == 0 ? null : page.readBytes(offset, getSlotLength(page, slot)));
+    }
+
+    page.writeShort(2, (short) 0);
+    for (int slot = 0; slot < numSlots; slot++) {
+      if (records.get(slot) != null) {
+        writeRecord(page, slot, records.get(slot));
+      }
+    }
+  }
+}
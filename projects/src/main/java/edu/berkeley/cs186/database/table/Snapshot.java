@@ -0,0 +1,64 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The versions of a multi-version Table that a transaction sees: those written by itself and
+ * those written by transactions that had committed when it began. A transaction that began
+ * before it but was still running, or that began after it, is invisible to it.
+ */
+public class Snapshot {
+  /**
+   * The writer of versions that are visible to every snapshot.
+   */
+  public static final long FROZEN = -1;
+
+  /**
+   * A snapshot that sees the newest version of every record, committed or not.
+   */
+  public static final Snapshot LATEST = new Snapshot(Long.MAX_VALUE, Collections.<Long>emptySet());
+
+  private long transNum;
+  private Set<Long> activeTransNums;
+  private long horizon;
+
+  /**
+   * @param transNum the transaction the snapshot is taken for
+   * @param activeTransNums the transactions that were running when transNum began
+   */
+  public Snapshot(long transNum, Set<Long> activeTransNums) {
+    this.transNum = transNum;
+    this.activeTransNums = new HashSet<Long>(activeTransNums);
+    this.horizon = transNum;
+    for (long active : activeTransNums) {
+      this.horizon = Math.min(this.horizon, active);
+    }
+  }
+
+  public long getTransNum() {
+    return this.transNum;
+  }
+
+  /**
+   * @return whether this snapshot sees the versions written by transaction writer
+   */
+  public boolean sees(long writer) {
+    return writer == this.transNum
+        || (writer < this.transNum && !this.activeTransNums.contains(writer));
+  }
+
+  /**
+   * @return a transaction number such that this snapshot sees every version written by a
+   *         transaction numbered below it
+   */
+  public long getHorizon() {
+    return this.horizon;
+  }
+
+  @Override
+  public String toString() {
+    return "Snapshot(" + this.transNum + ", active: " + this.activeTransNums + ")";
+  }
+}
@@ -3,17 +3,25 @@ package edu.berkeley.cs186.database.table;
 import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.databox.*;
 import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.IOStats;
 import edu.berkeley.cs186.database.io.PageAllocator;
 import edu.berkeley.cs186.database.io.Page;
 import edu.berkeley.cs186.database.io.PageException;
+import edu.berkeley.cs186.database.io.PageHandle;
+import edu.berkeley.cs186.database.io.WriteAheadLog;
 import edu.berkeley.cs186.database.table.stats.TableStats;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
 
 import java.util.NoSuchElementException;
 import java.util.Iterator;
@@ -22,88 +30,100 @@ import java.io.Closeable;
 /**
  * A database table. Allows the user to add, delete, update, and get records.
  * A table has an associated schema, stats, and page allocator. The first page
- * in the page allocator is a header page that serializes the schema, and each
- * subsequent page is a data page containing the table records.
+ * in the page allocator is a header page that serializes the schema, the
+ * page format, and whether the table is multi-version, and each subsequent
+ * page is a data page containing the table records.
+ *
+ * A multi-version table keeps the versions of its records that transactions
+ * write through the Snapshot overloads of addRecord, updateRecord, and
+ * deleteRecord, so that the Snapshot overloads of the read methods see the
+ * table as of the begin of their transaction. The data pages hold the newest
+ * version of every record, and a deleted record keeps its slot until vacuum
+ * finds that no snapshot sees it anymore. The older versions are kept in
+ * memory only; close vacuums all of them.
+ *
+ * The methods that change records are synchronized, since transactions holding intention locks
+ * on the table write to it at the same time and share its FreeSpaceMap and TableStats.
  *
  * Properties:
  * `schema`: the Schema (column names and column types) for this table
- * `freePages`: a set of page numbers that correspond to allocated pages with free space
- * `stats`: the TableStats for this table
+ * `freeSpace`: the FreeSpaceMap that tracks which data pages have room for records
+ * `stats`: the TableStats for this table, computed on first use for an opened table
  * `allocator`: the PageAllocator for this table
  * `tableName`: name of this table
+ * `format`: how records are laid out on the data pages
  * `numEntriesPerPage`: number of records a data page of this table can hold
  * `pageHeaderSize`: physical size (in bytes) of a page header slot bitmap
- * `numRecords`: number of records currently contained in this table
+ * `numRecords`: number of records currently contained in this table, including
+ *     the deleted records of a multi-version table that have not been vacuumed
+ * `multiVersion`: whether this table keeps multiple versions of its records
+ * `versions`: the versions of the records of a multi-version table that
+ *     snapshots may still need
  */
 public class Table implements Iterable<Record>, Closeable {
   public static final String FILENAME_PREFIX = "db";
   public static final String FILENAME_EXTENSION = ".table";
+  public static final String FREE_SPACE_EXTENSION = ".fsm";
+
+  /**
+   * How records are laid out on the data pages of a table. FIXED pages hold equally sized entries
+   * of Schema#getEntrySize bytes behind a slot bitmap. SLOTTED pages hold records encoded with
+   * Schema#encodeVariable behind a slot directory (see SlottedPage), so strings only take up the
+   * space of their actual values.
+   */
+  public enum PageFormat {FIXED, SLOTTED}
 
   private Schema schema;
-  private TreeSet<Integer> freePages;
+  private FreeSpaceMap freeSpace;
+  private File freeSpaceFile;
 
   private TableStats stats;
 
   private PageAllocator allocator;
   private String tableName;
+  private PageFormat format;
 
   private int numEntriesPerPage;
   private int pageHeaderSize;
   private long numRecords;
 
+  private boolean multiVersion;
+  private VersionStore versions;
+
   public Table(String tableName) {
     this(tableName, FILENAME_PREFIX);
   }
 
   public Table(String tableName, String filenamePrefix) {
+    this(tableName, filenamePrefix, PageAllocator.getDefaultBufferPool());
+  }
+
+  /**
+   * This constructor is used for opening an existing table whose pages are cached in bufferPool.
+   * If the table was closed cleanly, its saved FreeSpaceMap is loaded and no data page is read;
+   * otherwise the map is rebuilt from the data pages.
+   *
+   * @param tableName the name of the table
+   * @param filenamePrefix the directory the table's file lives in
+   * @param bufferPool the BufferPool to cache this table's pages in
+   */
+  public Table(String tableName, String filenamePrefix, BufferPool bufferPool) {
     this.tableName = tableName;
+    this.versions = new VersionStore();
 
     String pathname = Paths.get(filenamePrefix, tableName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, false);
+    this.allocator = new PageAllocator(pathname, false, true, bufferPool);
     this.readHeaderPage();
-
-    this.stats = new TableStats(this.schema);
-
-    this.freePages = new TreeSet<Integer>();
     this.setEntryCounts();
-    Iterator<Page> pIter = this.allocator.iterator();
-    pIter.next();
-
-    long freshCountRecords = 0;
-
-    while(pIter.hasNext()) {
-      Page p = pIter.next();
-
-      // add all records in this page to TableStats
-      int entryNum = 0;
-      byte[] header = this.readPageHeader(p);
-      while (entryNum < this.getNumEntriesPerPage()) {
-        byte b = header[entryNum/8];
-        int bitOffset = 7 - (entryNum % 8);
-        byte mask = (byte) (1 << bitOffset);
 
-        byte value = (byte) (b & mask);
-        if (value != 0) {
-          int entrySize = this.schema.getEntrySize();
-
-          int offset = this.pageHeaderSize + (entrySize * entryNum);
-          byte[] bytes = p.readBytes(offset, entrySize);
-
-          Record record = this.schema.decode(bytes);
-          this.stats.addRecord(record);
-        }
-
-        entryNum++;
-      }
-
-      if (spaceOnPage(p)) {
-        this.freePages.add(p.getPageNum());
-      }
-
-      freshCountRecords += numValidEntries(p);
+    this.freeSpaceFile = Paths.get(filenamePrefix, tableName + FREE_SPACE_EXTENSION).toFile();
+    this.freeSpace = FreeSpaceMap.load(this.freeSpaceFile, this.getPageCapacity(),
+        this.allocator.getNumPages());
+    if (this.freeSpace != null) {
+      this.numRecords = this.freeSpace.getNumRecords();
+    } else {
+      this.rebuildFreeSpace();
     }
-
-    this.numRecords = freshCountRecords;
   }
 
   public Table(Schema schema, String tableName) {
@@ -118,25 +138,146 @@ public class Table implements Iterable<Record>, Closeable {
    * @param filenamePrefix the prefix select the table's files will be created
    */
   public Table(Schema schema, String tableName, String filenamePrefix) {
+    this(schema, tableName, filenamePrefix, PageAllocator.getDefaultBufferPool());
+  }
+
+  /**
+   * This constructor is used for creating a table in some specified directory whose pages are
+   * cached in bufferPool.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix select the table's files will be created
+   * @param bufferPool the BufferPool to cache this table's pages in
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, BufferPool bufferPool) {
+    this(schema, tableName, filenamePrefix, bufferPool, PageFormat.FIXED);
+  }
+
+  /**
+   * This constructor is used for creating a table with the given page format in some specified
+   * directory whose pages are cached in bufferPool.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix select the table's files will be created
+   * @param bufferPool the BufferPool to cache this table's pages in
+   * @param format the layout of the table's data pages
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, BufferPool bufferPool,
+               PageFormat format) {
+    this(schema, tableName, filenamePrefix, bufferPool, format, false);
+  }
+
+  /**
+   * This constructor is used for creating a table with the given page format in some specified
+   * directory whose pages are cached in bufferPool, and which keeps multiple versions of its
+   * records if multiVersion is set.
+   *
+   * @param schema the schema for this table
+   * @param tableName the name of the table
+   * @param filenamePrefix the prefix select the table's files will be created
+   * @param bufferPool the BufferPool to cache this table's pages in
+   * @param format the layout of the table's data pages
+   * @param multiVersion whether transactions read the table through snapshots
+   */
+  public Table(Schema schema, String tableName, String filenamePrefix, BufferPool bufferPool,
+               PageFormat format, boolean multiVersion) {
     this.schema = schema;
     this.tableName = tableName;
+    this.format = format;
+    this.multiVersion = multiVersion;
+    this.versions = new VersionStore();
     this.stats = new TableStats(this.schema);
 
-    this.freePages = new TreeSet<Integer>();
     String pathname = Paths.get(filenamePrefix, tableName + FILENAME_EXTENSION).toString();
-    this.allocator = new PageAllocator(pathname, true);
+    this.allocator = new PageAllocator(pathname, true, true, bufferPool);
 
     this.setEntryCounts();
+    this.freeSpaceFile = Paths.get(filenamePrefix, tableName + FREE_SPACE_EXTENSION).toFile();
+    this.freeSpaceFile.delete();
+    this.freeSpace = new FreeSpaceMap(this.getPageCapacity());
 
     this.writeHeaderPage();
   }
 
+  /**
+   * Closes this table, saving its FreeSpaceMap so that the next open does not have to rebuild it.
+   * The versions of a multi-version table are vacuumed first, as if no transaction was running.
+   */
   public void close() {
+    if (this.multiVersion) {
+      try {
+        this.vacuum(Long.MAX_VALUE);
+      } catch (DatabaseException e) {
+        throw new IllegalStateException(e.getMessage());
+      }
+    }
+    this.freeSpace.setNumRecords(this.numRecords);
+    try {
+      this.freeSpace.save(this.freeSpaceFile, this.allocator.getNumPages());
+    } catch (IOException e) {
+      this.freeSpaceFile.delete();
+    }
     allocator.close();
   }
 
+  /**
+   * Batches the metadata flushes of this table's page allocator. See PageAllocator#enableGroupCommit.
+   *
+   * @param flushIntervalMillis the time between background syncs, or 0 to only sync on demand
+   */
+  public void enableGroupCommit(long flushIntervalMillis) {
+    this.allocator.enableGroupCommit(flushIntervalMillis);
+  }
+
+  /**
+   * Logs the writes to this table's pages in log. See PageAllocator#enableLogging.
+   *
+   * @param log the log of the database the table belongs to
+   * @param created whether the table was created since the log was last truncated
+   */
+  public void enableWriteAheadLog(WriteAheadLog log, boolean created) {
+    this.allocator.enableLogging(log, this.tableName + FILENAME_EXTENSION, created);
+  }
+
+  /**
+   * Forces any batched page allocation metadata of this table to disk.
+   */
+  public void sync() {
+    this.allocator.sync();
+  }
+
+  /**
+   * Forces every page of this table to disk. See PageAllocator#force.
+   */
+  public void force() {
+    this.allocator.force();
+  }
+
+  /**
+   * @return the I/O statistics of this table's page allocator
+   */
+  public IOStats getIOStats() {
+    return this.allocator.getIOStats();
+  }
+
+  /**
+   * @return an iterator over the records of this table, or over the newest versions of the records
+   *         of a multi-version table
+   */
   public Iterator<Record> iterator() {
-      return new TableIterator();
+    if (this.multiVersion) {
+      return this.iterator(Snapshot.LATEST);
+    }
+    return new TableIterator();
+  }
+
+  /**
+   * @return an iterator over the versions of the records of this table that snapshot sees
+   */
+  public Iterator<Record> iterator(Snapshot snapshot) {
+    return new SnapshotIterator(snapshot);
   }
 
   public Iterator<Page> pageIterator() {
@@ -144,11 +285,21 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   /**
-   * Adds a new record to this table. The record should be added to the first
-   * free slot of the first free page if one exists, otherwise a new page should
-   * be allocated and the record should be placed in the first slot of that
-   * page. Recall that a free slot in the slot bitmap means the bit is set to 0.
-   * Make sure to update this.stats, this.freePages, and this.numRecords as
+   * Pins page pageNum of this table in the buffer pool until the returned handle is closed.
+   *
+   * @param pageNum the page number to pin
+   * @return an open PageHandle for the page
+   */
+  public PageHandle pinPage(int pageNum) {
+    return this.allocator.pinPage(pageNum);
+  }
+
+  /**
+   * Adds a new record to this table. The record is added to the first free
+   * slot of a page that this.freeSpace says has room for it, otherwise a new
+   * page is allocated and the record is placed in the first slot of that page.
+   * Recall that a free slot in the slot bitmap means the bit is set to 0.
+   * Make sure to update this.stats, this.freeSpace, and this.numRecords as
    * necessary.
    *
    * @param values the values of the record being added
@@ -156,7 +307,7 @@ public class Table implements Iterable<Record>, Closeable {
    * @throws DatabaseException if the values passed in to this method do not
    *         correspond to the schema of this table
    */
-  public RecordID addRecord(List<DataBox> values) throws DatabaseException {
+  public synchronized RecordID addRecord(List<DataBox> values) throws DatabaseException {
     Record record;
     try {
       record = this.schema.verify(values);
@@ -164,86 +315,320 @@ public class Table implements Iterable<Record>, Closeable {
       throw new DatabaseException(se.getMessage());
     }
 
-    boolean found = false;
-    Page page = null;
-    int entryNum = 0;
-
-    while (!found) {
-      if (!this.freePages.isEmpty()) {
-        page = this.allocator.fetchPage(this.freePages.first());
-      } else {
-        int pageNum = this.allocator.allocPage();
-        page = this.allocator.fetchPage(pageNum);
-        this.freePages.add(page.getPageNum());
-      }
-      entryNum = 0;
-      byte[] header = this.readPageHeader(page);
-
-      for (byte b : header) {
-        if (b != (byte) 0xFF) {
-          for (int j = 7; j >= 0; j--) {
-            byte mask = (byte) (1 << j);
-            if ((b & mask) == (byte) 0) {
-              found = true;
-              break;
-            }
-            entryNum++;
+    if (this.format == PageFormat.SLOTTED) {
+      return this.addSlottedRecord(record);
+    }
+
+    int pageNum = this.freeSpace.findPage(1);
+    if (pageNum == -1) {
+      pageNum = this.allocator.allocPage();
+      this.freeSpace.update(pageNum, this.numEntriesPerPage);
+    }
+    Page page = this.allocator.fetchPage(pageNum);
+    int entryNum = this.findFreeEntry(page, this.freeSpace.getHint(pageNum));
+
+    this.writeBitToHeader(page, entryNum, (byte) 1);
+
+    int offset = this.pageHeaderSize + (entryNum * this.schema.getEntrySize());
+    byte[] bytes = this.schema.encode(record);
+
+    page.writeBytes(offset, bytes.length, bytes);
+    this.freeSpace.update(pageNum, this.freeSpace.getFree(pageNum) - 1);
+    this.freeSpace.setHint(pageNum, entryNum + 1);
+    this.numRecords++;
+    if (this.stats != null) {
+      this.stats.addRecord(record);
+    }
+
+    return new RecordID(pageNum, entryNum);
+  }
+
+  /**
+   * Finds the first free slot of a FIXED data page, starting at slot hint.
+   *
+   * @param page a FIXED data page with a free slot
+   * @param hint a slot number such that no lower slot of page is free
+   * @return the first free slot
+   */
+  private int findFreeEntry(Page page, int hint) {
+    for (int i = hint / 8; i < this.pageHeaderSize; i++) {
+      byte b = page.readByte(i);
+      if (b != (byte) 0xFF) {
+        for (int j = 7; j >= 0; j--) {
+          if ((b & (byte) (1 << j)) == (byte) 0) {
+            return i * 8 + 7 - j;
           }
-        } else {
-          entryNum += 8;
         }
+      }
+    }
+    throw new IllegalStateException("Page " + page.getPageNum() + " of Table " + this.tableName +
+        " has no free slot.");
+  }
 
-        if (found) {
-          break;
+  /**
+   * Adds record to a page that the FreeSpaceMap says it fits on, allocating a new page if there
+   * is none.
+   */
+  private RecordID addSlottedRecord(Record record) throws DatabaseException {
+    byte[] bytes = this.schema.encodeVariable(record);
+    if (bytes.length > SlottedPage.getMaxRecordSize()) {
+      throw new DatabaseException("Record of " + bytes.length + " bytes does not fit on a page.");
+    }
+
+    int needed = bytes.length + SlottedPage.SLOT_SIZE;
+    while (true) {
+      int pageNum = this.freeSpace.findPage(needed);
+      if (pageNum == -1) {
+        pageNum = this.allocator.allocPage();
+      }
+      Page page = this.allocator.fetchPage(pageNum);
+
+      int slot = SlottedPage.insert(page, bytes, this.numEntriesPerPage,
+          this.freeSpace.getHint(pageNum));
+      if (slot >= 0) {
+        this.freeSpace.update(pageNum, this.freeSpaceOf(page));
+        this.freeSpace.setHint(pageNum, slot + 1);
+        this.numRecords++;
+        if (this.stats != null) {
+          this.stats.addRecord(record);
         }
+        return new RecordID(pageNum, slot);
       }
+      // the page is out of slots; make sure it is not offered for a record of this size again
+      this.freeSpace.update(pageNum, Math.min(this.freeSpaceOf(page), needed - 1));
+    }
+  }
 
-      if (!found) {
-        this.freePages.pollFirst();
+  /**
+   * Appends every row of rows to this table. See bulkLoad(Iterator, List).
+   *
+   * @param rows the values of the records to add
+   * @return the number of records and pages written and the time it took
+   * @throws DatabaseException if a row does not correspond to the schema of this table or does
+   *         not fit on a page; the rows before it stay in the table
+   */
+  public synchronized BulkLoadStats bulkLoad(Iterator<List<DataBox>> rows) throws DatabaseException {
+    return this.bulkLoad(rows, null);
+  }
+
+  /**
+   * Appends every row of rows to this table. Unlike addRecord, the rows are written to newly
+   * allocated pages one after the other: each page is filled before the next one is allocated,
+   * its slot bitmap is written once, and the stats of its records are added as a batch. Free
+   * space on the existing pages of the table is not reused.
+   *
+   * @param rows the values of the records to add
+   * @param rids if not null, receives the RecordID of every added record, in order
+   * @return the number of records and pages written and the time it took
+   * @throws DatabaseException if a row does not correspond to the schema of this table or does
+   *         not fit on a page; the rows before it stay in the table
+   */
+  public synchronized BulkLoadStats bulkLoad(Iterator<List<DataBox>> rows, List<RecordID> rids)
+      throws DatabaseException {
+    long start = System.nanoTime();
+    long numLoaded = 0;
+    int numPages = 0;
+    List<Record> batch = new ArrayList<Record>();
+    Record pending = null;
+
+    while (pending != null || rows.hasNext()) {
+      int pageNum = this.allocator.allocPage();
+      Page page = this.allocator.fetchPage(pageNum);
+      numPages++;
+      try {
+        while (batch.size() < this.numEntriesPerPage && (pending != null || rows.hasNext())) {
+          Record record = pending != null ? pending : this.verify(rows.next());
+          pending = null;
+          if (!this.writeBulkRecord(page, batch.size(), record)) {
+            pending = record;
+            break;
+          }
+          batch.add(record);
+          if (rids != null) {
+            rids.add(new RecordID(pageNum, batch.size() - 1));
+          }
+        }
+      } finally {
+        this.finishBulkPage(page, batch);
+        numLoaded += batch.size();
+        batch.clear();
       }
     }
 
-    this.writeBitToHeader(page, entryNum, (byte) 1);
+    return new BulkLoadStats(numLoaded, numPages, System.nanoTime() - start);
+  }
 
-    int offset = this.pageHeaderSize + (entryNum * this.schema.getEntrySize());
-    byte[] bytes = this.schema.encode(record);
+  /**
+   * Appends every row of rows to this multi-version table, written by the transaction of writer.
+   * See bulkLoad(Iterator, List).
+   *
+   * @param rows the values of the records to add
+   * @param rids if not null, receives the RecordID of every added record, in order
+   * @param writer the snapshot of the writing transaction
+   * @return the number of records and pages written and the time it took
+   * @throws DatabaseException if a row does not correspond to the schema of this table or does
+   *         not fit on a page; the rows before it stay in the table
+   */
+  public synchronized BulkLoadStats bulkLoad(Iterator<List<DataBox>> rows, List<RecordID> rids,
+                                             Snapshot writer) throws DatabaseException {
+    this.checkMultiVersion();
+    List<RecordID> loaded = new ArrayList<RecordID>();
+    try {
+      return this.bulkLoad(rows, loaded);
+    } finally {
+      for (RecordID rid : loaded) {
+        Record record = this.readRecord(this.allocator.fetchPage(rid.getPageNum()), rid.getEntryNumber());
+        this.versions.addVersion(rid, null, record, writer.getTransNum());
+      }
+      if (rids != null) {
+        rids.addAll(loaded);
+      }
+    }
+  }
 
-    page.writeBytes(offset, bytes.length, bytes);
-    this.numRecords++;
-    this.stats.addRecord(record);
+  private Record verify(List<DataBox> values) throws DatabaseException {
+    try {
+      return this.schema.verify(values);
+    } catch (SchemaException se) {
+      throw new DatabaseException(se.getMessage());
+    }
+  }
 
-    return new RecordID(page.getPageNum(), entryNum);
+  /**
+   * Writes record to slot entryNum of a page being bulk loaded, without touching the slot bitmap
+   * of a FIXED page.
+   *
+   * @return whether the record fit on page
+   */
+  private boolean writeBulkRecord(Page page, int entryNum, Record record)
+      throws DatabaseException {
+    if (this.format == PageFormat.SLOTTED) {
+      byte[] bytes = this.schema.encodeVariable(record);
+      if (bytes.length > SlottedPage.getMaxRecordSize()) {
+        throw new DatabaseException("Record of " + bytes.length + " bytes does not fit on a page.");
+      }
+      return SlottedPage.insert(page, bytes, this.numEntriesPerPage, entryNum) >= 0;
+    }
+    this.schema.encode(record, page, this.pageHeaderSize + (entryNum * this.schema.getEntrySize()));
+    return true;
+  }
+
+  /**
+   * Completes a bulk loaded page whose first batch.size() slots hold the records of batch.
+   */
+  private void finishBulkPage(Page page, List<Record> batch) {
+    int numEntries = batch.size();
+    int pageNum = page.getPageNum();
+    if (this.format == PageFormat.FIXED) {
+      byte[] header = new byte[(numEntries + 7) / 8];
+      Arrays.fill(header, (byte) 0xFF);
+      if (numEntries % 8 != 0) {
+        header[header.length - 1] = (byte) (0xFF << (8 - numEntries % 8));
+      }
+      page.writeBytes(0, header.length, header);
+      this.freeSpace.update(pageNum, this.numEntriesPerPage - numEntries);
+    } else {
+      this.freeSpace.update(pageNum, this.freeSpaceOf(page));
+    }
+    this.freeSpace.setHint(pageNum, numEntries);
+    this.numRecords += numEntries;
+    if (this.stats != null) {
+      this.stats.addRecords(batch);
+    }
   }
 
   /**
    * Deletes the record specified by rid from the table. Make sure to update
-   * this.stats, this.freePages, and this.numRecords as necessary.
+   * this.stats, this.freeSpace, and this.numRecords as necessary.
    *
    * @param rid the RecordID of the record to delete
    * @return the Record referenced by rid that was removed
    * @throws DatabaseException if rid does not correspond to a valid record
    */
-  public Record deleteRecord(RecordID rid) throws DatabaseException {
+  public synchronized Record deleteRecord(RecordID rid) throws DatabaseException {
+    Record oldRecord = this.removeRecord(rid);
+    if (this.stats != null) {
+      this.stats.removeRecord(oldRecord);
+    }
+    return oldRecord;
+  }
+
+  /**
+   * Frees the slot of rid without touching this.stats.
+   *
+   * @return the Record referenced by rid that was removed
+   */
+  private Record removeRecord(RecordID rid) throws DatabaseException {
     if (!this.checkRecordIDValidity(rid)) {
       throw new DatabaseException("Invalid RecordID " + rid + ".");
     }
 
     Page page = this.allocator.fetchPage(rid.getPageNum());
-    int entrySize = this.schema.getEntrySize();
     int entryNum = rid.getEntryNumber();
 
-    int offset = this.pageHeaderSize + (entrySize * entryNum);
-    Record oldRecord = this.schema.decode(page.readBytes(offset, entrySize));
+    Record oldRecord = this.readRecord(page, entryNum);
 
-    this.writeBitToHeader(page, entryNum, (byte) 0);
-    this.freePages.add(page.getPageNum());
+    int pageNum = page.getPageNum();
+    if (this.format == PageFormat.SLOTTED) {
+      SlottedPage.delete(page, entryNum);
+      this.freeSpace.update(pageNum, this.freeSpaceOf(page));
+    } else {
+      this.writeBitToHeader(page, entryNum, (byte) 0);
+      this.freeSpace.update(pageNum, this.freeSpace.getFree(pageNum) + 1);
+    }
+    this.freeSpace.setHint(pageNum, Math.min(this.freeSpace.getHint(pageNum), entryNum));
     this.numRecords--;
 
-    this.stats.removeRecord(oldRecord);
-
     return oldRecord;
   }
 
+  /**
+   * Puts a deleted record back into its slot rid, as rolling back its deletion does. If the slot
+   * has been taken since or the record no longer fits on its page, the record is added the way
+   * addRecord adds it instead.
+   *
+   * @param values the values of the deleted record
+   * @param rid the RecordID the record had
+   * @return the RecordID of the restored record
+   * @throws DatabaseException if the values do not correspond to the schema of this table
+   */
+  public synchronized RecordID restoreRecord(List<DataBox> values, RecordID rid)
+      throws DatabaseException {
+    Record record = this.verify(values);
+    boolean taken;
+    try {
+      taken = this.checkRecordIDValidity(rid);
+    } catch (DatabaseException e) {
+      taken = true;
+    }
+    if (taken) {
+      return this.addRecord(values);
+    }
+
+    int pageNum = rid.getPageNum();
+    int entryNum = rid.getEntryNumber();
+    Page page = this.allocator.fetchPage(pageNum);
+    if (this.format == PageFormat.SLOTTED) {
+      entryNum = SlottedPage.insert(page, this.schema.encodeVariable(record),
+          this.numEntriesPerPage, entryNum);
+      if (entryNum < 0) {
+        return this.addRecord(values);
+      }
+      this.freeSpace.update(pageNum, this.freeSpaceOf(page));
+    } else {
+      this.writeBitToHeader(page, entryNum, (byte) 1);
+      byte[] bytes = this.schema.encode(record);
+      page.writeBytes(this.pageHeaderSize + (entryNum * this.schema.getEntrySize()), bytes.length,
+          bytes);
+      this.freeSpace.update(pageNum, this.freeSpace.getFree(pageNum) - 1);
+    }
+    this.numRecords++;
+    if (this.stats != null) {
+      this.stats.addRecord(record);
+    }
+    return new RecordID(pageNum, entryNum);
+  }
+
   /**
    * Retrieves a record from the table.
    *
@@ -252,17 +637,19 @@ public class Table implements Iterable<Record>, Closeable {
    * @throws DatabaseException if rid does not correspond to a valid record
    */
   public Record getRecord(RecordID rid) throws DatabaseException {
+    if (this.multiVersion) {
+      return this.getRecord(rid, Snapshot.LATEST);
+    }
+    return this.readValidRecord(rid);
+  }
+
+  private Record readValidRecord(RecordID rid) throws DatabaseException {
     if (!this.checkRecordIDValidity(rid)) {
       throw new DatabaseException("Invalid RecordID " + rid + ".");
     }
 
     Page page = this.allocator.fetchPage(rid.getPageNum());
-    int entrySize = this.schema.getEntrySize();
-
-    int offset = this.pageHeaderSize + (entrySize * rid.getEntryNumber());
-    byte[] bytes = page.readBytes(offset, entrySize);
-
-    return this.schema.decode(bytes);
+    return this.readRecord(page, rid.getEntryNumber());
   }
 
   /**
@@ -272,37 +659,256 @@ public class Table implements Iterable<Record>, Closeable {
    * @param values the new values of the record
    * @param rid the RecordID of the record to update
    * @return the old version of the record
-   * @throws DatabaseException if rid does not correspond to a valid record or
-   *         if the values do not correspond to the schema of this table
+   * @throws DatabaseException if rid does not correspond to a valid record,
+   *         if the values do not correspond to the schema of this table, or if
+   *         the updated record of a SLOTTED table no longer fits on its page
    */
-  public Record updateRecord(List<DataBox> values, RecordID rid) throws DatabaseException {
-    if (!this.checkRecordIDValidity(rid)) {
-      throw new DatabaseException("Invalid RecordID " + rid + ".");
+  public synchronized Record updateRecord(List<DataBox> values, RecordID rid) throws DatabaseException {
+    Record record = this.verify(values);
+    Record oldRecord = this.writeRecord(rid, record);
+
+    if (this.stats != null) {
+      this.stats.removeRecord(oldRecord);
+      this.stats.addRecord(record);
     }
 
-    Record record;
-    try {
-      record = this.schema.verify(values);
-    } catch (SchemaException se) {
-      throw new DatabaseException(se.getMessage());
+    return oldRecord;
+  }
+
+  /**
+   * Overwrites the record of rid with record without touching this.stats.
+   *
+   * @return the old version of the record
+   */
+  private Record writeRecord(RecordID rid, Record record) throws DatabaseException {
+    if (!this.checkRecordIDValidity(rid)) {
+      throw new DatabaseException("Invalid RecordID " + rid + ".");
     }
 
     Page page = this.allocator.fetchPage(rid.getPageNum());
-    int entrySize = this.schema.getEntrySize();
+    Record oldRecord = this.readRecord(page, rid.getEntryNumber());
 
-    int offset = this.pageHeaderSize + (entrySize * rid.getEntryNumber());
+    if (this.format == PageFormat.SLOTTED) {
+      if (!SlottedPage.update(page, rid.getEntryNumber(), this.schema.encodeVariable(record))) {
+        throw new DatabaseException("Updated record " + rid + " does not fit on its page.");
+      }
+      this.freeSpace.update(page.getPageNum(), this.freeSpaceOf(page));
+    } else {
+      int offset = this.pageHeaderSize + (this.schema.getEntrySize() * rid.getEntryNumber());
+      byte[] bytes = this.schema.encode(record);
+      page.writeBytes(offset, bytes.length, bytes);
+    }
 
-    Record oldRecord = this.schema.decode(page.readBytes(offset, entrySize));
+    return oldRecord;
+  }
 
-    byte[] bytes = this.schema.encode(record);
-    page.writeBytes(offset, bytes.length, bytes);
+  /**
+   * Adds a new record to this multi-version table, written by the transaction of writer. Only the
+   * snapshots that see that transaction see the record.
+   *
+   * @param values the values of the record being added
+   * @param writer the snapshot of the writing transaction
+   * @return the RecordID of the added record
+   * @throws DatabaseException if the values do not correspond to the schema of this table
+   */
+  public synchronized RecordID addRecord(List<DataBox> values, Snapshot writer)
+      throws DatabaseException {
+    this.checkMultiVersion();
+    Record record = this.verify(values);
+    RecordID rid = this.addRecord(values);
+    this.versions.addVersion(rid, null, record, writer.getTransNum());
+    return rid;
+  }
 
-    this.stats.removeRecord(oldRecord);
-    this.stats.addRecord(record);
+  /**
+   * Adds a new version of a record of this multi-version table, written by the transaction of
+   * writer. The snapshots that do not see that transaction keep seeing the old version.
+   *
+   * @param values the new values of the record
+   * @param rid the RecordID of the record to update
+   * @param writer the snapshot of the writing transaction
+   * @return the version of the record that was replaced
+   * @throws DatabaseException if rid does not correspond to a valid record, if its newest version
+   *         was written by a transaction writer does not see, or if the values are invalid
+   */
+  public synchronized Record updateRecord(List<DataBox> values, RecordID rid, Snapshot writer)
+      throws DatabaseException {
+    this.checkMultiVersion();
+    Record oldRecord = this.getNewestVersion(rid, writer);
+    Record record = this.verify(values);
+    this.updateRecord(values, rid);
+    this.versions.addVersion(rid, oldRecord, record, writer.getTransNum());
+    return oldRecord;
+  }
 
+  /**
+   * Deletes a record of this multi-version table for the transaction of writer. The snapshots
+   * that do not see that transaction keep seeing the record, so its slot stays in use until
+   * vacuum reclaims it.
+   *
+   * @param rid the RecordID of the record to delete
+   * @param writer the snapshot of the writing transaction
+   * @return the version of the record that was deleted
+   * @throws DatabaseException if rid does not correspond to a valid record, or if its newest
+   *         version was written by a transaction writer does not see
+   */
+  public synchronized Record deleteRecord(RecordID rid, Snapshot writer) throws DatabaseException {
+    this.checkMultiVersion();
+    Record oldRecord = this.getNewestVersion(rid, writer);
+    this.versions.addVersion(rid, oldRecord, null, writer.getTransNum());
+    if (this.stats != null) {
+      this.stats.removeRecord(oldRecord);
+    }
     return oldRecord;
   }
 
+  /**
+   * Retrieves the version of a record that snapshot sees.
+   *
+   * @param rid the RecordID of the record to retrieve
+   * @param snapshot the snapshot to read
+   * @return the version of the record referenced by rid that snapshot sees
+   * @throws DatabaseException if rid does not correspond to a record snapshot sees
+   */
+  public synchronized Record getRecord(RecordID rid, Snapshot snapshot) throws DatabaseException {
+    List<VersionStore.Version> chain = this.versions.getChain(rid);
+    if (chain == null) {
+      return this.readValidRecord(rid);
+    }
+    Record record = VersionStore.getVisible(chain, snapshot);
+    if (record == null) {
+      throw new DatabaseException("Invalid RecordID " + rid + ".");
+    }
+    return record;
+  }
+
+  /**
+   * Forgets which records the transaction transNum wrote, once it has committed. Its versions
+   * stay until vacuum reclaims them.
+   *
+   * @param transNum the committed transaction
+   */
+  public synchronized void commit(long transNum) {
+    this.versions.removeWrites(transNum);
+  }
+
+  /**
+   * Removes the versions the transaction transNum wrote, restoring the versions before them.
+   *
+   * @param transNum the aborted transaction
+   * @return the removed versions of each record transNum wrote
+   * @throws DatabaseException if a restored record of a SLOTTED table no longer fits on its page
+   */
+  public synchronized Map<RecordID, List<Record>> rollback(long transNum) throws DatabaseException {
+    Map<RecordID, List<Record>> removed = new LinkedHashMap<RecordID, List<Record>>();
+    for (RecordID rid : this.versions.removeWrites(transNum)) {
+      List<VersionStore.Version> chain = this.versions.getChain(rid);
+      Record newest = chain.get(chain.size() - 1).record;
+      List<Record> records = new ArrayList<Record>();
+      while (!chain.isEmpty() && chain.get(chain.size() - 1).writer == transNum) {
+        Record record = chain.remove(chain.size() - 1).record;
+        if (record != null) {
+          records.add(record);
+        }
+      }
+      Record restored = chain.isEmpty() ? null : chain.get(chain.size() - 1).record;
+      if (chain.isEmpty() || (chain.size() == 1 && chain.get(0).writer == Snapshot.FROZEN)) {
+        this.versions.removeChain(rid);
+      }
+
+      if (this.stats != null) {
+        if (newest != null) {
+          this.stats.removeRecord(newest);
+        }
+        if (restored != null) {
+          this.stats.addRecord(restored);
+        }
+      }
+      if (restored == null) {
+        this.removeRecord(rid);
+      } else if (!records.isEmpty()) {
+        this.writeRecord(rid, restored);
+      }
+      removed.put(rid, records);
+    }
+    return removed;
+  }
+
+  /**
+   * Reclaims the versions that no snapshot needs anymore: the versions older than the newest
+   * version written by a transaction numbered below horizon, and the slots of records whose
+   * deletion every snapshot sees.
+   *
+   * @param horizon a transaction number such that every running and future snapshot sees the
+   *                versions written by the transactions numbered below it
+   * @return the reclaimed versions of each record that lost any
+   * @throws DatabaseException if a reclaimed slot cannot be freed
+   */
+  public synchronized Map<RecordID, List<Record>> vacuum(long horizon) throws DatabaseException {
+    Map<RecordID, List<Record>> removed = new LinkedHashMap<RecordID, List<Record>>();
+    for (RecordID rid : new ArrayList<RecordID>(this.versions.getRecordIDs())) {
+      List<VersionStore.Version> chain = this.versions.getChain(rid);
+      int visible = chain.size() - 1;
+      while (visible >= 0 && chain.get(visible).writer >= horizon) {
+        visible--;
+      }
+      if (visible < 0) {
+        continue;
+      }
+
+      List<Record> records = new ArrayList<Record>();
+      for (VersionStore.Version version : chain.subList(0, visible)) {
+        if (version.record != null) {
+          records.add(version.record);
+        }
+      }
+      chain.subList(0, visible).clear();
+      if (chain.size() == 1) {
+        this.versions.removeChain(rid);
+        if (chain.get(0).record == null) {
+          this.removeRecord(rid);
+        }
+      }
+      if (!records.isEmpty()) {
+        removed.put(rid, records);
+      }
+    }
+    return removed;
+  }
+
+  /**
+   * @return the number of record versions this multi-version table keeps in memory
+   */
+  public synchronized int getNumVersions() {
+    return this.versions.getNumVersions();
+  }
+
+  /**
+   * @return the newest version of rid, which writer is about to replace
+   * @throws DatabaseException if rid does not correspond to a valid record, or if its newest
+   *         version was written by a transaction writer does not see
+   */
+  private Record getNewestVersion(RecordID rid, Snapshot writer) throws DatabaseException {
+    List<VersionStore.Version> chain = this.versions.getChain(rid);
+    if (chain == null) {
+      return this.readValidRecord(rid);
+    }
+    VersionStore.Version newest = chain.get(chain.size() - 1);
+    if (!writer.sees(newest.writer)) {
+      throw new DatabaseException("Record " + rid + " was changed by a concurrent transaction.");
+    }
+    if (newest.record == null) {
+      throw new DatabaseException("Invalid RecordID " + rid + ".");
+    }
+    return newest.record;
+  }
+
+  private void checkMultiVersion() throws DatabaseException {
+    if (!this.multiVersion) {
+      throw new DatabaseException("Table " + this.tableName + " does not keep versions.");
+    }
+  }
+
   public int getNumEntriesPerPage() {
     return this.numEntriesPerPage;
   }
@@ -319,7 +925,100 @@ public class Table implements Iterable<Record>, Closeable {
     return this.schema;
   }
 
-  public TableStats getStats() { return this.stats; }
+  public PageFormat getPageFormat() {
+    return this.format;
+  }
+
+  public boolean isMultiVersion() {
+    return this.multiVersion;
+  }
+
+  /**
+   * Decodes the record in slot entryNum of a data page of this table. The slot must hold a
+   * record.
+   *
+   * @param page a data page of this table
+   * @param entryNum the slot of the record
+   * @return the decoded Record
+   */
+  public Record readRecord(Page page, int entryNum) {
+    if (this.format == PageFormat.SLOTTED) {
+      return this.schema.decodeVariable(page, SlottedPage.getSlotOffset(page, entryNum));
+    }
+    int offset = this.pageHeaderSize + (this.schema.getEntrySize() * entryNum);
+    return this.schema.decode(page, offset);
+  }
+
+  /**
+   * Decodes the version of the record in slot entryNum of a data page of this table that snapshot
+   * sees. The slot must hold a record.
+   *
+   * @param page a data page of this table
+   * @param entryNum the slot of the record
+   * @param snapshot the snapshot to read
+   * @return the decoded Record, or null if snapshot does not see the record
+   */
+  public synchronized Record readRecord(Page page, int entryNum, Snapshot snapshot) {
+    List<VersionStore.Version> chain =
+        this.versions.getChain(new RecordID(page.getPageNum(), entryNum));
+    if (chain == null) {
+      return this.readRecord(page, entryNum);
+    }
+    return VersionStore.getVisible(chain, snapshot);
+  }
+
+  /**
+   * Decodes every version of the record in slot entryNum of a data page of this table that some
+   * snapshot may still see. The slot must hold a record.
+   *
+   * @param page a data page of this table
+   * @param entryNum the slot of the record
+   * @return the versions of the record, oldest first, without the deletion of the record
+   */
+  public synchronized List<Record> readVersions(Page page, int entryNum) {
+    List<VersionStore.Version> chain =
+        this.versions.getChain(new RecordID(page.getPageNum(), entryNum));
+    if (chain == null) {
+      return Collections.singletonList(this.readRecord(page, entryNum));
+    }
+    List<Record> records = new ArrayList<Record>();
+    for (VersionStore.Version version : chain) {
+      if (version.record != null) {
+        records.add(version.record);
+      }
+    }
+    return records;
+  }
+
+  /**
+   * Decodes every version of record rid that some snapshot may still see.
+   *
+   * @param rid the record
+   * @return the versions of the record, oldest first, without the deletion of the record; none if
+   *         rid holds no record
+   * @throws DatabaseException if rid does not reference an existing data page slot
+   */
+  public synchronized List<Record> readVersions(RecordID rid) throws DatabaseException {
+    if (this.versions.getChain(rid) == null && !this.checkRecordIDValidity(rid)) {
+      return Collections.emptyList();
+    }
+    return this.readVersions(this.allocator.fetchPage(rid.getPageNum()), rid.getEntryNumber());
+  }
+
+  /**
+   * @return the TableStats of this table. For an opened table they are computed from its records
+   * on the first call.
+   */
+  public TableStats getStats() {
+    if (this.stats == null) {
+      TableStats stats = new TableStats(this.schema);
+      for (Record record : this) {
+        stats.addRecord(record);
+      }
+      this.stats = stats;
+    }
+    return this.stats;
+  }
 
   /**
    * Checks whether a RecordID is valid or not. That is, check to see if the slot
@@ -342,13 +1041,17 @@ public class Table implements Iterable<Record>, Closeable {
       throw new DatabaseException("Page " + rid.getPageNum() + " is not valid in Table " + this.tableName + ".");
     }
 
-    byte[] header = this.readPageHeader(page);
     int entryNum = rid.getEntryNumber();
 
     if (entryNum >= this.getNumEntriesPerPage()) {
       throw new DatabaseException("Entry Number is out of bounds of Page. Number of Entries per Page: " + this.getNumEntriesPerPage() + " Requested: " + entryNum);
     }
 
+    if (this.format == PageFormat.SLOTTED) {
+      return SlottedPage.isValid(page, entryNum);
+    }
+
+    byte[] header = this.readPageHeader(page);
     int byteOffset = entryNum / 8;
     int bitOffset = 7 - (entryNum % 8);
     byte mask = (byte) (1 << bitOffset);
@@ -366,28 +1069,63 @@ public class Table implements Iterable<Record>, Closeable {
    * `numEntriesPerPage` is a multiple of 8 (this may waste some space).
    *
    * Should set this.pageHeaderSize and this.numEntriesPerPage.
+   *
+   * For SLOTTED tables, numEntriesPerPage is the number of records of the
+   * smallest possible size that fit on a page, and pageHeaderSize is the size
+   * of the slot bitmap that readPageHeader builds from the slot directory.
    */
   private void setEntryCounts() {
+    if (this.format == PageFormat.SLOTTED) {
+      this.numEntriesPerPage = SlottedPage.getMaxSlots(this.schema.getMinVariableEntrySize());
+      this.pageHeaderSize = (this.numEntriesPerPage + 7) / 8;
+      return;
+    }
     this.pageHeaderSize = ((Page.pageSize * 8) / (1 + 8 * this.schema.getEntrySize())) / 8;
     this.numEntriesPerPage = this.pageHeaderSize * 8;
   }
 
   /**
-   * Checks if there is any free space on the given page.
+   * @return the free space of an empty data page, in the unit of the FreeSpaceMap: slots for FIXED
+   *         tables and bytes for SLOTTED tables
+   */
+  private int getPageCapacity() {
+    if (this.format == PageFormat.SLOTTED) {
+      return Page.pageSize - SlottedPage.HEADER_SIZE;
+    }
+    return this.numEntriesPerPage;
+  }
+
+  /**
+   * Computes the free space of the given page for the FreeSpaceMap. A SLOTTED page that cannot
+   * take even the smallest record has no free space.
    *
    * @param p the page to check
-   * @return true if there exists free space, otherwise false
+   * @return the free space of p
    */
-  private boolean spaceOnPage(Page p) {
-    byte[] header = this.readPageHeader(p);
-
-    for (byte b : header) {
-      if (b != (byte) 0xFF) {
-        return true;
+  private int freeSpaceOf(Page p) {
+    if (this.format == PageFormat.SLOTTED) {
+      if (!SlottedPage.hasSpace(p, this.schema.getMinVariableEntrySize(), this.numEntriesPerPage)) {
+        return 0;
       }
+      return SlottedPage.getFreeSpace(p);
     }
+    return this.numEntriesPerPage - this.numValidEntries(p);
+  }
 
-    return false;
+  /**
+   * Rebuilds this.freeSpace and this.numRecords by reading every data page.
+   */
+  private void rebuildFreeSpace() {
+    this.freeSpace = new FreeSpaceMap(this.getPageCapacity());
+    this.numRecords = 0;
+
+    Iterator<Page> pIter = this.allocator.iterator();
+    pIter.next();
+    while (pIter.hasNext()) {
+      Page p = pIter.next();
+      this.freeSpace.update(p.getPageNum(), this.freeSpaceOf(p));
+      this.numRecords += this.numValidEntries(p);
+    }
   }
 
   /**
@@ -412,8 +1150,8 @@ public class Table implements Iterable<Record>, Closeable {
   }
 
   /**
-   * Utility method to write the header page of the table. The only information written into
-   * the header page is the table's schema.
+   * Utility method to write the header page of the table. The header page holds the table's
+   * schema, followed by the ordinal of its page format and whether it is multi-version.
    */
   private void writeHeaderPage() {
     int numBytesWritten = 0;
@@ -422,11 +1160,11 @@ public class Table implements Iterable<Record>, Closeable {
     assert(0 == headerPage.getPageNum());
 
     List<String> fieldNames = this.schema.getFieldNames();
-    headerPage.writeBytes(numBytesWritten, 4, ByteBuffer.allocate(4).putInt(fieldNames.size()).array());
+    headerPage.writeInt(numBytesWritten, fieldNames.size());
     numBytesWritten += 4;
 
     for (String fieldName : fieldNames) {
-      headerPage.writeBytes(numBytesWritten, 4, ByteBuffer.allocate(4).putInt(fieldName.length()).array());
+      headerPage.writeInt(numBytesWritten, fieldName.length());
       numBytesWritten += 4;
     }
 
@@ -436,14 +1174,19 @@ public class Table implements Iterable<Record>, Closeable {
     }
 
     for (DataBox field : this.schema.getFieldTypes()) {
-      headerPage.writeBytes(numBytesWritten, 4, ByteBuffer.allocate(4).putInt(field.type().ordinal()).array());
+      headerPage.writeInt(numBytesWritten, field.type().ordinal());
       numBytesWritten += 4;
 
       if (field.type().equals(DataBox.Types.STRING)) {
-        headerPage.writeBytes(numBytesWritten, 4, ByteBuffer.allocate(4).putInt(field.getSize()).array());
+        headerPage.writeInt(numBytesWritten, field.getSize());
         numBytesWritten += 4;
       }
     }
+
+    headerPage.writeInt(numBytesWritten, this.format.ordinal());
+    numBytesWritten += 4;
+
+    headerPage.writeInt(numBytesWritten, this.multiVersion ? 1 : 0);
   }
 
   /**
@@ -453,12 +1196,12 @@ public class Table implements Iterable<Record>, Closeable {
     int numBytesRead = 0;
     Page headerPage = this.allocator.fetchPage(0);
 
-    int numFields = ByteBuffer.wrap(headerPage.readBytes(numBytesRead, 4)).getInt();
+    int numFields = headerPage.readInt(numBytesRead);
     numBytesRead += 4;
 
     List<Integer> fieldNameLengths = new ArrayList<Integer>();
     for (int i = 0; i < numFields; i++) {
-      fieldNameLengths.add(ByteBuffer.wrap(headerPage.readBytes(numBytesRead, 4)).getInt());
+      fieldNameLengths.add(headerPage.readInt(numBytesRead));
       numBytesRead += 4;
     }
 
@@ -472,7 +1215,7 @@ public class Table implements Iterable<Record>, Closeable {
 
     List<DataBox> fieldTypes = new ArrayList<DataBox>();
     for (int i = 0; i < numFields; i++) {
-      int ordinal = ByteBuffer.wrap(headerPage.readBytes(numBytesRead, 4)).getInt();
+      int ordinal = headerPage.readInt(numBytesRead);
       DataBox.Types type = DataBox.Types.values()[ordinal];
       numBytesRead += 4;
 
@@ -481,7 +1224,7 @@ public class Table implements Iterable<Record>, Closeable {
           fieldTypes.add(new IntDataBox());
           break;
         case STRING:
-          int len = ByteBuffer.wrap(headerPage.readBytes(numBytesRead, 4)).getInt();
+          int len = headerPage.readInt(numBytesRead);
           numBytesRead += 4;
 
           fieldTypes.add(new StringDataBox(len));
@@ -497,6 +1240,12 @@ public class Table implements Iterable<Record>, Closeable {
 
     this.schema = new Schema(fieldNames, fieldTypes);
 
+    // tables written before page formats existed have a zero here, which is FIXED
+    this.format = PageFormat.values()[headerPage.readInt(numBytesRead)];
+    numBytesRead += 4;
+
+    // and tables written before multi-version tables existed have a zero here
+    this.multiVersion = headerPage.readInt(numBytesRead) == 1;
   }
 
   /**
@@ -532,9 +1281,60 @@ public class Table implements Iterable<Record>, Closeable {
    * @return a byte[] with the slot header
    */
   public byte[] readPageHeader(Page page) {
+    if (this.format == PageFormat.SLOTTED) {
+      return SlottedPage.getBitmap(page, this.pageHeaderSize);
+    }
     return page.readBytes(0, this.pageHeaderSize);
   }
 
+  /**
+   * Read the slot header of a page as snapshot sees it: the slots of records that snapshot does
+   * not see are free.
+   *
+   * @param page the page to read from
+   * @param snapshot the snapshot to read
+   * @return a byte[] with the slot header
+   */
+  public synchronized byte[] readPageHeader(Page page, Snapshot snapshot) {
+    byte[] header = this.readPageHeader(page);
+    if (this.versions.isEmpty()) {
+      return header;
+    }
+
+    for (int entryNum = 0; entryNum < this.numEntriesPerPage; entryNum++) {
+      int byteOffset = entryNum / 8;
+      byte mask = (byte) (1 << (7 - (entryNum % 8)));
+      if ((header[byteOffset] & mask) != 0
+          && this.readRecord(page, entryNum, snapshot) == null) {
+        header[byteOffset] = (byte) (header[byteOffset] & ~mask);
+      }
+    }
+    return header;
+  }
+
+  /**
+   * @return the versions of the records of page that snapshot sees
+   */
+  private synchronized List<Record> readRecords(Page page, Snapshot snapshot) {
+    List<Record> records = new ArrayList<Record>();
+    PageHandle handle = this.pinPage(page.getPageNum());
+    try {
+      byte[] header = this.readPageHeader(handle.getPage());
+      for (int entryNum = 0; entryNum < this.numEntriesPerPage; entryNum++) {
+        byte mask = (byte) (1 << (7 - (entryNum % 8)));
+        if ((header[entryNum / 8] & mask) != 0) {
+          Record record = this.readRecord(handle.getPage(), entryNum, snapshot);
+          if (record != null) {
+            records.add(record);
+          }
+        }
+      }
+    } finally {
+      handle.close();
+    }
+    return records;
+  }
+
   public int getPageHeaderSize() {
     return this.pageHeaderSize;
   }
@@ -552,6 +1352,7 @@ public class Table implements Iterable<Record>, Closeable {
   private class TableIterator implements Iterator<Record> {
 
     private Iterator<Page> pageIter;
+    private PageHandle currHandle = null;
     private Page currPage = null;
     private byte[] currHeader;
     private int entryNum;
@@ -560,10 +1361,27 @@ public class Table implements Iterable<Record>, Closeable {
     public TableIterator() {
       this.entryNum = 0;
       this.pageIter = Table.this.allocator.iterator();
-      assert(this.pageIter.next().getPageNum() == 0);
+      // skip the header page
+      this.pageIter.next();
       if (this.pageIter.hasNext()) {
-        this.currPage = this.pageIter.next();
-        currHeader = Table.this.readPageHeader(this.currPage);
+        this.pinCurrentPage(this.pageIter.next());
+      }
+    }
+
+    /**
+     * Pins p and makes it the current page, unpinning the previous one.
+     */
+    private void pinCurrentPage(Page p) {
+      this.unpinCurrentPage();
+      this.currHandle = Table.this.pinPage(p.getPageNum());
+      this.currPage = this.currHandle.getPage();
+      this.currHeader = Table.this.readPageHeader(this.currPage);
+    }
+
+    private void unpinCurrentPage() {
+      if (this.currHandle != null) {
+        this.currHandle.close();
+        this.currHandle = null;
       }
     }
 
@@ -591,14 +1409,12 @@ public class Table implements Iterable<Record>, Closeable {
 
           byte value = (byte) (b & mask);
           if (value != 0) {
-            int entrySize = Table.this.schema.getEntrySize();
-
-            int offset = Table.this.pageHeaderSize + (entrySize * entryNum);
-            byte[] bytes = this.currPage.readBytes(offset, entrySize);
-
-            Record toRtn = Table.this.schema.decode(bytes);
+            Record toRtn = Table.this.readRecord(this.currPage, this.entryNum);
             this.recordCount++;
             this.entryNum++;
+            if (!this.hasNext()) {
+              this.unpinCurrentPage();
+            }
             return toRtn;
           }
 
@@ -607,8 +1423,7 @@ public class Table implements Iterable<Record>, Closeable {
 
         if (this.hasNext()) {
           this.entryNum = 0;
-          this.currPage = this.pageIter.next();
-          currHeader = Table.this.readPageHeader(this.currPage);
+          this.pinCurrentPage(this.pageIter.next());
         }
       }
 
@@ -619,4 +1434,41 @@ public class Table implements Iterable<Record>, Closeable {
       throw new UnsupportedOperationException();
     }
   }
+
+  /**
+   * An implementation of Iterator over the versions of the records of this table that a snapshot
+   * sees. The records of a page are read at once, so that writers only wait for the reader
+   * while it reads a page.
+   */
+  private class SnapshotIterator implements Iterator<Record> {
+    private Snapshot snapshot;
+    private Iterator<Page> pageIter;
+    private Iterator<Record> pageRecords;
+
+    public SnapshotIterator(Snapshot snapshot) {
+      this.snapshot = snapshot;
+      this.pageIter = Table.this.allocator.iterator();
+      // skip the header page
+      this.pageIter.next();
+      this.pageRecords = Collections.<Record>emptyList().iterator();
+    }
+
+    public boolean hasNext() {
+      while (!this.pageRecords.hasNext() && this.pageIter.hasNext()) {
+        this.pageRecords = Table.this.readRecords(this.pageIter.next(), this.snapshot).iterator();
+      }
+      return this.pageRecords.hasNext();
+    }
+
+    public Record next() {
+      if (this.hasNext()) {
+        return this.pageRecords.next();
+      }
+      throw new NoSuchElementException();
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
 }
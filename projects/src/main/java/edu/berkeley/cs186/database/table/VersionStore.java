@@ -0,0 +1,110 @@
+package edu.berkeley.cs186.database.table;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The versions of the records of a multi-version Table that some snapshot may still need, kept in
+ * memory. The data pages of the table hold the newest version of every record; a record without a
+ * chain here has that single version, which every snapshot sees. A chain lists the versions of its
+ * record from oldest to newest, and a null Record in it stands for the record not existing, before
+ * it was inserted or after it was deleted.
+ */
+class VersionStore {
+  static class Version {
+    final Record record;
+    final long writer;
+
+    Version(Record record, long writer) {
+      this.record = record;
+      this.writer = writer;
+    }
+  }
+
+  private Map<RecordID, List<Version>> chains;
+  private Map<Long, Set<RecordID>> writes;
+
+  VersionStore() {
+    this.chains = new HashMap<RecordID, List<Version>>();
+    this.writes = new HashMap<Long, Set<RecordID>>();
+  }
+
+  boolean isEmpty() {
+    return this.chains.isEmpty();
+  }
+
+  /**
+   * @return the chain of rid, or null if it has a single version
+   */
+  List<Version> getChain(RecordID rid) {
+    return this.chains.get(rid);
+  }
+
+  Set<RecordID> getRecordIDs() {
+    return this.chains.keySet();
+  }
+
+  void removeChain(RecordID rid) {
+    this.chains.remove(rid);
+  }
+
+  /**
+   * Appends version record, written by transaction writer, to the chain of rid. A record without
+   * a chain gets one whose first version is base, the version every snapshot saw until now.
+   */
+  void addVersion(RecordID rid, Record base, Record record, long writer) {
+    List<Version> chain = this.chains.get(rid);
+    if (chain == null) {
+      chain = new ArrayList<Version>();
+      chain.add(new Version(base, Snapshot.FROZEN));
+      this.chains.put(rid, chain);
+    }
+    chain.add(new Version(record, writer));
+
+    Set<RecordID> written = this.writes.get(writer);
+    if (written == null) {
+      written = new LinkedHashSet<RecordID>();
+      this.writes.put(writer, written);
+    }
+    written.add(rid);
+  }
+
+  /**
+   * Forgets which records transaction writer changed.
+   *
+   * @return the records writer changed, in the order it first changed them
+   */
+  Set<RecordID> removeWrites(long writer) {
+    Set<RecordID> written = this.writes.remove(writer);
+    if (written == null) {
+      return new LinkedHashSet<RecordID>();
+    }
+    return written;
+  }
+
+  int getNumVersions() {
+    int numVersions = 0;
+    for (List<Version> chain : this.chains.values()) {
+      numVersions += chain.size();
+    }
+    return numVersions;
+  }
+
+  /**
+   * @return the newest version of chain that snapshot sees, or null if that version is the record
+   *         not existing or snapshot sees none
+   */
+  static Record getVisible(List<Version> chain, Snapshot snapshot) {
+    for (int i = chain.size() - 1; i >= 0; i--) {
+      Version version = chain.get(i);
+      if (snapshot.sees(version.writer)) {
+        return version.record;
+      }
+    }
+    return null;
+  }
+}
@@ -99,7 +99,23 @@ public class TableStats {
   public void addRecord(Record record) {
     this.numRecords++;
     this.numPages = this.calculateNumPages();
+    this.addValues(record);
+  }
 
+  /**
+   * Adds the stats for a batch of new records, recomputing the page count once for the batch.
+   *
+   * @param records the new records
+   */
+  public void addRecords(List<Record> records) {
+    this.numRecords += records.size();
+    this.numPages = this.calculateNumPages();
+    for (Record record : records) {
+      this.addValues(record);
+    }
+  }
+
+  private void addValues(Record record) {
     int count = 0;
     for (DataBox value : record.getValues()) {
       switch(value.type()) {
@@ -215,6 +231,29 @@ public class TableStats {
     return new TableStats(this.tableSchema, copyHistograms, numRecords);
   }
 
+  /**
+   * Creates a new TableStats for the given columns of the target table,
+   * such as the columns stored by an index.
+   *
+   * @param schema the schema made up of the given columns
+   * @param indices the indices of the columns in question, in schema order
+   * @return new TableStats with the histograms of the given columns
+   */
+  public TableStats copyWithColumns(Schema schema, List<Integer> indices) {
+    return new TableStats(schema, select(this.histograms, indices), this.numRecords);
+  }
+
+  /**
+   * @return the elements of list at the given indices, in the order of indices
+   */
+  private static <T> List<T> select(List<T> list, List<Integer> indices) {
+    List<T> selected = new ArrayList<T>();
+    for (int index : indices) {
+      selected.add(list.get(index));
+    }
+    return selected;
+  }
+
   /**
    * Creates a new TableStats which is the statistics for the table
    * that results from this TableStats joined with the given TableStats.
@@ -3,7 +3,16 @@ package edu.berkeley.cs186.database;
 import edu.berkeley.cs186.database.Database;
 import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.StudentTest;
+import edu.berkeley.cs186.database.databox.DataBox;
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.concurrency.LockTimeoutException;
+import edu.berkeley.cs186.database.index.BPlusTree;
 import edu.berkeley.cs186.database.table.*;
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.IOStats;
+import edu.berkeley.cs186.database.io.PageHandle;
+import edu.berkeley.cs186.database.query.QueryPlan;
+import edu.berkeley.cs186.database.query.QueryPlanException;
 
 import org.junit.After;
 import org.junit.Before;
@@ -19,6 +28,9 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 
 public class TestDatabase {
@@ -132,4 +144,1052 @@ public class TestDatabase {
     assertEquals(input, rec);
     t1.end();
   }
+
+  @Test
+  public void testTransactionReservesMemoryPages() throws DatabaseException {
+    db.close();
+    db = new Database(this.filename, 10, 64);
+
+    Database.Transaction t1 = db.beginTransaction();
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(10, t1.getNumMemoryPages());
+    assertEquals(10, t1.getNumMemoryPages());
+    assertEquals(10, db.getBufferPool().getNumReservedPages());
+    assertEquals(10, t2.getNumMemoryPages());
+    assertEquals(20, db.getBufferPool().getNumReservedPages());
+
+    t1.end();
+    assertEquals(10, db.getBufferPool().getNumReservedPages());
+    t2.end();
+    assertEquals(0, db.getBufferPool().getNumReservedPages());
+  }
+
+  @Test
+  public void testCloseReleasesMemoryPagesOfOpenTransactions() throws DatabaseException {
+    db.close();
+    db = new Database(this.filename, 10, 64);
+    BufferPool pool = db.getBufferPool();
+
+    Database.Transaction t1 = db.beginTransaction();
+    assertEquals(10, t1.getNumMemoryPages());
+    Database.Transaction t2 = db.beginTransaction();
+    t2.end();
+    assertEquals(10, pool.getNumReservedPages());
+
+    db.close();
+    assertEquals(0, pool.getNumReservedPages());
+  }
+
+  @Test
+  public void testTransactionMemoryPagesExhausted() throws Exception {
+    db.close();
+    db = new Database(this.filename, 30, 64);
+
+    Database.Transaction t1 = db.beginTransaction();
+    assertEquals(30, t1.getNumMemoryPages());
+    // 16 pages stay with the cache, so the second transaction gets what is left
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(18, t2.getNumMemoryPages());
+
+    // the third waits until the first gives its pages back
+    final Database.Transaction t3 = db.beginTransaction();
+    final int[] granted = new int[1];
+    Thread waiter = new Thread(new Runnable() {
+      public void run() {
+        try {
+          granted[0] = t3.getNumMemoryPages();
+        } catch (DatabaseException e) {
+          granted[0] = -1;
+        }
+      }
+    });
+    waiter.start();
+    waiter.join(200);
+    assertTrue(waiter.isAlive());
+    t1.end();
+    waiter.join();
+    assertEquals(30, granted[0]);
+    t2.end();
+    t3.end();
+    assertEquals(0, db.getBufferPool().getNumReservedPages());
+  }
+
+  @Test
+  public void testLargeNumMemoryPages() throws DatabaseException {
+    db.close();
+    db = new Database(this.filename, 2000);
+
+    Database.Transaction t1 = db.beginTransaction();
+    assertEquals(2000, t1.getNumMemoryPages());
+    t1.end();
+  }
+
+  @Test(expected = DatabaseException.class)
+  public void testNumMemoryPagesExceedsBufferPool() throws DatabaseException {
+    db.close();
+    db = new Database(this.filename, 60, 64);
+  }
+
+  @Test
+  public void testTransactionEndUnpinsPages() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    Database.Transaction t1 = db.beginTransaction();
+    t1.addRecord("testTable1", TestUtils.createRecordWithAllTypes().getValues());
+    PageHandle handle = t1.pinPage("testTable1", 1);
+    assertFalse(handle.isClosed());
+    t1.end();
+    assertTrue(handle.isClosed());
+  }
+
+  @Test
+  public void testGroupCommitDurability() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    Record input = TestUtils.createRecordWithAllTypes();
+
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+    db.enableGroupCommit(0);
+    assertTrue(db.isGroupCommit());
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 1000; i++) {
+      rids.add(t1.addRecord(tableName, input.getValues()));
+    }
+    t1.end();
+    db.close();
+
+    db = new Database(this.filename);
+    t1 = db.beginTransaction();
+    for (RecordID rid : rids) {
+      assertEquals(input, t1.getRecord(tableName, rid));
+    }
+    t1.end();
+  }
+
+  @Test
+  public void testTransactionIOStats() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    Record input = TestUtils.createRecordWithAllTypes();
+
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 0; i < 100; i++) {
+      t1.addRecord(tableName, input.getValues());
+    }
+    IOStats stats = t1.getIOStats();
+    long reads = stats.getNumLogicalReads();
+    assertTrue(reads > 0);
+
+    Iterator<Record> iter = t1.getRecordIterator(tableName);
+    int count = 0;
+    while (iter.hasNext()) {
+      iter.next();
+      count++;
+    }
+    assertEquals(100, count);
+    assertTrue(stats.getNumLogicalReads() > reads);
+    reads = stats.getNumLogicalReads();
+
+    QueryPlan query = t1.query(tableName);
+    iter = query.execute();
+    while (iter.hasNext()) {
+      iter.next();
+    }
+    IOStats queryStats = query.getIOStats();
+    assertTrue(queryStats.getNumLogicalReads() > 0);
+    assertEquals(reads + queryStats.getNumLogicalReads(), stats.getNumLogicalReads());
+
+    assertEquals(0, t2.getIOStats().getNumLogicalReads());
+    t1.end();
+    t2.end();
+  }
+
+  @Test
+  public void testBulkInsertUpdatesIndex() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    List<String> indexColumns = new ArrayList<String>();
+    indexColumns.add("int");
+    db.createTableWithIndices(s, tableName, indexColumns);
+
+    List<List<DataBox>> rows = new ArrayList<List<DataBox>>();
+    for (int i = 0; i < 1000; i++) {
+      rows.add(TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    Database.Transaction t1 = db.beginTransaction();
+    BulkLoadStats loadStats = t1.bulkInsert(tableName, rows.iterator());
+    assertEquals(1000, loadStats.getNumRecords());
+    assertTrue(loadStats.getRowsPerSecond() > 0);
+    assertEquals(1000, t1.getNumRecords(tableName));
+
+    Iterator<Record> iter = t1.lookupKey(tableName, "int", new IntDataBox(777));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(777), iter.next());
+    assertFalse(iter.hasNext());
+    t1.end();
+  }
+
+  @Test
+  public void testCreateIndexOnExistingTable() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 1000; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(999 - i).getValues());
+    }
+    t1.end();
+
+    db.createIndex(tableName, "int");
+    try {
+      db.createIndex(tableName, "int");
+      fail();
+    } catch (DatabaseException e) {
+      // expected: the index already exists
+    }
+
+    Database.Transaction t2 = db.beginTransaction();
+    Iterator<Record> iter = t2.sortedScan(tableName, "int");
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(1000).getValues());
+    iter = t2.lookupKey(tableName, "int", new IntDataBox(1000));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1000), iter.next());
+    t2.end();
+  }
+
+  @Test
+  public void testCreateIndexWithPostingLists() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 1000; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(i % 10).getValues());
+    }
+    t1.end();
+
+    db.createIndex(tableName, "int", BPlusTree.DEFAULT_FILL_FACTOR, true);
+
+    Database.Transaction t2 = db.beginTransaction();
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(7).getValues());
+    Iterator<Record> iter = t2.lookupKey(tableName, "int", new IntDataBox(7));
+    for (int i = 0; i < 101; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(7), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    iter = t2.sortedScan(tableName, "int");
+    for (int i = 0; i < 1001; i++) {
+      assertEquals(i < 800 ? i / 100 : (i - 1) / 100, iter.next().getValues().get(1).getInt());
+    }
+    assertFalse(iter.hasNext());
+    t2.end();
+  }
+
+  @Test
+  public void testCreateCompositeIndex() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 1000; i++) {
+      t1.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(999 - i).getValues());
+    }
+    t1.end();
+
+    List<String> keyColumns = new ArrayList<String>();
+    keyColumns.add("int");
+    keyColumns.add("string");
+    List<String> includeColumns = new ArrayList<String>();
+    includeColumns.add("float");
+    db.createIndex(tableName, keyColumns, includeColumns);
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertTrue(t2.indexExists(tableName, "int"));
+    assertFalse(t2.indexExists(tableName, "string"));
+    List<String> indexColumns = new ArrayList<String>();
+    indexColumns.add("int");
+    indexColumns.add("string");
+    indexColumns.add("float");
+    assertEquals(indexColumns, t2.getIndexColumns(tableName, "int"));
+
+    t2.addRecord(tableName, TestUtils.createRecordWithAllTypesWithValue(1000).getValues());
+    Iterator<Record> iter = t2.sortedScan(tableName, "int");
+    for (int i = 0; i <= 1000; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    iter = t2.lookupKey(tableName, "int", new IntDataBox(1000));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1000), iter.next());
+    assertFalse(iter.hasNext());
+
+    iter = t2.indexOnlyLookupKey(tableName, "int", new IntDataBox(500));
+    List<DataBox> values = TestUtils.createRecordWithAllTypesWithValue(500).getValues();
+    assertEquals(new Record(values.subList(1, 4)), iter.next());
+    assertFalse(iter.hasNext());
+    t2.end();
+  }
+
+  @Test
+  public void testCreateCompositeIndexInvalidColumns() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    String tableName = "testTable1";
+    db.createTable(s, tableName);
+
+    List<String> keyColumns = new ArrayList<String>();
+    keyColumns.add("int");
+    keyColumns.add("nonexistent");
+    try {
+      db.createIndex(tableName, keyColumns, new ArrayList<String>());
+      fail();
+    } catch (DatabaseException e) {
+      // expected: no such column
+    }
+
+    keyColumns.set(1, "string");
+    List<String> includeColumns = new ArrayList<String>();
+    includeColumns.add("int");
+    try {
+      db.createIndex(tableName, keyColumns, includeColumns);
+      fail();
+    } catch (DatabaseException e) {
+      // expected: int is both a key and an include column
+    }
+  }
+
+  @Test
+  public void testConcurrentTransactionsOnDifferentTables() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.createTable(s, "testTable2");
+
+    Database.Transaction t1 = db.beginTransaction();
+    RecordID rid = t1.addRecord("testTable1", TestUtils.createRecordWithAllTypes().getValues());
+    t1.end();
+
+    // two readers of one table and a writer of another all run at once
+    Database.Transaction t2 = db.beginTransaction();
+    Database.Transaction t3 = db.beginTransaction();
+    Database.Transaction t4 = db.beginTransaction();
+    assertEquals(TestUtils.createRecordWithAllTypes(), t2.getRecord("testTable1", rid));
+    assertTrue(t3.getRecordIterator("testTable1").hasNext());
+    t4.addRecord("testTable2", TestUtils.createRecordWithAllTypes().getValues());
+    assertEquals(TestUtils.createRecordWithAllTypes(), t2.getRecord("testTable1", rid));
+    assertEquals(1, t4.getNumRecords("testTable2"));
+    t2.end();
+    t3.end();
+    t4.end();
+  }
+
+  @Test
+  public void testLockTimeoutAbortsTransaction() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    RecordID rid = t1.addRecord("testTable1", TestUtils.createRecordWithAllTypes().getValues());
+    Database.Transaction t2 = db.beginTransaction();
+    try {
+      t2.getRecord("testTable1", rid);
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: t1 holds the page exclusively
+    }
+    assertFalse(t2.isActive());
+    assertEquals(1, db.getLockWaitStats("testTable1").getNumTimeouts());
+    t1.end();
+
+    // nothing of t2 is left to block later writers
+    Database.Transaction t3 = db.beginTransaction();
+    t3.deleteRecord("testTable1", rid);
+    t3.end();
+  }
+
+  @Test
+  public void testConcurrentWritersOnDifferentRows() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    Database.Transaction t3 = db.beginTransaction();
+    t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(10).getValues(), rids.get(0));
+    t3.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(11).getValues(), rids.get(1));
+    t3.deleteRecord("testTable1", rids.get(2));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(3), t2.getRecord("testTable1", rids.get(3)));
+    try {
+      t2.getRecord("testTable1", rids.get(1));
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: t3 holds the row exclusively
+    }
+    t3.end();
+  }
+
+  @Test
+  public void testDeleteAndUpdateIndexedRecords() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexColumns = new ArrayList<String>();
+    indexColumns.add("int");
+    db.createTableWithIndices(s, "testTable1", indexColumns);
+    db.createIndex("testTable1", "string", BPlusTree.DEFAULT_FILL_FACTOR, true);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.deleteRecord("testTable1", rids.get(3));
+    t1.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(20).getValues(),
+        rids.get(4));
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertFalse(t2.lookupKey("testTable1", "int", new IntDataBox(3)).hasNext());
+    assertFalse(t2.lookupKey("testTable1", "int", new IntDataBox(4)).hasNext());
+    assertEquals(1, countRecords(t2.lookupKey("testTable1", "int", new IntDataBox(20))));
+    assertEquals(9, countRecords(t2.sortedScan("testTable1", "int")));
+    assertEquals(9, countRecords(t2.sortedScan("testTable1", "string")));
+    t2.end();
+  }
+
+  @Test
+  public void testIndexScansLockTable() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    List<String> indexColumns = new ArrayList<String>();
+    indexColumns.add("int");
+    db.createTableWithIndices(s, "testTable1", indexColumns);
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    t2.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(20).getValues());
+    Database.Transaction t3 = db.beginTransaction();
+    try {
+      t3.lookupKey("testTable1", "int", new IntDataBox(20));
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: the scan reads the whole table, which t2 is writing
+    }
+    t2.end();
+
+    Database.Transaction t4 = db.beginTransaction();
+    assertEquals(1, countRecords(t4.lookupKey("testTable1", "int", new IntDataBox(20))));
+    assertEquals(11, countRecords(t4.sortedScan("testTable1", "int")));
+    Database.Transaction t5 = db.beginTransaction();
+    try {
+      t5.deleteRecord("testTable1", rids.get(1));
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: t4 holds the table shared for its scans
+    }
+    t4.end();
+  }
+
+  @Test
+  public void testConcurrentWritersOnOneTable() throws Exception {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockEscalationThreshold(Integer.MAX_VALUE);
+
+    final int numWriters = 4;
+    final int numRecords = 3000;
+    final List<RecordID> kept = Collections.synchronizedList(new ArrayList<RecordID>());
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> writers = new ArrayList<Thread>();
+    for (int w = 0; w < numWriters; w++) {
+      final int writer = w;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Database.Transaction t = db.beginTransaction();
+            for (int i = 0; i < numRecords; i++) {
+              int value = writer * numRecords + i;
+              RecordID rid = t.addRecord("testTable1",
+                  TestUtils.createRecordWithAllTypesWithValue(value).getValues());
+              if (i % 4 == 0) {
+                t.deleteRecord("testTable1", rid);
+              } else {
+                if (i % 4 == 1) {
+                  t.updateRecord("testTable1",
+                      TestUtils.createRecordWithAllTypesWithValue(value + 1).getValues(), rid);
+                }
+                kept.add(rid);
+              }
+            }
+            t.end();
+          } catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      });
+      writers.add(thread);
+      thread.start();
+    }
+    for (Thread thread : writers) {
+      thread.join();
+    }
+    assertEquals(new ArrayList<Throwable>(), errors);
+
+    int expected = numWriters * numRecords * 3 / 4;
+    assertEquals(expected, new HashSet<RecordID>(kept).size());
+    Database.Transaction t = db.beginTransaction();
+    assertEquals(expected, t.getNumRecords("testTable1"));
+    assertEquals(expected, countRecords(t.getRecordIterator("testTable1")));
+    t.end();
+  }
+
+  @Test
+  public void testFailedInsertLeavesNoRow() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 3; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    // t3's row goes into the slot t2 freed, whose record t2 still holds exclusively
+    Database.Transaction t2 = db.beginTransaction();
+    t2.deleteRecord("testTable1", rids.get(0));
+    Database.Transaction t3 = db.beginTransaction();
+    try {
+      t3.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(10).getValues());
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: t2 holds the slot's record lock
+    }
+    assertFalse(t3.isActive());
+    t2.end();
+
+    Database.Transaction t4 = db.beginTransaction();
+    assertEquals(2, t4.getNumRecords("testTable1"));
+    assertEquals(2, countRecords(t4.getRecordIterator("testTable1")));
+    t4.end();
+  }
+
+  @Test
+  public void testRowLocksEscalate() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+    db.setLockEscalationThreshold(5);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 0; i < 6; i++) {
+      t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i + 10).getValues(),
+          rids.get(i));
+    }
+    Database.Transaction t3 = db.beginTransaction();
+    try {
+      t3.getRecord("testTable1", rids.get(9));
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: t2's row locks were escalated to the whole table
+    }
+    t2.end();
+  }
+
+  @Test
+  public void testWritersPastEscalationThreshold() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+    db.setLockEscalationThreshold(5);
+
+    // neither writer can escalate while the other writes, and neither is aborted for it
+    Database.Transaction t1 = db.beginTransaction();
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 0; i < 10; i++) {
+      t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      t2.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i + 10).getValues());
+    }
+    assertTrue(t1.isActive());
+    assertTrue(t2.isActive());
+    t1.end();
+    t2.end();
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(20, countRecords(t3.getRecordIterator("testTable1")));
+    t3.end();
+  }
+
+  private int countRecords(Iterator<Record> records) {
+    int count = 0;
+    while (records.hasNext()) {
+      records.next();
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testMultiVersionReadersDoNotBlockWriters() throws DatabaseException, QueryPlanException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction reader = db.beginTransaction();
+    assertEquals(10, countRecords(reader.getRecordIterator("testTable1")));
+
+    // none of these wait for the reader, or they would time out
+    Database.Transaction writer = db.beginTransaction();
+    Record updated = TestUtils.createRecordWithAllTypesWithValue(100);
+    writer.updateRecord("testTable1", updated.getValues(), rids.get(0));
+    writer.deleteRecord("testTable1", rids.get(1));
+    writer.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(200).getValues());
+    assertEquals(10, countRecords(reader.getRecordIterator("testTable1")));
+    writer.end();
+
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(0), reader.getRecord("testTable1", rids.get(0)));
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1), reader.getRecord("testTable1", rids.get(1)));
+    assertEquals(10, countRecords(reader.query("testTable1").execute()));
+    reader.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(updated, t2.getRecord("testTable1", rids.get(0)));
+    assertEquals(10, countRecords(t2.getRecordIterator("testTable1")));
+    try {
+      t2.getRecord("testTable1", rids.get(1));
+      fail();
+    } catch (DatabaseException e) {
+      // expected: the record was deleted
+    }
+    t2.end();
+  }
+
+  @Test
+  public void testMultiVersionIndexScans() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 5; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    // an aborted update leaves no trace in the index
+    Database.Transaction t2 = db.beginTransaction();
+    t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(10).getValues(), rids.get(0));
+    t2.abort();
+
+    Database.Transaction reader = db.beginTransaction();
+    assertFalse(reader.lookupKey("testTable1", "int", new IntDataBox(10)).hasNext());
+    assertEquals(1, countRecords(reader.lookupKey("testTable1", "int", new IntDataBox(0))));
+
+    Database.Transaction writer = db.beginTransaction();
+    writer.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(11).getValues(), rids.get(1));
+    writer.end();
+
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(1),
+        reader.lookupKey("testTable1", "int", new IntDataBox(1)).next());
+    assertFalse(reader.lookupKey("testTable1", "int", new IntDataBox(11)).hasNext());
+    assertEquals(5, countRecords(reader.sortedScan("testTable1", "int")));
+    assertEquals(5, countRecords(reader.indexOnlySortedScan("testTable1", "int")));
+    reader.end();
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertFalse(t3.lookupKey("testTable1", "int", new IntDataBox(1)).hasNext());
+    assertEquals(1, countRecords(t3.lookupKey("testTable1", "int", new IntDataBox(11))));
+    assertEquals(5, countRecords(t3.sortedScan("testTable1", "int")));
+    t3.end();
+  }
+
+  @Test
+  public void testCreateIndexWaitsForWriters() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1");
+    db.setLockTimeout(50);
+
+    Database.Transaction t1 = db.beginTransaction();
+    t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(0).getValues());
+    try {
+      db.createIndex("testTable1", "int");
+      fail();
+    } catch (LockTimeoutException e) {
+      // expected: the build reads the whole table, which t1 is writing
+    }
+    assertFalse(t1.indexExists("testTable1", "int"));
+    t1.end();
+
+    db.createIndex("testTable1", "int");
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(1, countRecords(t2.lookupKey("testTable1", "int", new IntDataBox(0))));
+    t2.end();
+  }
+
+  @Test
+  public void testCreateIndexOnMultiVersionTable() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 5; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction reader = db.beginTransaction();
+    Database.Transaction writer = db.beginTransaction();
+    writer.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(10).getValues(), rids.get(0));
+    writer.deleteRecord("testTable1", rids.get(1));
+    writer.end();
+    db.createIndex("testTable1", "int");
+
+    // the index also holds the versions the reader still sees
+    assertEquals(1, countRecords(reader.lookupKey("testTable1", "int", new IntDataBox(0))));
+    assertEquals(1, countRecords(reader.lookupKey("testTable1", "int", new IntDataBox(1))));
+    assertFalse(reader.lookupKey("testTable1", "int", new IntDataBox(10)).hasNext());
+    assertEquals(5, countRecords(reader.sortedScan("testTable1", "int")));
+    reader.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertFalse(t2.lookupKey("testTable1", "int", new IntDataBox(0)).hasNext());
+    assertFalse(t2.lookupKey("testTable1", "int", new IntDataBox(1)).hasNext());
+    assertEquals(1, countRecords(t2.lookupKey("testTable1", "int", new IntDataBox(10))));
+    assertEquals(4, countRecords(t2.sortedScan("testTable1", "int")));
+    t2.end();
+  }
+
+  @Test
+  public void testVacuumReclaimsVersions() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.setVacuumInterval(0);
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 3; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction reader = db.beginTransaction();
+    Database.Transaction writer = db.beginTransaction();
+    for (int i = 0; i < 3; i++) {
+      writer.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i + 10).getValues(),
+          rids.get(i));
+    }
+    writer.deleteRecord("testTable1", rids.get(2));
+    writer.end();
+
+    // the reader still sees the first versions
+    assertEquals(0, db.vacuum());
+    assertEquals(3, countRecords(reader.sortedScan("testTable1", "int")));
+    reader.end();
+
+    assertEquals(4, db.vacuum());
+    assertEquals(0, db.vacuum());
+
+    Database.Transaction t2 = db.beginTransaction();
+    assertEquals(2, countRecords(t2.getRecordIterator("testTable1")));
+    assertEquals(2, t2.getNumRecords("testTable1"));
+    assertEquals(2, countRecords(t2.sortedScan("testTable1", "int")));
+    assertFalse(t2.lookupKey("testTable1", "int", new IntDataBox(0)).hasNext());
+    t2.end();
+  }
+
+  @Test
+  public void testVacuumRemovesIndexEntriesOfReclaimedVersions() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.setVacuumInterval(0);
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 4; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction reader = db.beginTransaction();
+    Database.Transaction t2 = db.beginTransaction();
+    t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(10).getValues(), rids.get(0));
+    t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(11).getValues(), rids.get(1));
+    t2.deleteRecord("testTable1", rids.get(2));
+    t2.end();
+    // the record goes back to a key one of its reclaimed versions has
+    Database.Transaction t3 = db.beginTransaction();
+    t3.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(1).getValues(), rids.get(1));
+    t3.end();
+    // an aborted version is removed along with its entry
+    Database.Transaction t4 = db.beginTransaction();
+    t4.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(30).getValues(), rids.get(3));
+    t4.abort();
+    reader.end();
+    assertEquals(4, db.vacuum());
+    db.close();
+
+    BPlusTree index = new BPlusTree("testTable1,int", this.filename);
+    List<RecordID> entries = new ArrayList<RecordID>();
+    Iterator<RecordID> iter = index.sortedScan();
+    while (iter.hasNext()) {
+      entries.add(iter.next());
+    }
+    assertEquals(Arrays.asList(rids.get(1), rids.get(3), rids.get(0)), entries);
+    assertTrue(index.lookupKey(new IntDataBox(1)).hasNext());
+    assertFalse(index.lookupKey(new IntDataBox(11)).hasNext());
+    assertFalse(index.lookupKey(new IntDataBox(30)).hasNext());
+    index.close();
+    db = new Database(this.filename);
+  }
+
+  @Test
+  public void testWriteAheadLogRecoversAfterCrash() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.enableWriteAheadLog();
+    db.createTable(s, "testTable1");
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 300; i++) {
+      t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    long forces = db.getWriteAheadLog().getNumForces();
+    t1.end();
+    assertEquals(forces + 1, db.getWriteAheadLog().getNumForces());
+
+    // the database crashes while t2 is running, without closing its tables
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 300; i < 600; i++) {
+      t2.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+
+    this.db = new Database(this.filename);
+    assertTrue(db.isWriteAheadLog());
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(300, t3.getNumRecords("testTable1"));
+    assertEquals(300, countRecords(t3.getRecordIterator("testTable1")));
+    assertEquals(300, countRecords(t3.sortedScan("testTable1", "int")));
+    assertTrue(t3.lookupKey("testTable1", "int", new IntDataBox(299)).hasNext());
+    assertFalse(t3.lookupKey("testTable1", "int", new IntDataBox(300)).hasNext());
+    t3.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(300).getValues());
+    t3.end();
+
+    db.close();
+    this.db = new Database(this.filename);
+    Database.Transaction t4 = db.beginTransaction();
+    assertEquals(301, t4.getNumRecords("testTable1"));
+    t4.end();
+  }
+
+  @Test
+  public void testWriteAheadLogRollsBackLosersOnSharedPages() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.enableWriteAheadLog();
+    db.createTable(s, "newPages");
+    db.createIndex("newPages", "int");
+    db.createTable(s, "oldPages");
+    db.createIndex("oldPages", "int");
+
+    Database.Transaction t0 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t0.addRecord("oldPages", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t0.end();
+
+    // the loser allocates the data page of newPages, which the winner then adds to, while both
+    // add to the page and the index leaf of oldPages that were there before
+    Database.Transaction loser = db.beginTransaction();
+    Database.Transaction winner = db.beginTransaction();
+    for (int i = 100; i < 120; i++) {
+      Database.Transaction t = i % 2 == 0 ? loser : winner;
+      t.addRecord("newPages", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+      t.addRecord("oldPages", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    loser.deleteRecord("oldPages", rids.get(0));
+    loser.updateRecord("oldPages", TestUtils.createRecordWithAllTypesWithValue(1000).getValues(),
+        rids.get(1));
+    winner.updateRecord("oldPages", TestUtils.createRecordWithAllTypesWithValue(2000).getValues(),
+        rids.get(2));
+    winner.end();
+
+    // the database crashes while the loser is running, without closing its tables
+    this.db = new Database(this.filename);
+    Database.Transaction t = db.beginTransaction();
+    for (String tableName : Arrays.asList("newPages", "oldPages")) {
+      for (int i = 100; i < 120; i++) {
+        assertEquals(i % 2 == 1, t.lookupKey(tableName, "int", new IntDataBox(i)).hasNext());
+      }
+    }
+    assertEquals(10, t.getNumRecords("newPages"));
+    assertEquals(10, countRecords(t.getRecordIterator("newPages")));
+    assertEquals(10, countRecords(t.sortedScan("newPages", "int")));
+    assertEquals(20, t.getNumRecords("oldPages"));
+    assertEquals(20, countRecords(t.getRecordIterator("oldPages")));
+    assertEquals(20, countRecords(t.sortedScan("oldPages", "int")));
+    assertEquals(new IntDataBox(0), t.getRecord("oldPages", rids.get(0)).getValues().get(1));
+    assertEquals(new IntDataBox(1), t.getRecord("oldPages", rids.get(1)).getValues().get(1));
+    assertTrue(t.lookupKey("oldPages", "int", new IntDataBox(0)).hasNext());
+    assertTrue(t.lookupKey("oldPages", "int", new IntDataBox(1)).hasNext());
+    assertFalse(t.lookupKey("oldPages", "int", new IntDataBox(1000)).hasNext());
+    assertTrue(t.lookupKey("oldPages", "int", new IntDataBox(2000)).hasNext());
+    assertFalse(t.lookupKey("oldPages", "int", new IntDataBox(2)).hasNext());
+    t.end();
+  }
+
+  @Test
+  public void testWriteAheadLogRedoesMultiVersionDeletesAfterCrash() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.setVacuumInterval(0);
+    db.enableWriteAheadLog();
+    db.createTable(s, "testTable1", Table.PageFormat.FIXED, true);
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    // the slot of the first deleted record is reclaimed and taken by a new record before the crash
+    Database.Transaction t2 = db.beginTransaction();
+    t2.deleteRecord("testTable1", rids.get(0));
+    t2.end();
+    assertEquals(1, db.vacuum());
+    Database.Transaction t3 = db.beginTransaction();
+    RecordID reused = t3.addRecord("testTable1",
+        TestUtils.createRecordWithAllTypesWithValue(100).getValues());
+    t3.end();
+    assertEquals(rids.get(0), reused);
+
+    Database.Transaction t4 = db.beginTransaction();
+    t4.deleteRecord("testTable1", rids.get(1));
+    long forces = db.getWriteAheadLog().getNumForces();
+    t4.end();
+    assertEquals(forces + 1, db.getWriteAheadLog().getNumForces());
+    assertFalse(db.checkpoint());
+
+    // the database crashes while t5 is running, without closing its tables
+    Database.Transaction t5 = db.beginTransaction();
+    t5.deleteRecord("testTable1", rids.get(2));
+
+    this.db = new Database(this.filename);
+    Database.Transaction t6 = db.beginTransaction();
+    assertEquals(9, countRecords(t6.getRecordIterator("testTable1")));
+    assertEquals(9, countRecords(t6.sortedScan("testTable1", "int")));
+    assertEquals(new IntDataBox(100), t6.getRecord("testTable1", reused).getValues().get(1));
+    assertFalse(t6.lookupKey("testTable1", "int", new IntDataBox(1)).hasNext());
+    assertEquals(new IntDataBox(2), t6.getRecord("testTable1", rids.get(2)).getValues().get(1));
+    t6.end();
+    assertEquals(0, db.getWriteAheadLog().getNextLSN());
+  }
+
+  @Test
+  public void testAbortRollsBackLoggedChanges() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.enableWriteAheadLog();
+    db.createTable(s, "testTable1");
+    db.createIndex("testTable1", "int");
+
+    Database.Transaction t1 = db.beginTransaction();
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues()));
+    }
+    t1.end();
+
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 100; i < 105; i++) {
+      t2.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t2.deleteRecord("testTable1", rids.get(0));
+    t2.updateRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(1000).getValues(),
+        rids.get(1));
+    t2.abort();
+
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(10, t3.getNumRecords("testTable1"));
+    assertEquals(10, countRecords(t3.getRecordIterator("testTable1")));
+    assertEquals(10, countRecords(t3.sortedScan("testTable1", "int")));
+    assertEquals(new IntDataBox(0), t3.getRecord("testTable1", rids.get(0)).getValues().get(1));
+    assertEquals(new IntDataBox(1), t3.getRecord("testTable1", rids.get(1)).getValues().get(1));
+    assertTrue(t3.lookupKey("testTable1", "int", new IntDataBox(0)).hasNext());
+    assertTrue(t3.lookupKey("testTable1", "int", new IntDataBox(1)).hasNext());
+    assertFalse(t3.lookupKey("testTable1", "int", new IntDataBox(1000)).hasNext());
+    assertFalse(t3.lookupKey("testTable1", "int", new IntDataBox(100)).hasNext());
+    t3.end();
+  }
+
+  @Test
+  public void testCheckpointTruncatesLog() throws DatabaseException {
+    Schema s = TestUtils.createSchemaWithAllTypes();
+    db.enableWriteAheadLog();
+    db.createTable(s, "testTable1");
+
+    Database.Transaction t1 = db.beginTransaction();
+    for (int i = 0; i < 10; i++) {
+      t1.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    assertFalse(db.checkpoint());
+    t1.end();
+    assertTrue(db.getWriteAheadLog().getNextLSN() > 0);
+    assertTrue(db.checkpoint());
+    assertEquals(0, db.getWriteAheadLog().getNextLSN());
+
+    db.setCheckpointThreshold(1);
+    Database.Transaction t2 = db.beginTransaction();
+    for (int i = 10; i < 20; i++) {
+      t2.addRecord("testTable1", TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    t2.end();
+    assertEquals(0, db.getWriteAheadLog().getNextLSN());
+
+    // the records the checkpoints discarded are not needed after a crash
+    this.db = new Database(this.filename);
+    Database.Transaction t3 = db.beginTransaction();
+    assertEquals(20, countRecords(t3.getRecordIterator("testTable1")));
+    t3.end();
+  }
 }
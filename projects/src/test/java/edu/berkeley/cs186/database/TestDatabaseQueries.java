@@ -126,6 +126,7 @@ public class TestDatabaseQueries {
     // read student tuples
     List<String> studentLines = Files.readAllLines(Paths.get("students.csv"), Charset.defaultCharset());
 
+    List<List<DataBox>> studentRows = new ArrayList<List<DataBox>>();
     for (String line : studentLines) {
       String[] splits = line.split(",");
       List<DataBox> values = new ArrayList<DataBox>();
@@ -135,11 +136,13 @@ public class TestDatabaseQueries {
       values.add(new StringDataBox(splits[2].trim(), 20));
       values.add(new FloatDataBox(Float.parseFloat(splits[3])));
 
-      transaction.addRecord("Students", values);
+      studentRows.add(values);
     }
+    transaction.bulkInsert("Students", studentRows.iterator());
 
     List<String> courseLines = Files.readAllLines(Paths.get("courses.csv"), Charset.defaultCharset());
 
+    List<List<DataBox>> courseRows = new ArrayList<List<DataBox>>();
     for (String line : courseLines) {
       String[] splits = line.split(",");
       List<DataBox> values = new ArrayList<DataBox>();
@@ -148,11 +151,13 @@ public class TestDatabaseQueries {
       values.add(new StringDataBox(splits[1].trim(), 20));
       values.add(new StringDataBox(splits[2].trim(), 20));
 
-      transaction.addRecord("Courses", values);
+      courseRows.add(values);
     }
+    transaction.bulkInsert("Courses", courseRows.iterator());
 
     List<String> enrollmentLines = Files.readAllLines(Paths.get("enrollments.csv"), Charset.defaultCharset());
 
+    List<List<DataBox>> enrollmentRows = new ArrayList<List<DataBox>>();
     for (String line : enrollmentLines) {
       String[] splits = line.split(",");
       List<DataBox> values = new ArrayList<DataBox>();
@@ -160,8 +165,9 @@ public class TestDatabaseQueries {
       values.add(new IntDataBox(Integer.parseInt(splits[0])));
       values.add(new IntDataBox(Integer.parseInt(splits[1])));
 
-      transaction.addRecord("Enrollments", values);
+      enrollmentRows.add(values);
     }
+    transaction.bulkInsert("Enrollments", enrollmentRows.iterator());
 
     transaction.end();
   }
@@ -0,0 +1,337 @@
+package edu.berkeley.cs186.database.concurrency;
+
+import edu.berkeley.cs186.database.concurrency.LockManager.LockType;
+import edu.berkeley.cs186.database.table.RecordID;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestLockManager {
+  private LockManager lockMan;
+  private List<Long> grantOrder;
+  private List<LockException> failures;
+
+  @Rule
+  public Timeout globalTimeout = Timeout.seconds(10);
+
+  @Before
+  public void beforeEach() {
+    this.lockMan = new LockManager();
+    this.grantOrder = Collections.synchronizedList(new ArrayList<Long>());
+    this.failures = Collections.synchronizedList(new ArrayList<LockException>());
+  }
+
+  /**
+   * Starts a thread that acquires the lock and records transNum in grantOrder once it is granted,
+   * or the exception in failures if it is not, and returns the thread once it is either done or
+   * waiting for the lock.
+   */
+  private Thread acquireInThread(final String tableName, final int pageNum, final long transNum,
+                                 final LockType lockType) throws InterruptedException {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        try {
+          if (pageNum < 0) {
+            lockMan.acquireLock(tableName, transNum, lockType);
+          } else {
+            lockMan.acquirePageLock(tableName, pageNum, transNum, lockType);
+          }
+          grantOrder.add(transNum);
+        } catch (LockException e) {
+          failures.add(e);
+        }
+      }
+    });
+    thread.start();
+    while (thread.isAlive() && thread.getState() != Thread.State.WAITING
+        && thread.getState() != Thread.State.TIMED_WAITING) {
+      Thread.sleep(1);
+    }
+    return thread;
+  }
+
+  @Test
+  public void testCompatibilityMatrix() throws Exception {
+    assertTrue(LockType.SHARED.isCompatibleWith(LockType.SHARED));
+    assertTrue(LockType.INTENTION_EXCLUSIVE.isCompatibleWith(LockType.INTENTION_SHARED));
+    assertTrue(LockType.SHARED_INTENTION_EXCLUSIVE.isCompatibleWith(LockType.INTENTION_SHARED));
+    assertFalse(LockType.SHARED.isCompatibleWith(LockType.INTENTION_EXCLUSIVE));
+    assertFalse(LockType.SHARED_INTENTION_EXCLUSIVE.isCompatibleWith(LockType.SHARED));
+    assertFalse(LockType.EXCLUSIVE.isCompatibleWith(LockType.INTENTION_SHARED));
+
+    assertEquals(LockType.SHARED_INTENTION_EXCLUSIVE,
+        LockType.SHARED.combine(LockType.INTENTION_EXCLUSIVE));
+    assertEquals(LockType.EXCLUSIVE, LockType.INTENTION_SHARED.combine(LockType.EXCLUSIVE));
+    assertEquals(LockType.SHARED, LockType.SHARED.combine(LockType.INTENTION_SHARED));
+  }
+
+  @Test
+  public void testSharedLocksDoNotBlock() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    lockMan.acquireLock("table1", 2, LockType.SHARED);
+    lockMan.acquireLock("table2", 3, LockType.EXCLUSIVE);
+    assertTrue(lockMan.holdsLock("table1", 1, LockType.SHARED));
+    assertTrue(lockMan.holdsLock("table1", 2, LockType.SHARED));
+    assertFalse(lockMan.holdsLock("table1", 2, LockType.EXCLUSIVE));
+    assertTrue(lockMan.holdsLock("table2", 3, LockType.EXCLUSIVE));
+    assertEquals(LockType.INTENTION_SHARED, lockMan.getDatabaseLockType(1));
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getDatabaseLockType(3));
+  }
+
+  @Test
+  public void testExclusiveLockWaits() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    Thread writer = acquireInThread("table1", -1, 2, LockType.EXCLUSIVE);
+    assertTrue(writer.isAlive());
+    assertFalse(lockMan.holdsLock("table1", 2, LockType.EXCLUSIVE));
+
+    lockMan.releaseAllLocks(1);
+    writer.join();
+    assertTrue(lockMan.holdsLock("table1", 2, LockType.EXCLUSIVE));
+    assertNull(lockMan.getLockType("table1", 1));
+  }
+
+  @Test
+  public void testRequestsAreGrantedInOrder() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    Thread writer = acquireInThread("table1", -1, 2, LockType.EXCLUSIVE);
+    // compatible with the holder, but queued behind the writer
+    Thread reader = acquireInThread("table1", -1, 3, LockType.SHARED);
+    assertTrue(writer.isAlive());
+    assertTrue(reader.isAlive());
+
+    lockMan.releaseAllLocks(1);
+    writer.join();
+    assertTrue(reader.isAlive());
+    lockMan.releaseAllLocks(2);
+    reader.join();
+
+    List<Long> expected = new ArrayList<Long>();
+    expected.add(2L);
+    expected.add(3L);
+    assertEquals(expected, grantOrder);
+  }
+
+  @Test
+  public void testUpgradeGoesAheadOfQueue() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    lockMan.acquireLock("table1", 2, LockType.SHARED);
+    Thread writer = acquireInThread("table1", -1, 3, LockType.EXCLUSIVE);
+    Thread upgrade = acquireInThread("table1", -1, 1, LockType.EXCLUSIVE);
+    assertTrue(upgrade.isAlive());
+
+    lockMan.releaseAllLocks(2);
+    upgrade.join();
+    assertTrue(lockMan.holdsLock("table1", 1, LockType.EXCLUSIVE));
+    assertTrue(writer.isAlive());
+
+    lockMan.releaseAllLocks(1);
+    writer.join();
+    assertTrue(lockMan.holdsLock("table1", 3, LockType.EXCLUSIVE));
+  }
+
+  @Test
+  public void testUpgradeWithoutOtherHolders() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    lockMan.acquireLock("table1", 1, LockType.INTENTION_EXCLUSIVE);
+    assertEquals(LockType.SHARED_INTENTION_EXCLUSIVE, lockMan.getLockType("table1", 1));
+    lockMan.acquireLock("table1", 1, LockType.EXCLUSIVE);
+    assertEquals(LockType.EXCLUSIVE, lockMan.getLockType("table1", 1));
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getDatabaseLockType(1));
+  }
+
+  @Test
+  public void testPageLocks() throws Exception {
+    lockMan.acquirePageLock("table1", 1, 1, LockType.EXCLUSIVE);
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getLockType("table1", 1));
+    assertTrue(lockMan.holdsPageLock("table1", 1, 1, LockType.EXCLUSIVE));
+    assertFalse(lockMan.holdsPageLock("table1", 2, 1, LockType.SHARED));
+
+    // other pages of the table stay available
+    lockMan.acquirePageLock("table1", 2, 2, LockType.SHARED);
+    lockMan.acquirePageLock("table1", 3, 3, LockType.EXCLUSIVE);
+    Thread pageReader = acquireInThread("table1", 1, 2, LockType.SHARED);
+    Thread tableReader = acquireInThread("table1", -1, 4, LockType.SHARED);
+    assertTrue(pageReader.isAlive());
+    assertTrue(tableReader.isAlive());
+
+    lockMan.releaseAllLocks(1);
+    pageReader.join();
+    assertTrue(tableReader.isAlive());
+    lockMan.releaseAllLocks(3);
+    tableReader.join();
+    assertTrue(lockMan.holdsPageLock("table1", 5, 4, LockType.SHARED));
+  }
+
+  @Test
+  public void testDatabaseLockWaitsForTables() throws Exception {
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    Thread dbReader = new Thread(new Runnable() {
+      public void run() {
+        try {
+          lockMan.acquireDatabaseLock(2, LockType.SHARED);
+        } catch (LockException e) {
+          failures.add(e);
+        }
+      }
+    });
+    dbReader.start();
+    dbReader.join();
+    assertEquals(LockType.SHARED, lockMan.getDatabaseLockType(2));
+
+    Thread writer = acquireInThread("table2", -1, 3, LockType.EXCLUSIVE);
+    assertTrue(writer.isAlive());
+    lockMan.releaseAllLocks(2);
+    writer.join();
+    assertTrue(lockMan.holdsLock("table2", 3, LockType.EXCLUSIVE));
+  }
+
+  @Test
+  public void testReleaseLock() throws Exception {
+    lockMan.acquirePageLock("table1", 1, 1, LockType.EXCLUSIVE);
+    lockMan.releaseLock("table1", 1);
+    assertNull(lockMan.getLockType("table1", 1));
+    assertFalse(lockMan.holdsPageLock("table1", 1, 1, LockType.SHARED));
+    assertNull(lockMan.getDatabaseLockType(1));
+    lockMan.acquireLock("table1", 2, LockType.EXCLUSIVE);
+  }
+
+  @Test
+  public void testDeadlockAbortsYoungestTransaction() throws Exception {
+    lockMan.setDeadlockDetectionInterval(10);
+    lockMan.acquireLock("table1", 1, LockType.EXCLUSIVE);
+    lockMan.acquireLock("table2", 2, LockType.EXCLUSIVE);
+    Thread t1 = acquireInThread("table2", -1, 1, LockType.SHARED);
+    Thread t2 = acquireInThread("table1", -1, 2, LockType.SHARED);
+
+    t2.join();
+    assertEquals(1, failures.size());
+    assertTrue(failures.get(0) instanceof DeadlockException);
+    assertTrue(t1.isAlive());
+    assertEquals(1, lockMan.getWaitStats("table1").getNumDeadlocks());
+
+    // aborting the victim releases its locks
+    lockMan.releaseAllLocks(2);
+    t1.join();
+    assertTrue(lockMan.holdsLock("table2", 1, LockType.SHARED));
+  }
+
+  @Test
+  public void testUpgradeDeadlock() throws Exception {
+    lockMan.setDeadlockDetectionInterval(10);
+    lockMan.acquireLock("table1", 1, LockType.SHARED);
+    lockMan.acquireLock("table1", 2, LockType.SHARED);
+    Thread t1 = acquireInThread("table1", -1, 1, LockType.EXCLUSIVE);
+    Thread t2 = acquireInThread("table1", -1, 2, LockType.EXCLUSIVE);
+
+    t2.join();
+    assertTrue(failures.get(0) instanceof DeadlockException);
+    lockMan.releaseAllLocks(2);
+    t1.join();
+    assertTrue(lockMan.holdsLock("table1", 1, LockType.EXCLUSIVE));
+  }
+
+  @Test
+  public void testLockTimeout() throws Exception {
+    lockMan.setLockTimeout(50);
+    lockMan.acquirePageLock("table1", 1, 1, LockType.EXCLUSIVE);
+    Thread t2 = acquireInThread("table1", 1, 2, LockType.SHARED);
+    t2.join();
+    assertEquals(1, failures.size());
+    assertTrue(failures.get(0) instanceof LockTimeoutException);
+    assertFalse(lockMan.holdsPageLock("table1", 1, 2, LockType.SHARED));
+
+    LockWaitStats stats = lockMan.getWaitStats("table1");
+    assertEquals(1, stats.getNumWaits());
+    assertEquals(1, stats.getNumTimeouts());
+    assertTrue(stats.getMaxWaitNanos() >= 50 * 1000000L);
+    assertEquals(0, lockMan.getWaitStats("table2").getNumWaits());
+
+    // the timed out request no longer holds up the queue
+    lockMan.acquirePageLock("table1", 2, 3, LockType.SHARED);
+    lockMan.releaseAllLocks(1);
+    lockMan.acquirePageLock("table1", 1, 3, LockType.SHARED);
+  }
+
+  @Test
+  public void testRecordLocks() throws Exception {
+    lockMan.acquireRecordLock("table1", new RecordID(1, 0), 1, LockType.EXCLUSIVE);
+    lockMan.acquireRecordLock("table1", new RecordID(1, 1), 2, LockType.EXCLUSIVE);
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getLockType("table1", 1));
+    assertTrue(lockMan.holdsRecordLock("table1", new RecordID(1, 0), 1, LockType.EXCLUSIVE));
+    assertFalse(lockMan.holdsRecordLock("table1", new RecordID(1, 1), 1, LockType.SHARED));
+    assertEquals(1, lockMan.getNumRecordLocks("table1", 2));
+
+    // a lock on the page has to wait for the rows on it
+    Thread pageWriter = acquireInThread("table1", 1, 3, LockType.EXCLUSIVE);
+    Thread rowReader = acquireInThread("table1", -1, 4, LockType.INTENTION_SHARED);
+    assertTrue(pageWriter.isAlive());
+    rowReader.join();
+    lockMan.acquireRecordLock("table1", new RecordID(2, 0), 4, LockType.SHARED);
+
+    lockMan.releaseAllLocks(1);
+    assertTrue(pageWriter.isAlive());
+    lockMan.releaseAllLocks(2);
+    pageWriter.join();
+    assertTrue(lockMan.holdsRecordLock("table1", new RecordID(1, 5), 3, LockType.EXCLUSIVE));
+    assertEquals(0, lockMan.getNumRecordLocks("table1", 1));
+  }
+
+  @Test
+  public void testLockEscalation() throws Exception {
+    lockMan.setEscalationThreshold(3);
+    for (int i = 0; i < 3; i++) {
+      lockMan.acquireRecordLock("table1", new RecordID(i, 0), 1, LockType.SHARED);
+    }
+    lockMan.acquireRecordLock("table2", new RecordID(0, 0), 1, LockType.SHARED);
+    lockMan.acquireRecordLock("table2", new RecordID(1, 0), 1, LockType.SHARED);
+    lockMan.acquireRecordLock("table2", new RecordID(0, 1), 1, LockType.EXCLUSIVE);
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getLockType("table2", 1));
+    assertEquals(LockType.INTENTION_SHARED, lockMan.getLockType("table1", 1));
+
+    // reads escalate to a shared table lock, writes to an exclusive one
+    lockMan.acquireRecordLock("table1", new RecordID(3, 0), 1, LockType.SHARED);
+    assertEquals(LockType.SHARED, lockMan.getLockType("table1", 1));
+    assertEquals(0, lockMan.getNumRecordLocks("table1", 1));
+    lockMan.acquireRecordLock("table2", new RecordID(3, 0), 1, LockType.SHARED);
+    assertEquals(LockType.EXCLUSIVE, lockMan.getLockType("table2", 1));
+    assertEquals(0, lockMan.getNumRecordLocks("table2", 1));
+
+    // the table lock now covers the rows
+    lockMan.acquireRecordLock("table1", new RecordID(9, 0), 1, LockType.SHARED);
+    assertEquals(0, lockMan.getNumRecordLocks("table1", 1));
+    Thread reader = acquireInThread("table2", 0, 2, LockType.SHARED);
+    assertTrue(reader.isAlive());
+    lockMan.releaseAllLocks(1);
+    reader.join();
+  }
+
+  @Test
+  public void testEscalationDoesNotWaitForOtherWriters() throws Exception {
+    lockMan.setEscalationThreshold(3);
+    // two writers pass the threshold on the same table; neither can lock the whole table
+    for (int i = 0; i < 5; i++) {
+      lockMan.acquireRecordLock("table1", new RecordID(i, 0), 1, LockType.EXCLUSIVE);
+      lockMan.acquireRecordLock("table1", new RecordID(i, 1), 2, LockType.EXCLUSIVE);
+    }
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getLockType("table1", 1));
+    assertEquals(LockType.INTENTION_EXCLUSIVE, lockMan.getLockType("table1", 2));
+    assertEquals(5, lockMan.getNumRecordLocks("table1", 1));
+    assertEquals(5, lockMan.getNumRecordLocks("table1", 2));
+    assertTrue(lockMan.holdsRecordLock("table1", new RecordID(4, 1), 2, LockType.EXCLUSIVE));
+
+    // once the other writer is gone, the next record lock escalates
+    lockMan.releaseAllLocks(2);
+    lockMan.acquireRecordLock("table1", new RecordID(5, 0), 1, LockType.EXCLUSIVE);
+    assertEquals(LockType.EXCLUSIVE, lockMan.getLockType("table1", 1));
+    assertEquals(0, lockMan.getNumRecordLocks("table1", 1));
+  }
+}
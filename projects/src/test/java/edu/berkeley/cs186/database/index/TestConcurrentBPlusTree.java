@@ -0,0 +1,181 @@
+package edu.berkeley.cs186.database.index;
+
+import edu.berkeley.cs186.database.table.RecordID;
+import edu.berkeley.cs186.database.databox.*;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TestConcurrentBPlusTree {
+    public static final String testFile = "ConcurrentBPlusTreeTest";
+    public static final int numWriters = 4;
+    public static final int numReaders = 4;
+    public static final int keysPerWriter = 2500;
+    private BPlusTree bp;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(160);
+
+    @Before
+    public void beforeEach() throws Exception {
+        tempFolder.newFile(testFile);
+        String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+        this.bp = new BPlusTree(new IntDataBox(), testFile, tempFolderPath);
+    }
+
+    /**
+     * Writers insert interleaved keys, so that they split the same nodes, while
+     * readers look up keys that are known to be inserted already.
+     */
+    @Test
+    public void testConcurrentInsertsAndLookups() throws Exception {
+        final AtomicIntegerArray inserted = new AtomicIntegerArray(numWriters);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicLong numLookups = new AtomicLong(0);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int w = 0; w < numWriters; w++) {
+            final int writer = w;
+            writers.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < keysPerWriter; j++) {
+                            int key = j * numWriters + writer;
+                            bp.insertKey(new IntDataBox(key), new RecordID(key, 0));
+                            inserted.set(writer, j + 1);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        List<Thread> readers = new ArrayList<Thread>();
+        for (int r = 0; r < numReaders; r++) {
+            final Random random = new Random(r);
+            readers.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        while (writing.get()) {
+                            int writer = random.nextInt(numWriters);
+                            int done = inserted.get(writer);
+                            if (done == 0) {
+                                continue;
+                            }
+                            int key = random.nextInt(done) * numWriters + writer;
+                            Iterator<RecordID> rids = bp.lookupKey(new IntDataBox(key));
+                            assertTrue("key " + key + " not found", rids.hasNext());
+                            assertEquals(key, rids.next().getPageNum());
+                            assertFalse(rids.hasNext());
+                            numLookups.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread t : writers) {
+            t.start();
+        }
+        for (Thread t : readers) {
+            t.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread t : writers) {
+            t.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        writing.set(false);
+        for (Thread t : readers) {
+            t.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        int numKeys = numWriters * keysPerWriter;
+        System.out.println(String.format("%d inserts and %d lookups in %.1f ms (%.0f ops/sec)",
+                numKeys, numLookups.get(), elapsedNanos / 1e6,
+                (numKeys + numLookups.get()) * 1e9 / elapsedNanos));
+
+        Iterator<RecordID> rids = bp.sortedScan();
+        for (int key = 0; key < numKeys; key++) {
+            assertTrue(rids.hasNext());
+            assertEquals(key, rids.next().getPageNum());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    /**
+     * Scans that run while keys are inserted between the existing ones still
+     * return every existing key, in order, in both directions.
+     */
+    @Test
+    public void testConcurrentScansSeeEarlierKeys() throws Exception {
+        final int numEarlier = 5000;
+        for (int i = 0; i < numEarlier; i++) {
+            bp.insertKey(new IntDataBox(2 * i), new RecordID(2 * i, 0));
+        }
+
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int j = 0; j < numEarlier; j++) {
+                        int i = (int) ((j * 7919L) % numEarlier);
+                        bp.insertKey(new IntDataBox(2 * i + 1), new RecordID(2 * i + 1, 0));
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+        writer.start();
+        boolean reverse = false;
+        while (writer.isAlive()) {
+            Iterator<RecordID> rids = reverse ? bp.reverseSortedScan() : bp.sortedScan();
+            int prev = reverse ? Integer.MAX_VALUE : -1;
+            int numEven = 0;
+            while (rids.hasNext()) {
+                int key = rids.next().getPageNum();
+                assertTrue(reverse ? key < prev : key > prev);
+                prev = key;
+                if (key % 2 == 0) {
+                    numEven++;
+                }
+            }
+            assertEquals(numEarlier, numEven);
+            reverse = !reverse;
+        }
+        writer.join();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
@@ -14,7 +14,13 @@ import org.junit.rules.Timeout;
 import org.junit.runners.MethodSorters;
 import org.junit.experimental.categories.Category;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import static org.junit.Assert.*;
 
 public class TestLargeBPlusTree {
@@ -52,4 +58,528 @@ public class TestLargeBPlusTree {
         }
         assertEquals(1, this.bp.getNumNodes());
     }
-}
\ No newline at end of file
+
+    /**
+     * Sorts numEntries entries with keys i / 3 and RecordIDs (i, 0), added in a scrambled order,
+     * in runs of runSize entries.
+     */
+    private EntrySorter sortEntries(int numEntries, int runSize) {
+        EntrySorter sorter = new EntrySorter(new IntDataBox(), tempFolder.getRoot(), runSize);
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            sorter.add(new LeafEntry(new IntDataBox(i / 3), new RecordID(i, 0)));
+        }
+        return sorter;
+    }
+
+    @Test
+    public void testEntrySorterMergesRuns() {
+        EntrySorter sorter = sortEntries(10000, 1000);
+        assertEquals(10, sorter.getNumRuns());
+        Iterator<LeafEntry> entries = sorter.sortedIterator();
+        for (int i = 0; i < 10000; i++) {
+            LeafEntry entry = entries.next();
+            assertEquals(new IntDataBox(i / 3), entry.getKey());
+            assertEquals(new RecordID(i, 0), entry.getRecordID());
+        }
+        assertFalse(entries.hasNext());
+        // the runs are deleted once they are merged
+        assertEquals(0, tempFolder.getRoot().listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".run");
+            }
+        }).length);
+    }
+
+    @Test
+    public void testBPlusTreeBulkLoad() {
+        int numEntries = 20000;
+        bp.bulkLoad(sortEntries(numEntries, 1000).sortedIterator(), 1.0);
+        // full leaves under a single root
+        assertEquals((numEntries + intLeafPageSize - 1) / intLeafPageSize + 1, bp.getNumNodes());
+
+        Iterator<RecordID> rids = bp.sortedScan();
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        // duplicates of a key that straddle leaves are all found
+        int key = intLeafPageSize / 3;
+        rids = bp.lookupKey(new IntDataBox(key));
+        for (int i = 3 * key; i < 3 * key + 3; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = bp.sortedScanFrom(new IntDataBox(5000));
+        for (int i = 15000; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testBPlusTreeBulkLoadFillFactor() {
+        int numEntries = 100000;
+        bp.bulkLoad(sortEntries(numEntries, EntrySorter.DEFAULT_RUN_SIZE).sortedIterator(), 0.5);
+        int numLeaves = (numEntries + intLeafPageSize / 2 - 1) / (intLeafPageSize / 2);
+        int numInner = (numLeaves + intInnPageSize / 2) / (intInnPageSize / 2 + 1);
+        // half full leaves and inner nodes under a root
+        assertEquals(numLeaves + numInner + 1, bp.getNumNodes());
+
+        // the room left in the nodes takes later inserts without splits
+        for (int i = numEntries; i < numEntries + 100; i++) {
+            bp.insertKey(new IntDataBox(i / 3), new RecordID(i, 0));
+        }
+        assertEquals(numLeaves + numInner + 1, bp.getNumNodes());
+
+        Iterator<RecordID> rids = bp.sortedScan();
+        for (int i = 0; i < numEntries + 100; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    @Test(expected = BPlusTreeException.class)
+    public void testBPlusTreeBulkLoadRejectsUnsortedEntries() {
+        List<LeafEntry> entries = new ArrayList<LeafEntry>();
+        entries.add(new LeafEntry(new IntDataBox(2), new RecordID(2, 0)));
+        entries.add(new LeafEntry(new IntDataBox(1), new RecordID(1, 0)));
+        bp.bulkLoad(entries.iterator(), 1.0);
+    }
+
+    @Test
+    public void testBPlusTreeScrambledInsertsStaySorted() {
+        int numEntries = 20000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            bp.insertKey(new IntDataBox(i / 2), new RecordID(i, 0));
+        }
+
+        Iterator<RecordID> rids = bp.sortedScan();
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        for (int key = 0; key < numEntries / 2; key += 97) {
+            rids = bp.lookupKey(new IntDataBox(key));
+            assertEquals(new RecordID(2 * key, 0), rids.next());
+            assertEquals(new RecordID(2 * key + 1, 0), rids.next());
+            assertFalse(rids.hasNext());
+            assertTrue(bp.containsKey(new IntDataBox(key)));
+        }
+        assertFalse(bp.containsKey(new IntDataBox(-1)));
+        assertFalse(bp.containsKey(new IntDataBox(numEntries / 2)));
+
+        rids = bp.sortedScanFrom(new IntDataBox(numEntries / 2 - 1));
+        assertEquals(new RecordID(numEntries - 2, 0), rids.next());
+        assertEquals(new RecordID(numEntries - 1, 0), rids.next());
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testBPlusTreeReverseScan() {
+        int numEntries = 20000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            bp.insertKey(new IntDataBox(i / 2), new RecordID(i, 0));
+        }
+
+        Iterator<RecordID> rids = bp.reverseSortedScan();
+        for (int i = numEntries - 1; i >= 0; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = bp.reverseSortedScanTo(new IntDataBox(1000));
+        for (int i = 2001; i >= 0; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+        assertFalse(bp.reverseSortedScanTo(new IntDataBox(-1)).hasNext());
+    }
+
+    @Test
+    public void testBPlusTreeDeleteKey() {
+        int numEntries = 20000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            bp.insertKey(new IntDataBox(i / 100), new RecordID(i, 0));
+        }
+        int numNodes = bp.getNumNodes();
+
+        // the duplicates of a key span leaves, and deleting them empties some
+        for (int i = 0; i < numEntries; i++) {
+            if (i % 100 != 0) {
+                assertTrue(bp.deleteKey(new IntDataBox(i / 100), new RecordID(i, 0)));
+            }
+        }
+        assertFalse(bp.deleteKey(new IntDataBox(0), new RecordID(1, 0)));
+        assertFalse(bp.deleteKey(new IntDataBox(1), new RecordID(0, 0)));
+        assertEquals(numNodes, bp.getNumNodes());
+
+        Iterator<RecordID> rids = bp.sortedScan();
+        for (int i = 0; i < numEntries; i += 100) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+        rids = bp.lookupKey(new IntDataBox(150));
+        assertEquals(new RecordID(15000, 0), rids.next());
+        assertFalse(rids.hasNext());
+
+        // the emptied leaves take new entries again
+        for (int i = 1; i < 100; i++) {
+            bp.insertKey(new IntDataBox(150), new RecordID(15000 + i, 0));
+        }
+        rids = bp.lookupKey(new IntDataBox(150));
+        for (int i = 15000; i < 15100; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testBPlusTreeBulkLoadLinksLeaves() {
+        int numEntries = 20000;
+        bp.bulkLoad(sortEntries(numEntries, 1000).sortedIterator(), 0.7);
+
+        Iterator<RecordID> rids = bp.reverseSortedScan();
+        for (int i = numEntries - 1; i >= 0; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        // a lookup follows the duplicates of a key onto the next leaf
+        int key = (int) (intLeafPageSize * 0.7) / 3;
+        rids = bp.lookupKey(new IntDataBox(key));
+        for (int i = 3 * key; i < 3 * key + 3; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = bp.sortedScanFrom(new IntDataBox(6000));
+        for (int i = 18000; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    private BPlusTree newStringTree(String fName) throws Exception {
+        tempFolder.newFile(fName);
+        return new BPlusTree(new StringDataBox(64), fName, tempFolder.getRoot().getAbsolutePath());
+    }
+
+    private static DataBox stringKey(String s) {
+        return new StringDataBox(s, 64);
+    }
+
+    @Test
+    public void testStringKeyBPlusTreeCompression() throws Exception {
+        BPlusTree tree = newStringTree("StringBPlusTreeTest");
+        int numEntries = 20000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            tree.insertKey(stringKey(String.format("customer-%08d", i)), new RecordID(i, 0));
+        }
+
+        // uncompressed leaves of 64 byte keys hold 57 entries, so they alone would take 351 nodes
+        assertTrue(tree.getNumNodes() < numEntries / 57 / 2);
+
+        Iterator<RecordID> rids = tree.sortedScan();
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        for (int i = 0; i < numEntries; i += 97) {
+            rids = tree.lookupKey(stringKey(String.format("customer-%08d", i)));
+            assertEquals(new RecordID(i, 0), rids.next());
+            assertFalse(rids.hasNext());
+        }
+        assertFalse(tree.containsKey(stringKey("customer-")));
+        assertFalse(tree.containsKey(stringKey("customer-000000001")));
+
+        rids = tree.sortedScanFrom(stringKey("customer-000199"));
+        for (int i = 19900; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.reverseSortedScanTo(stringKey("customer-00000099"));
+        for (int i = 99; i >= 0; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testStringKeyBPlusTreeShrinksPrefix() throws Exception {
+        BPlusTree tree = newStringTree("StringBPlusTreeTest");
+        String longPrefix = "a-rather-long-prefix-shared-by-the-first-keys-";
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 3000; i++) {
+            keys.add(longPrefix + String.format("%05d", i));
+        }
+        // keys that share nothing or only part of the prefix, and duplicates
+        for (int i = 0; i < 300; i++) {
+            keys.add(String.format("%03d", i));
+            keys.add("a-rather-" + i);
+            keys.add(longPrefix + String.format("%05d", 10 * i));
+        }
+        keys.add("");
+        for (int i = 0; i < keys.size(); i++) {
+            tree.insertKey(stringKey(keys.get(i)), new RecordID(i, 0));
+        }
+
+        List<LeafEntry> expected = new ArrayList<LeafEntry>();
+        for (int i = 0; i < keys.size(); i++) {
+            expected.add(new LeafEntry(stringKey(keys.get(i)), new RecordID(i, 0)));
+        }
+        Collections.sort(expected, new Comparator<LeafEntry>() {
+            public int compare(LeafEntry a, LeafEntry b) {
+                return a.compareTo(b);
+            }
+        });
+        Iterator<RecordID> rids = tree.sortedScan();
+        for (LeafEntry entry : expected) {
+            assertEquals(entry.getRecordID(), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.lookupKey(stringKey(longPrefix + "00020"));
+        assertEquals(new RecordID(20, 0), rids.next());
+        assertEquals(new RecordID(3000 + 3 * 2 + 2, 0), rids.next());
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testStringKeyBPlusTreeBulkLoad() throws Exception {
+        BPlusTree tree = newStringTree("StringBPlusTreeTest");
+        int numEntries = 20000;
+        List<LeafEntry> entries = new ArrayList<LeafEntry>();
+        for (int i = 0; i < numEntries; i++) {
+            entries.add(new LeafEntry(stringKey(String.format("customer-%08d", i / 3)), new RecordID(i, 0)));
+        }
+        tree.bulkLoad(entries.iterator(), 0.9);
+        assertTrue(tree.getNumNodes() < numEntries / 57 / 2);
+
+        Iterator<RecordID> rids = tree.reverseSortedScan();
+        for (int i = numEntries - 1; i >= 0; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        for (int key = 0; key < numEntries / 3; key += 89) {
+            rids = tree.lookupKey(stringKey(String.format("customer-%08d", key)));
+            for (int i = 3 * key; i < 3 * key + 3; i++) {
+                assertEquals(new RecordID(i, 0), rids.next());
+            }
+            assertFalse(rids.hasNext());
+        }
+
+        // inserts after the load split the full nodes
+        for (int i = numEntries; i < numEntries + 2000; i++) {
+            tree.insertKey(stringKey(String.format("customer-%08d", i / 3)), new RecordID(i, 0));
+        }
+        rids = tree.sortedScan();
+        for (int i = 0; i < numEntries + 2000; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    private BPlusTree newPostingTree(String fName) throws Exception {
+        tempFolder.newFile(fName);
+        return new BPlusTree(new IntDataBox(), fName, tempFolder.getRoot().getAbsolutePath(), true);
+    }
+
+    @Test
+    public void testPostingListBPlusTree() throws Exception {
+        BPlusTree tree = newPostingTree("PostingBPlusTreeTest");
+        int numEntries = 20000;
+        int numKeys = 1000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            bp.insertKey(new IntDataBox(i % numKeys), new RecordID(i / 50, i % 50));
+            tree.insertKey(new IntDataBox(i % numKeys), new RecordID(i / 50, i % 50));
+        }
+        assertTrue(tree.usesPostingLists());
+        // a RecordID takes about 3 bytes of a posting instead of 10 bytes of a LeafEntry
+        assertTrue(tree.getNumPages() * 3 < bp.getNumPages() * 2);
+
+        // the RecordIDs of a key come in order, wherever they were inserted
+        Iterator<RecordID> rids = tree.sortedScan();
+        for (int key = 0; key < numKeys; key++) {
+            for (int i = key; i < numEntries; i += numKeys) {
+                assertEquals(new RecordID(i / 50, i % 50), rids.next());
+            }
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.reverseSortedScanTo(new IntDataBox(500));
+        for (int key = 500; key >= 0; key--) {
+            for (int i = numEntries - numKeys + key; i >= 0; i -= numKeys) {
+                assertEquals(new RecordID(i / 50, i % 50), rids.next());
+            }
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.lookupKey(new IntDataBox(37));
+        for (int i = 37; i < numEntries; i += numKeys) {
+            assertEquals(new RecordID(i / 50, i % 50), rids.next());
+        }
+        assertFalse(rids.hasNext());
+        assertFalse(tree.containsKey(new IntDataBox(numKeys)));
+
+        // the flag is kept with the index
+        tree.close();
+        tree = new BPlusTree("PostingBPlusTreeTest", tempFolder.getRoot().getAbsolutePath());
+        assertTrue(tree.usesPostingLists());
+        rids = tree.sortedScanFrom(new IntDataBox(numKeys - 1));
+        for (int i = numKeys - 1; i < numEntries; i += numKeys) {
+            assertEquals(new RecordID(i / 50, i % 50), rids.next());
+        }
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testPostingListBPlusTreeHotKey() throws Exception {
+        BPlusTree tree = newPostingTree("PostingBPlusTreeTest");
+        int numEntries = 30000;
+        // the RecordIDs of the hot key arrive out of order, so they land all over its overflow pages
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            tree.insertKey(new IntDataBox(1), new RecordID(i / 100, i % 100));
+        }
+        tree.insertKey(new IntDataBox(0), new RecordID(0, 0));
+        tree.insertKey(new IntDataBox(2), new RecordID(0, 1));
+
+        assertEquals(1, tree.getNumNodes());
+        assertTrue(tree.getNumPages() > 2 + 1);
+        Iterator<RecordID> rids = tree.lookupKey(new IntDataBox(1));
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(new RecordID(i / 100, i % 100), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.reverseSortedScan();
+        assertEquals(new RecordID(0, 1), rids.next());
+        for (int i = numEntries - 1; i >= 0; i--) {
+            assertEquals(new RecordID(i / 100, i % 100), rids.next());
+        }
+        assertEquals(new RecordID(0, 0), rids.next());
+        assertFalse(rids.hasNext());
+    }
+
+    @Test
+    public void testPostingListBPlusTreeDeleteKey() throws Exception {
+        BPlusTree tree = newPostingTree("PostingBPlusTreeTest");
+        int numEntries = 30000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            tree.insertKey(new IntDataBox(1), new RecordID(i / 100, i % 100));
+        }
+        for (int i = 0; i < 10; i++) {
+            tree.insertKey(new IntDataBox(2), new RecordID(i, 0));
+        }
+        int numPages = tree.getNumPages();
+
+        // deleting from the front, the middle and the end of the overflow chain frees its pages
+        for (int i = 0; i < numEntries; i++) {
+            if (i % 10000 != 5000) {
+                assertTrue(tree.deleteKey(new IntDataBox(1), new RecordID(i / 100, i % 100)));
+            }
+        }
+        assertFalse(tree.deleteKey(new IntDataBox(1), new RecordID(0, 0)));
+        assertTrue(tree.getNumPages() < numPages);
+        Iterator<RecordID> rids = tree.lookupKey(new IntDataBox(1));
+        for (int i = 5000; i < numEntries; i += 10000) {
+            assertEquals(new RecordID(i / 100, i % 100), rids.next());
+        }
+        assertFalse(rids.hasNext());
+        tree.insertKey(new IntDataBox(1), new RecordID(numEntries, 0));
+        rids = tree.reverseSortedScanTo(new IntDataBox(1));
+        assertEquals(new RecordID(numEntries, 0), rids.next());
+
+        // an inline posting goes once its last RecordID does
+        for (int i = 0; i < 10; i++) {
+            assertTrue(tree.deleteKey(new IntDataBox(2), new RecordID(i, 0)));
+            assertEquals(i < 9, tree.containsKey(new IntDataBox(2)));
+        }
+        assertFalse(tree.deleteKey(new IntDataBox(2), new RecordID(0, 0)));
+    }
+
+    @Test
+    public void testPostingListBPlusTreeBulkLoad() throws Exception {
+        BPlusTree tree = newPostingTree("PostingBPlusTreeTest");
+        int numEntries = 20000;
+        tree.bulkLoad(sortEntries(numEntries, 1000).sortedIterator(), 0.9);
+
+        Iterator<RecordID> rids = tree.sortedScan();
+        for (int i = 0; i < numEntries; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        // inserts after the load grow the postings and split the full leaves
+        for (int i = numEntries; i < numEntries + 3000; i++) {
+            tree.insertKey(new IntDataBox((i - numEntries) / 3), new RecordID(i, 0));
+        }
+        rids = tree.lookupKey(new IntDataBox(500));
+        for (int i = 1500; i < 1503; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        for (int i = numEntries + 1500; i < numEntries + 1503; i++) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+        assertFalse(rids.hasNext());
+
+        rids = tree.reverseSortedScan();
+        for (int i = numEntries - 1; i >= 3000; i--) {
+            assertEquals(new RecordID(i, 0), rids.next());
+        }
+    }
+
+    private static CompositeDataBox compositeKey(int i) {
+        List<DataBox> values = new ArrayList<DataBox>();
+        values.add(new IntDataBox(i / 10));
+        values.add(new IntDataBox(-i));
+        values.add(new StringDataBox(String.format("%05d", i), 5));
+        return new CompositeDataBox(values, 2);
+    }
+
+    @Test
+    public void testCompositeKeyBPlusTree() throws Exception {
+        BPlusTree tree = new BPlusTree(compositeKey(0), "CompositeBPlusTreeTest",
+                tempFolder.getRoot().getAbsolutePath());
+        int numEntries = 10000;
+        for (int j = 0; j < numEntries; j++) {
+            int i = (int) ((j * 7919L) % numEntries);
+            tree.insertKey(compositeKey(i), new RecordID(i, 0));
+        }
+
+        // keys order on both key columns, and the include column comes back with them
+        Iterator<LeafEntry> entries = tree.sortedEntryScan();
+        for (int i = 0; i < numEntries; i += 10) {
+            for (int k = i + 9; k >= i; k--) {
+                LeafEntry entry = entries.next();
+                assertEquals(compositeKey(k), entry.getKey());
+                assertEquals(new RecordID(k, 0), entry.getRecordID());
+            }
+        }
+        assertFalse(entries.hasNext());
+
+        // the key schema is kept with the index, and the leading column alone looks keys up
+        tree.close();
+        tree = new BPlusTree("CompositeBPlusTreeTest", tempFolder.getRoot().getAbsolutePath());
+        List<DataBox> prefix = new ArrayList<DataBox>();
+        prefix.add(new IntDataBox(123));
+        entries = tree.lookupEntries(new CompositeDataBox(prefix));
+        for (int k = 1239; k >= 1230; k--) {
+            assertEquals(compositeKey(k), entries.next().getKey());
+        }
+        assertFalse(entries.hasNext());
+    }
+}
@@ -0,0 +1,67 @@
+package edu.berkeley.cs186.database.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the PageAllocator storage modes on the workloads of TestPageAllocator: allocating and
+ * writing pages, scanning them in order, and reading them in random order through a buffer pool
+ * that is smaller than the file. Not run as part of the test suite; run its main method with a
+ * small heap such as -Xmx64m. With a large heap, MAPPED_PAGE can create mappings faster than the
+ * garbage collector unmaps them and run into vm.max_map_count.
+ */
+public class PageAllocatorBenchmark {
+  private static final int numPages = 10000;
+  private static final int numRandomReads = 20000;
+  private static final int poolPages = 1024;
+  private static final int numRounds = 5;
+
+  public static void main(String[] args) throws IOException {
+    for (int round = 0; round < numRounds; round++) {
+      System.out.println("round " + round);
+      for (PageAllocator.StorageMode mode : PageAllocator.StorageMode.values()) {
+        run(mode);
+      }
+    }
+  }
+
+  private static void run(PageAllocator.StorageMode mode) throws IOException {
+    File file = File.createTempFile("PageAllocatorBenchmark", ".temp");
+    file.deleteOnExit();
+    byte[] data = new byte[Page.pageSize];
+    Random random = new Random(186);
+    random.nextBytes(data);
+
+    PageAllocator pA = new PageAllocator(file.getAbsolutePath(), true, false,
+        new BufferPool(poolPages), mode);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < numPages; i++) {
+      int pageNum = pA.allocPage();
+      pA.fetchPage(pageNum).writeBytes(0, Page.pageSize, data);
+    }
+    long allocNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    long checksum = 0;
+    for (Page p : pA) {
+      checksum += p.readByte(Page.pageSize - 1);
+    }
+    long scanNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (int i = 0; i < numRandomReads; i++) {
+      checksum += pA.fetchPage(random.nextInt(numPages)).readInt(0);
+    }
+    long randomNanos = System.nanoTime() - start;
+
+    pA.close();
+    file.delete();
+
+    System.out.println(String.format("  %-15s alloc+write %7.2f us/page  scan %7.2f us/page  "
+        + "random read %7.2f us/page  (checksum %d)", mode,
+        allocNanos / 1000.0 / numPages, scanNanos / 1000.0 / numPages,
+        randomNanos / 1000.0 / numRandomReads, checksum));
+  }
+}
@@ -0,0 +1,242 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.nio.channels.FileChannel;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+* Tests BufferPool.java
+*/
+
+public class TestBufferPool {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private Page newPage() throws IOException {
+    File tempFile = tempFolder.newFile();
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    return new Page(fc, 0, 0, false);
+  }
+
+  @Test
+  public void TestBufferPoolCapacity() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(64);
+    for (long i = 0; i < 1000; i++) {
+      pool.put(i, p);
+      assertTrue(pool.size() <= 64);
+      assertTrue(pool.contains(i));
+    }
+    assertEquals(64, pool.size());
+  }
+
+  @Test
+  public void TestBufferPoolGetAndRemove() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(64);
+    assertNull(pool.get(7L));
+    assertSame(p, pool.put(7L, p));
+    assertSame(p, pool.get(7L));
+    assertSame(p, pool.remove(7L));
+    assertNull(pool.get(7L));
+    assertNull(pool.remove(7L));
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void TestBufferPoolPutKeepsFirstPage() throws IOException {
+    Page p1 = newPage();
+    Page p2 = newPage();
+    BufferPool pool = new BufferPool(64);
+    assertSame(p1, pool.put(3L, p1));
+    assertSame(p1, pool.put(3L, p2));
+    assertSame(p1, pool.get(3L));
+  }
+
+  @Test
+  public void TestBufferPoolPinnedPagesNotEvicted() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(64);
+    List<Long> pinned = new ArrayList<Long>();
+    for (long i = 0; i < 32; i++) {
+      pool.put(i, p);
+      if (pool.pin(i)) {
+        pinned.add(i);
+      }
+    }
+    assertFalse(pinned.isEmpty());
+    for (long i = 32; i < 1000; i++) {
+      pool.put(i, p);
+    }
+    for (long i : pinned) {
+      assertTrue(pool.contains(i));
+      assertEquals(1, pool.getPinCount(i));
+    }
+
+    for (long i : pinned) {
+      pool.unpin(i);
+      assertEquals(0, pool.getPinCount(i));
+    }
+    for (long i = 1000; i < 2000; i++) {
+      pool.put(i, p);
+    }
+    for (long i : pinned) {
+      assertFalse(pool.contains(i));
+    }
+  }
+
+  @Test
+  public void TestBufferPoolFullyPinnedStripe() throws IOException {
+    Page p1 = newPage();
+    Page p2 = newPage();
+    BufferPool pool = new BufferPool(16);
+    for (long i = 0; i < 1000; i++) {
+      pool.put(i, p1);
+      pool.pin(i);
+    }
+    assertEquals(16, pool.size());
+    assertSame(p2, pool.put(1000L, p2));
+    assertFalse(pool.contains(1000L));
+  }
+
+  @Test
+  public void TestBufferPoolPinUncached() {
+    BufferPool pool = new BufferPool(16);
+    assertFalse(pool.pin(1L));
+    assertEquals(0, pool.getPinCount(1L));
+    pool.unpin(1L);
+  }
+
+  @Test
+  public void TestBufferPoolReservePages() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(128);
+    for (long i = 0; i < 1000; i++) {
+      pool.put(i, p);
+    }
+    assertEquals(128, pool.size());
+
+    pool.reservePages(64);
+    assertEquals(64, pool.getNumReservedPages());
+    for (long i = 1000; i < 2000; i++) {
+      pool.put(i, p);
+    }
+    assertEquals(64, pool.size());
+
+    pool.releasePages(64);
+    assertEquals(0, pool.getNumReservedPages());
+    for (long i = 2000; i < 3000; i++) {
+      pool.put(i, p);
+    }
+    assertEquals(128, pool.size());
+  }
+
+  @Test(expected = PageException.class)
+  public void TestBufferPoolReserveTooMany() {
+    BufferPool pool = new BufferPool(128);
+    pool.reservePages(100);
+    pool.reservePages(20);
+  }
+
+  @Test
+  public void TestBufferPoolReserveWhatIsLeft() {
+    BufferPool pool = new BufferPool(128);
+    assertEquals(100, pool.reservePages(3, 100));
+    assertEquals(12, pool.reservePages(3, 100));
+    assertEquals(112, pool.getNumReservedPages());
+    pool.releasePages(100);
+    assertEquals(100, pool.reservePages(3, 100));
+  }
+
+  @Test(expected = PageException.class)
+  public void TestBufferPoolReserveMoreThanCapacity() {
+    BufferPool pool = new BufferPool(128);
+    pool.reservePages(120, 120);
+  }
+
+  @Test
+  public void TestBufferPoolMemoryBudget() {
+    BufferPool pool = BufferPool.withMemoryBudget(4L * 1024 * 1024);
+    assertEquals(1024, pool.getCapacity());
+  }
+
+  @Test
+  public void TestBufferPoolRemoveAll() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(1024);
+    for (int alloc = 0; alloc < 4; alloc++) {
+      for (int i = 0; i < 100; i++) {
+        pool.put((((long) alloc) << 32) | i, p);
+      }
+    }
+    assertEquals(100, pool.removeAll(2).size());
+    assertEquals(300, pool.size());
+    for (int i = 0; i < 100; i++) {
+      assertFalse(pool.contains((2L << 32) | i));
+      assertTrue(pool.contains((1L << 32) | i));
+    }
+  }
+
+  @Test
+  public void TestBufferPoolConcurrentAccess() throws Exception {
+    final Page p = newPage();
+    final BufferPool pool = new BufferPool(256);
+    final AtomicBoolean failed = new AtomicBoolean(false);
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 8; t++) {
+      final long base = ((long) t) << 32;
+      Thread thread = new Thread(new Runnable() {
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            long vPageNum = base | (i % 100);
+            if (pool.get(vPageNum) == null) {
+              pool.put(vPageNum, p);
+            }
+            if (pool.pin(vPageNum)) {
+              pool.unpin(vPageNum);
+            }
+            if (pool.size() > 256) {
+              failed.set(true);
+            }
+          }
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertFalse(failed.get());
+    assertEquals(256, pool.size());
+  }
+
+  @Test
+  public void TestBufferPoolPutAndPinOvercommits() throws IOException {
+    Page p = newPage();
+    BufferPool pool = new BufferPool(16);
+    for (long i = 0; i < 100; i++) {
+      assertSame(p, pool.putAndPin(i, p));
+    }
+    assertEquals(100, pool.size());
+    for (long i = 0; i < 100; i++) {
+      assertEquals(1, pool.getPinCount(i));
+      assertSame(p, pool.getAndPin(i));
+      assertEquals(2, pool.getPinCount(i));
+      pool.unpin(i);
+      pool.unpin(i);
+    }
+    for (long i = 100; i < 1000; i++) {
+      pool.put(i, p);
+    }
+    assertEquals(16, pool.size());
+  }
+}
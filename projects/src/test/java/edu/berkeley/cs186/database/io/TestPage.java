@@ -7,6 +7,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.experimental.categories.Category;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.io.RandomAccessFile;
 import java.io.FileNotFoundException;
@@ -144,4 +145,35 @@ public class TestPage {
     fc.close();
   }
 
+  @Test
+  public void TestPageTypedAccessors() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    FileChannel fc = new RandomAccessFile(tempFile, "rw").getChannel();
+    Page p = new Page(fc, 0, 0);
+
+    p.writeInt(10, 186);
+    p.writeShort(20, (short) -7);
+    p.writeFloat(30, 1.5f);
+    assertEquals(186, p.readInt(10));
+    assertEquals((short) -7, p.readShort(20));
+    assertEquals(1.5f, p.readFloat(30), 0);
+    assertEquals(186, ByteBuffer.wrap(p.readBytes(10, 4)).getInt());
+
+    ByteBuffer view = p.slice(10, 4);
+    assertEquals(4, view.remaining());
+    assertTrue(view.isReadOnly());
+    assertEquals(186, view.getInt(0));
+    p.writeInt(10, 61);
+    assertEquals(61, view.getInt(0));
+
+    boolean thrown = false;
+    try {
+      p.readInt(Page.pageSize - 2);
+    } catch (PageException e) {
+      thrown = true;
+    }
+    assertTrue(thrown);
+
+    fc.close();
+  }
 }
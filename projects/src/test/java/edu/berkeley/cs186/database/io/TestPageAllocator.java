@@ -440,5 +440,404 @@ public class TestPageAllocator {
     }
   }
 
+  @Test
+  public void TestPageAllocatorPinnedPageNotEvicted() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new BufferPool(16));
+    for (int i = 0; i < 256; i++) {
+      pA.allocPage();
+    }
+
+    Page pinned;
+    try (PageHandle handle = pA.pinPage(0)) {
+      pinned = handle.getPage();
+      for (int i = 1; i < 256; i++) {
+        pA.fetchPage(i);
+      }
+      assertSame(pinned, pA.fetchPage(0));
+    }
+
+    for (int i = 1; i < 256; i++) {
+      pA.fetchPage(i);
+    }
+    assertNotSame(pinned, pA.fetchPage(0));
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPinTwice() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new BufferPool(16));
+    pA.allocPage();
+
+    PageHandle h1 = pA.pinPage(0);
+    PageHandle h2 = pA.pinPage(0);
+    assertSame(h1.getPage(), h2.getPage());
+    h1.close();
+    h1.close();
+    assertTrue(h1.isClosed());
+    assertFalse(h2.isClosed());
+    h2.close();
+    pA.close();
+  }
+
+  @Test(expected = PageException.class)
+  public void TestPageAllocatorClosedHandle() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    pA.allocPage();
+    PageHandle h = pA.pinPage(0);
+    h.close();
+    pA.close();
+    h.getPage();
+  }
+
+  @Test
+  public void TestPageAllocatorSegmentMode() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true,
+        new BufferPool(64), PageAllocator.StorageMode.MAPPED_SEGMENT);
+    assertEquals(PageAllocator.StorageMode.MAPPED_SEGMENT, pA.getStorageMode());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i, pA.allocPage());
+      pA.fetchPage(i).writeInt(0, i);
+      pA.fetchPage(i).writeInt(Page.pageSize - 4, -i);
+    }
+    for (int i = 0; i < 5000; i++) {
+      Page p = pA.fetchPage(i);
+      assertEquals(i, p.getPageNum());
+      assertEquals(i, p.readInt(0));
+      assertEquals(-i, p.readInt(Page.pageSize - 4));
+    }
+    pA.close();
+
+    // the file layout is the same as in per-page mode
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, true, new BufferPool(64),
+        PageAllocator.StorageMode.MAPPED_PAGE);
+    assertEquals(5000, pA.getNumPages());
+    for (int i = 0; i < 5000; i += 7) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, true, new BufferPool(64),
+        PageAllocator.StorageMode.MAPPED_SEGMENT);
+    assertEquals(5000, pA.getNumPages());
+    assertTrue(pA.freePage(42));
+    assertEquals(42, pA.allocPage());
+    assertEquals(-4999, pA.fetchPage(4999).readInt(Page.pageSize - 4));
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPositionalMode() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+        new BufferPool(16), PageAllocator.StorageMode.POSITIONAL);
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, pA.allocPage());
+      pA.fetchPage(i).writeInt(0, i);
+    }
+    // far more pages than the pool holds, so most of them were written back on eviction
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new BufferPool(16),
+        PageAllocator.StorageMode.MAPPED_PAGE);
+    assertEquals(1000, pA.getNumPages());
+    for (int i = 0; i < 1000; i++) {
+      assertEquals(i, pA.fetchPage(i).readInt(0));
+    }
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPositionalPageReloadsAfterEviction() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true,
+        new BufferPool(16), PageAllocator.StorageMode.POSITIONAL);
+    for (int i = 0; i < 256; i++) {
+      pA.allocPage();
+    }
+    Page p = pA.fetchPage(0);
+    p.writeInt(8, 186);
+    for (int i = 1; i < 256; i++) {
+      pA.fetchPage(i);
+    }
+    assertEquals(186, p.readInt(8));
+    assertEquals(186, pA.fetchPage(0).readInt(8));
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPositionalPageWrittenAfterEviction() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true,
+        new BufferPool(32), PageAllocator.StorageMode.POSITIONAL);
+    for (int i = 0; i < 201; i++) {
+      pA.allocPage();
+    }
+    Page p = pA.fetchPage(0);
+    for (int i = 1; i < 201; i++) {
+      pA.fetchPage(i);
+    }
+    // p was evicted; the write must still reach the page the allocator hands out
+    p.writeInt(8, 42);
+    assertEquals(42, p.readInt(8));
+    assertEquals(42, pA.fetchPage(0).readInt(8));
+    for (int i = 1; i < 201; i++) {
+      pA.fetchPage(i);
+    }
+    assertEquals(42, pA.fetchPage(0).readInt(8));
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, true, new BufferPool(32),
+        PageAllocator.StorageMode.POSITIONAL);
+    assertEquals(42, pA.fetchPage(0).readInt(8));
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorPositionalFreedPageIsDiscarded() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false,
+        new BufferPool(32), PageAllocator.StorageMode.POSITIONAL);
+    int pageNum = pA.allocPage();
+    Page p = pA.fetchPage(pageNum);
+    assertTrue(pA.freePage(p));
+    assertEquals(pageNum, pA.allocPage());
+    pA.fetchPage(pageNum).writeInt(0, 7);
+    try {
+      p.readInt(0);
+      fail();
+    } catch (PageException e) {
+      // expected: the page was freed
+    }
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorReusesLowestFreePage() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    assertTrue(pA.freePage(4500));
+    assertTrue(pA.freePage(10));
+    assertTrue(pA.freePage(4200));
+    assertFalse(pA.freePage(10));
+    assertEquals(4997, pA.getNumPages());
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false);
+    assertEquals(4997, pA.getNumPages());
+    assertEquals(10, pA.allocPage());
+    assertEquals(4200, pA.allocPage());
+    assertEquals(4500, pA.allocPage());
+    assertEquals(5000, pA.allocPage());
+    assertEquals(5001, pA.getNumPages());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorGroupCommit() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true, new BufferPool(1024));
+    pA.allocPage();
+    pA.enableGroupCommit(0);
+    assertTrue(pA.isGroupCommit());
+
+    // with group commit, nothing is forced until the next sync
+    IOStats stats = pA.getIOStats();
+    long flushes = stats.getNumFlushes();
+    for (int i = 1; i <= 100; i++) {
+      assertEquals(i, pA.allocPage());
+    }
+    assertEquals(flushes, stats.getNumFlushes());
+
+    // one sync forces the master page and the single dirty header page
+    pA.sync();
+    assertEquals(flushes + 2, stats.getNumFlushes());
+    pA.sync();
+    assertEquals(flushes + 2, stats.getNumFlushes());
+
+    pA.disableGroupCommit();
+    assertFalse(pA.isGroupCommit());
+    pA.allocPage();
+    assertEquals(flushes + 4, stats.getNumFlushes());
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, true);
+    assertEquals(102, pA.getNumPages());
+    pA.close();
+  }
 
+  @Test
+  public void TestPageAllocatorGroupCommitTimer() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, true, new BufferPool(1024));
+    pA.allocPage();
+    pA.enableGroupCommit(10);
+    IOStats stats = pA.getIOStats();
+    long flushes = stats.getNumFlushes();
+    pA.allocPage();
+    for (int i = 0; i < 500 && stats.getNumFlushes() < flushes + 2; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(flushes + 2, stats.getNumFlushes());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorReadAhead() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 200; i++) {
+      pA.allocPage();
+    }
+    pA.close();
+
+    pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, new BufferPool(1024));
+    pA.setReadAheadPages(16);
+    assertEquals(16, pA.getReadAheadPages());
+    long hits = PageAllocator.getNumReadAheadHits();
+    long misses = PageAllocator.getNumReadAheadMisses();
+
+    Iterator<Page> iter = pA.iterator();
+    assertEquals(0, iter.next().getPageNum());
+    assertEquals(1, iter.next().getPageNum());
+    // give the background thread time to load the window
+    Thread.sleep(200);
+    for (int i = 2; i < 200; i++) {
+      assertEquals(i, iter.next().getPageNum());
+    }
+    assertFalse(iter.hasNext());
+
+    long newHits = PageAllocator.getNumReadAheadHits() - hits;
+    long newMisses = PageAllocator.getNumReadAheadMisses() - misses;
+    assertEquals(198, newHits + newMisses);
+    assertTrue(newHits >= 8);
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorCloseDuringReadAhead() throws Exception {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 1000; i++) {
+      pA.allocPage();
+    }
+    pA.close();
+
+    for (int round = 0; round < 20; round++) {
+      BufferPool pool = new BufferPool(1024);
+      pA = new PageAllocator(tempFile.getAbsolutePath(), false, false, pool);
+      pA.setReadAheadPages(256);
+      Iterator<Page> iter = pA.iterator();
+      iter.next();
+      iter.next();
+      pA.close();
+      // a read-ahead still running must not leave pages of the closed allocator behind
+      Thread.sleep(20);
+      assertEquals(0, pool.size());
+    }
+  }
+
+  @Test
+  public void TestPageAllocatorReadAheadDisabled() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new BufferPool(1024));
+    pA.setReadAheadPages(0);
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+    }
+    long hits = PageAllocator.getNumReadAheadHits();
+    long misses = PageAllocator.getNumReadAheadMisses();
+    int count = 0;
+    for (Page p : pA) {
+      assertEquals(count, p.getPageNum());
+      count++;
+    }
+    assertEquals(100, count);
+    assertEquals(hits, PageAllocator.getNumReadAheadHits());
+    assertEquals(misses, PageAllocator.getNumReadAheadMisses());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorIOStats() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new BufferPool(1024));
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+    }
+    IOStats stats = pA.getIOStats();
+    stats.reset();
+    for (int j = 0; j < 2; j++) {
+      for (int i = 0; i < 10; i++) {
+        pA.fetchPage(i);
+      }
+    }
+    assertEquals(20, stats.getNumLogicalReads());
+    assertTrue(stats.getNumCacheHits() >= 10);
+    assertEquals(stats.getNumLogicalReads() - stats.getNumCacheHits(), stats.getNumPhysicalReads());
+    assertEquals(stats.getNumPhysicalReads() * Page.pageSize, stats.getNumBytesRead());
+    assertEquals(0, stats.getNumEvictions());
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorIOStatsEvictions() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false, new BufferPool(16));
+    for (int i = 0; i < 100; i++) {
+      pA.allocPage();
+    }
+    IOStats stats = pA.getIOStats();
+    stats.reset();
+    for (int i = 0; i < 100; i++) {
+      pA.fetchPage(i);
+    }
+    assertEquals(100, stats.getNumLogicalReads());
+    assertTrue(stats.getNumEvictions() > 0);
+    assertTrue(stats.getHitRatio() < 0.5);
+    pA.close();
+  }
+
+  @Test
+  public void TestPageAllocatorIOStatsBound() throws IOException {
+    File tempFile = tempFolder.newFile(fName);
+    PageAllocator pA = new PageAllocator(tempFile.getAbsolutePath(), true, false);
+    for (int i = 0; i < 10; i++) {
+      pA.allocPage();
+    }
+    IOStats parent = new IOStats();
+    IOStats child = new IOStats(parent);
+    IOStats previous = IOStats.bind(child);
+    try {
+      for (int i = 0; i < 5; i++) {
+        pA.fetchPage(i);
+      }
+    } finally {
+      IOStats.restore(previous);
+    }
+    assertNull(IOStats.current());
+    pA.fetchPage(5);
+    assertEquals(5, child.getNumLogicalReads());
+    assertEquals(5, parent.getNumLogicalReads());
+
+    previous = IOStats.bindWithin(parent);
+    assertNull(previous);
+    assertSame(parent, IOStats.current());
+    IOStats inner = IOStats.bindWithin(parent);
+    assertSame(parent, inner);
+    IOStats.bind(child);
+    assertSame(child, IOStats.bindWithin(parent));
+    assertSame(child, IOStats.current());
+    IOStats.restore(null);
+    pA.close();
+  }
 }
@@ -0,0 +1,234 @@
+package edu.berkeley.cs186.database.io;
+
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.berkeley.cs186.database.databox.IntDataBox;
+import edu.berkeley.cs186.database.index.BPlusTree;
+import edu.berkeley.cs186.database.table.RecordID;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+public class TestWriteAheadLog {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private PageAllocator newLoggedAllocator(File dir, WriteAheadLog log) {
+    PageAllocator pA = new PageAllocator(new File(dir, "data").getPath(), true);
+    pA.enableLogging(log, "data", true);
+    return pA;
+  }
+
+  private static void logChange(WriteAheadLog log, long transNum, String change) {
+    log.beginOperation();
+    log.endOperation(transNum, change.getBytes());
+  }
+
+  /**
+   * Records the changes it undoes, and fails like a crash would once it undid failAt of them.
+   */
+  private static class RecordingUndo implements WriteAheadLog.Undo {
+    private WriteAheadLog log;
+    private int failAt;
+    private List<String> undone = new ArrayList<String>();
+
+    private RecordingUndo(WriteAheadLog log, int failAt) {
+      this.log = log;
+      this.failAt = failAt;
+    }
+
+    public void undo(long transNum, byte[] change) {
+      if (this.undone.size() == this.failAt) {
+        throw new IllegalStateException("crash");
+      }
+      this.log.beginOperation();
+      this.undone.add(new String(change));
+      this.log.endOperation(transNum, null);
+    }
+  }
+
+  @Test
+  public void testCommitForcesLogOnce() throws IOException {
+    File dir = tempFolder.newFolder();
+    WriteAheadLog log = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+    PageAllocator pA = newLoggedAllocator(dir, log);
+
+    long previous = WriteAheadLog.bind(1);
+    try {
+      Page p = pA.fetchPage(pA.allocPage());
+      long nextLSN = log.getNextLSN();
+      log.beginOperation();
+      for (int i = 0; i < 100; i++) {
+        p.writeInt(4 * i, i);
+      }
+      // every write of a mapped page is in the log file before the page changes
+      assertTrue(p.getPageLSN() >= nextLSN);
+      assertEquals(log.getNextLSN(), new File(dir, WriteAheadLog.FILENAME).length());
+      log.endOperation(1, "change".getBytes());
+      assertTrue(log.getFlushedLSN() <= p.getPageLSN());
+    } finally {
+      WriteAheadLog.restore(previous);
+    }
+    long forces = log.getNumForces();
+    log.commit(1);
+    assertEquals(forces + 1, log.getNumForces());
+    assertEquals(log.getNextLSN(), log.getFlushedLSN() + 21);
+
+    // a transaction that logged no change has nothing to commit
+    log.commit(2);
+    assertEquals(forces + 1, log.getNumForces());
+    pA.close();
+    log.close();
+  }
+
+  @Test
+  public void testRedoRepeatsHistory() throws IOException {
+    File dir = tempFolder.newFolder();
+    WriteAheadLog log = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+    PageAllocator pA = newLoggedAllocator(dir, log);
+
+    long previous = WriteAheadLog.bind(1);
+    int pageNum;
+    try {
+      log.beginOperation();
+      pageNum = pA.allocPage();
+      pA.fetchPage(pageNum).writeInt(0, 42);
+      log.endOperation(1, "insert 42".getBytes());
+    } finally {
+      WriteAheadLog.restore(previous);
+    }
+    log.commit(1);
+
+    previous = WriteAheadLog.bind(2);
+    try {
+      log.beginOperation();
+      pA.fetchPage(pageNum).writeInt(4, 7);
+      log.endOperation(2, "insert 7".getBytes());
+      // an operation that did not end is taken back
+      log.beginOperation();
+      pA.fetchPage(pageNum).writeInt(8, 9);
+      pA.fetchPage(pageNum).writeInt(12, 10);
+    } finally {
+      WriteAheadLog.restore(previous);
+    }
+
+    // the crash loses the committed write to the file, but not the log
+    RandomAccessFile file = new RandomAccessFile(new File(dir, "data"), "rw");
+    file.seek(2L * Page.pageSize);
+    file.writeInt(0);
+    file.writeInt(0);
+    file.close();
+
+    WriteAheadLog reopened = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+    Set<Long> losers = reopened.redo(dir.getPath());
+    assertEquals(Collections.singleton(2L), losers);
+    RecordingUndo undo = new RecordingUndo(reopened, -1);
+    reopened.rollback(losers, undo);
+    assertEquals(Arrays.asList("insert 7"), undo.undone);
+    reopened.close();
+
+    PageAllocator recovered = new PageAllocator(new File(dir, "data").getPath(), false);
+    assertEquals(1, recovered.getNumPages());
+    Page p = recovered.fetchPage(pageNum);
+    assertEquals(42, p.readInt(0));
+    assertEquals(7, p.readInt(4));
+    assertEquals(0, p.readInt(8));
+    assertEquals(0, p.readInt(12));
+    recovered.close();
+
+    // the rollback finished, so nothing is left to roll back
+    reopened = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+    assertTrue(reopened.redo(dir.getPath()).isEmpty());
+    reopened.close();
+  }
+
+  @Test
+  public void testRedoTakesBackOperationInterruptedMidSplit() throws IOException {
+    File dir = tempFolder.newFolder();
+    File crashDir = tempFolder.newFolder();
+    WriteAheadLog log = new WriteAheadLog(new File(dir, WriteAheadLog.FILENAME).getPath());
+    BPlusTree tree = new BPlusTree(new IntDataBox(), "tree", dir.getPath());
+    tree.enableWriteAheadLog(log, true);
+    int numKeys = 0;
+    while (tree.getNumNodes() < 3) {
+      tree.insertKey(new IntDataBox(numKeys), new RecordID(numKeys, 0));
+      numKeys++;
+    }
+
+    long previous = WriteAheadLog.bind(1);
+    try {
+      log.beginOperation();
+      int numNodes = tree.getNumNodes();
+      int key = numKeys;
+      while (tree.getNumNodes() == numNodes) {
+        tree.insertKey(new IntDataBox(key), new RecordID(key, 0));
+        key++;
+      }
+      // the process crashes right after the split, before the operation ends
+      for (String name : new String[] {WriteAheadLog.FILENAME, "tree" + BPlusTree.FILENAME_EXTENSION}) {
+        Files.copy(new File(dir, name).toPath(), new File(crashDir, name).toPath());
+      }
+      log.endOperation(1, "insert".getBytes());
+    } finally {
+      WriteAheadLog.restore(previous);
+    }
+    tree.close();
+    log.close();
+
+    WriteAheadLog reopened = new WriteAheadLog(new File(crashDir, WriteAheadLog.FILENAME).getPath());
+    reopened.redo(crashDir.getPath());
+    reopened.close();
+    BPlusTree recovered = new BPlusTree("tree", crashDir.getPath());
+    Iterator<RecordID> scan = recovered.sortedScan();
+    for (int i = 0; i < numKeys; i++) {
+      assertEquals(new RecordID(i, 0), scan.next());
+    }
+    assertFalse(scan.hasNext());
+    recovered.insertKey(new IntDataBox(numKeys), new RecordID(numKeys, 0));
+    assertTrue(recovered.lookupKey(new IntDataBox(numKeys)).hasNext());
+    recovered.close();
+  }
+
+  @Test
+  public void testRollbackUndoesNewestFirstAndOnce() throws IOException {
+    File dir = tempFolder.newFolder();
+    File logFile = new File(dir, WriteAheadLog.FILENAME);
+    WriteAheadLog log = new WriteAheadLog(logFile.getPath());
+    logChange(log, 1, "a1");
+    logChange(log, 2, "b1");
+    logChange(log, 1, "a2");
+    logChange(log, 2, "b2");
+    logChange(log, 1, "a3");
+
+    RecordingUndo undo = new RecordingUndo(log, 2);
+    try {
+      log.rollback(Arrays.asList(1L, 2L), undo);
+      fail();
+    } catch (IllegalStateException e) {
+      // the crash interrupts the rollback
+    }
+    assertEquals(Arrays.asList("a3", "b2"), undo.undone);
+    log.close();
+
+    WriteAheadLog reopened = new WriteAheadLog(logFile.getPath());
+    undo = new RecordingUndo(reopened, -1);
+    reopened.rollback(reopened.redo(dir.getPath()), undo);
+    assertEquals(Arrays.asList("a2", "b1", "a1"), undo.undone);
+    reopened.close();
+
+    reopened = new WriteAheadLog(logFile.getPath());
+    assertTrue(reopened.redo(dir.getPath()).isEmpty());
+    reopened.close();
+  }
+}
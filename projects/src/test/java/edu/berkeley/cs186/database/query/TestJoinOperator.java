@@ -19,6 +19,7 @@ import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.StringDataBox;
 import edu.berkeley.cs186.database.table.Record;
 import edu.berkeley.cs186.database.table.Schema;
+import edu.berkeley.cs186.database.table.Table;
 import org.junit.rules.TemporaryFolder;
 
 import static org.junit.Assert.*;
@@ -443,4 +444,36 @@ public class TestJoinOperator {
 
   }
 
-}
\ No newline at end of file
+  @Test(timeout=5000)
+  public void testJoinSlottedTables() throws QueryPlanException, DatabaseException, IOException {
+    File tempDir = tempFolder.newFolder("joinTest");
+    Database database = new Database(tempDir.getAbsolutePath());
+    Schema schema = TestUtils.createSchemaWithAllTypes();
+    database.createTable(schema, "leftTable", Table.PageFormat.SLOTTED);
+    database.createTable(schema, "rightTable", Table.PageFormat.SLOTTED);
+    Database.Transaction transaction = database.beginTransaction();
+    for (int i = 0; i < 500; i++) {
+      Record record = TestUtils.createRecordWithAllTypesWithValue(i);
+      transaction.addRecord("leftTable", record.getValues());
+      transaction.addRecord("rightTable", record.getValues());
+    }
+
+    List<JoinOperator> joinOperators = new ArrayList<JoinOperator>();
+    joinOperators.add(new BNLJOperator(new SequentialScanOperator(transaction, "leftTable"),
+        new SequentialScanOperator(transaction, "rightTable"), "int", "int", transaction));
+    joinOperators.add(new PNLJOperator(new SequentialScanOperator(transaction, "leftTable"),
+        new SequentialScanOperator(transaction, "rightTable"), "int", "int", transaction));
+    for (JoinOperator joinOperator : joinOperators) {
+      Iterator<Record> outputIterator = joinOperator.iterator();
+      int numRecords = 0;
+      while (outputIterator.hasNext()) {
+        List<DataBox> values = outputIterator.next().getValues();
+        assertEquals(values.get(1), values.get(5));
+        numRecords++;
+      }
+      assertEquals(500, numRecords);
+    }
+    transaction.end();
+    database.close();
+  }
+}
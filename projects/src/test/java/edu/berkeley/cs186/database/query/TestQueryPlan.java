@@ -516,6 +516,47 @@ public class TestQueryPlan {
     assertFalse(result.hasNext());
   }
 
+  @Test
+  public void testIndexOnlyScan() throws DatabaseException, QueryPlanException {
+    List<String> keyColumns = new ArrayList<String>();
+    keyColumns.add("int");
+    List<String> includeColumns = new ArrayList<String>();
+    includeColumns.add("string");
+    this.database.createIndex(this.defaulTableName, keyColumns, includeColumns);
+
+    Database.Transaction transaction = this.database.beginTransaction();
+    QueryPlan queryPlan = transaction.query(this.defaulTableName);
+    queryPlan.select("int", QueryPlan.PredicateOperator.GREATER_THAN_EQUALS, new IntDataBox(50));
+    List<String> columns = new ArrayList<String>();
+    columns.add("string");
+    queryPlan.project(columns);
+    Iterator<Record> result = queryPlan.execute();
+
+    IndexScanOperator indexOp = (IndexScanOperator) queryPlan.getFinalOperator().getSource();
+    assertTrue(indexOp.isIndexOnly());
+    int count = 0;
+    while (result.hasNext()) {
+      assertEquals(1, result.next().getValues().size());
+      count++;
+    }
+    assertEquals(50, count);
+
+    // the float column is not in the index
+    queryPlan = transaction.query(this.defaulTableName);
+    queryPlan.select("int", QueryPlan.PredicateOperator.EQUALS, new IntDataBox(7));
+    columns = new ArrayList<String>();
+    columns.add("string");
+    columns.add("float");
+    queryPlan.project(columns);
+    result = queryPlan.execute();
+
+    indexOp = (IndexScanOperator) queryPlan.getFinalOperator().getSource();
+    assertFalse(indexOp.isIndexOnly());
+    assertEquals(2, result.next().getValues().size());
+    assertFalse(result.hasNext());
+    transaction.end();
+  }
+
   @Test
   public void testUseIndexRangeLookup() throws DatabaseException, QueryPlanException {
     List<String> intTableNames = new ArrayList<String>() ;
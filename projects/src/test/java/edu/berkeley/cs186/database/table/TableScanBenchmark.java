@@ -0,0 +1,90 @@
+package edu.berkeley.cs186.database.table;
+
+import edu.berkeley.cs186.database.TestUtils;
+import edu.berkeley.cs186.database.io.BufferPool;
+import edu.berkeley.cs186.database.io.Page;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Iterator;
+
+/**
+ * Measures the bytes allocated and the time spent per scanned record, for a full table scan and
+ * for decoding records from a page by copying them out (readBytes + decode(byte[])) versus
+ * reading them in place (decode(Page, int)). Not run as part of the test suite; run its main
+ * method. Allocation is measured with com.sun.management.ThreadMXBean, so this needs a HotSpot
+ * JVM.
+ */
+public class TableScanBenchmark {
+  private static final int numRecords = 100000;
+  private static final int numRounds = 5;
+
+  public static void main(String[] args) throws Exception {
+    File dir = Files.createTempDirectory("TableScanBenchmark").toFile();
+    dir.deleteOnExit();
+    Schema schema = TestUtils.createSchemaWithAllTypes();
+    Table table = new Table(schema, "bench", dir.getAbsolutePath(), new BufferPool(1024));
+    Record input = TestUtils.createRecordWithAllTypes();
+    for (int i = 0; i < numRecords; i++) {
+      table.addRecord(input.getValues());
+    }
+
+    for (int round = 0; round < numRounds; round++) {
+      System.out.println("round " + round);
+      scan(table);
+      decode(table, true);
+      decode(table, false);
+    }
+    table.close();
+  }
+
+  private static void scan(Table table) {
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    long checksum = 0;
+    for (Record r : table) {
+      checksum += r.getValues().get(1).getInt();
+    }
+    report("table scan", start, bytes, checksum);
+  }
+
+  private static void decode(Table table, boolean copy) {
+    Schema schema = table.getSchema();
+    int entrySize = schema.getEntrySize();
+    int entriesPerPage = table.getNumEntriesPerPage();
+    long bytes = allocatedBytes();
+    long start = System.nanoTime();
+    long checksum = 0;
+    Iterator<Page> pages = table.pageIterator();
+    pages.next();
+    int records = 0;
+    while (pages.hasNext() && records < numRecords) {
+      Page p = pages.next();
+      for (int i = 0; i < entriesPerPage && records < numRecords; i++, records++) {
+        int offset = table.getPageHeaderSize() + entrySize * i;
+        Record r;
+        if (copy) {
+          r = schema.decode(p.readBytes(offset, entrySize));
+        } else {
+          r = schema.decode(p, offset);
+        }
+        checksum += r.getValues().get(1).getInt();
+      }
+    }
+    report(copy ? "decode copy" : "decode in place", start, bytes, checksum);
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean bean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static void report(String name, long start, long bytes, long checksum) {
+    long nanos = System.nanoTime() - start;
+    long allocated = allocatedBytes() - bytes;
+    System.out.println(String.format("  %-16s %7.1f bytes/record  %7.1f ns/record  (checksum %d)",
+        name, ((double) allocated) / numRecords, ((double) nanos) / numRecords, checksum));
+  }
+}
@@ -4,15 +4,24 @@ import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.databox.DataBox;
 import edu.berkeley.cs186.database.databox.IntDataBox;
 import edu.berkeley.cs186.database.databox.StringDataBox;
+import edu.berkeley.cs186.database.io.Page;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.*;
 
 public class TestSchema {
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   @Test
   public void testSchemaRetrieve() {
     Schema schema = TestUtils.createSchemaWithAllTypes();
@@ -54,4 +63,18 @@ public class TestSchema {
     schema.verify(values);
   }
 
+  @Test
+  public void testDecodeFromPage() throws Exception {
+    Schema schema = TestUtils.createSchemaWithAllTypes();
+    Record input = TestUtils.createRecordWithAllTypes();
+    byte[] bytes = schema.encode(input);
+
+    File file = tempFolder.newFile("testDecodeFromPage");
+    FileChannel fc = new RandomAccessFile(file, "rw").getChannel();
+    Page page = new Page(fc, 0, 0, false);
+    page.writeBytes(100, bytes.length, bytes);
+    assertEquals(input, schema.decode(page, 100));
+    assertEquals(input, schema.decode(bytes));
+    fc.close();
+  }
 }
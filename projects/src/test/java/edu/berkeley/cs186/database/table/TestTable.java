@@ -4,6 +4,9 @@ import edu.berkeley.cs186.database.DatabaseException;
 import edu.berkeley.cs186.database.TestUtils;
 import edu.berkeley.cs186.database.StudentTest;
 import edu.berkeley.cs186.database.databox.*;
+import edu.berkeley.cs186.database.io.Page;
+import edu.berkeley.cs186.database.io.PageAllocator;
+import edu.berkeley.cs186.database.io.PageHandle;
 
 import org.junit.After;
 import org.junit.Before;
@@ -15,8 +18,13 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.experimental.categories.Category;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Iterator;
+import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.*;
@@ -391,4 +399,372 @@ public class TestTable {
     assertFalse(iRec.hasNext());
   }
 
+  /**
+   * Fills page 1, starts page 2, and frees slots 3 and 7 of page 1.
+   */
+  private void fillAndFreeFirstPage(Record input) throws DatabaseException {
+    int numEntriesPerPage = table.getNumEntriesPerPage();
+    for (int i = 0; i <= numEntriesPerPage; i++) {
+      table.addRecord(input.getValues());
+    }
+    table.deleteRecord(new RecordID(1, 7));
+    table.deleteRecord(new RecordID(1, 3));
+  }
+
+  @Test
+  public void testTableDeleteFreesSlotImmediately() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    fillAndFreeFirstPage(input);
+
+    assertEquals(new RecordID(1, 3), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(1, 7), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(2, 1), table.addRecord(input.getValues()));
+  }
+
+  @Test
+  public void testTableOpenLoadsFreeSpaceMap() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    fillAndFreeFirstPage(input);
+    long numRecords = table.getNumRecords();
+    table.close();
+
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    File fsmFile = new File(tempFolderPath, TABLENAME + Table.FREE_SPACE_EXTENSION);
+    assertTrue(fsmFile.exists());
+    this.table = new Table(TABLENAME, tempFolderPath);
+    // the map is consumed so that a crash before the next close forces a rebuild
+    assertFalse(fsmFile.exists());
+
+    assertEquals(numRecords, table.getNumRecords());
+    assertEquals(numRecords, table.getStats().getNumRecords());
+    assertEquals(new RecordID(1, 3), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(1, 7), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(2, 1), table.addRecord(input.getValues()));
+  }
+
+  @Test
+  public void testTableOpenRebuildsFreeSpaceMap() throws DatabaseException {
+    Record input = TestUtils.createRecordWithAllTypes();
+    fillAndFreeFirstPage(input);
+    long numRecords = table.getNumRecords();
+    table.close();
+
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    assertTrue(new File(tempFolderPath, TABLENAME + Table.FREE_SPACE_EXTENSION).delete());
+    this.table = new Table(TABLENAME, tempFolderPath);
+
+    assertEquals(numRecords, table.getNumRecords());
+    assertEquals(new RecordID(1, 3), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(1, 7), table.addRecord(input.getValues()));
+    assertEquals(new RecordID(2, 1), table.addRecord(input.getValues()));
+    assertEquals(numRecords + 3, table.getStats().getNumRecords());
+  }
+
+  private Table createSlottedTable(Schema s, String tableName) throws DatabaseException {
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    return new Table(s, tableName, tempFolderPath, PageAllocator.getDefaultBufferPool(),
+        Table.PageFormat.SLOTTED);
+  }
+
+  private List<DataBox> stringValues(String s) {
+    List<DataBox> values = new ArrayList<DataBox>();
+    values.add(new StringDataBox(s, 255));
+    return values;
+  }
+
+  @Test
+  public void testTableBulkLoad() throws DatabaseException {
+    int numEntriesPerPage = table.getNumEntriesPerPage();
+    int numRows = 2 * numEntriesPerPage + 5;
+    List<List<DataBox>> rows = new ArrayList<List<DataBox>>();
+    for (int i = 0; i < numRows; i++) {
+      rows.add(TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+
+    BulkLoadStats loadStats = table.bulkLoad(rows.iterator());
+    assertEquals(numRows, loadStats.getNumRecords());
+    assertEquals(3, loadStats.getNumPages());
+    assertEquals(numRows, table.getNumRecords());
+    assertEquals(numRows, table.getStats().getNumRecords());
+    assertEquals(TestUtils.createRecordWithAllTypesWithValue(numEntriesPerPage),
+        table.getRecord(new RecordID(2, 0)));
+
+    Iterator<Record> iter = table.iterator();
+    for (int i = 0; i < numRows; i++) {
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), iter.next());
+    }
+    assertFalse(iter.hasNext());
+
+    // the partially filled last page takes the next record
+    Record input = TestUtils.createRecordWithAllTypes();
+    assertEquals(new RecordID(3, 5), table.addRecord(input.getValues()));
+    table.close();
+
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    this.table = new Table(TABLENAME, tempFolderPath);
+    assertEquals(numRows + 1, table.getNumRecords());
+    assertEquals(new RecordID(3, 6), table.addRecord(input.getValues()));
+  }
+
+  @Test
+  public void testTableBulkLoadStopsAtInvalidRow() throws DatabaseException {
+    List<List<DataBox>> rows = new ArrayList<List<DataBox>>();
+    for (int i = 0; i < 10; i++) {
+      rows.add(TestUtils.createRecordWithAllTypesWithValue(i).getValues());
+    }
+    rows.add(TestUtils.createRecordWithAllTypes().getValues().subList(0, 2));
+    rows.add(TestUtils.createRecordWithAllTypesWithValue(11).getValues());
+
+    List<RecordID> rids = new ArrayList<RecordID>();
+    try {
+      table.bulkLoad(rows.iterator(), rids);
+      fail();
+    } catch (DatabaseException e) {
+      // expected: the eleventh row does not match the schema
+    }
+    assertEquals(10, rids.size());
+    assertEquals(10, table.getNumRecords());
+    for (int i = 0; i < 10; i++) {
+      assertEquals(new RecordID(1, i), rids.get(i));
+      assertEquals(TestUtils.createRecordWithAllTypesWithValue(i), table.getRecord(rids.get(i)));
+    }
+    assertEquals(new RecordID(1, 10), table.addRecord(rows.get(0)));
+  }
+
+  @Test
+  public void testSlottedTableBulkLoad() throws DatabaseException {
+    Schema stringSchema = TestUtils.createSchemaOfString(255);
+    Table slottedTable = createSlottedTable(stringSchema, "slottedTable");
+    List<List<DataBox>> rows = new ArrayList<List<DataBox>>();
+    for (int i = 0; i < 1000; i++) {
+      rows.add(stringValues("abc"));
+    }
+
+    List<RecordID> rids = new ArrayList<RecordID>();
+    BulkLoadStats loadStats = slottedTable.bulkLoad(rows.iterator(), rids);
+    assertEquals(1000, loadStats.getNumRecords());
+    assertEquals(3, loadStats.getNumPages());
+    int perPage = (Page.pageSize - 4) / 9;
+    assertEquals(new RecordID(1, perPage - 1), rids.get(perPage - 1));
+    assertEquals(new RecordID(2, 0), rids.get(perPage));
+
+    int count = 0;
+    for (Record record : slottedTable) {
+      assertEquals(new Record(stringValues("abc")), record);
+      count++;
+    }
+    assertEquals(1000, count);
+    slottedTable.close();
+  }
+
+  @Test
+  public void testSlottedTableStoresShortStringsDensely() throws DatabaseException {
+    Schema stringSchema = TestUtils.createSchemaOfString(255);
+    Table fixedTable = createTestTable(stringSchema, "fixedTable");
+    int fixedEntries = fixedTable.getNumEntriesPerPage();
+    fixedTable.close();
+
+    Table slottedTable = createSlottedTable(stringSchema, "slottedTable");
+    assertEquals(Table.PageFormat.SLOTTED, slottedTable.getPageFormat());
+    int onFirstPage = 0;
+    for (int i = 0; i < 1000; i++) {
+      RecordID rid = slottedTable.addRecord(stringValues("abc"));
+      if (rid.getPageNum() == 1) {
+        onFirstPage++;
+      }
+    }
+    // 2 bytes of length, 3 bytes of string and a 4 byte slot per record
+    assertEquals((Page.pageSize - 4) / 9, onFirstPage);
+    assertTrue(onFirstPage > 10 * fixedEntries);
+    assertEquals(1000, slottedTable.getNumRecords());
+
+    Iterator<Record> iter = slottedTable.iterator();
+    int count = 0;
+    while (iter.hasNext()) {
+      assertEquals(new Record(stringValues("abc")), iter.next());
+      count++;
+    }
+    assertEquals(1000, count);
+    slottedTable.close();
+  }
+
+  @Test
+  public void testSlottedTableDeleteUpdateDurable() throws DatabaseException {
+    Schema stringSchema = TestUtils.createSchemaOfString(255);
+    Table slottedTable = createSlottedTable(stringSchema, "slottedTable");
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 100; i++) {
+      rids.add(slottedTable.addRecord(stringValues("record " + i)));
+    }
+
+    assertEquals(new Record(stringValues("record 5")), slottedTable.deleteRecord(rids.get(5)));
+    assertEquals(rids.get(5), slottedTable.addRecord(stringValues("reused")));
+    slottedTable.deleteRecord(rids.get(7));
+    slottedTable.updateRecord(stringValues("r8"), rids.get(8));
+    slottedTable.updateRecord(stringValues("a much longer value for record 9"), rids.get(9));
+    slottedTable.close();
+
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    slottedTable = new Table("slottedTable", tempFolderPath);
+    assertEquals(Table.PageFormat.SLOTTED, slottedTable.getPageFormat());
+    assertEquals(99, slottedTable.getNumRecords());
+    assertEquals(new Record(stringValues("reused")), slottedTable.getRecord(rids.get(5)));
+    assertEquals(new Record(stringValues("r8")), slottedTable.getRecord(rids.get(8)));
+    assertEquals(new Record(stringValues("a much longer value for record 9")),
+        slottedTable.getRecord(rids.get(9)));
+    assertEquals(new Record(stringValues("record 99")), slottedTable.getRecord(rids.get(99)));
+    try {
+      slottedTable.getRecord(rids.get(7));
+      fail();
+    } catch (DatabaseException e) {
+      // expected: the record was deleted
+    }
+    slottedTable.close();
+  }
+
+  @Test
+  public void testSlottedTableCompactsPage() throws DatabaseException {
+    Schema stringSchema = TestUtils.createSchemaOfString(255);
+    Table slottedTable = createSlottedTable(stringSchema, "slottedTable");
+    List<RecordID> rids = new ArrayList<RecordID>();
+    RecordID rid = slottedTable.addRecord(stringValues("abc"));
+    while (rid.getPageNum() == 1) {
+      rids.add(rid);
+      rid = slottedTable.addRecord(stringValues("abc"));
+    }
+
+    // a grown record does not fit on a full page
+    try {
+      slottedTable.updateRecord(stringValues(String.format("%200s", "x")), rids.get(0));
+      fail();
+    } catch (DatabaseException e) {
+      assertEquals(new Record(stringValues("abc")), slottedTable.getRecord(rids.get(0)));
+    }
+
+    // freeing scattered records makes room for a large one once the page is compacted
+    for (int i = 0; i < 100; i += 2) {
+      slottedTable.deleteRecord(rids.get(i));
+    }
+    String large = String.format("%200s", "x").replace(' ', 'y');
+    RecordID largeRid = slottedTable.addRecord(stringValues(large));
+    assertEquals(1, largeRid.getPageNum());
+    assertEquals(new Record(stringValues(large)), slottedTable.getRecord(largeRid));
+    for (int i = 1; i < rids.size(); i += 2) {
+      assertEquals(new Record(stringValues("abc")), slottedTable.getRecord(rids.get(i)));
+    }
+    slottedTable.close();
+  }
+
+  private Table createMultiVersionTable(Schema s, String tableName) throws DatabaseException {
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    return new Table(s, tableName, tempFolderPath, PageAllocator.getDefaultBufferPool(),
+        Table.PageFormat.FIXED, true);
+  }
+
+  private int countRecords(Iterator<Record> records) {
+    int count = 0;
+    while (records.hasNext()) {
+      records.next();
+      count++;
+    }
+    return count;
+  }
+
+  @Test
+  public void testMultiVersionSnapshots() throws DatabaseException {
+    Table mvTable = createMultiVersionTable(this.schema, "mvTable");
+    Record r1 = TestUtils.createRecordWithAllTypesWithValue(1);
+    Record r2 = TestUtils.createRecordWithAllTypesWithValue(2);
+
+    Snapshot s0 = new Snapshot(0, Collections.<Long>emptySet());
+    RecordID rid = mvTable.addRecord(r1.getValues(), new Snapshot(1, Collections.singleton(0L)));
+    // transaction 0 began before transaction 1, and transaction 2 while 1 was running
+    assertEquals(0, countRecords(mvTable.iterator(s0)));
+    assertEquals(0, countRecords(mvTable.iterator(new Snapshot(2, Collections.singleton(1L)))));
+    mvTable.commit(1);
+
+    Snapshot s3 = new Snapshot(3, Collections.<Long>emptySet());
+    Snapshot s4 = new Snapshot(4, Collections.singleton(3L));
+    assertEquals(r1, mvTable.getRecord(rid, s3));
+    mvTable.updateRecord(r2.getValues(), rid, s4);
+    assertEquals(r1, mvTable.getRecord(rid, s3));
+    assertEquals(r2, mvTable.getRecord(rid, s4));
+    assertEquals(r2, mvTable.getRecord(rid));
+
+    mvTable.deleteRecord(rid, s4);
+    PageHandle handle = mvTable.pinPage(rid.getPageNum());
+    assertEquals((byte) 0x80, mvTable.readPageHeader(handle.getPage(), s3)[0]);
+    assertEquals(r1, mvTable.readRecord(handle.getPage(), rid.getEntryNumber(), s3));
+    assertEquals(0, mvTable.readPageHeader(handle.getPage(), s4)[0]);
+    handle.close();
+    assertFalse(mvTable.iterator().hasNext());
+    mvTable.commit(4);
+
+    // transaction 3 still needs the first version
+    assertTrue(mvTable.vacuum(s3.getHorizon()).isEmpty());
+    assertEquals(r1, mvTable.getRecord(rid, s3));
+    assertEquals(1, mvTable.getNumRecords());
+
+    Map<RecordID, List<Record>> reclaimed = mvTable.vacuum(5);
+    assertEquals(Arrays.asList(r1, r2), reclaimed.get(rid));
+    assertEquals(0, mvTable.getNumRecords());
+    assertEquals(0, mvTable.getNumVersions());
+    mvTable.close();
+  }
+
+  @Test
+  public void testMultiVersionRollback() throws DatabaseException {
+    Table mvTable = createMultiVersionTable(this.schema, "mvTable");
+    Record r1 = TestUtils.createRecordWithAllTypesWithValue(1);
+    Record r2 = TestUtils.createRecordWithAllTypesWithValue(2);
+    RecordID rid = mvTable.addRecord(r1.getValues(), new Snapshot(0, Collections.<Long>emptySet()));
+    mvTable.commit(0);
+
+    Snapshot s1 = new Snapshot(1, Collections.<Long>emptySet());
+    mvTable.updateRecord(r2.getValues(), rid, s1);
+    RecordID inserted = mvTable.addRecord(r2.getValues(), s1);
+    assertEquals(2, mvTable.getNumRecords());
+
+    // a transaction that does not see transaction 1 cannot overwrite its version
+    try {
+      mvTable.updateRecord(r1.getValues(), rid, new Snapshot(2, Collections.singleton(1L)));
+      fail();
+    } catch (DatabaseException e) {
+      // expected
+    }
+
+    Map<RecordID, List<Record>> removed = mvTable.rollback(1);
+    assertEquals(Arrays.asList(r2), removed.get(rid));
+    assertEquals(Arrays.asList(r2), removed.get(inserted));
+    assertEquals(r1, mvTable.getRecord(rid));
+    assertEquals(1, mvTable.getNumRecords());
+    assertEquals(1, mvTable.getStats().getNumRecords());
+    try {
+      mvTable.getRecord(inserted);
+      fail();
+    } catch (DatabaseException e) {
+      // expected: the insert was rolled back
+    }
+    mvTable.close();
+  }
+
+  @Test
+  public void testMultiVersionTableDurable() throws DatabaseException {
+    Table mvTable = createMultiVersionTable(this.schema, "mvTable");
+    Snapshot s0 = new Snapshot(0, Collections.<Long>emptySet());
+    List<RecordID> rids = new ArrayList<RecordID>();
+    for (int i = 0; i < 10; i++) {
+      rids.add(mvTable.addRecord(TestUtils.createRecordWithAllTypesWithValue(i).getValues(), s0));
+    }
+    mvTable.deleteRecord(rids.get(3), s0);
+    mvTable.commit(0);
+    mvTable.close();
+
+    String tempFolderPath = tempFolder.getRoot().getAbsolutePath();
+    mvTable = new Table("mvTable", tempFolderPath);
+    assertTrue(mvTable.isMultiVersion());
+    assertEquals(9, mvTable.getNumRecords());
+    assertEquals(9, countRecords(mvTable.iterator(new Snapshot(1, new HashSet<Long>()))));
+    mvTable.close();
+  }
 }